@@ -2,9 +2,8 @@ package org.mortbay.jetty.asyncblazeds;
 
 
 import flex.management.BaseControl;
-import flex.management.runtime.messaging.endpoints.EndpointControl;
 
-public class AsyncAMFEndpointControl extends EndpointControl
+public class AsyncAMFEndpointControl extends AsyncEndpointControl
 {
 
     private static final String TYPE = "AsyncAMFEndpoint";
@@ -30,23 +30,69 @@
 
 package org.mortbay.jetty.asyncblazeds;
 
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import org.eclipse.jetty.continuation.ContinuationThrowable;
 
 import flex.messaging.endpoints.amf.AMFFilter;
 import flex.messaging.io.MessageIOConstants;
 import flex.messaging.io.RecoverableSerializationException;
 import flex.messaging.io.amf.ActionContext;
+import flex.messaging.io.amf.ActionMessage;
 import flex.messaging.io.amf.MessageBody;
+import flex.messaging.io.amf.MessageHeader;
+import flex.messaging.log.Log;
+import flex.messaging.log.LogCategories;
+import flex.messaging.log.Logger;
+import flex.messaging.messages.Message;
+import flex.messaging.messages.RemotingMessage;
 
 /**
  * Filter that breaks down the batched message buffer into individual invocations.
+ * <p>
+ * If the endpoint has a batch executor (see the <code>parallel-batch-threads</code> endpoint
+ * property), the remoting messages of a batch to the destinations declared independent (see the
+ * <code>parallel-batch-destinations</code> endpoint property) are invoked concurrently by the
+ * executor, each with its own {@link ActionContext}, and the responses are kept in the order of
+ * the requests.
+ * Other messages (commands such as polls, logins or subscriptions, and remoting messages to other
+ * destinations) are invoked by the request thread, in order, after the preceding remoting messages
+ * have completed, so they may still suspend the request.
+ * A body rejected by the busy executor is also invoked by the request thread, once the bodies
+ * already submitted are done, so that a batch never runs more bodies at once than the executor
+ * allows.
+ * Batches are processed sequentially if message performance information is enabled, since it
+ * is shared by all the bodies of a batch.
+ * </p>
+ * <p>
+ * The processing time of each body is reported to the endpoint's management bean, see
+ * {@link AsyncEndpointControlMBean#getBodyProcessingTimeAverage()}.
+ * </p>
  *
  * @author PS Neville
  */
 public class AsyncBatchProcessFilter extends AMFFilter
 {
+    private static final String NIL_FLEX_CLIENT_ID = "nil";
+
+    private final BaseAsyncHTTPEndpoint endpoint;
+    private final Logger logger = Log.getLogger(LogCategories.ENDPOINT_GENERAL);
+
     public AsyncBatchProcessFilter()
     {
+        this(null);
+    }
+
+    public AsyncBatchProcessFilter(BaseAsyncHTTPEndpoint endpoint)
+    {
+        this.endpoint = endpoint;
     }
 
     public void invoke(final ActionContext context)
@@ -57,44 +103,231 @@ public class AsyncBatchProcessFilter extends AMFFilter
         // Report batch size in Debug mode
         //gateway.getLogger().logDebug("Processing batch of " + bodyCount + " request(s)");
 
+        Executor executor = endpoint == null ? null : endpoint.getBatchExecutor();
+        if (executor != null && bodyCount > 1 && context.getMessageNumber() == 0 && !context.isMPIenabled())
+        {
+            invokeParallel(context, executor);
+            return;
+        }
+
         while (context.getMessageNumber() < bodyCount)
+            invokeBody(context);
+    }
+
+    private void invokeBody(ActionContext context)
+    {
+        try
         {
-            try
+            int responses=context.getResponseMessage().getBodyCount();
+            if (responses==context.getMessageNumber())
             {
-                int responses=context.getResponseMessage().getBodyCount();
-                if (responses==context.getMessageNumber())
-                {
-                    // create the response body
+                // create the response body
 
-                    MessageBody responseBody = new MessageBody();
-                    responseBody.setTargetURI(context.getRequestMessageBody().getResponseURI());
+                MessageBody responseBody = new MessageBody();
+                responseBody.setTargetURI(context.getRequestMessageBody().getResponseURI());
 
-                    // append the response body to the output message
-                    context.getResponseMessage().addBody(responseBody);
-                }
-                    
-                //Check that deserialized message body data type was valid. If not, skip this message.
-                Object o = context.getRequestMessageBody().getData();
+                // append the response body to the output message
+                context.getResponseMessage().addBody(responseBody);
+            }
+
+            //Check that deserialized message body data type was valid. If not, skip this message.
+            Object o = context.getRequestMessageBody().getData();
+
+            if (o != null && o instanceof RecoverableSerializationException)
+            {
+                context.getResponseMessageBody().setData(((RecoverableSerializationException)o).createErrorMessage());
+                context.getResponseMessageBody().setReplyMethod(MessageIOConstants.STATUS_METHOD);
+                context.incrementMessageNumber();
+                return;
+            }
 
-                if (o != null && o instanceof RecoverableSerializationException)
+            // invoke next filter in the chain
+            long start = System.nanoTime();
+            next.invoke(context);
+            bodyProcessed(context.getMessageNumber(), System.nanoTime() - start, false);
+            context.incrementMessageNumber();
+        }
+        catch (ContinuationThrowable ct)
+        {
+            throw ct;
+        }
+        catch (Exception e)
+        {
+            logger.error("Could not process batch body " + context.getMessageNumber(), e);
+        }
+    }
+
+    private void invokeParallel(ActionContext context, Executor executor)
+    {
+        int bodyCount = context.getRequestMessage().getBodyCount();
+        List<BodyTask> tasks = new ArrayList<BodyTask>();
+        try
+        {
+            while (context.getMessageNumber() < bodyCount)
+            {
+                MessageBody requestBody = context.getRequestMessageBody();
+                if (isIndependent(requestBody))
                 {
-                    context.getResponseMessageBody().setData(((RecoverableSerializationException)o).createErrorMessage());
-                    context.getResponseMessageBody().setReplyMethod(MessageIOConstants.STATUS_METHOD);
+                    MessageBody responseBody = new MessageBody();
+                    responseBody.setTargetURI(requestBody.getResponseURI());
+                    context.getResponseMessage().addBody(responseBody);
+
+                    BodyTask task = new BodyTask(context, requestBody, responseBody);
+                    try
+                    {
+                        executor.execute(endpoint.bindThreadLocals(task.future));
+                    }
+                    catch (RejectedExecutionException x)
+                    {
+                        // Do not add the request thread to the busy executor's threads
+                        complete(context, tasks);
+                        task.future.run();
+                    }
+                    tasks.add(task);
                     context.incrementMessageNumber();
-                    continue;
                 }
+                else
+                {
+                    // Commands may depend on the preceding messages
+                    complete(context, tasks);
+                    invokeBody(context);
+                }
+            }
+        }
+        finally
+        {
+            complete(context, tasks);
+        }
+    }
 
-                // invoke next filter in the chain
-                next.invoke(context);
-                context.incrementMessageNumber();
+    /**
+     * Waits for the given tasks and merges their results into the batch context.
+     */
+    private void complete(ActionContext context, List<BodyTask> tasks)
+    {
+        for (BodyTask task : tasks)
+        {
+            try
+            {
+                task.future.get();
+            }
+            catch (InterruptedException x)
+            {
+                Thread.currentThread().interrupt();
             }
-            catch (ContinuationThrowable ct)
+            catch (ExecutionException x)
             {
-                throw ct;
+                logger.error("Could not process batch body " + task.index, x.getCause());
+            }
+
+            ActionContext bodyContext = task.context;
+            if (bodyContext.getStatus() == MessageIOConstants.STATUS_ERR)
+                context.setStatus(MessageIOConstants.STATUS_ERR);
+            context.setLegacy(bodyContext.isLegacy());
+
+            ActionMessage response = context.getResponseMessage();
+            ActionMessage bodyResponse = bodyContext.getResponseMessage();
+            for (int i = 0; i < bodyResponse.getHeaderCount(); ++i)
+            {
+                MessageHeader header = bodyResponse.getHeader(i);
+                if (!hasHeader(response, header.getName()))
+                    response.addHeader(header);
+            }
+        }
+        tasks.clear();
+    }
+
+    private void bodyProcessed(int index, long nanos, boolean parallel)
+    {
+        AsyncEndpointControl control = endpoint == null ? null : endpoint.getAsyncControl();
+        if (control != null)
+            control.addProcessedBody(nanos, parallel);
+        if (Log.isDebug())
+            logger.debug("Batch body " + index + " processed" + (parallel ? " in parallel" : "") + " in " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms");
+    }
+
+    private boolean hasHeader(ActionMessage message, String name)
+    {
+        for (int i = 0; i < message.getHeaderCount(); ++i)
+        {
+            if (message.getHeader(i).getName().equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the given body is a remoting message from an existing FlexClient to
+     * a destination declared independent, which can be processed concurrently with other
+     * such bodies.
+     */
+    private boolean isIndependent(MessageBody body)
+    {
+        Object data = body.getData();
+        if (data instanceof List)
+        {
+            List<?> list = (List<?>)data;
+            data = list.size() == 1 ? list.get(0) : null;
+        }
+        else if (data != null && data.getClass().isArray())
+        {
+            data = Array.getLength(data) == 1 ? Array.get(data, 0) : null;
+        }
+
+        if (!(data instanceof RemotingMessage))
+            return false;
+
+        // A FlexClient is created for the first message of a client, which must not happen concurrently
+        Object flexClientId = ((Message)data).getHeader(Message.FLEX_CLIENT_ID_HEADER);
+        if (flexClientId == null || NIL_FLEX_CLIENT_ID.equals(flexClientId))
+            return false;
+
+        // Only the services that declare that they do not share state with the other
+        // messages of the batch, through the FlexSession, FlexClient or HTTP request
+        return endpoint.isParallelBatchDestination(((Message)data).getDestination());
+    }
+
+    /**
+     * The invocation of a single body of a batch, with its own {@link ActionContext}
+     * sharing the request body and response body with the batch context.
+     */
+    private class BodyTask implements Runnable
+    {
+        private final ActionContext context = new ActionContext();
+        private final FutureTask<Object> future = new FutureTask<Object>(this, null);
+        private final int index;
+
+        private BodyTask(ActionContext batchContext, MessageBody requestBody, MessageBody responseBody)
+        {
+            index = batchContext.getMessageNumber();
+            context.setVersion(batchContext.getVersion());
+
+            ActionMessage batchRequest = batchContext.getRequestMessage();
+            ActionMessage request = new ActionMessage(batchRequest.getVersion());
+            for (int i = 0; i < batchRequest.getHeaderCount(); ++i)
+                request.addHeader(batchRequest.getHeader(i));
+            request.addBody(requestBody);
+            context.setRequestMessage(request);
+
+            ActionMessage response = new ActionMessage(batchContext.getResponseMessage().getVersion());
+            response.addBody(responseBody);
+            context.setResponseMessage(response);
+        }
+
+        public void run()
+        {
+            long start = System.nanoTime();
+            try
+            {
+                next.invoke(context);
             }
             catch (Exception e)
             {
-                e.printStackTrace();
+                logger.error("Could not process batch body " + index, e);
+            }
+            finally
+            {
+                bodyProcessed(index, System.nanoTime() - start, true);
             }
         }
     }
@@ -0,0 +1,175 @@
+package org.mortbay.jetty.asyncblazeds;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import flex.management.BaseControl;
+import flex.management.runtime.messaging.endpoints.EndpointControl;
+
+/**
+ * Base class for the MBeans of the asynchronous endpoints, which keeps the
+ * deserialization statistics reported by {@link AsyncSerializationFilter}
+ * and the message body processing statistics reported by
+ * {@link AsyncBatchProcessFilter}.
+ */
+public abstract class AsyncEndpointControl extends EndpointControl implements AsyncEndpointControlMBean
+{
+    private final AtomicLong requestsDeserialized = new AtomicLong();
+    private final AtomicLong requestsRejected = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong deserializationNanos = new AtomicLong();
+    private final AtomicLong sessionUrlRewrites = new AtomicLong();
+    private final AtomicLong bodiesProcessed = new AtomicLong();
+    private final AtomicLong bodiesProcessedInParallel = new AtomicLong();
+    private final AtomicLong bodyProcessingNanos = new AtomicLong();
+    private final AtomicLong bodyProcessingNanosMax = new AtomicLong();
+
+    /**
+     * Constructs a <code>AsyncEndpointControl</code>, assigning managed
+     * message endpoint and parent MBean.
+     * 
+     * @param endpoint
+     *            The endpoint managed by this MBean.
+     * @param parent
+     *            The parent MBean in the management hierarchy.
+     */
+    public AsyncEndpointControl(BaseAsyncHTTPEndpoint endpoint, BaseControl parent)
+    {
+        super(endpoint,parent);
+    }
+
+    /** {@inheritDoc} */
+    public Integer getMaxRequestSize()
+    {
+        return ((BaseAsyncHTTPEndpoint)endpoint).getMaxRequestSize();
+    }
+
+    /** {@inheritDoc} */
+    public Long getRequestsDeserialized()
+    {
+        return requestsDeserialized.get();
+    }
+
+    /** {@inheritDoc} */
+    public Long getRequestsRejected()
+    {
+        return requestsRejected.get();
+    }
+
+    /** {@inheritDoc} */
+    public Long getDeserializationTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(deserializationNanos.get());
+    }
+
+    /** {@inheritDoc} */
+    public Double getDeserializationThroughput()
+    {
+        long nanos = deserializationNanos.get();
+        if (nanos == 0)
+            return 0D;
+        return bytesRead.get() * 1000D * 1000D * 1000D / nanos;
+    }
+
+    /** {@inheritDoc} */
+    public Long getBodiesProcessed()
+    {
+        return bodiesProcessed.get();
+    }
+
+    /** {@inheritDoc} */
+    public Long getBodiesProcessedInParallel()
+    {
+        return bodiesProcessedInParallel.get();
+    }
+
+    /** {@inheritDoc} */
+    public Double getBodyProcessingTimeAverage()
+    {
+        long bodies = bodiesProcessed.get();
+        if (bodies == 0)
+            return 0D;
+        return bodyProcessingNanos.get() / 1000D / 1000D / bodies;
+    }
+
+    /** {@inheritDoc} */
+    public Long getBodyProcessingTimeMax()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(bodyProcessingNanosMax.get());
+    }
+
+    /** {@inheritDoc} */
+    public void resetBodyProcessingStatistics()
+    {
+        bodiesProcessed.set(0);
+        bodiesProcessedInParallel.set(0);
+        bodyProcessingNanos.set(0);
+        bodyProcessingNanosMax.set(0);
+    }
+
+    /** {@inheritDoc} */
+    public Long getSessionUrlRewrites()
+    {
+        return sessionUrlRewrites.get();
+    }
+
+    /** {@inheritDoc} */
+    public void resetDeserializationStatistics()
+    {
+        requestsDeserialized.set(0);
+        requestsRejected.set(0);
+        bytesRead.set(0);
+        deserializationNanos.set(0);
+    }
+
+    /**
+     * Records the deserialization of a request.
+     * 
+     * @param bytes
+     *            The number of bytes read.
+     * @param nanos
+     *            The time taken to read and deserialize the request.
+     */
+    public void addDeserializedRequest(long bytes, long nanos)
+    {
+        requestsDeserialized.incrementAndGet();
+        bytesRead.addAndGet(bytes);
+        deserializationNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records the processing of a message body.
+     * 
+     * @param nanos
+     *            The time taken to process the message body.
+     * @param parallel
+     *            Whether the message body was processed by the batch executor.
+     */
+    public void addProcessedBody(long nanos, boolean parallel)
+    {
+        bodiesProcessed.incrementAndGet();
+        if (parallel)
+            bodiesProcessedInParallel.incrementAndGet();
+        bodyProcessingNanos.addAndGet(nanos);
+        long max = bodyProcessingNanosMax.get();
+        while (nanos > max && !bodyProcessingNanosMax.compareAndSet(max,nanos))
+            max = bodyProcessingNanosMax.get();
+    }
+
+    /**
+     * Records the rejection of a request that exceeded the maximum request size.
+     */
+    public void addRejectedRequest()
+    {
+        requestsRejected.incrementAndGet();
+    }
+
+    /**
+     * Records a response telling the client to rewrite its URL with the
+     * session id.
+     */
+    public void addSessionUrlRewrite()
+    {
+        sessionUrlRewrites.incrementAndGet();
+    }
+}
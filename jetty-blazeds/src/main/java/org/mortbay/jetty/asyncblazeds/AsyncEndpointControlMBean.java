@@ -0,0 +1,79 @@
+package org.mortbay.jetty.asyncblazeds;
+
+import java.io.IOException;
+
+import flex.management.runtime.messaging.endpoints.EndpointControlMBean;
+
+/**
+ * Defines the runtime monitoring and management interface for managed
+ * asynchronous endpoints, adding request size limits, deserialization
+ * statistics and session URL rewrites to {@link EndpointControlMBean}.
+ */
+public interface AsyncEndpointControlMBean extends EndpointControlMBean
+{
+    /**
+     * Returns the maximum size in bytes of a request, or 0 if unlimited.
+     */
+    Integer getMaxRequestSize() throws IOException;
+
+    /**
+     * Returns the number of requests that have been deserialized.
+     */
+    Long getRequestsDeserialized() throws IOException;
+
+    /**
+     * Returns the number of requests that have been rejected because they
+     * exceeded the maximum request size.
+     */
+    Long getRequestsRejected() throws IOException;
+
+    /**
+     * Returns the total time in milliseconds spent reading and deserializing
+     * requests.
+     */
+    Long getDeserializationTime() throws IOException;
+
+    /**
+     * Returns the average number of bytes deserialized per second, over the
+     * time spent reading and deserializing requests.
+     */
+    Double getDeserializationThroughput() throws IOException;
+
+    /**
+     * Resets the deserialization statistics.
+     */
+    void resetDeserializationStatistics() throws IOException;
+
+    /**
+     * Returns the number of message bodies that have been processed, either
+     * by the request thread or by the batch executor.
+     */
+    Long getBodiesProcessed() throws IOException;
+
+    /**
+     * Returns the number of message bodies that have been processed
+     * concurrently by the batch executor.
+     */
+    Long getBodiesProcessedInParallel() throws IOException;
+
+    /**
+     * Returns the average time in milliseconds taken to process a message body.
+     */
+    Double getBodyProcessingTimeAverage() throws IOException;
+
+    /**
+     * Returns the longest time in milliseconds taken to process a message body.
+     */
+    Long getBodyProcessingTimeMax() throws IOException;
+
+    /**
+     * Resets the message body processing statistics.
+     */
+    void resetBodyProcessingStatistics() throws IOException;
+
+    /**
+     * Returns the number of responses that told the client to append a
+     * ;jsessionid suffix to its URL.
+     */
+    Long getSessionUrlRewrites() throws IOException;
+}
@@ -84,9 +84,9 @@ public class AsyncHTTPEndpoint extends BaseAsyncHTTPEndpoint
      */
     protected AMFFilter createFilterChain()
     {
-        AMFFilter serializationFilter = new AsyncSerializationFilter(getLogCategory());
-        AMFFilter batchFilter = new AsyncBatchProcessFilter();
-        AMFFilter sessionFilter = new AsyncSessionFilter();
+        AMFFilter serializationFilter = new AsyncSerializationFilter(getLogCategory(), this);
+        AMFFilter batchFilter = new AsyncBatchProcessFilter(this);
+        AMFFilter sessionFilter = new AsyncSessionFilter(this);
         AMFFilter messageBrokerFilter = new AsyncMessageBrokerFilter(this);
 
         serializationFilter.setNext(batchFilter);
@@ -30,9 +30,8 @@
 package org.mortbay.jetty.asyncblazeds;
 
 import flex.management.BaseControl;
-import flex.management.runtime.messaging.endpoints.EndpointControl;
 
-public class AsyncHTTPEndpointControl extends EndpointControl
+public class AsyncHTTPEndpointControl extends AsyncEndpointControl
 {
 
     private static final String TYPE = "AsyncHTTPEndpoint";
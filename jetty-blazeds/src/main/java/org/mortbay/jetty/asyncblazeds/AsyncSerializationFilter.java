@@ -30,13 +30,18 @@
 
 package org.mortbay.jetty.asyncblazeds;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Array;
 import java.util.List;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 import org.eclipse.jetty.continuation.ContinuationThrowable;
 
 import flex.messaging.FlexContext;
@@ -67,6 +72,16 @@ import flex.messaging.util.StringUtils;
  * Based on {@link flex.messaging.endpoints.amf.SerializationFilter}, 
  * with additional logic, to save state for suspend/resume.  
  * 
+ * Responses are serialized into a per-thread {@link ResponseBuffer} that is reused
+ * across requests and presized from a running estimate of the response size of
+ * the endpoint. When message sizes are recorded, the response is serialized a
+ * second time into the same buffer, once its size is known.
+ * 
+ * Requests are read through a buffered stage that enforces the maximum request size
+ * of the endpoint: requests with a larger content length are rejected with a 413
+ * status before being deserialized, and requests of unknown length as soon as they
+ * exceed the limit. Deserialization statistics are reported to the endpoint MBean.
+ * 
  * @author PS Neville
  * @author Sim Simeonov
  * @author Peter Farland
@@ -77,11 +92,26 @@ public class AsyncSerializationFilter extends AMFFilter
     private static final int REQUEST_ERROR = 10307;
     private static final int RESPONSE_ERROR = 10308;
 
+    private static final int MIN_BUFFER_SIZE = 256;
+    private static final int MAX_POOLED_BUFFER_SIZE = 256 * 1024;
+    private static final int INPUT_BUFFER_SIZE = 8192;
+
+    private final BaseAsyncHTTPEndpoint endpoint;
+
+    private final ThreadLocal<ResponseBuffer> buffers = new ThreadLocal<ResponseBuffer>();
+    private volatile int estimatedResponseSize = 1024;
+
     private boolean isDebug;
     private Logger logger;
 
     public AsyncSerializationFilter(String logCategory)
     {
+        this(logCategory, null);
+    }
+
+    public AsyncSerializationFilter(String logCategory, BaseAsyncHTTPEndpoint endpoint)
+    {
+        this.endpoint = endpoint;
         isDebug = Log.isDebug();
         if (logCategory == null)
             logCategory = LogCategories.ENDPOINT_GENERAL;
@@ -105,17 +135,27 @@ public class AsyncSerializationFilter extends AMFFilter
             success=true;
         else
         {
+            HttpServletRequest httpRequest = FlexContext.getHttpRequest();
+            int maxRequestSize = endpoint == null ? 0 : endpoint.getMaxRequestSize();
+            int reqLen = httpRequest.getContentLength();
+            if (maxRequestSize > 0 && reqLen > maxRequestSize)
+            {
+                requestTooLarge(context, reqLen);
+                return;
+            }
+
+            long start = System.nanoTime();
+            LimitedInputStream in = null;
             try
             {
                 // Deserialize the input stream into an "ActionMessage" object.
                 MessageDeserializer deserializer = sc.newMessageDeserializer();
 
                 // Set up the deserialization context
-                InputStream in = FlexContext.getHttpRequest().getInputStream();
-                deserializer.initialize(sc, in, debugTrace);
+                in = new LimitedInputStream(httpRequest.getInputStream(), maxRequestSize);
+                deserializer.initialize(sc, new BufferedInputStream(in, INPUT_BUFFER_SIZE), debugTrace);
 
                 // record the length of the input stream for performance metrics
-                int reqLen = FlexContext.getHttpRequest().getContentLength();
                 context.setDeserializedBytes(reqLen);
 
                 // set up the incoming MPI info if it is enabled
@@ -135,7 +175,22 @@ public class AsyncSerializationFilter extends AMFFilter
                 ActionMessage m = new ActionMessage();
                 context.setRequestMessage(m);
                 deserializer.readMessage(m, context);
+                // the deserializer may have recovered from the failed read
+                if (in.isExceeded())
+                    throw new RequestTooLargeException();
                 success = true;
+
+                // record the bytes actually read, the content length may be unknown
+                context.setDeserializedBytes((int)in.getCount());
+                AsyncEndpointControl control = endpoint == null ? null : endpoint.getAsyncControl();
+                if (control != null)
+                    control.addDeserializedRequest(in.getCount(), System.nanoTime() - start);
+            }
+            catch (RequestTooLargeException x)
+            {
+                context.setRequestMessage(null);
+                requestTooLarge(context, in.getCount());
+                return;
             }
             catch (EOFException eof)
             {
@@ -150,6 +205,12 @@ public class AsyncSerializationFilter extends AMFFilter
             }
             catch (Throwable t)
             {
+                if (in != null && in.isExceeded())
+                {
+                    context.setRequestMessage(null);
+                    requestTooLarge(context, in.getCount());
+                    return;
+                }
                 deserializationError(context, t);
             }
             finally
@@ -185,7 +246,7 @@ public class AsyncSerializationFilter extends AMFFilter
             // serialize output
             if (!suspended && context.getStatus() != MessageIOConstants.STATUS_NOTAMF)
             {
-                ByteArrayOutputStream outBuffer = new ByteArrayOutputStream();
+                ResponseBuffer outBuffer = acquireBuffer();
                 ActionMessage respMesg = context.getResponseMessage();
 
                 if (isDebug)
@@ -211,7 +272,9 @@ public class AsyncSerializationFilter extends AMFFilter
                     // keep track of serializes bytes for performance metrics
                     context.setSerializedBytes(outBuffer.size());
 
-                    // serialized message again after adding info if mpio with sizing is enabled
+                    // serialized message again after adding info if mpio with sizing is enabled;
+                    // the size field cannot be reliably located in the serialized bytes, so the
+                    // message is not patched in place
                     if(context.isRecordMessageSizes())
                     {
                         try
@@ -226,8 +289,9 @@ public class AsyncSerializationFilter extends AMFFilter
                                 context.getMPIO().sendTime = System.currentTimeMillis();
                             }
 
-                            // reserialize the message now that info has been added
-                            outBuffer = new ByteArrayOutputStream();
+                            // reserialize the message now that info has been added,
+                            // reusing the same buffer
+                            outBuffer.reset();
                             respMesg = context.getResponseMessage();
                             serializer = sc.newMessageSerializer();
                             serializer.initialize(sc, outBuffer, debugTrace);
@@ -239,6 +303,7 @@ public class AsyncSerializationFilter extends AMFFilter
                                 logger.debug("MPI set up error: " + e.toString());
                         }
                     }
+                    updateEstimatedResponseSize(outBuffer.size());
                     context.setResponseOutput(outBuffer);
                 }
                 catch (Exception e)
@@ -254,6 +319,54 @@ public class AsyncSerializationFilter extends AMFFilter
         }
     }
 
+    /**
+     * Rejects a request larger than the maximum request size of the endpoint.
+     * The response is an HTTP error rather than an AMF error message, since
+     * the request has not been deserialized.
+     */
+    private void requestTooLarge(ActionContext context, long size) throws IOException
+    {
+        context.setStatus(MessageIOConstants.STATUS_NOTAMF);
+
+        AsyncEndpointControl control = endpoint.getAsyncControl();
+        if (control != null)
+            control.addRejectedRequest();
+
+        if (Log.isWarn())
+            logger.warn("Rejected request of " + size + " bytes or more, larger than the maximum request size of " + endpoint.getMaxRequestSize() + " bytes.");
+
+        HttpServletResponse response = FlexContext.getHttpResponse();
+        if (!response.isCommitted())
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+    }
+
+    /**
+     * Returns the buffer of the current thread, or a new one if the current thread has none,
+     * with a capacity of at least the estimated response size.
+     */
+    private ResponseBuffer acquireBuffer()
+    {
+        int estimate = estimatedResponseSize;
+        ResponseBuffer buffer = buffers.get();
+        if (buffer == null)
+            return new ResponseBuffer(estimate + (estimate >> 2));
+        buffers.set(null);
+        buffer.reset();
+        buffer.ensureCapacity(Math.min(estimate, MAX_POOLED_BUFFER_SIZE));
+        return buffer;
+    }
+
+    /**
+     * Keeps a running average of the response sizes, used to size new buffers.
+     * Concurrent updates may be lost, which only makes the estimate less precise.
+     */
+    private void updateEstimatedResponseSize(int size)
+    {
+        int estimate = estimatedResponseSize;
+        estimate += (size - estimate) >> 3;
+        estimatedResponseSize = Math.max(MIN_BUFFER_SIZE, estimate);
+    }
+
     /**
      * Attempt to provide the client with useful information about the deserialization failure.
      */
@@ -446,4 +559,102 @@ public class AsyncSerializationFilter extends AMFFilter
             throw ex;
         }
     }
+
+    /**
+     * A response output buffer that is returned to the thread of its filter once the
+     * response has been written, so that the next response serialized by the same
+     * thread reuses it.
+     */
+    class ResponseBuffer extends ByteArrayOutputStream
+    {
+        ResponseBuffer(int size)
+        {
+            super(size);
+        }
+
+        void ensureCapacity(int capacity)
+        {
+            if (capacity > buf.length)
+            {
+                byte[] bytes = new byte[capacity];
+                System.arraycopy(buf, 0, bytes, 0, count);
+                buf = bytes;
+            }
+        }
+
+        /**
+         * Returns this buffer to the thread that calls this method, unless it has grown
+         * too large to be kept.
+         */
+        void release()
+        {
+            if (buf.length <= MAX_POOLED_BUFFER_SIZE)
+                buffers.set(this);
+        }
+    }
+
+    /**
+     * Counts the bytes read from the request, and fails the read once the maximum
+     * request size is exceeded.
+     */
+    private static class LimitedInputStream extends FilterInputStream
+    {
+        private final long limit;
+        private long count;
+        private boolean exceeded;
+
+        private LimitedInputStream(InputStream in, long limit)
+        {
+            super(in);
+            this.limit = limit;
+        }
+
+        private long getCount()
+        {
+            return count;
+        }
+
+        private boolean isExceeded()
+        {
+            return exceeded;
+        }
+
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0)
+                add(1);
+            return b;
+        }
+
+        public int read(byte[] bytes, int offset, int length) throws IOException
+        {
+            int read = super.read(bytes, offset, length);
+            if (read > 0)
+                add(read);
+            return read;
+        }
+
+        public long skip(long length) throws IOException
+        {
+            long skipped = super.skip(length);
+            add(skipped);
+            return skipped;
+        }
+
+        private void add(long read) throws RequestTooLargeException
+        {
+            count += read;
+            if (limit > 0 && count > limit)
+            {
+                exceeded = true;
+                throw new RequestTooLargeException();
+            }
+        }
+    }
+
+    private static class RequestTooLargeException extends IOException
+    {
+        private static final long serialVersionUID = 4170532968429846211L;
+    }
 }
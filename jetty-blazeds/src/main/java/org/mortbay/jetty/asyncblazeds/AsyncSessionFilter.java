@@ -30,27 +30,45 @@
 package org.mortbay.jetty.asyncblazeds;
 
 import flex.messaging.FlexContext;
+import flex.messaging.FlexSession;
+import flex.messaging.FlexSessionListener;
 import flex.messaging.endpoints.amf.AMFFilter;
 import flex.messaging.io.amf.ActionContext;
 import flex.messaging.io.amf.MessageHeader;
 import flex.messaging.io.MessageIOConstants;
 
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-
-import org.eclipse.jetty.continuation.ContinuationThrowable;
+import javax.servlet.http.HttpSession;
 
 /**
  * This filter detects whether a request URL is decorated with a ;jessionid token
  * in the event that the client does not support cookies. In that case, an AppendToGatewayUrl
  * header with jsessionid as its value is added to the response message.
+ * 
+ * Requests whose session id comes from a cookie, or that have no session, are never
+ * rewritten and are skipped. Otherwise the suffix computed by the container for a
+ * session is cached per FlexSession, and computed again only if the session id changes.
  */
-public class AsyncSessionFilter extends AMFFilter
+public class AsyncSessionFilter extends AMFFilter implements FlexSessionListener
 {
+    private final BaseAsyncHTTPEndpoint endpoint;
+    private final ConcurrentHashMap<FlexSession, SessionSuffix> suffixes = new ConcurrentHashMap<FlexSession, SessionSuffix>();
+
     public AsyncSessionFilter()
     {
+        this(null);
+    }
+
+    /**
+     * @param endpoint the endpoint whose MBean counts the URL rewrites, or null
+     */
+    public AsyncSessionFilter(BaseAsyncHTTPEndpoint endpoint)
+    {
+        this.endpoint = endpoint;
     }
 
     public void invoke(final ActionContext context) throws IOException
@@ -61,31 +79,41 @@ public class AsyncSessionFilter extends AMFFilter
             HttpServletRequest request = FlexContext.getHttpRequest();
             HttpServletResponse response = FlexContext.getHttpResponse();
 
-            StringBuffer reqURL = request.getRequestURL();
+            if (request.isRequestedSessionIdFromCookie())
+                return;
+            HttpSession httpSession = request.getSession(false);
+            if (httpSession == null)
+                return;
 
-            if (reqURL != null)
+            String sessionSuffix;
+            if (request.getQueryString() != null)
             {
-                if (request.getQueryString() != null)
-                    reqURL.append("?").append(request.getQueryString());
-
-                String oldFullURL = reqURL.toString().trim();
-                String encFullURL = response.encodeURL(oldFullURL).trim();
-
-                String sessionSuffix = null;
-
-                // It's ok to lower case here as URLs must be in ASCII
-                int pos = encFullURL.toLowerCase().indexOf(";jsessionid");
-                if (pos > 0)
+                // The encoded query string ends up in the suffix, which cannot be cached
+                sessionSuffix = encodeSessionSuffix(request,response);
+            }
+            else
+            {
+                FlexSession flexSession = FlexContext.getFlexSession();
+                SessionSuffix cached = flexSession == null ? null : suffixes.get(flexSession);
+                if (cached == null || !cached.sessionId.equals(httpSession.getId()))
                 {
-                    StringBuffer sb = new StringBuffer();
-                    sb.append(encFullURL.substring(pos));
-                    sessionSuffix = sb.toString();
+                    cached = new SessionSuffix(httpSession.getId(),encodeSessionSuffix(request,response));
+                    if (flexSession != null && suffixes.put(flexSession,cached) == null)
+                        flexSession.addSessionDestroyedListener(this);
                 }
+                sessionSuffix = cached.suffix;
+            }
 
-                if (sessionSuffix != null && oldFullURL.indexOf(sessionSuffix) < 0)
-                {
-                    context.getResponseMessage().addHeader(new MessageHeader(MessageIOConstants.URL_APPEND_HEADER, true /*mustUnderstand*/, sessionSuffix));
-                }
+            // The request URL is only built when the suffix may carry the query string
+            String oldURL = request.getQueryString() == null ? request.getRequestURI()
+                    : request.getRequestURL().append("?").append(request.getQueryString()).toString();
+            if (sessionSuffix != null && oldURL.indexOf(sessionSuffix) < 0)
+            {
+                context.getResponseMessage().addHeader(new MessageHeader(MessageIOConstants.URL_APPEND_HEADER, true /*mustUnderstand*/, sessionSuffix));
+
+                AsyncEndpointControl control = endpoint == null ? null : endpoint.getAsyncControl();
+                if (control != null)
+                    control.addSessionUrlRewrite();
             }
         }
         catch (Throwable t)
@@ -94,4 +122,44 @@ public class AsyncSessionFilter extends AMFFilter
             //Nothing more we can do... don't send 'URL Append' AMF header.
         }
     }
+
+    public void sessionCreated(FlexSession flexSession)
+    {
+    }
+
+    public void sessionDestroyed(FlexSession flexSession)
+    {
+        suffixes.remove(flexSession);
+    }
+
+    /**
+     * Returns the ;jsessionid suffix the container adds to the request URL, or null.
+     */
+    private String encodeSessionSuffix(HttpServletRequest request, HttpServletResponse response)
+    {
+        StringBuffer reqURL = request.getRequestURL();
+        if (reqURL == null)
+            return null;
+
+        if (request.getQueryString() != null)
+            reqURL.append("?").append(request.getQueryString());
+
+        String encFullURL = response.encodeURL(reqURL.toString().trim()).trim();
+
+        // It's ok to lower case here as URLs must be in ASCII
+        int pos = encFullURL.toLowerCase().indexOf(";jsessionid");
+        return pos > 0 ? encFullURL.substring(pos) : null;
+    }
+
+    private static class SessionSuffix
+    {
+        private final String sessionId;
+        private final String suffix;
+
+        private SessionSuffix(String sessionId, String suffix)
+        {
+            this.sessionId = sessionId;
+            this.suffix = suffix;
+        }
+    }
 }
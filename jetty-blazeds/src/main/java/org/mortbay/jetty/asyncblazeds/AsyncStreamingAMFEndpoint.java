@@ -0,0 +1,667 @@
+package org.mortbay.jetty.asyncblazeds;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+
+import flex.messaging.FlexContext;
+import flex.messaging.FlexSession;
+import flex.messaging.FlexSessionListener;
+import flex.messaging.MessageBroker;
+import flex.messaging.MessageClient;
+import flex.messaging.MessageException;
+import flex.messaging.client.EndpointPushHandler;
+import flex.messaging.client.FlexClient;
+import flex.messaging.client.UserAgentSettings;
+import flex.messaging.config.ConfigMap;
+import flex.messaging.endpoints.StreamingAMFEndpoint;
+import flex.messaging.log.Log;
+import flex.messaging.messages.AcknowledgeMessage;
+import flex.messaging.messages.CommandMessage;
+import flex.messaging.messages.Message;
+import flex.messaging.util.UUIDUtils;
+
+/**
+ * A streaming AMF endpoint that holds no thread for its open streams.
+ *
+ * The wire protocol is the one of {@link StreamingAMFEndpoint}, so the endpoint
+ * is used with a regular StreamingAMFChannel: the response of a streaming open
+ * request is kept open and messages pushed to the FlexClient are written to it
+ * as chunks. Instead of parking the request thread in a wait, the response is
+ * suspended using a jetty-7 portable continuation and is resumed to write the
+ * messages pushed to it, to write a heartbeat every
+ * <code>server-to-client-heartbeat-millis</code>, or to close the stream.
+ *
+ * Each stream has its own outbound queue. If <code>max-queued-messages</code>
+ * is positive, the queue is bounded and, when a slow client lets it fill up,
+ * messages are dropped according to <code>queue-drop-policy</code>: either
+ * <code>drop-oldest</code> (the default), which discards the oldest queued
+ * message to make room, or <code>drop-newest</code>, which discards the message
+ * being pushed.
+ */
+public class AsyncStreamingAMFEndpoint extends StreamingAMFEndpoint
+{
+    private static final String MAX_QUEUED_MESSAGES = "max-queued-messages";
+    private static final String QUEUE_DROP_POLICY = "queue-drop-policy";
+    private static final String DROP_OLDEST = "drop-oldest";
+    private static final String DROP_NEWEST = "drop-newest";
+    private static final int DEFAULT_MAX_QUEUED_MESSAGES = 1000;
+    // Request attribute holding the stream of a suspended open request
+    private static final String STREAM_ATTRIBUTE = "AsyncStream";
+    // Heartbeat byte, ignored by the client
+    private static final byte NULL_BYTE = (byte)0;
+
+    private final ConcurrentHashMap<String, Stream> streams = new ConcurrentHashMap<String, Stream>();
+    private final AtomicLong messagesDropped = new AtomicLong();
+    private int maxQueuedMessages = DEFAULT_MAX_QUEUED_MESSAGES;
+    private boolean dropOldest = true;
+
+    //--------------------------------------------------------------------------
+    //
+    // Constructors
+    //
+    //--------------------------------------------------------------------------
+
+    /**
+     * Constructs an unmanaged <code>AsyncStreamingAMFEndpoint</code>.
+     */
+    public AsyncStreamingAMFEndpoint()
+    {
+        this(false);
+    }
+
+    /**
+     * Constructs an <code>AsyncStreamingAMFEndpoint</code> with the indicated management.
+     *
+     * @param enableManagement <code>true</code> if the <code>AsyncStreamingAMFEndpoint</code>
+     * is manageable; otherwise <code>false</code>.
+     */
+    public AsyncStreamingAMFEndpoint(boolean enableManagement)
+    {
+        super(enableManagement);
+    }
+
+    /**
+     * Initializes the <code>Endpoint</code> with the properties.
+     *
+     * @param id The ID of the <code>Endpoint</code>.
+     * @param properties Properties for the <code>Endpoint</code>.
+     */
+    public void initialize(String id, ConfigMap properties)
+    {
+        super.initialize(id,properties);
+
+        if (properties == null || properties.size() == 0)
+            return;
+
+        maxQueuedMessages = properties.getPropertyAsInt(MAX_QUEUED_MESSAGES,DEFAULT_MAX_QUEUED_MESSAGES);
+        String policy = properties.getPropertyAsString(QUEUE_DROP_POLICY,DROP_OLDEST);
+        if (DROP_NEWEST.equalsIgnoreCase(policy))
+            dropOldest = false;
+        else if (DROP_OLDEST.equalsIgnoreCase(policy))
+            dropOldest = true;
+        else if (Log.isWarn())
+            log.warn("Endpoint with id '" + getId() + "' ignores unknown " + QUEUE_DROP_POLICY + " '" + policy + "'.");
+    }
+
+    /**
+     * Closes the open streams and stops the endpoint.
+     */
+    public void stop()
+    {
+        if (!isStarted())
+            return;
+
+        for (Stream stream : streams.values())
+            stream.close(true);
+
+        super.stop();
+    }
+
+    //--------------------------------------------------------------------------
+    //
+    // Properties
+    //
+    //--------------------------------------------------------------------------
+
+    /**
+     * Returns the maximum number of messages queued for a stream, or 0 if unbounded.
+     */
+    public int getMaxQueuedMessages()
+    {
+        return maxQueuedMessages;
+    }
+
+    /**
+     * Sets the maximum number of messages queued for a stream, or 0 if unbounded.
+     */
+    public void setMaxQueuedMessages(int maxQueuedMessages)
+    {
+        this.maxQueuedMessages = maxQueuedMessages;
+    }
+
+    /**
+     * Returns <code>true</code> if the oldest queued message is dropped when a
+     * queue is full, <code>false</code> if the message being pushed is dropped.
+     */
+    public boolean isDropOldest()
+    {
+        return dropOldest;
+    }
+
+    /**
+     * Sets whether the oldest queued message, or the message being pushed, is
+     * dropped when a queue is full.
+     */
+    public void setDropOldest(boolean dropOldest)
+    {
+        this.dropOldest = dropOldest;
+    }
+
+    /**
+     * Returns the number of messages dropped because a queue was full.
+     */
+    public long getMessagesDropped()
+    {
+        return messagesDropped.get();
+    }
+
+    //--------------------------------------------------------------------------
+    //
+    // Public Methods
+    //
+    //--------------------------------------------------------------------------
+
+    /**
+     * Handles streaming requests and, when a suspended stream is resumed,
+     * writes its pending messages, heartbeat or close.
+     *
+     * @param req The original servlet request.
+     * @param res The active servlet response.
+     */
+    public void service(HttpServletRequest req, HttpServletResponse res)
+    {
+        Stream stream = (Stream)req.getAttribute(STREAM_ATTRIBUTE);
+        if (stream == null)
+            super.service(req,res);
+        else
+            stream.resumed(req,res);
+    }
+
+    //--------------------------------------------------------------------------
+    //
+    // Protected Methods
+    //
+    //--------------------------------------------------------------------------
+
+    /**
+     * Opens a stream to the FlexClient, applying the same limits as
+     * {@link StreamingAMFEndpoint}, and suspends the request until there is
+     * something to write to it.
+     *
+     * @param req The <code>HttpServletRequest</code> used to open the stream.
+     * @param res The <code>HttpServletResponse</code> to stream messages to.
+     * @param flexClient The <code>FlexClient</code> opening the stream.
+     */
+    protected void handleFlexClientStreamingOpenRequest(HttpServletRequest req, HttpServletResponse res, FlexClient flexClient)
+    {
+        FlexSession session = FlexContext.getFlexSession();
+
+        if (!acquireStreamingClient())
+        {
+            if (Log.isError())
+                log.error("Endpoint with id '" + getId() + "' cannot grant streaming connection to FlexClient with id '" + flexClient.getId()
+                        + "' because max-streaming-clients limit of '" + getMaxStreamingClients() + "' has been reached.");
+            sendError(res,HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        UserAgentSettings agentSettings = userAgentManager.match(req.getHeader("User-Agent"));
+        if (!acquireSessionConnection(session,agentSettings))
+        {
+            releaseStreamingClient();
+            if (Log.isInfo())
+                log.info("Endpoint with id '" + getId() + "' cannot grant streaming connection to FlexClient with id '" + flexClient.getId()
+                        + "' because max-persistent-connections-per-session limit of '" + session.maxConnectionsPerSession + "' has been reached.");
+            sendError(res,HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        Stream stream = new Stream(flexClient,session,ContinuationSupport.getContinuation(req));
+        try
+        {
+            flexClient.registerEndpointPushHandler(stream,getId());
+        }
+        catch (MessageException e)
+        {
+            releaseSessionConnection(session);
+            releaseStreamingClient();
+            if (Log.isWarn())
+                log.warn("Endpoint with id '" + getId() + "' received a duplicate streaming connection request from, FlexClient with id '"
+                        + flexClient.getId() + "'. Faulting request.");
+            sendError(res,HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        session.addSessionDestroyedListener(stream);
+        streams.put(stream.id,stream);
+
+        try
+        {
+            if (addNoCacheHeaders)
+                addNoCacheHeaders(req,res);
+            res.setContentType(getResponseContentType());
+            res.setHeader("Connection","close");
+            res.setHeader("Transfer-Encoding","chunked");
+            ServletOutputStream os = res.getOutputStream();
+            res.flushBuffer();
+
+            // Some browsers only hand the stream to the player once they
+            // have buffered a minimum number of bytes
+            int kickstartBytes = agentSettings == null ? 0 : agentSettings.getKickstartBytes();
+            if (kickstartBytes > 0)
+                streamChunk(new byte[kickstartBytes],os,res);
+
+            setThreadLocals();
+            AcknowledgeMessage ack = new AcknowledgeMessage();
+            ack.setBody(stream.id);
+            ack.setCorrelationId("open");
+            List<Message> messages = new ArrayList<Message>(1);
+            messages.add(ack);
+            streamMessages(messages,os,res);
+
+            if (Log.isDebug())
+                log.debug("Number of streaming clients for endpoint with id '" + getId() + "' is " + streamingClientsCount + ".");
+        }
+        catch (IOException e)
+        {
+            if (Log.isWarn())
+                log.warn("Endpoint with id '" + getId() + "' could not open streaming connection for FlexClient with id '" + flexClient.getId() + "'.",e);
+            stream.close(false);
+            stream.closed();
+            return;
+        }
+
+        req.setAttribute(STREAM_ATTRIBUTE,stream);
+        stream.suspend();
+    }
+
+    /**
+     * Closes the stream with the given id, if it belongs to the FlexClient.
+     *
+     * @param req The <code>HttpServletRequest</code> of the close request.
+     * @param res The <code>HttpServletResponse</code> of the close request.
+     * @param flexClient The <code>FlexClient</code> closing the stream.
+     * @param streamId The id of the stream to close.
+     */
+    protected void handleFlexClientStreamingCloseRequest(HttpServletRequest req, HttpServletResponse res, FlexClient flexClient, String streamId)
+    {
+        Stream stream = streamId == null ? null : streams.get(streamId);
+        if (stream != null && stream.flexClient == flexClient)
+            stream.close(false);
+    }
+
+    /**
+     * Invoked automatically to allow the <code>AsyncStreamingAMFEndpoint</code> to setup its
+     * corresponding MBean control.
+     *
+     * @param broker The <code>MessageBroker</code> that manages this
+     * <code>AsyncStreamingAMFEndpoint</code>.
+     */
+    protected void setupEndpointControl(MessageBroker broker)
+    {
+        controller = new AsyncStreamingAMFEndpointControl(this,broker.getControl());
+        controller.register();
+        setControl(controller);
+    }
+
+    //--------------------------------------------------------------------------
+    //
+    // Private Methods
+    //
+    //--------------------------------------------------------------------------
+
+    /**
+     * Returns the time in milliseconds after which a stream that had no
+     * message pushed to it is closed, or 0 if streams are never closed.
+     */
+    long getConnectionIdleTimeoutMillis()
+    {
+        return getConnectionIdleTimeoutMinutes() * 60L * 1000L;
+    }
+
+    private boolean acquireStreamingClient()
+    {
+        synchronized (lock)
+        {
+            if (streamingClientsCount >= getMaxStreamingClients())
+                return false;
+            ++streamingClientsCount;
+            return true;
+        }
+    }
+
+    private void releaseStreamingClient()
+    {
+        synchronized (lock)
+        {
+            --streamingClientsCount;
+        }
+    }
+
+    // The per session count is shared with the other streaming endpoints, so
+    // it is kept the way BlazeDS keeps it.
+    private boolean acquireSessionConnection(FlexSession session, UserAgentSettings agentSettings)
+    {
+        synchronized (session)
+        {
+            if (agentSettings != null)
+                session.maxConnectionsPerSession = agentSettings.getMaxPersistentConnectionsPerSession();
+            if (session.streamingConnectionsCount >= session.maxConnectionsPerSession)
+                return false;
+            ++session.streamingConnectionsCount;
+            session.canStream = session.streamingConnectionsCount < session.maxConnectionsPerSession;
+            return true;
+        }
+    }
+
+    private void releaseSessionConnection(FlexSession session)
+    {
+        synchronized (session)
+        {
+            --session.streamingConnectionsCount;
+            session.canStream = session.streamingConnectionsCount < session.maxConnectionsPerSession;
+        }
+    }
+
+    private void sendError(HttpServletResponse res, int status)
+    {
+        try
+        {
+            res.sendError(status);
+        }
+        catch (IOException ignore)
+        {
+        }
+    }
+
+    //--------------------------------------------------------------------------
+    //
+    // Nested Classes
+    //
+    //--------------------------------------------------------------------------
+
+    /**
+     * An open stream to a FlexClient. Messages pushed to it are queued, and
+     * the suspended request is resumed to write them; all writes happen in a
+     * dispatched request thread.
+     */
+    private class Stream implements EndpointPushHandler, FlexSessionListener
+    {
+        private final String id = UUIDUtils.createUUID();
+        private final FlexClient flexClient;
+        private final FlexSession session;
+        private final Continuation continuation;
+        private final MessageQueue queue = new MessageQueue();
+        private boolean closing;
+        private boolean disconnect;
+        private boolean done;
+        private volatile long lastUse = System.currentTimeMillis();
+
+        private Stream(FlexClient flexClient, FlexSession session, Continuation continuation)
+        {
+            this.flexClient = flexClient;
+            this.session = session;
+            this.continuation = continuation;
+        }
+
+        public void pushMessages(List<Message> messages)
+        {
+            if (messages.isEmpty())
+                return;
+
+            int dropped;
+            synchronized (this)
+            {
+                if (closing)
+                    return;
+                dropped = queue.add(messages,maxQueuedMessages,dropOldest);
+            }
+            lastUse = System.currentTimeMillis();
+
+            if (dropped > 0)
+            {
+                messagesDropped.addAndGet(dropped);
+                if (Log.isDebug())
+                    log.debug("Endpoint with id '" + getId() + "' dropped " + dropped + " message(s) for FlexClient with id '" + flexClient.getId()
+                            + "' because its queue is full.");
+            }
+
+            resume();
+        }
+
+        public void close()
+        {
+            close(false);
+        }
+
+        public void close(boolean disconnectChannel)
+        {
+            synchronized (this)
+            {
+                if (closing)
+                    return;
+                closing = true;
+                disconnect = disconnectChannel;
+            }
+
+            streams.remove(id);
+            session.removeSessionDestroyedListener(this);
+            flexClient.unregisterEndpointPushHandler(this,getId());
+
+            resume();
+        }
+
+        public void registerMessageClient(MessageClient messageClient)
+        {
+        }
+
+        public void unregisterMessageClient(MessageClient messageClient)
+        {
+        }
+
+        public void sessionCreated(FlexSession session)
+        {
+        }
+
+        public void sessionDestroyed(FlexSession session)
+        {
+            close();
+        }
+
+        /**
+         * Suspends the open request until there is something to write. A
+         * push or close that raced with the previous write finds the request
+         * not suspended yet, so the queue is checked again once suspended.
+         */
+        private void suspend()
+        {
+            long heartbeat = getServerToClientHeartbeatMillis();
+            long idleTimeout = getConnectionIdleTimeoutMillis();
+            continuation.setTimeout(heartbeat > 0 ? heartbeat : idleTimeout);
+            continuation.suspend();
+
+            boolean ready;
+            synchronized (this)
+            {
+                ready = closing || !queue.isEmpty();
+            }
+            if (ready)
+                resume();
+        }
+
+        private void resume()
+        {
+            try
+            {
+                continuation.resume();
+            }
+            catch (IllegalStateException e)
+            {
+                // Not suspended: the request thread checks the queue before
+                // suspending again
+            }
+        }
+
+        /**
+         * Writes whatever woke the stream up, then suspends it again or
+         * completes the response if the stream is closed.
+         */
+        private void resumed(HttpServletRequest req, HttpServletResponse res)
+        {
+            FlexContext.setThreadLocalFlexClient(flexClient);
+            FlexContext.setThreadLocalSession(session);
+            FlexContext.setThreadLocalEndpoint(AsyncStreamingAMFEndpoint.this);
+            setThreadLocals();
+            try
+            {
+                long idleTimeout = getConnectionIdleTimeoutMillis();
+                if (continuation.isExpired() && idleTimeout > 0 && System.currentTimeMillis() - lastUse >= idleTimeout)
+                {
+                    if (Log.isDebug())
+                        log.debug("Endpoint with id '" + getId() + "' is closing idle streaming connection for FlexClient with id '"
+                                + flexClient.getId() + "'.");
+                    close(true);
+                }
+
+                List<Message> messages;
+                boolean close;
+                synchronized (this)
+                {
+                    messages = queue.drain();
+                    close = closing;
+                    if (close && disconnect)
+                    {
+                        if (messages == null)
+                            messages = new ArrayList<Message>(1);
+                        messages.add(new CommandMessage(CommandMessage.DISCONNECT_OPERATION));
+                    }
+                }
+
+                ServletOutputStream os = res.getOutputStream();
+                if (messages != null)
+                {
+                    flexClient.updateLastUse();
+                    streamMessages(messages,os,res);
+                }
+                else if (!close && continuation.isExpired() && getServerToClientHeartbeatMillis() > 0)
+                {
+                    os.write(NULL_BYTE);
+                    res.flushBuffer();
+                }
+
+                if (close)
+                {
+                    closed();
+                    os.close();
+                }
+                else
+                {
+                    suspend();
+                }
+            }
+            catch (IOException e)
+            {
+                if (Log.isWarn())
+                    log.warn("Endpoint with id '" + getId() + "' is closing the streaming connection to FlexClient with id '"
+                            + flexClient.getId() + "' because the client is not reachable.",e);
+                close(false);
+                closed();
+            }
+            finally
+            {
+                clearThreadLocals();
+            }
+        }
+
+        /**
+         * Releases the limits held by the stream, once.
+         */
+        private void closed()
+        {
+            synchronized (this)
+            {
+                if (done)
+                    return;
+                done = true;
+            }
+            releaseSessionConnection(session);
+            releaseStreamingClient();
+            if (Log.isDebug())
+                log.debug("Number of streaming clients for endpoint with id '" + getId() + "' is " + streamingClientsCount + ".");
+        }
+    }
+
+    /**
+     * The outbound queue of a stream. It is not thread safe: it is guarded by
+     * its stream.
+     */
+    static class MessageQueue
+    {
+        private final LinkedList<Message> messages = new LinkedList<Message>();
+
+        /**
+         * Queues the messages, dropping the oldest queued one or the one being
+         * added whenever the queue already holds <code>maxSize</code> messages.
+         *
+         * @param pushed The messages to queue.
+         * @param maxSize The maximum number of messages queued, or 0 if unbounded.
+         * @param dropOldest Whether the oldest message or the one being added is dropped.
+         * @return The number of messages dropped.
+         */
+        int add(List<Message> pushed, int maxSize, boolean dropOldest)
+        {
+            int dropped = 0;
+            for (Message message : pushed)
+            {
+                if (maxSize > 0 && messages.size() >= maxSize)
+                {
+                    ++dropped;
+                    if (!dropOldest)
+                        continue;
+                    messages.removeFirst();
+                }
+                messages.add(message);
+            }
+            return dropped;
+        }
+
+        boolean isEmpty()
+        {
+            return messages.isEmpty();
+        }
+
+        /**
+         * Empties the queue.
+         *
+         * @return The queued messages, or <code>null</code> if there were none.
+         */
+        List<Message> drain()
+        {
+            if (messages.isEmpty())
+                return null;
+            List<Message> drained = new ArrayList<Message>(messages);
+            messages.clear();
+            return drained;
+        }
+    }
+}
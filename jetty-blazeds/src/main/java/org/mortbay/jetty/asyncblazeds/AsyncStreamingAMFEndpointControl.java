@@ -0,0 +1,50 @@
+package org.mortbay.jetty.asyncblazeds;
+
+
+import flex.management.BaseControl;
+import flex.management.runtime.messaging.endpoints.StreamingAMFEndpointControl;
+
+public class AsyncStreamingAMFEndpointControl extends StreamingAMFEndpointControl implements AsyncStreamingAMFEndpointControlMBean
+{
+
+    private static final String TYPE = "AsyncStreamingAMFEndpoint";
+
+    /**
+     * Constructs a <code>AsyncStreamingAMFEndpointControl</code>, assigning managed
+     * message endpoint and parent MBean.
+     * 
+     * @param endpoint
+     *            The <code>AsyncStreamingAMFEndpoint</code> managed by this MBean.
+     * @param parent
+     *            The parent MBean in the management hierarchy.
+     */
+    public AsyncStreamingAMFEndpointControl(AsyncStreamingAMFEndpoint endpoint, BaseControl parent)
+    {
+        super(endpoint,parent);
+    }
+
+    /** {@inheritDoc} */
+    public String getType()
+    {
+        return TYPE;
+    }
+
+    /** {@inheritDoc} */
+    public Integer getMaxQueuedMessages()
+    {
+        return ((AsyncStreamingAMFEndpoint)endpoint).getMaxQueuedMessages();
+    }
+
+    /** {@inheritDoc} */
+    public Boolean isDropOldest()
+    {
+        return ((AsyncStreamingAMFEndpoint)endpoint).isDropOldest();
+    }
+
+    /** {@inheritDoc} */
+    public Long getMessagesDropped()
+    {
+        return ((AsyncStreamingAMFEndpoint)endpoint).getMessagesDropped();
+    }
+
+}
@@ -0,0 +1,30 @@
+package org.mortbay.jetty.asyncblazeds;
+
+import java.io.IOException;
+
+import flex.management.runtime.messaging.endpoints.StreamingAMFEndpointControlMBean;
+
+/**
+ * Defines the runtime monitoring and management interface for managed
+ * {@link AsyncStreamingAMFEndpoint}s, adding the outbound queue settings and
+ * statistics to {@link StreamingAMFEndpointControlMBean}.
+ */
+public interface AsyncStreamingAMFEndpointControlMBean extends StreamingAMFEndpointControlMBean
+{
+    /**
+     * Returns the maximum number of messages queued for a stream, or 0 if
+     * unbounded.
+     */
+    Integer getMaxQueuedMessages() throws IOException;
+
+    /**
+     * Returns <code>true</code> if the oldest queued message is dropped when
+     * a queue is full, <code>false</code> if the pushed message is dropped.
+     */
+    Boolean isDropOldest() throws IOException;
+
+    /**
+     * Returns the number of messages dropped because a queue was full.
+     */
+    Long getMessagesDropped() throws IOException;
+}
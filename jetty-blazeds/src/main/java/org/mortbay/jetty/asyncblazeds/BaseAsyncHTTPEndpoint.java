@@ -31,6 +31,7 @@ package org.mortbay.jetty.asyncblazeds;
 
 import flex.messaging.FlexContext;
 import flex.messaging.FlexSession;
+import flex.messaging.MessageBroker;
 import flex.messaging.client.AsyncPollHandler;
 import flex.messaging.client.FlexClient;
 import flex.messaging.client.FlushResult;
@@ -48,14 +49,27 @@ import flex.messaging.messages.CommandMessage;
 import flex.messaging.util.SettingsReplaceUtil;
 import flex.messaging.util.UserAgentManager;
 
+import javax.servlet.ServletConfig;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationListener;
 import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.eclipse.jetty.continuation.ContinuationThrowable;
 
@@ -72,6 +86,13 @@ import org.eclipse.jetty.continuation.ContinuationThrowable;
  * 
  * The threadless wait is achieved using jetty-7 portable continuations, which work asynchronous on jetty-6
  * and any servlet-3.0 container.
+ * 
+ * If <code>always-suspend-polls</code> is set, polls configured to wait indefinitely are also suspended
+ * rather than blocked, and a poll is never placed in a blocking wait, so that the number of waiting polls
+ * is bounded only by <code>max-waiting-poll-requests</code> and not by the size of the thread pool.
+ * 
+ * If <code>parallel-batch-threads</code> is positive, independent bodies of batched requests are
+ * processed concurrently by a pool of that many threads, see {@link AsyncBatchProcessFilter}.
  */
 public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements PollWaitListener
 {
@@ -89,11 +110,17 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
     private static final String MAX_WAITING_POLL_REQUESTS = "max-waiting-poll-requests";
     private static final String WAIT_INTERVAL_MILLIS = "wait-interval-millis";
     private static final String CLIENT_WAIT_INTERVAL_MILLIS = "client-wait-interval-millis";
+    private static final String ALWAYS_SUSPEND_POLLS = "always-suspend-polls";
+    private static final String PARALLEL_BATCH_THREADS = "parallel-batch-threads";
+    private static final String PARALLEL_BATCH_DESTINATIONS = "parallel-batch-destinations";
+    private static final String MAX_REQUEST_SIZE = "max-request-size";
     // Force clients that exceed the long-poll limit to wait at least this long
     // between poll requests.
     // This matches the default polling interval defined in the client
     // PollingChannel.
     private static final int DEFAULT_WAIT_FOR_EXCESS_POLL_WAIT_CLIENTS = 3000;
+    // Request attribute marking a suspended poll that holds a waiting poll slot
+    private static final String WAITING_POLL_ATTRIBUTE = "AsyncWaitingPoll";
 
     // User Agent based settings manager
     private UserAgentManager userAgentManager = new UserAgentManager();
@@ -181,8 +208,12 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
 
                     res.setContentType(getResponseContentType());
 
+                    // Writes the buffer array as is, and returns the buffer to
+                    // this thread to serialize the next response
                     res.setContentLength(outBuffer.size());
                     outBuffer.writeTo(res.getOutputStream());
+                    if (outBuffer instanceof AsyncSerializationFilter.ResponseBuffer)
+                        ((AsyncSerializationFilter.ResponseBuffer)outBuffer).release();
                     res.flushBuffer();
                 }
                 else
@@ -266,6 +297,10 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
         maxWaitingPollRequests = properties.getPropertyAsInt(MAX_WAITING_POLL_REQUESTS,0);
         waitInterval = properties.getPropertyAsLong(WAIT_INTERVAL_MILLIS,0);
         clientWaitInterval = properties.getPropertyAsInt(CLIENT_WAIT_INTERVAL_MILLIS,0);
+        alwaysSuspendPolls = properties.getPropertyAsBoolean(ALWAYS_SUSPEND_POLLS,false);
+        parallelBatchThreads = properties.getPropertyAsInt(PARALLEL_BATCH_THREADS,0);
+        setParallelBatchDestinations(properties.getPropertyAsString(PARALLEL_BATCH_DESTINATIONS,null));
+        maxRequestSize = properties.getPropertyAsInt(MAX_REQUEST_SIZE,0);
 
         // User Agent props.
         UserAgentManager.setupUserAgentManager(properties,userAgentManager);
@@ -291,11 +326,6 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
      */
     private volatile boolean canWait;
 
-    /**
-     * Used to synchronize sets and gets to the number of waiting clients.
-     */
-    protected final Object lock = new Object();
-
     /**
      * Set when properties are handled; used as a shortcut for logging to
      * determine whether this instance attempts to put request threads in a wait
@@ -303,17 +333,43 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
      */
     private boolean waitEnabled;
 
+    /**
+     * Used to synchronize sets and gets to the number of waiting clients.
+     * 
+     * @deprecated The number of waiting polls is updated without a lock.
+     */
+    @Deprecated
+    protected final Object lock = new Object();
+
     /**
      * A count of the number of request threads that are currently in the wait
      * state (including those on their way into or out of it).
+     * 
+     * @deprecated Use {@link #getWaitingPollRequestsCount()}. This is a copy of
+     *             the count, updated without a lock after each change, so under
+     *             contention it may briefly lag behind the count.
+     */
+    @Deprecated
+    protected volatile int waitingPollRequestsCount;
+
+    /**
+     * A count of the number of poll requests that are currently in the wait
+     * state, either blocked or suspended (including those on their way into or
+     * out of it).
      */
-    protected int waitingPollRequestsCount;
+    private final AtomicInteger waitingPolls = new AtomicInteger();
 
     /**
      * A Map(notification Object for a waited request thread, Boolean.TRUE).
      */
     private ConcurrentHashMap currentWaitedRequests;
 
+    /**
+     * The pool processing the bodies of batched requests, if parallel batches
+     * are enabled.
+     */
+    private volatile ThreadPoolExecutor batchExecutor;
+
     // --------------------------------------------------------------------------
     //
     // Properties
@@ -360,6 +416,133 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
         clientWaitInterval = value;
     }
 
+    // ----------------------------------
+    // alwaysSuspendPolls
+    // ----------------------------------
+
+    protected boolean alwaysSuspendPolls;
+
+    /**
+     * Returns whether waiting polls are always suspended, and never hold a
+     * request thread.
+     */
+    public boolean isAlwaysSuspendPolls()
+    {
+        return alwaysSuspendPolls;
+    }
+
+    /**
+     * Sets whether waiting polls are always suspended. When true, polls are
+     * suspended even if wait-interval is -1 (in which case they wait until
+     * notified), and a poll that is resumed without messages returns
+     * immediately instead of blocking for another wait.
+     * 
+     * @param alwaysSuspendPolls
+     *            <code>true</code> to never place request threads in a wait state.
+     */
+    public void setAlwaysSuspendPolls(boolean alwaysSuspendPolls)
+    {
+        this.alwaysSuspendPolls = alwaysSuspendPolls;
+    }
+
+    // ----------------------------------
+    // parallelBatchThreads
+    // ----------------------------------
+
+    protected int parallelBatchThreads;
+
+    /**
+     * Returns the number of threads processing the bodies of batched requests
+     * in parallel, or 0 if batches are processed sequentially.
+     */
+    public int getParallelBatchThreads()
+    {
+        return parallelBatchThreads;
+    }
+
+    /**
+     * Sets the number of threads processing the bodies of batched requests in
+     * parallel. A value of 0 processes them sequentially on the request
+     * thread. Takes effect when the endpoint is started.
+     * 
+     * @param parallelBatchThreads
+     *            The number of threads processing batched requests.
+     */
+    public void setParallelBatchThreads(int parallelBatchThreads)
+    {
+        this.parallelBatchThreads = parallelBatchThreads;
+    }
+
+    // ----------------------------------
+    // parallelBatchDestinations
+    // ----------------------------------
+
+    protected volatile Set<String> parallelBatchDestinations = Collections.emptySet();
+
+    /**
+     * Returns whether remoting messages to the given destination may be
+     * processed in parallel with the other bodies of a batch.
+     */
+    public boolean isParallelBatchDestination(String destination)
+    {
+        return destination != null && parallelBatchDestinations.contains(destination);
+    }
+
+    /**
+     * Sets the remoting destinations whose messages may be processed in
+     * parallel with the other bodies of a batch. The worker threads share the
+     * FlexClient, FlexSession and HTTP request of the batch, so only
+     * destinations whose services neither modify them nor depend on the
+     * other messages of the batch should be listed. No destination is listed
+     * by default, so batches are processed sequentially even if
+     * parallel-batch-threads is set.
+     * 
+     * @param destinations
+     *            A comma separated list of destination ids, or null.
+     */
+    public void setParallelBatchDestinations(String destinations)
+    {
+        Set<String> ids = new HashSet<String>();
+        if (destinations != null)
+        {
+            for (String id : destinations.split(","))
+            {
+                id = id.trim();
+                if (id.length() > 0)
+                    ids.add(id);
+            }
+        }
+        parallelBatchDestinations = ids;
+    }
+
+    // ----------------------------------
+    // maxRequestSize
+    // ----------------------------------
+
+    protected int maxRequestSize;
+
+    /**
+     * Returns the maximum size in bytes of a request, or 0 if unlimited.
+     */
+    public int getMaxRequestSize()
+    {
+        return maxRequestSize;
+    }
+
+    /**
+     * Sets the maximum size in bytes of a request. Requests that declare a
+     * larger content length are rejected before being deserialized, and
+     * requests of unknown length are rejected as soon as they exceed the limit.
+     * A value of 0 means unlimited.
+     * 
+     * @param maxRequestSize
+     *            The maximum size in bytes of a request.
+     */
+    public void setMaxRequestSize(int maxRequestSize)
+    {
+        this.maxRequestSize = maxRequestSize;
+    }
+
     // ----------------------------------
     // maxWaitingPollRequests
     // ----------------------------------
@@ -375,12 +558,24 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
         return maxWaitingPollRequests;
     }
 
+    /**
+     * Returns the number of poll requests that are currently waiting for
+     * messages to arrive for clients.
+     */
+    public int getWaitingPollRequestsCount()
+    {
+        return waitingPolls.get();
+    }
+
     /**
      * Sets the maximum number of server poll response threads that will be
      * waiting for messages to arrive for clients. If you set wait-interval to -1,
      * note that the request threads will block and you will need to use a lower
      * limit; if you set wait-interval to use a positive integer, the requests will be
      * suspended using threadless waits, and it is safe to set a higher limit.
+     * Suspended polls hold their wait spot until they are resumed; with
+     * always-suspend-polls set, no poll holds a thread while waiting, and the
+     * limit may be raised to many thousands.
      * 
      * @param maxWaitingPollRequests
      *            The maximum number of server poll response threads that will
@@ -392,7 +587,7 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
         if (maxWaitingPollRequests > 0 && (waitInterval == -1 || waitInterval > 0))
         {
             waitEnabled = true;
-            canWait = (waitingPollRequestsCount < maxWaitingPollRequests);
+            canWait = (waitingPolls.get() < maxWaitingPollRequests);
         }
     }
 
@@ -454,7 +649,7 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
         if (maxWaitingPollRequests > 0 && (waitInterval == -1 || waitInterval > 0))
         {
             waitEnabled = true;
-            canWait = (waitingPollRequestsCount < maxWaitingPollRequests);
+            canWait = (waitingPolls.get() < maxWaitingPollRequests);
         }
     }
 
@@ -531,6 +726,25 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
         super.start();
 
         currentWaitedRequests = new ConcurrentHashMap();
+
+        if (parallelBatchThreads > 0)
+        {
+            // When the queue is full, or the pool is stopping, the body is
+            // rejected and the batch filter processes it on the request
+            // thread, once the other bodies of its batch are done
+            batchExecutor = new ThreadPoolExecutor(parallelBatchThreads,parallelBatchThreads,0,TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(parallelBatchThreads * 16),new ThreadFactory()
+                    {
+                        private final AtomicInteger threads = new AtomicInteger();
+
+                        public Thread newThread(Runnable task)
+                        {
+                            Thread thread = new Thread(task,getId() + "-batch-" + threads.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
     }
 
     /**
@@ -554,6 +768,12 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
         }
         currentWaitedRequests = null;
 
+        if (batchExecutor != null)
+        {
+            batchExecutor.shutdown();
+            batchExecutor = null;
+        }
+
         super.stop();
     }
 
@@ -588,7 +808,9 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
      * <code>max-waiting-poll-requests</code> and waits will only be attempted
      * if the canWait flag that is based on the
      * <code>max-waiting-poll-requests</code> and the specified
-     * <code>wait-interval</code> is true.
+     * <code>wait-interval</code> is true. Waits are threadless if the
+     * <code>wait-interval</code> is positive or if
+     * <code>always-suspend-polls</code> is set.
      * 
      * @param flexClient
      *            The FlexClient that issued the poll request.
@@ -599,48 +821,23 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
     protected FlushResult handleFlexClientPoll(FlexClient flexClient, CommandMessage pollCommand)
     {
         FlushResult flushResult = null;
-        if (canWait && !pollCommand.headerExists(CommandMessage.SUPPRESS_POLL_WAIT_HEADER))
+        final HttpServletRequest req = request.get();
+
+        // A suspended poll keeps its wait spots until it is resumed and completes
+        boolean resumedPoll = req.getAttribute(WAITING_POLL_ATTRIBUTE) != null;
+        if (resumedPoll || canWait && !pollCommand.headerExists(CommandMessage.SUPPRESS_POLL_WAIT_HEADER))
         {
             FlexSession session = FlexContext.getFlexSession();
             // If canWait is true it means we currently have less than the max
-            // number of allowed waiting threads.
-
-            // We need to protect writes/reads to the wait count with the
-            // endpoint's lock.
-            // Also, we have to be careful to handle the case where two threads
-            // get to this point when only
-            // one wait spot remains; one thread will win and the other needs to
-            // revert to a non-waitable poll.
-            boolean thisThreadCanWait;
-            synchronized (lock)
-            {
-                ++waitingPollRequestsCount;
-                if (waitingPollRequestsCount == maxWaitingPollRequests)
-                {
-                    thisThreadCanWait = true; // This thread got the last wait
-                                              // spot.
-                    canWait = false;
-                }
-                else if (waitingPollRequestsCount > maxWaitingPollRequests)
-                {
-                    thisThreadCanWait = false; // This thread was beaten out for
-                                               // the last spot.
-                    --waitingPollRequestsCount; // Decrement the count because
-                                                // we're not going to try a poll
-                                                // with wait.
-                    canWait = false; // All the wait spots are currently
-                                     // occupied so prevent further attempts for
-                                     // now.
-                }
-                else
-                {
-                    // We haven't hit the limit yet, allow this thread to wait.
-                    thisThreadCanWait = true;
-                }
-            }
+            // number of allowed waiting polls.
+
+            // Two threads may get to this point when only one wait spot
+            // remains; one thread will win and the other needs to revert to a
+            // non-waitable poll.
+            boolean thisThreadCanWait = resumedPoll || acquireWaitingPoll();
 
             // Check the max waiting connections per session count
-            if (thisThreadCanWait)
+            if (thisThreadCanWait && !resumedPoll)
             {
                 String userAgentValue = FlexContext.getHttpRequest().getHeader(UserAgentManager.USER_AGENT_HEADER_NAME);
                 UserAgentSettings agentSettings = userAgentManager.match(userAgentValue);
@@ -668,14 +865,8 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
 
                 if (!thisThreadCanWait)
                 {
-                    // Decrement the waiting poll count, since this poll isn't
-                    // going to wait.
-                    synchronized (lock)
-                    {
-                        --waitingPollRequestsCount;
-                        if (waitingPollRequestsCount < maxWaitingPollRequests)
-                            canWait = true;
-                    }
+                    // Release the wait spot, since this poll isn't going to wait.
+                    releaseWaitingPoll();
                     if (Log.isDebug())
                     {
                         log.debug("Max long-polling requests per session limit (" + session.maxConnectionsPerSession
@@ -688,12 +879,15 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
             if (thisThreadCanWait)
             {
                 if (Log.isDebug())
-                    log.debug("Number of waiting threads for endpoint with id '" + getId() + "' is " + waitingPollRequestsCount + ".");
+                    log.debug("Number of waiting polls for endpoint with id '" + getId() + "' is " + waitingPolls.get() + ".");
 
+                // A resumed poll's spots are released by the listener of its
+                // continuation
+                WaitingPoll waitingPoll = resumedPoll ? null : new WaitingPoll(session);
+                boolean suspended = false;
                 try
                 {
                     // Do we have async results?
-                    final HttpServletRequest req = request.get();
                     flushResult = (FlushResult)req.getAttribute("AsyncFlushResults");
 
                     if (flushResult == null)
@@ -705,13 +899,12 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
                         {
                             // Nothing available. Have we suspended before?
                             final Continuation continuation = ContinuationSupport.getContinuation(req);
-                            if (waitInterval <= 0)
-                            {
-                                flushResult = flexClient.pollWithWait(getId(),FlexContext.getFlexSession(),this,waitInterval);
-                            }
-                            else if (continuation.isInitial())
+                            if (continuation.isInitial() && (waitInterval > 0 || alwaysSuspendPolls))
                             {
-                                continuation.setTimeout(waitInterval * 2);
+                                // A wait interval of -1 waits until notified,
+                                // but not beyond the life of the session
+                                continuation.setTimeout(waitInterval > 0 ? waitInterval * 2 : getMaxSuspendMillis(req));
+                                continuation.addContinuationListener(waitingPoll);
                                 continuation.suspend();
                                 flexClient.pollAsync(getId(),new AsyncPollHandler()
                                 {
@@ -721,8 +914,19 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
                                         continuation.resume();
                                     }
                                 },waitInterval);
+                                req.setAttribute(WAITING_POLL_ATTRIBUTE,Boolean.TRUE);
+                                suspended = true;
                                 continuation.undispatch();
                             }
+                            else if (alwaysSuspendPolls)
+                            {
+                                // Resumed without messages: return an empty
+                                // poll rather than blocking this thread.
+                            }
+                            else if (waitInterval <= 0)
+                            {
+                                flushResult = flexClient.pollWithWait(getId(),FlexContext.getFlexSession(),this,waitInterval);
+                            }
                             else
                             {
                                 flushResult = flexClient.pollWithWait(getId(),FlexContext.getFlexSession(),this,1);
@@ -752,21 +956,14 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
                 }
                 finally
                 {
-                    // We're done waiting so decrement the count of waiting
-                    // threads and update the canWait flag if necessary
-                    synchronized (lock)
+                    // We're done waiting, unless the poll has been suspended,
+                    // so release the wait spots.
+                    if (!suspended)
                     {
-                        --waitingPollRequestsCount;
-                        if (waitingPollRequestsCount < maxWaitingPollRequests)
-                            canWait = true;
+                        req.removeAttribute(WAITING_POLL_ATTRIBUTE);
+                        if (waitingPoll != null)
+                            waitingPoll.release();
                     }
-                    synchronized (session)
-                    {
-                        --session.streamingConnectionsCount;
-                    }
-
-                    if (Log.isDebug())
-                        log.debug("Number of waiting threads for endpoint with id '" + getId() + "' is " + waitingPollRequestsCount + ".");
                 }
             }
         }
@@ -800,4 +997,171 @@ public abstract class BaseAsyncHTTPEndpoint extends BaseHTTPEndpoint implements
 
         return flushResult;
     }
+
+    /**
+     * Takes a wait spot if one is available.
+     * 
+     * @return true if this poll may wait, false if all the wait spots are taken
+     */
+    private boolean acquireWaitingPoll()
+    {
+        while (true)
+        {
+            int count = waitingPolls.get();
+            if (count >= maxWaitingPollRequests)
+            {
+                // All the wait spots are currently occupied so prevent
+                // further attempts for now.
+                disableWaits();
+                return false;
+            }
+            if (waitingPolls.compareAndSet(count,count + 1))
+            {
+                updateWaitingPollRequestsCount(count + 1);
+                if (count + 1 == maxWaitingPollRequests)
+                    disableWaits(); // This thread got the last wait spot.
+                return true;
+            }
+        }
+    }
+
+    private void disableWaits()
+    {
+        canWait = false;
+        // A wait spot may have been released concurrently, after the count
+        // was read but before canWait was cleared.
+        if (waitingPolls.get() < maxWaitingPollRequests)
+            canWait = true;
+    }
+
+    /**
+     * Releases a wait spot taken by {@link #acquireWaitingPoll()}.
+     */
+    private void releaseWaitingPoll()
+    {
+        int count = waitingPolls.decrementAndGet();
+        updateWaitingPollRequestsCount(count);
+        if (count < maxWaitingPollRequests)
+            canWait = true;
+    }
+
+    /**
+     * Returns the timeout of a poll suspended with a wait interval of -1: the
+     * max inactive interval of the HTTP session, or 0 (no timeout) if there is
+     * no session or it never expires.
+     */
+    private long getMaxSuspendMillis(HttpServletRequest req)
+    {
+        HttpSession httpSession = req.getSession(false);
+        int maxInactive = httpSession == null ? 0 : httpSession.getMaxInactiveInterval();
+        return maxInactive > 0 ? maxInactive * 1000L : 0;
+    }
+
+    /**
+     * The wait spots held by a poll: one for the endpoint and one for the
+     * session. They are released once, either when the poll is done on its
+     * request thread or, if the poll was suspended, when its continuation
+     * completes or expires - even if the poll is never redispatched.
+     */
+    private class WaitingPoll implements ContinuationListener
+    {
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final FlexSession session;
+
+        WaitingPoll(FlexSession session)
+        {
+            this.session = session;
+        }
+
+        void release()
+        {
+            if (!released.compareAndSet(false,true))
+                return;
+
+            releaseWaitingPoll();
+            synchronized (session)
+            {
+                --session.streamingConnectionsCount;
+            }
+
+            if (Log.isDebug())
+                log.debug("Number of waiting polls for endpoint with id '" + getId() + "' is " + waitingPolls.get() + ".");
+        }
+
+        public void onComplete(Continuation continuation)
+        {
+            release();
+        }
+
+        public void onTimeout(Continuation continuation)
+        {
+            release();
+        }
+    }
+
+    /**
+     * Copies the count of waiting polls to the deprecated field read by
+     * subclasses, without taking the lock on every poll.
+     */
+    private void updateWaitingPollRequestsCount(int count)
+    {
+        waitingPollRequestsCount = count;
+    }
+
+    /**
+     * Returns the MBean of this endpoint, or null if the endpoint is not managed.
+     */
+    AsyncEndpointControl getAsyncControl()
+    {
+        return isManaged() && controller instanceof AsyncEndpointControl ? (AsyncEndpointControl)controller : null;
+    }
+
+    /**
+     * Returns the executor processing the bodies of batched requests in
+     * parallel, or null if batches are processed sequentially.
+     */
+    Executor getBatchExecutor()
+    {
+        return batchExecutor;
+    }
+
+    /**
+     * Wraps a task so that it runs with the request thread locals of the
+     * calling thread: the FlexContext, the serialization contexts and the
+     * current request.
+     * 
+     * @param task
+     *            The task to run in another thread.
+     * @return A task that may be run by any thread.
+     */
+    Runnable bindThreadLocals(final Runnable task)
+    {
+        final HttpServletRequest req = request.get();
+        final FlexClient flexClient = FlexContext.getFlexClient();
+        final FlexSession session = FlexContext.getFlexSession();
+        final MessageBroker broker = FlexContext.getMessageBroker();
+        final HttpServletRequest httpRequest = FlexContext.getHttpRequest();
+        final HttpServletResponse httpResponse = FlexContext.getHttpResponse();
+        final ServletConfig servletConfig = FlexContext.getServletConfig();
+        return new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    request.set(req);
+                    FlexContext.setThreadLocalObjects(flexClient,session,broker,httpRequest,httpResponse,servletConfig);
+                    FlexContext.setThreadLocalEndpoint(BaseAsyncHTTPEndpoint.this);
+                    setThreadLocals();
+                    task.run();
+                }
+                finally
+                {
+                    clearThreadLocals();
+                    FlexContext.clearThreadLocalObjects();
+                    request.set(null);
+                }
+            }
+        };
+    }
 }
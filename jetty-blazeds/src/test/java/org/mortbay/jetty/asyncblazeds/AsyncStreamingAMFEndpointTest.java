@@ -0,0 +1,351 @@
+package org.mortbay.jetty.asyncblazeds;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import flex.messaging.FlexContext;
+import flex.messaging.FlexSession;
+import flex.messaging.client.EndpointPushHandler;
+import flex.messaging.client.FlexClient;
+import flex.messaging.config.ConfigMap;
+import flex.messaging.messages.AcknowledgeMessage;
+import flex.messaging.messages.AsyncMessage;
+import flex.messaging.messages.CommandMessage;
+import flex.messaging.messages.Message;
+
+public class AsyncStreamingAMFEndpointTest extends TestCase
+{
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private final List<Message> streamed = new ArrayList<Message>();
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private Continuation continuation;
+    private FlexClient flexClient;
+    private FlexSession session;
+    private EndpointPushHandler pushHandler;
+    private boolean expired;
+    private long idleTimeout;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        request = mock(HttpServletRequest.class);
+        when(request.getHeader("User-Agent")).thenReturn("Mozilla/5.0");
+        when(request.getAttribute(anyString())).thenAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+            {
+                return attributes.get(invocation.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+            {
+                attributes.put((String)invocation.getArguments()[0],invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(request).setAttribute(anyString(),any());
+
+        final ServletOutputStream os = new ServletOutputStream()
+        {
+            @Override
+            public void write(int b)
+            {
+                output.write(b);
+            }
+        };
+        response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(os);
+
+        continuation = mock(Continuation.class);
+        when(continuation.isExpired()).thenAnswer(new Answer<Boolean>()
+        {
+            public Boolean answer(InvocationOnMock invocation)
+            {
+                return expired;
+            }
+        });
+        attributes.put(Continuation.ATTRIBUTE,continuation);
+
+        flexClient = mock(FlexClient.class);
+        when(flexClient.getId()).thenReturn("flexClient");
+        doAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+            {
+                pushHandler = (EndpointPushHandler)invocation.getArguments()[0];
+                return null;
+            }
+        }).when(flexClient).registerEndpointPushHandler(any(EndpointPushHandler.class),anyString());
+
+        session = mock(FlexSession.class);
+        session.maxConnectionsPerSession = 1;
+        FlexContext.setThreadLocalSession(session);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        FlexContext.clearThreadLocalObjects();
+    }
+
+    public void testDefaults()
+    {
+        AsyncStreamingAMFEndpoint endpoint = newEndpoint();
+        endpoint.initialize("async-streaming",new ConfigMap());
+
+        assertEquals(1000,endpoint.getMaxQueuedMessages());
+        assertTrue(endpoint.isDropOldest());
+        assertEquals(0,endpoint.getMessagesDropped());
+    }
+
+    public void testInitialize()
+    {
+        ConfigMap properties = new ConfigMap();
+        properties.addProperty("max-queued-messages","10");
+        properties.addProperty("queue-drop-policy","drop-newest");
+
+        AsyncStreamingAMFEndpoint endpoint = newEndpoint();
+        endpoint.initialize("async-streaming",properties);
+
+        assertEquals(10,endpoint.getMaxQueuedMessages());
+        assertFalse(endpoint.isDropOldest());
+    }
+
+    public void testUnknownDropPolicyKeepsDefault()
+    {
+        ConfigMap properties = new ConfigMap();
+        properties.addProperty("queue-drop-policy","drop-all");
+
+        AsyncStreamingAMFEndpoint endpoint = newEndpoint();
+        endpoint.initialize("async-streaming",properties);
+
+        assertTrue(endpoint.isDropOldest());
+    }
+
+    public void testUnboundedQueue()
+    {
+        AsyncStreamingAMFEndpoint.MessageQueue queue = new AsyncStreamingAMFEndpoint.MessageQueue();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.drain());
+
+        assertEquals(0,queue.add(messages(0,100),0,true));
+        List<Message> drained = queue.drain();
+        assertEquals(100,drained.size());
+        assertEquals("0",drained.get(0).getMessageId());
+        assertEquals("99",drained.get(99).getMessageId());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.drain());
+    }
+
+    public void testDropOldest()
+    {
+        AsyncStreamingAMFEndpoint.MessageQueue queue = new AsyncStreamingAMFEndpoint.MessageQueue();
+        assertEquals(0,queue.add(messages(0,2),3,true));
+        assertEquals(2,queue.add(messages(2,3),3,true));
+
+        List<Message> drained = queue.drain();
+        assertEquals(3,drained.size());
+        assertEquals("2",drained.get(0).getMessageId());
+        assertEquals("3",drained.get(1).getMessageId());
+        assertEquals("4",drained.get(2).getMessageId());
+    }
+
+    public void testDropNewest()
+    {
+        AsyncStreamingAMFEndpoint.MessageQueue queue = new AsyncStreamingAMFEndpoint.MessageQueue();
+        assertEquals(0,queue.add(messages(0,2),3,false));
+        assertEquals(2,queue.add(messages(2,3),3,false));
+
+        List<Message> drained = queue.drain();
+        assertEquals(3,drained.size());
+        assertEquals("0",drained.get(0).getMessageId());
+        assertEquals("1",drained.get(1).getMessageId());
+        assertEquals("2",drained.get(2).getMessageId());
+
+        // Draining makes room again
+        assertEquals(0,queue.add(messages(5,1),3,false));
+        assertEquals("5",queue.drain().get(0).getMessageId());
+    }
+
+    public void testOpenSuspendsUntilMessagesArePushed() throws Exception
+    {
+        AsyncStreamingAMFEndpoint endpoint = open(0);
+
+        // The open request acknowledges the stream and suspends, holding no thread
+        assertEquals(1,streamed.size());
+        assertTrue(streamed.get(0) instanceof AcknowledgeMessage);
+        verify(continuation).suspend();
+        verify(continuation,never()).resume();
+        assertEquals(1,endpoint.getStreamingClientsCount());
+
+        // A push resumes the request, which writes the messages and suspends again
+        pushHandler.pushMessages(messages(0,2));
+        verify(continuation).resume();
+        endpoint.service(request,response);
+        assertEquals(3,streamed.size());
+        assertEquals("0",streamed.get(1).getMessageId());
+        assertEquals("1",streamed.get(2).getMessageId());
+        verify(continuation,times(2)).suspend();
+        assertEquals(0,output.size());
+    }
+
+    public void testPushRacingWithSuspendIsNotLost() throws Exception
+    {
+        // The push arrives while the open request suspends, so its resume
+        // finds the continuation not suspended yet
+        doAnswer(new Answer<Object>()
+        {
+            private boolean suspended;
+
+            public Object answer(InvocationOnMock invocation)
+            {
+                if (!suspended)
+                {
+                    suspended = true;
+                    throw new IllegalStateException();
+                }
+                return null;
+            }
+        }).when(continuation).resume();
+        doAnswer(new Answer<Object>()
+        {
+            public Object answer(InvocationOnMock invocation)
+            {
+                if (streamed.size() == 1)
+                    pushHandler.pushMessages(messages(0,1));
+                return null;
+            }
+        }).when(continuation).suspend();
+        AsyncStreamingAMFEndpoint endpoint = open(0);
+
+        // The request resumes itself once suspended
+        verify(continuation,times(2)).resume();
+        endpoint.service(request,response);
+        assertEquals(2,streamed.size());
+        assertEquals("0",streamed.get(1).getMessageId());
+    }
+
+    public void testHeartbeatWhenContinuationTimesOut() throws Exception
+    {
+        AsyncStreamingAMFEndpoint endpoint = open(1000);
+        verify(continuation).setTimeout(1000);
+
+        expired = true;
+        endpoint.service(request,response);
+
+        // Only a heartbeat byte is written, and the stream stays open
+        assertEquals(1,streamed.size());
+        assertEquals(1,output.size());
+        assertEquals(0,output.toByteArray()[0]);
+        verify(continuation,times(2)).suspend();
+        verify(flexClient,never()).unregisterEndpointPushHandler(any(EndpointPushHandler.class),anyString());
+        assertEquals(1,endpoint.getStreamingClientsCount());
+    }
+
+    public void testIdleStreamIsClosed() throws Exception
+    {
+        idleTimeout = 50;
+        AsyncStreamingAMFEndpoint endpoint = open(0);
+        verify(continuation).setTimeout(50);
+
+        Thread.sleep(100);
+        expired = true;
+        endpoint.service(request,response);
+
+        // The client is told to disconnect, and the stream releases its limits
+        assertEquals(2,streamed.size());
+        assertTrue(streamed.get(1) instanceof CommandMessage);
+        assertEquals(CommandMessage.DISCONNECT_OPERATION,((CommandMessage)streamed.get(1)).getOperation());
+        verify(continuation).suspend();
+        verify(flexClient).unregisterEndpointPushHandler(pushHandler,endpoint.getId());
+        assertEquals(0,endpoint.getStreamingClientsCount());
+        assertEquals(0,session.streamingConnectionsCount);
+    }
+
+    public void testStreamWithPushedMessagesIsNotIdle() throws Exception
+    {
+        idleTimeout = 200;
+        AsyncStreamingAMFEndpoint endpoint = open(0);
+
+        Thread.sleep(100);
+        pushHandler.pushMessages(messages(0,1));
+        endpoint.service(request,response);
+        Thread.sleep(150);
+        expired = true;
+        endpoint.service(request,response);
+
+        // The push postponed the idle timeout
+        assertEquals(2,streamed.size());
+        verify(continuation,times(3)).suspend();
+        assertEquals(1,endpoint.getStreamingClientsCount());
+    }
+
+    private AsyncStreamingAMFEndpoint open(long heartbeat)
+    {
+        AsyncStreamingAMFEndpoint endpoint = new AsyncStreamingAMFEndpoint()
+        {
+            @Override
+            protected void streamMessages(List messages, ServletOutputStream os, HttpServletResponse res) throws IOException
+            {
+                for (Object message : messages)
+                    streamed.add((Message)message);
+            }
+
+            @Override
+            long getConnectionIdleTimeoutMillis()
+            {
+                return idleTimeout;
+            }
+        };
+        endpoint.setUrl("http://localhost:8080/messagebroker/asyncstreamingamf");
+        endpoint.initialize("async-streaming",new ConfigMap());
+        endpoint.setServerToClientHeartbeatMillis(heartbeat);
+        endpoint.handleFlexClientStreamingOpenRequest(request,response,flexClient);
+        return endpoint;
+    }
+
+    private AsyncStreamingAMFEndpoint newEndpoint()
+    {
+        AsyncStreamingAMFEndpoint endpoint = new AsyncStreamingAMFEndpoint();
+        endpoint.setUrl("http://localhost:8080/messagebroker/asyncstreamingamf");
+        return endpoint;
+    }
+
+    private List<Message> messages(int first, int count)
+    {
+        List<Message> messages = new ArrayList<Message>(count);
+        for (int i = first; i < first + count; ++i)
+        {
+            AsyncMessage message = new AsyncMessage();
+            message.setMessageId(String.valueOf(i));
+            messages.add(message);
+        }
+        return messages;
+    }
+}
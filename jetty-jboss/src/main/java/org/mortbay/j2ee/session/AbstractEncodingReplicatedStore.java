@@ -0,0 +1,72 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+//----------------------------------------
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+//----------------------------------------
+
+/**
+ * An AbstractReplicatedStore for transports that carry bytes. Changes are
+ * encoded with the configured StateCodec and handed to send() - whatever
+ * the transport receives from the other members is handed to receive().
+ */
+
+abstract public class AbstractEncodingReplicatedStore extends
+        AbstractReplicatedStore
+{
+    protected void publish(String id, Method method, Object[] argInstances)
+    {
+        try
+        {
+            send(encode(id, method, argInstances));
+        }
+        catch (IOException e)
+        {
+            _log.error("could not encode " + method.getName() + " for " + id
+                    + " - not replicated", e);
+        }
+    }
+
+    protected void publish(String id, int method, Object[] argInstances)
+    {
+        // straight to the codec - no need for the Method
+        try
+        {
+            send(encode(id, method, argInstances));
+        }
+        catch (IOException e)
+        {
+            _log.error("could not encode method " + method + " for " + id
+                    + " - not replicated", e);
+        }
+    }
+
+    /**
+     * Sends an encoded change to the other members of the cluster.
+     */
+    abstract protected void send(byte[] message);
+
+    /**
+     * Applies an encoded change sent by another member of the cluster.
+     */
+    public void receive(byte[] message)
+    {
+        dispatch(message);
+    }
+}
@@ -17,11 +17,12 @@ package org.mortbay.j2ee.session;
 
 //----------------------------------------
 
+import java.io.IOException;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.rmi.RemoteException;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import org.jboss.logging.Logger;
@@ -87,10 +88,14 @@ abstract public class AbstractReplicatedStore extends AbstractStore
     {
         AbstractReplicatedStore ars = (AbstractReplicatedStore) super.clone();
         ars.setLoader(getLoader());
+        ars.setCodec(getCodec());
         return ars;
     }
 
-    protected Map _sessions = new HashMap();
+    protected SessionRegistry _sessions = new SessionRegistry();
+
+    // the sessions by the time at which they may be scavenged
+    protected ExpiryIndex _expiries = new ExpiryIndex();
 
     public int getSessions()
     {
@@ -105,6 +110,7 @@ abstract public class AbstractReplicatedStore extends AbstractStore
         _log.trace("destroying...");
         _sessions.clear();
         _sessions = null;
+        _expiries.clear();
         setManager(null);
         super.destroy();
         _log.trace("...destroyed");
@@ -122,7 +128,7 @@ abstract public class AbstractReplicatedStore extends AbstractStore
             Object[] argInstances = { id, new Long(creationTime),
                     new Integer(maxInactiveInterval),
                     new Integer(_actualMaxInactiveInterval) };
-            publish(null, CREATE_SESSION, argInstances);
+            publish(null, CREATE_SESSION_ID, argInstances);
         }
 
         createSession(id, creationTime, maxInactiveInterval,
@@ -138,12 +144,7 @@ abstract public class AbstractReplicatedStore extends AbstractStore
         // pull it out of our cache - if it is not there, it doesn't
         // exist/hasn't been distributed...
 
-        Object tmp;
-        synchronized (_sessions)
-        {
-            tmp = _sessions.get(id);
-        }
-        return (State) tmp;
+        return (State) _sessions.get(id);
     }
 
     public void storeState(State state)
@@ -151,10 +152,9 @@ abstract public class AbstractReplicatedStore extends AbstractStore
         try
         {
             String id = state.getId();
-            synchronized (_sessions)
-            {
-                _sessions.put(id, state);
-            }
+            _sessions.put(id, state);
+            if (state instanceof LocalState)
+                schedule((LocalState) state);
         }
         catch (Exception e)
         {
@@ -168,8 +168,12 @@ abstract public class AbstractReplicatedStore extends AbstractStore
 
         if (!AbstractReplicatedStore.getReplicating())
         {
+            ReplicationDelta delta = (ReplicationDelta) _batch.get();
+            if (delta != null)
+                delta.discard(id);
+
             Object[] argInstances = { id };
-            publish(null, DESTROY_SESSION, argInstances);
+            publish(null, DESTROY_SESSION_ID, argInstances);
         }
 
         destroySession(id);
@@ -181,40 +185,70 @@ abstract public class AbstractReplicatedStore extends AbstractStore
     public void scavenge() throws Exception
     {
         _log.trace("starting distributed scavenging...");
-        Collection copy;
-        synchronized (_sessions)
-        {
-            copy = new ArrayList(_sessions.values());
-        }
         if (_log.isTraceEnabled())
+            _log.trace(_sessions.size() + " distributed sessions, "
+                    + _subscribers.size() + " subscribers");
+        // only look at the sessions that the index thinks are due, a slice
+        // at a time, so that we never hold up a large cluster for long...
+        int n = 0;
+        int checked = 0;
+        List due;
+        while (!(due = _expiries.due(System.currentTimeMillis(),
+                _scavengerSliceSize)).isEmpty())
         {
-            int n;
-            synchronized (_subscribers)
+            int i = 0;
+            try
             {
-                n = _subscribers.size();
+                for (; i < due.size(); i++)
+                {
+                    String id = (String) due.get(i);
+                    try
+                    {
+                        LocalState state = (LocalState) _sessions.get(id);
+                        if (state == null)
+                            _expiries.remove(id);
+                        else if (!state.isValid(_scavengerExtraTime))
+                        {
+                            if (_log.isDebugEnabled())
+                                _log.debug("scavenging distributed session " + id);
+                            destroySession(id);
+                            ++n;
+                        }
+                        else
+                            schedule(state); // touched since it was indexed
+                    }
+                    catch (Exception e)
+                    {
+                        _log.warn("could not scavenge distributed session " + id, e);
+                        _expiries.reschedule(id);
+                    }
+                }
             }
-            _log.trace(copy.size() + " distributed sessions, " + n
-                    + " subscribers");
-        }
-        int n = 0;
-        for (Iterator i = copy.iterator(); i.hasNext();)
-        {
-            LocalState state = (LocalState) i.next();
-            if (!state.isValid(_scavengerExtraTime))
+            finally
             {
-                String id = state.getId();
-                if (_log.isDebugEnabled())
-                    _log.debug("scavenging distributed session " + id);
-                destroySession(id);
-                i.remove();
-                ++n;
+                // the ids of the slice are out of the index until they are
+                // dealt with - do not lose the rest of it
+                for (; i < due.size(); i++)
+                    _expiries.reschedule((String) due.get(i));
             }
+            checked += due.size();
+            Thread.yield();
         }
         if (_log.isTraceEnabled())
-            _log.trace("scavenged " + n + " distributed sessions");
+            _log.trace("scavenged " + n + " of " + checked
+                    + " due distributed sessions");
         _log.trace("...finished distributed scavenging");
     }
 
+    protected void schedule(LocalState state)
+    {
+        // touches do not reach the index - they are picked up when the
+        // session comes up, which can only be late, never early
+        _expiries.schedule(state.getId(), state.getLastAccessedTime(), state
+                .maxInactiveTime()
+                + (_scavengerExtraTime * 1000L));
+    }
+
     // ----------------------------------------
     // Store API - hacks... - NYI/TODO
 
@@ -238,9 +272,31 @@ abstract public class AbstractReplicatedStore extends AbstractStore
     // ----------------------------------------
     // change notification API
 
+    // the ids of the methods, as they go over the wire - class methods...
+    protected static final int CREATE_SESSION_ID = 0;
+
+    protected static final int DESTROY_SESSION_ID = 1;
+
+    protected static final int TOUCH_SESSIONS_ID = 2;
+
+    // instance methods...
+    protected static final int SET_LAST_ACCESSED_TIME_ID = 3;
+
+    protected static final int SET_MAX_INACTIVE_INTERVAL_ID = 4;
+
+    protected static final int SET_ATTRIBUTE_ID = 5;
+
+    protected static final int SET_ATTRIBUTES_ID = 6;
+
+    protected static final int REMOVE_ATTRIBUTE_ID = 7;
+
+    protected static final int APPLY_DELTA_ID = 8;
+
+    // ...and the methods themselves, which publish() is given
+
     protected static Map _methodToInteger = new HashMap();
 
-    protected static Method[] _integerToMethod = new Method[8];
+    protected static Method[] _integerToMethod = new Method[APPLY_DELTA_ID + 1];
 
     protected static Method CREATE_SESSION;
 
@@ -250,67 +306,41 @@ abstract public class AbstractReplicatedStore extends AbstractStore
 
     protected static Method SET_LAST_ACCESSED_TIME;
 
+    protected static Method APPLY_DELTA;
+
     static
     {
-        // this is absolutely horrible and will break if anyone changes
-        // the shape of the interface - but it is a quick, easy and
-        // efficient hack - so I am using it while I think of a better
-        // way...
         try
         {
-            int index = 0;
-            Method m = null;
-
             // class methods...
-            m = CREATE_SESSION = AbstractReplicatedStore.class.getMethod(
-                    "createSession", new Class[] { String.class, Long.TYPE,
-                            Integer.TYPE, Integer.TYPE });
-            _integerToMethod[index] = m;
-            _methodToInteger.put(m.getName(), new Integer(index));
-            index++;
-
-            m = DESTROY_SESSION = AbstractReplicatedStore.class.getMethod(
-                    "destroySession", new Class[] { String.class });
-            _integerToMethod[index] = m;
-            _methodToInteger.put(m.getName(), new Integer(index));
-            index++;
-
-            m = TOUCH_SESSIONS = AbstractReplicatedStore.class.getMethod(
-                    "touchSessions", new Class[] { String[].class, Long.TYPE });
-            _integerToMethod[index] = m;
-            _methodToInteger.put(m.getName(), new Integer(index));
-            index++;
+            CREATE_SESSION = register(CREATE_SESSION_ID,
+                    AbstractReplicatedStore.class.getMethod("createSession",
+                            new Class[] { String.class, Long.TYPE,
+                                    Integer.TYPE, Integer.TYPE }));
+            DESTROY_SESSION = register(DESTROY_SESSION_ID,
+                    AbstractReplicatedStore.class.getMethod("destroySession",
+                            new Class[] { String.class }));
+            TOUCH_SESSIONS = register(TOUCH_SESSIONS_ID,
+                    AbstractReplicatedStore.class.getMethod("touchSessions",
+                            new Class[] { String[].class, Long.TYPE }));
 
             // instance methods...
-            m = SET_LAST_ACCESSED_TIME = State.class.getMethod(
-                    "setLastAccessedTime", new Class[] { Long.TYPE });
-            _integerToMethod[index] = m;
-            _methodToInteger.put(m.getName(), new Integer(index));
-            index++;
-
-            m = State.class.getMethod("setMaxInactiveInterval",
-                    new Class[] { Integer.TYPE });
-            _integerToMethod[index] = m;
-            _methodToInteger.put(m.getName(), new Integer(index));
-            index++;
-
-            m = State.class.getMethod("setAttribute", new Class[] {
-                    String.class, Object.class, Boolean.TYPE });
-            _integerToMethod[index] = m;
-            _methodToInteger.put(m.getName(), new Integer(index));
-            index++;
-
-            m = State.class.getMethod("setAttributes",
-                    new Class[] { Map.class });
-            _integerToMethod[index] = m;
-            _methodToInteger.put(m.getName(), new Integer(index));
-            index++;
-
-            m = State.class.getMethod("removeAttribute", new Class[] {
-                    String.class, Boolean.TYPE });
-            _integerToMethod[index] = m;
-            _methodToInteger.put(m.getName(), new Integer(index));
-            index++;
+            SET_LAST_ACCESSED_TIME = register(SET_LAST_ACCESSED_TIME_ID,
+                    State.class.getMethod("setLastAccessedTime",
+                            new Class[] { Long.TYPE }));
+            register(SET_MAX_INACTIVE_INTERVAL_ID, State.class.getMethod(
+                    "setMaxInactiveInterval", new Class[] { Integer.TYPE }));
+            register(SET_ATTRIBUTE_ID, State.class.getMethod("setAttribute",
+                    new Class[] { String.class, Object.class, Boolean.TYPE }));
+            register(SET_ATTRIBUTES_ID, State.class.getMethod("setAttributes",
+                    new Class[] { Map.class }));
+            register(REMOVE_ATTRIBUTE_ID, State.class.getMethod(
+                    "removeAttribute", new Class[] { String.class,
+                            Boolean.TYPE }));
+            APPLY_DELTA = register(APPLY_DELTA_ID,
+                    AbstractReplicatedStore.class.getDeclaredMethod(
+                            "applyDelta", new Class[] { State.class,
+                                    Integer.class, Map.class, String[].class }));
         }
         catch (Exception e)
         {
@@ -320,63 +350,278 @@ abstract public class AbstractReplicatedStore extends AbstractStore
         }
     }
 
+    private static Method register(int id, Method m)
+    {
+        _integerToMethod[id] = m;
+        _methodToInteger.put(m.getName(), new Integer(id));
+        return m;
+    }
+
+    /**
+     * Sends a change to the other members of the cluster, which hand it to
+     * their {@link #dispatch(String, Integer, Object[])} - the id of the
+     * method is <code>_methodToInteger.get(method.getName())</code>.
+     */
     abstract protected void publish(String id, Method method,
             Object[] argInstances);
 
+    protected void publish(String id, int method, Object[] argInstances)
+    {
+        publish(id, _integerToMethod[method], argInstances);
+    }
+
+    // ----------------------------------------
+    // wire format - publish() implementations that send bytes should use
+    // these, so that the format can be chosen by configuration (see
+    // AbstractEncodingReplicatedStore)...
+
+    protected StateCodec _codec = new SerializingStateCodec();
+
+    public StateCodec getCodec()
+    {
+        return _codec;
+    }
+
+    /**
+     * @param codec the StateCodec used by all members of the cluster. The
+     *            default serializes with Java serialization - a
+     *            CompactStateCodec is much smaller and quicker.
+     */
+    public void setCodec(StateCodec codec)
+    {
+        _codec = codec;
+    }
+
+    protected byte[] encode(String id, int method, Object[] argInstances)
+            throws IOException
+    {
+        return _codec.encodeMessage(new StateCodec.Message(id, method,
+                argInstances));
+    }
+
+    protected byte[] encode(String id, Method method, Object[] argInstances)
+            throws IOException
+    {
+        Integer methodId = (Integer) _methodToInteger.get(method.getName());
+        return encode(id, methodId.intValue(), argInstances);
+    }
+
+    protected void dispatch(byte[] message)
+    {
+        StateCodec.Message m;
+        try
+        {
+            m = _codec.decodeMessage(message, _loader);
+        }
+        catch (Exception e)
+        {
+            _log.error("could not decode message - codec mismatch ?", e);
+            return;
+        }
+        dispatch(m.getId(), m.getMethod(), m.getArgs());
+    }
+
     protected void dispatch(String id, Integer methodId, Object[] argInstances)
+    {
+        dispatch(id, methodId.intValue(), argInstances);
+    }
+
+    protected void dispatch(String id, int method, Object[] args)
     {
         try
         {
             AbstractReplicatedStore.setReplicating(true);
 
-            Object target = null;
             if (id == null)
             {
                 // either this is a class method
-                target = this;
-            }
-            else
-            {
-                // or an instance method..
-                synchronized (_subscribers)
+                switch (method)
                 {
-                    target = _subscribers.get(id);
+                    case CREATE_SESSION_ID:
+                        createSession((String) args[0], ((Long) args[1])
+                                .longValue(), ((Integer) args[2]).intValue(),
+                                ((Integer) args[3]).intValue());
+                        break;
+                    case DESTROY_SESSION_ID:
+                        destroySession((String) args[0]);
+                        break;
+                    case TOUCH_SESSIONS_ID:
+                        touchSessions((String[]) args[0], ((Long) args[1])
+                                .longValue());
+                        break;
+                    default:
+                        _log.error("unknown class method: " + method
+                                + " - code version mismatch ?");
                 }
+                return;
             }
 
-            try
+            // or an instance method..
+            State target = (State) _subscribers.get(id);
+            if (target == null)
             {
-                Method method = _integerToMethod[methodId.intValue()];
-                if (target == null)
-                    _log.warn("null target for " + method);
-                else
-                    method.invoke(target, argInstances);
+                _log.warn("null target for method " + method + " on " + id);
+                return;
             }
-            catch (Exception e)
+
+            switch (method)
             {
-                _log
-                        .error(
-                                "this should never happen - code version mismatch ?",
-                                e);
+                case SET_LAST_ACCESSED_TIME_ID:
+                    target.setLastAccessedTime(((Long) args[0]).longValue());
+                    break;
+                case SET_MAX_INACTIVE_INTERVAL_ID:
+                    target.setMaxInactiveInterval(((Integer) args[0])
+                            .intValue());
+                    break;
+                case SET_ATTRIBUTE_ID:
+                    target.setAttribute((String) args[0], args[1],
+                            ((Boolean) args[2]).booleanValue());
+                    break;
+                case SET_ATTRIBUTES_ID:
+                    target.setAttributes((Map) args[0]);
+                    break;
+                case REMOVE_ATTRIBUTE_ID:
+                    target.removeAttribute((String) args[0],
+                            ((Boolean) args[1]).booleanValue());
+                    break;
+                case APPLY_DELTA_ID:
+                    applyDelta(target, (Integer) args[0], (Map) args[1],
+                            (String[]) args[2]);
+                    break;
+                default:
+                    _log.error("unknown instance method: " + method
+                            + " - code version mismatch ?");
             }
         }
+        catch (Exception e)
+        {
+            _log.error("this should never happen - code version mismatch ?", e);
+        }
         finally
         {
             AbstractReplicatedStore.setReplicating(false);
         }
     }
 
+    protected void applyDelta(State target, Integer maxInactiveInterval,
+            Map attributes, String[] removed) throws RemoteException
+    {
+        if (maxInactiveInterval != null)
+            target.setMaxInactiveInterval(maxInactiveInterval.intValue());
+        for (int i = 0; i < removed.length; i++)
+            target.removeAttribute(removed[i], false);
+        for (Iterator i = attributes.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            target.setAttribute((String) entry.getKey(), entry.getValue(),
+                    false);
+        }
+    }
+
+    // ----------------------------------------
+    // batching - changes made whilst a request is being handled are
+    // coalesced and published once, when it is complete...
+
+    private final ThreadLocal _batch = new ThreadLocal();
+
+    /**
+     * Starts collecting this thread's changes, if it is not already doing
+     * so.
+     */
+    public void startBatch()
+    {
+        if (_batch.get() == null)
+            _batch.set(new ReplicationDelta());
+    }
+
+    /**
+     * Publishes the changes collected since {@link #startBatch()} - at most
+     * one message per session changed, and one for all of the touches.
+     */
+    public void flushBatch()
+    {
+        ReplicationDelta delta = (ReplicationDelta) _batch.get();
+        if (delta == null)
+            return;
+        _batch.set(null);
+        if (delta.isEmpty())
+            return;
+
+        List sessions = delta.getSessions();
+        for (int i = 0; i < sessions.size(); i++)
+        {
+            ReplicationDelta.SessionDelta sd = (ReplicationDelta.SessionDelta) sessions
+                    .get(i);
+            publish(sd._id, APPLY_DELTA_ID, sd.getArgs());
+        }
+
+        String[] touched = delta.getTouched();
+        if (touched.length > 0)
+            publish(null, TOUCH_SESSIONS_ID, new Object[] { touched,
+                    new Long(delta.getTouchTime()) });
+    }
+
+    // the changes made by local users of a session are recorded here, by the
+    // ReplicatingInterceptor. They are published straight away if this
+    // thread is not batching them.
+
+    public void replicateLastAccessedTime(String id, long time)
+    {
+        ReplicationDelta delta = (ReplicationDelta) _batch.get();
+        if (delta != null)
+            delta.setLastAccessedTime(id, time);
+        else
+            publish(id, SET_LAST_ACCESSED_TIME_ID, new Object[] { new Long(time) });
+    }
+
+    public void replicateMaxInactiveInterval(String id, int interval)
+    {
+        ReplicationDelta delta = (ReplicationDelta) _batch.get();
+        if (delta != null)
+            delta.setMaxInactiveInterval(id, interval);
+        else
+            publish(id, SET_MAX_INACTIVE_INTERVAL_ID, new Object[] { new Integer(
+                    interval) });
+    }
+
+    public void replicateAttribute(String id, String name, Object value)
+    {
+        ReplicationDelta delta = (ReplicationDelta) _batch.get();
+        if (delta != null)
+            delta.setAttribute(id, name, value);
+        else
+            publish(id, SET_ATTRIBUTE_ID, new Object[] { name, value,
+                    Boolean.FALSE });
+    }
+
+    public void replicateAttributes(String id, Map attributes)
+    {
+        // these replace all of the attributes, so they are sent straight
+        // away, in place of any attribute changes batched so far
+        ReplicationDelta delta = (ReplicationDelta) _batch.get();
+        if (delta != null)
+            delta.discardAttributes(id);
+        publish(id, SET_ATTRIBUTES_ID, new Object[] { attributes });
+    }
+
+    public void replicateAttributeRemoval(String id, String name)
+    {
+        ReplicationDelta delta = (ReplicationDelta) _batch.get();
+        if (delta != null)
+            delta.removeAttribute(id, name);
+        else
+            publish(id, REMOVE_ATTRIBUTE_ID, new Object[] { name, Boolean.FALSE });
+    }
+
     public void createSession(String id, long creationTime,
             int maxInactiveInterval, int actualMaxInactiveInterval)
     {
         if (_log.isTraceEnabled())
             _log.trace("creating replicated session: " + id);
-        State state = new LocalState(id, creationTime, maxInactiveInterval,
-                actualMaxInactiveInterval);
-        synchronized (_sessions)
-        {
-            _sessions.put(id, state);
-        }
+        LocalState state = new LocalState(id, creationTime,
+                maxInactiveInterval, actualMaxInactiveInterval);
+        _sessions.put(id, state);
+        schedule(state);
 
         if (AbstractReplicatedStore.getReplicating())
         {
@@ -391,10 +636,8 @@ abstract public class AbstractReplicatedStore extends AbstractStore
             _log.trace("destroying replicated session: " + id);
         if (getManager().sessionExists(id))
             getManager().destroySession(getManager().getHttpSession(id));
-        synchronized (_sessions)
-        {
-            _sessions.remove(id);
-        }
+        _sessions.remove(id);
+        _expiries.remove(id);
     }
 
     public void touchSessions(String[] ids, long time)
@@ -403,16 +646,10 @@ abstract public class AbstractReplicatedStore extends AbstractStore
         for (int i = 0; i < ids.length; i++)
         {
             String id = ids[i];
-            Object target;
-            // I could synch the whole block. This is slower, but will not
-            // hold up everything else...
-            synchronized (_subscribers)
-            {
-                target = _subscribers.get(id);
-            }
+            Object target = _subscribers.get(id);
             try
             {
-                ((StateInterceptor) target).setLastAccessedTime(time);
+                ((State) target).setLastAccessedTime(time);
             }
             catch (Exception e)
             {
@@ -425,23 +662,17 @@ abstract public class AbstractReplicatedStore extends AbstractStore
     //----------------------------------------
     // subscription - Listener management...
 
-    protected Map _subscribers = new HashMap();
+    protected SessionRegistry _subscribers = new SessionRegistry();
 
     public void subscribe(String id, Object o)
     {
         _log.trace("subscribing: " + id);
-        synchronized (_subscribers)
-        {
-            _subscribers.put(id, o);
-        }
+        _subscribers.put(id, o);
     }
 
     public void unsubscribe(String id)
     {
         _log.trace("unsubscribing: " + id);
-        synchronized (_subscribers)
-        {
-            _subscribers.remove(id);
-        }
+        _subscribers.remove(id);
     }
 }
@@ -63,6 +63,22 @@ public abstract class AbstractStore implements Store
         _scavengerExtraTime = secs;
     }
 
+    /**
+     * The most sessions a scavenge looks at before it gives other threads a
+     * go.
+     */
+    protected int _scavengerSliceSize = 1000;
+
+    public int getScavengerSliceSize()
+    {
+        return _scavengerSliceSize;
+    }
+
+    public void setScavengerSliceSize(int sessions)
+    {
+        _scavengerSliceSize = sessions;
+    }
+
     /**
      * A maxInactiveInterval of -1 means never scavenge. The DB would fill up
      * very quickly - so we can override -1 with a real value here.
@@ -86,6 +102,7 @@ public abstract class AbstractStore implements Store
             AbstractStore as = (AbstractStore) (getClass().newInstance());
             as.setScavengerPeriod(_scavengerPeriod);
             as.setScavengerExtraTime(_scavengerExtraTime);
+            as.setScavengerSliceSize(_scavengerSliceSize);
             as.setActualMaxInactiveInterval(_actualMaxInactiveInterval);
             return as;
         }
@@ -0,0 +1,603 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+//----------------------------------------
+
+/**
+ * A StateCodec with a compact binary format, for the replication traffic of
+ * large clusters.
+ * <ul>
+ * <li>times and intervals are written as variable length integers - the
+ * last accessed time relative to the creation time, so it rarely takes more
+ * than 3 bytes</li>
+ * <li>attribute names are written once per payload and referred to by
+ * index after that. Names that all members know about in advance can be
+ * given to the constructor, and are never written at all</li>
+ * <li>Strings, Integers, Longs, Booleans and String[]s are written directly,
+ * as are the attribute maps given to setAttributes() and applyDelta().
+ * byte[] values, which are usually values that the webapp has already
+ * serialized itself, are passed through as they are. Only other values are
+ * written with Java serialization - to a single stream per payload, which
+ * follows the rest of it, so that class descriptions and shared objects are
+ * written only once.</li>
+ * </ul>
+ */
+public class CompactStateCodec implements StateCodec
+{
+    protected static final int STATE = 1;
+
+    protected static final int MESSAGE = 2;
+
+    // value tags
+    protected static final int NULL = 0;
+
+    protected static final int STRING = 1;
+
+    protected static final int INTEGER = 2;
+
+    protected static final int LONG = 3;
+
+    protected static final int TRUE = 4;
+
+    protected static final int FALSE = 5;
+
+    protected static final int BYTES = 6;
+
+    protected static final int STRINGS = 7;
+
+    protected static final int MAP = 8;
+
+    protected static final int SERIALIZED = 9;
+
+    private final String[] _names;
+
+    private final Map _nameIndex = new HashMap();
+
+    public CompactStateCodec()
+    {
+        this(new String[0]);
+    }
+
+    /**
+     * @param names attribute names known to all members of the cluster - they
+     *            must be given the same names, in the same order
+     */
+    public CompactStateCodec(String[] names)
+    {
+        _names = (String[]) names.clone();
+        for (int i = 0; i < _names.length; i++)
+            _nameIndex.put(_names[i], new Integer(i));
+    }
+
+    public byte[] encodeState(LocalState state) throws IOException
+    {
+        Encoder out = new Encoder();
+        out.writeVarInt(STATE);
+        out.writeString(state._id);
+        out.writeVarLong(state._creationTime);
+        out.writeSignedVarLong(state._lastAccessedTime - state._creationTime);
+        out.writeSignedVarInt(state._maxInactiveInterval);
+        out.writeSignedVarInt(state._actualMaxInactiveInterval);
+        Map attributes = state._attributes;
+        if (attributes == null)
+            out.writeVarInt(0);
+        else
+            out.writeMap(attributes);
+        return out.toByteArray();
+    }
+
+    public LocalState decodeState(byte[] bytes, ClassLoader loader)
+            throws IOException, ClassNotFoundException
+    {
+        Decoder in = new Decoder(bytes, loader);
+        if (in.readVarInt() != STATE)
+            throw new StreamCorruptedException("not a session state");
+        String id = in.readString();
+        long creationTime = in.readVarLong();
+        long lastAccessedTime = creationTime + in.readSignedVarLong();
+        int maxInactiveInterval = in.readSignedVarInt();
+        int actualMaxInactiveInterval = in.readSignedVarInt();
+        LocalState state = new LocalState(id, creationTime,
+                maxInactiveInterval, actualMaxInactiveInterval);
+        state.setLastAccessedTime(lastAccessedTime);
+        Map attributes = in.readMap();
+        if (attributes.size() > 0)
+            state.setAttributes(attributes);
+        return state;
+    }
+
+    public byte[] encodeMessage(Message message) throws IOException
+    {
+        Encoder out = new Encoder();
+        out.writeVarInt(MESSAGE);
+        out.writeValue(message.getId());
+        out.writeVarInt(message.getMethod());
+        Object[] args = message.getArgs();
+        out.writeVarInt(args.length);
+        for (int i = 0; i < args.length; i++)
+            out.writeArg(args[i]);
+        return out.toByteArray();
+    }
+
+    public Message decodeMessage(byte[] bytes, ClassLoader loader)
+            throws IOException, ClassNotFoundException
+    {
+        Decoder in = new Decoder(bytes, loader);
+        if (in.readVarInt() != MESSAGE)
+            throw new StreamCorruptedException("not a message");
+        String id = (String) in.readValue();
+        int method = in.readVarInt();
+        Object[] args = new Object[in.readCount()];
+        for (int i = 0; i < args.length; i++)
+            args[i] = in.readArg();
+        return new Message(id, method, args);
+    }
+
+    //----------------------------------------
+
+    protected class Encoder
+    {
+        private byte[] _buffer = new byte[256];
+
+        private int _length;
+
+        // names written inline so far - these follow the shared names
+        private Map _payloadNames;
+
+        // values that have to be serialized, in the order of their tags
+        private ByteArrayOutputStream _objectBytes;
+
+        private ObjectOutputStream _objects;
+
+        private void ensure(int n)
+        {
+            if (_length + n > _buffer.length)
+            {
+                byte[] buffer = new byte[Math.max(_buffer.length * 2, _length
+                        + n)];
+                System.arraycopy(_buffer, 0, buffer, 0, _length);
+                _buffer = buffer;
+            }
+        }
+
+        public void writeByte(int b)
+        {
+            ensure(1);
+            _buffer[_length++] = (byte) b;
+        }
+
+        public void writeBytes(byte[] bytes)
+        {
+            writeVarInt(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, _buffer, _length, bytes.length);
+            _length += bytes.length;
+        }
+
+        public void writeVarInt(int value)
+        {
+            ensure(5);
+            while ((value & ~0x7F) != 0)
+            {
+                _buffer[_length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            _buffer[_length++] = (byte) value;
+        }
+
+        public void writeVarLong(long value)
+        {
+            ensure(10);
+            while ((value & ~0x7FL) != 0)
+            {
+                _buffer[_length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            _buffer[_length++] = (byte) value;
+        }
+
+        // zig-zag, so that small negative numbers stay small
+        public void writeSignedVarInt(int value)
+        {
+            writeVarInt((value << 1) ^ (value >> 31));
+        }
+
+        public void writeSignedVarLong(long value)
+        {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        /**
+         * Writes the length shifted left by one, with the low bit set if
+         * the String is UTF-8 rather than ASCII.
+         */
+        public void writeString(String s) throws IOException
+        {
+            int n = s.length();
+            boolean ascii = true;
+            for (int i = 0; ascii && i < n; i++)
+                ascii = s.charAt(i) < 0x80;
+
+            if (ascii)
+            {
+                writeVarInt(n << 1);
+                ensure(n);
+                for (int i = 0; i < n; i++)
+                    _buffer[_length++] = (byte) s.charAt(i);
+            }
+            else
+            {
+                byte[] utf8 = s.getBytes("UTF-8");
+                writeVarInt((utf8.length << 1) | 1);
+                ensure(utf8.length);
+                System.arraycopy(utf8, 0, _buffer, _length, utf8.length);
+                _length += utf8.length;
+            }
+        }
+
+        /**
+         * Writes the index of the name plus one, or 0 and the name itself
+         * the first time that it is written.
+         */
+        public void writeName(String name) throws IOException
+        {
+            Integer index = (Integer) _nameIndex.get(name);
+            if (index == null && _payloadNames != null)
+                index = (Integer) _payloadNames.get(name);
+            if (index != null)
+                writeVarInt(index.intValue() + 1);
+            else
+            {
+                if (_payloadNames == null)
+                    _payloadNames = new HashMap();
+                _payloadNames.put(name, new Integer(_names.length
+                        + _payloadNames.size()));
+                writeVarInt(0);
+                writeString(name);
+            }
+        }
+
+        /**
+         * Writes an argument of a message - a HashMap with only String keys
+         * is an attribute map, and is written like the attributes of a
+         * state.
+         */
+        public void writeArg(Object arg) throws IOException
+        {
+            if (arg != null && arg.getClass() == HashMap.class
+                    && hasNameKeys((Map) arg))
+            {
+                writeByte(MAP);
+                writeMap((Map) arg);
+            }
+            else
+                writeValue(arg);
+        }
+
+        private boolean hasNameKeys(Map map)
+        {
+            for (Iterator i = map.keySet().iterator(); i.hasNext();)
+                if (!(i.next() instanceof String))
+                    return false;
+            return true;
+        }
+
+        public void writeMap(Map map) throws IOException
+        {
+            writeVarInt(map.size());
+            for (Iterator i = map.entrySet().iterator(); i.hasNext();)
+            {
+                Map.Entry entry = (Map.Entry) i.next();
+                writeName((String) entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        public void writeValue(Object value) throws IOException
+        {
+            if (value == null)
+                writeByte(NULL);
+            else if (value instanceof String)
+            {
+                writeByte(STRING);
+                writeString((String) value);
+            }
+            else if (value instanceof Integer)
+            {
+                writeByte(INTEGER);
+                writeSignedVarInt(((Integer) value).intValue());
+            }
+            else if (value instanceof Long)
+            {
+                writeByte(LONG);
+                writeSignedVarLong(((Long) value).longValue());
+            }
+            else if (value instanceof Boolean)
+                writeByte(((Boolean) value).booleanValue() ? TRUE : FALSE);
+            else if (value instanceof byte[])
+            {
+                writeByte(BYTES);
+                writeBytes((byte[]) value);
+            }
+            else if (value instanceof String[])
+            {
+                String[] strings = (String[]) value;
+                writeByte(STRINGS);
+                writeVarInt(strings.length);
+                for (int i = 0; i < strings.length; i++)
+                {
+                    if (strings[i] == null)
+                        writeByte(NULL);
+                    else
+                    {
+                        writeByte(STRING);
+                        writeName(strings[i]);
+                    }
+                }
+            }
+            else
+            {
+                writeByte(SERIALIZED);
+                if (_objects == null)
+                {
+                    _objectBytes = new ByteArrayOutputStream();
+                    _objects = new ObjectOutputStream(_objectBytes);
+                }
+                _objects.writeObject(value);
+            }
+        }
+
+        /**
+         * @return the length of the rest, the rest and then the serialized
+         *         values, if there are any
+         */
+        public byte[] toByteArray() throws IOException
+        {
+            int body = _length;
+            writeVarInt(body);
+            int header = _length - body;
+
+            byte[] objects = null;
+            if (_objects != null)
+            {
+                _objects.close();
+                objects = _objectBytes.toByteArray();
+            }
+
+            byte[] bytes = new byte[_length
+                    + (objects == null ? 0 : objects.length)];
+            System.arraycopy(_buffer, body, bytes, 0, header);
+            System.arraycopy(_buffer, 0, bytes, header, body);
+            if (objects != null)
+                System.arraycopy(objects, 0, bytes, _length, objects.length);
+            return bytes;
+        }
+    }
+
+    protected class Decoder
+    {
+        private final byte[] _buffer;
+
+        private final ClassLoader _loader;
+
+        private int _position;
+
+        // the end of the rest - the serialized values follow it
+        private int _end;
+
+        // names read inline so far - these follow the shared names
+        private List _payloadNames;
+
+        private ObjectInputStream _objects;
+
+        public Decoder(byte[] buffer, ClassLoader loader) throws IOException
+        {
+            _buffer = buffer;
+            _loader = loader;
+            _end = buffer.length;
+            int body = readVarInt();
+            if (body < 0 || body > _buffer.length - _position)
+                throw new StreamCorruptedException("truncated");
+            _end = _position + body;
+        }
+
+        public int readByte() throws IOException
+        {
+            if (_position >= _end)
+                throw new StreamCorruptedException("truncated");
+            return _buffer[_position++] & 0xFF;
+        }
+
+        /**
+         * Reads the number of items that follow, each of which must take at
+         * least a byte - so that a corrupt count cannot run us out of memory.
+         */
+        public int readCount() throws IOException
+        {
+            int n = readVarInt();
+            if (n < 0 || n > _end - _position)
+                throw new StreamCorruptedException("truncated");
+            return n;
+        }
+
+        public byte[] readBytes() throws IOException
+        {
+            int n = readCount();
+            byte[] bytes = new byte[n];
+            System.arraycopy(_buffer, _position, bytes, 0, n);
+            _position += n;
+            return bytes;
+        }
+
+        public int readVarInt() throws IOException
+        {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7)
+            {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new StreamCorruptedException("bad varint");
+        }
+
+        public long readVarLong() throws IOException
+        {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7)
+            {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new StreamCorruptedException("bad varlong");
+        }
+
+        public int readSignedVarInt() throws IOException
+        {
+            int value = readVarInt();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public long readSignedVarLong() throws IOException
+        {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        public String readString() throws IOException
+        {
+            int header = readVarInt();
+            int n = header >>> 1;
+            if (n > _end - _position)
+                throw new StreamCorruptedException("truncated");
+
+            String s;
+            if ((header & 1) == 0)
+            {
+                char[] chars = new char[n];
+                for (int i = 0; i < n; i++)
+                    chars[i] = (char) (_buffer[_position + i] & 0xFF);
+                s = new String(chars);
+            }
+            else
+                s = new String(_buffer, _position, n, "UTF-8");
+            _position += n;
+            return s;
+        }
+
+        public String readName() throws IOException
+        {
+            int index = readVarInt();
+            if (index == 0)
+            {
+                String name = readString();
+                if (_payloadNames == null)
+                    _payloadNames = new ArrayList();
+                _payloadNames.add(name);
+                return name;
+            }
+
+            index--;
+            if (index < _names.length)
+                return _names[index];
+            index -= _names.length;
+            if (_payloadNames == null || index >= _payloadNames.size())
+                throw new StreamCorruptedException("unknown name: " + index);
+            return (String) _payloadNames.get(index);
+        }
+
+        public Map readMap() throws IOException, ClassNotFoundException
+        {
+            int n = readCount();
+            Map map = new HashMap(Math.max(16, n * 2));
+            for (int i = 0; i < n; i++)
+            {
+                String name = readName();
+                map.put(name, readValue());
+            }
+            return map;
+        }
+
+        public Object readArg() throws IOException, ClassNotFoundException
+        {
+            if (_position < _end && _buffer[_position] == MAP)
+            {
+                _position++;
+                return readMap();
+            }
+            return readValue();
+        }
+
+        public Object readValue() throws IOException, ClassNotFoundException
+        {
+            int tag = readByte();
+            switch (tag)
+            {
+                case NULL:
+                    return null;
+                case STRING:
+                    return readString();
+                case INTEGER:
+                    return new Integer(readSignedVarInt());
+                case LONG:
+                    return new Long(readSignedVarLong());
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case BYTES:
+                    return readBytes();
+                case STRINGS:
+                {
+                    String[] strings = new String[readCount()];
+                    for (int i = 0; i < strings.length; i++)
+                    {
+                        int element = readByte();
+                        if (element == STRING)
+                            strings[i] = readName();
+                        else if (element != NULL)
+                            throw new StreamCorruptedException(
+                                    "unknown tag: " + element);
+                    }
+                    return strings;
+                }
+                case SERIALIZED:
+                    if (_objects == null)
+                        _objects = new SerializingStateCodec.LoaderObjectInputStream(
+                                new ByteArrayInputStream(_buffer, _end,
+                                        _buffer.length - _end), _loader);
+                    return _objects.readObject();
+                default:
+                    throw new StreamCorruptedException("unknown tag: " + tag);
+            }
+        }
+    }
+}
@@ -22,9 +22,54 @@
 
 package org.mortbay.j2ee.session;
 
+import javax.servlet.http.HttpServletRequest;
+
 public class DistributableIdGenerator extends GUIDGenerator
 {
-    public synchronized Object clone()
+    public static final char NODE_ID_SEPARATOR = '.';
+
+    protected String _nodeId;
+
+    protected String _prefix;
+
+    public String getNodeId()
+    {
+        return _nodeId;
+    }
+
+    /**
+     * @param nodeId the id of this node, to put in front of every session
+     *            id so that a load balancer can route requests back to the
+     *            node that created their session - or null for none
+     * @throws IllegalArgumentException if the node id contains
+     *             {@link #NODE_ID_SEPARATOR}, since {@link #getNodeId(String)}
+     *             could not find it back in the session ids
+     */
+    public void setNodeId(String nodeId)
+    {
+        if (nodeId != null && nodeId.indexOf(NODE_ID_SEPARATOR) >= 0)
+            throw new IllegalArgumentException("Node id " + nodeId
+                    + " must not contain '" + NODE_ID_SEPARATOR + "'");
+        _nodeId = nodeId;
+        _prefix = nodeId == null ? null : nodeId + NODE_ID_SEPARATOR;
+    }
+
+    /**
+     * @return the node id at the front of the session id, or null if it has
+     *         none
+     */
+    public static String getNodeId(String id)
+    {
+        int separator = id.indexOf(NODE_ID_SEPARATOR);
+        return separator < 0 ? null : id.substring(0, separator);
+    }
+
+    public String nextId(HttpServletRequest request)
+    {
+        return nextId(_prefix);
+    }
+
+    public Object clone()
     {
         DistributableIdGenerator dig = (DistributableIdGenerator) super.clone();
         return dig;
@@ -0,0 +1,275 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+//----------------------------------------
+
+/**
+ * An index of session ids by the time at which they expire, so that a
+ * scavenger need only look at the sessions that are due instead of at all of
+ * them.
+ * <p>
+ * Ids are kept in buckets of <code>resolution</code> milliseconds. Touching
+ * a session only records its new last accessed time - it does not move it
+ * between buckets, so it neither locks nor allocates. As touching can only
+ * put an expiry back, the session is moved to its later bucket when the
+ * scavenger comes across it in the earlier one.
+ * <p>
+ * The ids returned by {@link #due(long, int)} are only candidates - the
+ * caller must still ask the session itself whether it is valid, and either
+ * {@link #remove(String)} or {@link #schedule(String, long, long)} it again -
+ * or {@link #reschedule(String)} it if it could not find out, so that the id
+ * is not lost.
+ */
+public class ExpiryIndex
+{
+    public static final long DEFAULT_RESOLUTION = 1000; // 1 sec
+
+    static class Entry
+    {
+        final String _id;
+
+        volatile long _lastAccessedTime;
+
+        volatile long _maxInactive; // millisecs
+
+        long _bucket = Long.MIN_VALUE; // guarded by _buckets
+
+        boolean _removed; // guarded by _buckets
+
+        Entry(String id)
+        {
+            _id = id;
+        }
+
+        long expiry()
+        {
+            return _lastAccessedTime + Math.max(_maxInactive, 0);
+        }
+    }
+
+    private final ConcurrentHashMap _entries = new ConcurrentHashMap(1024);
+
+    // bucket -> List of Entry. An Entry may be referenced by buckets other
+    // than its own, after it has been moved - such references are skipped.
+    private final TreeMap _buckets = new TreeMap();
+
+    private final long _resolution;
+
+    // the last bucket handed out by due() - nothing is scheduled at or
+    // before it, so a scavenge always comes to an end
+    private long _floor = Long.MIN_VALUE;
+
+    // the last bucket that due() was asked for - ids that could not be dealt
+    // with are filed after it, so they wait for the next scavenge
+    private long _horizon = Long.MIN_VALUE;
+
+    public ExpiryIndex()
+    {
+        this(DEFAULT_RESOLUTION);
+    }
+
+    /**
+     * @param resolution the width of a bucket in millisecs
+     */
+    public ExpiryIndex(long resolution)
+    {
+        _resolution = Math.max(1, resolution);
+    }
+
+    /**
+     * Adds a session or moves it to the bucket of the given times.
+     *
+     * @param maxInactive in millisecs, including any extra time the caller
+     *            wants to wait - the session is due straight after it was
+     *            last accessed if this is not positive
+     */
+    public void schedule(String id, long lastAccessedTime, long maxInactive)
+    {
+        Entry entry = (Entry) _entries.get(id);
+        if (entry == null)
+        {
+            Entry fresh = new Entry(id);
+            entry = (Entry) _entries.putIfAbsent(id, fresh);
+            if (entry == null)
+                entry = fresh;
+        }
+        entry._lastAccessedTime = lastAccessedTime;
+        entry._maxInactive = maxInactive;
+
+        synchronized (_buckets)
+        {
+            if (_entries.get(id) == entry)
+            {
+                entry._removed = false;
+                file(entry);
+            }
+        }
+    }
+
+    /**
+     * Records a new last accessed time. This never locks - the session is
+     * moved to its new bucket lazily.
+     */
+    public void touch(String id, long lastAccessedTime)
+    {
+        Entry entry = (Entry) _entries.get(id);
+        if (entry != null && lastAccessedTime > entry._lastAccessedTime)
+            entry._lastAccessedTime = lastAccessedTime;
+    }
+
+    /**
+     * Records a new max inactive interval. As this may bring the expiry of
+     * the session forward, it is moved to its new bucket straight away.
+     */
+    public void setMaxInactive(String id, long maxInactive)
+    {
+        Entry entry = (Entry) _entries.get(id);
+        if (entry == null)
+            return;
+
+        entry._maxInactive = maxInactive;
+        synchronized (_buckets)
+        {
+            if (!entry._removed)
+                file(entry);
+        }
+    }
+
+    /**
+     * Files an id returned by {@link #due(long, int)} again, at the times it
+     * already records but not before the next scavenge. It is a no-op if the
+     * id has been removed or filed again since.
+     */
+    public void reschedule(String id)
+    {
+        Entry entry = (Entry) _entries.get(id);
+        if (entry == null)
+            return;
+
+        synchronized (_buckets)
+        {
+            if (!entry._removed && entry._bucket == Long.MIN_VALUE)
+                file(entry, _horizon + 1);
+        }
+    }
+
+    public void remove(String id)
+    {
+        Entry entry = (Entry) _entries.remove(id);
+        if (entry != null)
+        {
+            synchronized (_buckets)
+            {
+                entry._removed = true;
+            }
+        }
+    }
+
+    /**
+     * Takes at most <code>max</code> ids, whose recorded expiry is not after
+     * <code>now</code>, out of the index. Ids whose sessions have been
+     * touched since they were filed are moved to their later bucket instead.
+     *
+     * @return the ids, possibly none
+     */
+    public List due(long now, int max)
+    {
+        List due = new ArrayList();
+        long last = now / _resolution;
+
+        synchronized (_buckets)
+        {
+            _horizon = Math.max(_horizon, last);
+            while (due.size() < max && !_buckets.isEmpty())
+            {
+                Long key = (Long) _buckets.firstKey();
+                long bucket = key.longValue();
+                if (bucket > last)
+                    break;
+                _floor = Math.max(_floor, bucket);
+
+                List entries = (List) _buckets.get(key);
+                // take from the end, so a bucket can be left half done
+                while (due.size() < max && !entries.isEmpty())
+                {
+                    Entry entry = (Entry) entries.remove(entries.size() - 1);
+                    if (entry._removed || entry._bucket != bucket)
+                        continue;
+
+                    if (bucketOf(entry.expiry()) > last)
+                        file(entry);
+                    else
+                    {
+                        // out of the buckets until the caller decides
+                        entry._bucket = Long.MIN_VALUE;
+                        due.add(entry._id);
+                    }
+                }
+                if (entries.isEmpty())
+                    _buckets.remove(key);
+            }
+        }
+        return due;
+    }
+
+    public int size()
+    {
+        return _entries.size();
+    }
+
+    public void clear()
+    {
+        synchronized (_buckets)
+        {
+            _entries.clear();
+            _buckets.clear();
+        }
+    }
+
+    private long bucketOf(long time)
+    {
+        // round up, so that nothing is due before its time
+        long bucket = time / _resolution;
+        return (time % _resolution > 0) ? bucket + 1 : bucket;
+    }
+
+    private void file(Entry entry)
+    {
+        file(entry, _floor + 1);
+    }
+
+    private void file(Entry entry, long earliest)
+    {
+        long bucket = Math.max(bucketOf(entry.expiry()), earliest);
+        if (bucket == entry._bucket)
+            return;
+
+        entry._bucket = bucket;
+        Long key = new Long(bucket);
+        List entries = (List) _buckets.get(key);
+        if (entries == null)
+        {
+            entries = new ArrayList();
+            _buckets.put(key, entries);
+        }
+        entries.add(entry);
+    }
+}
@@ -19,10 +19,12 @@ package org.mortbay.j2ee.session;
 // org.jboss.ha.httpsession.server.ClusteredHTTPSessionService
 // written by : sacha.labourey@cogito-info.ch
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -41,37 +43,115 @@ public class GUIDGenerator implements IdGenerator
 
     protected final static String SESSION_ID_RANDOM_ALGORITHM_ALT = "IBMSecureRandom";
 
-    protected MessageDigest _digest = null;
+    protected final static char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+-*"
+            .toCharArray();
 
-    protected Random _random = null;
+    /**
+     * A random-number generator and a hash-generator, with buffers for
+     * their output. They are used by one thread at a time.
+     */
+    protected static class Stripe
+    {
+        final Random _random;
+
+        final MessageDigest _digest;
+
+        final byte[] _bytes = new byte[SESSION_ID_BYTES];
+
+        final byte[] _hash;
+
+        Stripe(Random random, MessageDigest digest)
+        {
+            _random = random;
+            _digest = digest;
+            _hash = new byte[digest.getDigestLength()];
+        }
+    }
+
+    // created lazily - seeding a SecureRandom can take a while
+    protected AtomicReferenceArray _stripes;
+
+    public GUIDGenerator()
+    {
+        this(2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes the number of generators shared by all threads, rounded
+     *            up to a power of 2
+     */
+    public GUIDGenerator(int stripes)
+    {
+        int n = 1;
+        while (n < stripes)
+            n <<= 1;
+        _stripes = new AtomicReferenceArray(n);
+    }
 
     /**
      * Generate a session-id that is not guessable
      * 
      * @return generated session-id
      */
-    public synchronized String nextId(HttpServletRequest request)
+    public String nextId(HttpServletRequest request)
     {
-        if (_digest == null)
-        {
-            _digest = getDigest();
-        }
+        return nextId((String) null);
+    }
 
-        if (_random == null)
-        {
-            _random = getRandom();
-        }
+    /**
+     * Generate a session-id that is not guessable, after a prefix
+     * 
+     * @param prefix the prefix, or null
+     * @return generated session-id
+     */
+    protected String nextId(String prefix)
+    {
+        // each thread keeps to its own stripe, so it rarely has to wait
+        int index = (int) Thread.currentThread().getId()
+                & (_stripes.length() - 1);
+        Stripe stripe = getStripe(index);
 
-        byte[] bytes = new byte[SESSION_ID_BYTES];
+        int offset = prefix == null ? 0 : prefix.length();
+        char[] out = new char[offset + ((stripe._hash.length + 2) / 3) * 4];
+        if (prefix != null)
+            prefix.getChars(0, offset, out, 0);
 
-        // get random bytes
-        _random.nextBytes(bytes);
+        synchronized (stripe)
+        {
+            // get random bytes
+            stripe._random.nextBytes(stripe._bytes);
 
-        // Hash the random bytes
-        bytes = _digest.digest(bytes);
+            // Hash the random bytes
+            stripe._digest.update(stripe._bytes);
+            try
+            {
+                stripe._digest.digest(stripe._hash, 0, stripe._hash.length);
+            }
+            catch (DigestException e)
+            {
+                throw new IllegalStateException(e.toString());
+            }
 
-        // Render the result as a String of hexadecimal digits
-        return encode(bytes);
+            // Render the result as a String
+            encode(stripe._hash, out, offset);
+        }
+        return new String(out);
+    }
+
+    protected Stripe getStripe(int index)
+    {
+        Stripe stripe = (Stripe) _stripes.get(index);
+        if (stripe == null)
+        {
+            Random random = getRandom();
+            // stripes seeded in the same millisecond must not repeat each
+            // other - this supplements the seed of a SecureRandom
+            random.setSeed(System.nanoTime() ^ ((long) index << 48));
+            stripe = new Stripe(random, getDigest());
+            if (!_stripes.compareAndSet(index, null, stripe))
+                stripe = (Stripe) _stripes.get(index);
+        }
+        return stripe;
     }
 
     /**
@@ -85,14 +165,24 @@ public class GUIDGenerator implements IdGenerator
     protected String encode(byte[] data)
     {
         char[] out = new char[((data.length + 2) / 3) * 4];
-        char[] alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+-*"
-                .toCharArray();
+        encode(data, out, 0);
+        return new String(out);
+    }
 
+    /**
+     * Encode the bytes straight into a char[]
+     * 
+     * @param data The bytes you want to encode
+     * @param out where to write ((data.length + 2) / 3) * 4 chars
+     * @param offset where to start writing them
+     */
+    protected void encode(byte[] data, char[] out, int offset)
+    {
         //
         // 3 bytes encode to 4 chars. Output is always an even
         // multiple of 4 characters.
         //
-        for (int i = 0, index = 0; i < data.length; i += 3, index += 4)
+        for (int i = 0, index = offset; i < data.length; i += 3, index += 4)
         {
             boolean quad = false;
             boolean trip = false;
@@ -110,15 +200,14 @@ public class GUIDGenerator implements IdGenerator
                 val |= (0xFF & (int) data[i + 2]);
                 quad = true;
             }
-            out[index + 3] = alphabet[(quad ? (val & 0x3F) : 64)];
+            out[index + 3] = ALPHABET[(quad ? (val & 0x3F) : 64)];
             val >>= 6;
-            out[index + 2] = alphabet[(trip ? (val & 0x3F) : 64)];
+            out[index + 2] = ALPHABET[(trip ? (val & 0x3F) : 64)];
             val >>= 6;
-            out[index + 1] = alphabet[val & 0x3F];
+            out[index + 1] = ALPHABET[val & 0x3F];
             val >>= 6;
-            out[index + 0] = alphabet[val & 0x3F];
+            out[index + 0] = ALPHABET[val & 0x3F];
         }
-        return new String(out);
     }
 
     /**
@@ -126,7 +215,7 @@ public class GUIDGenerator implements IdGenerator
      * 
      * @return a random-number generator
      */
-    protected synchronized Random getRandom()
+    protected Random getRandom()
     {
         long seed;
         Random random = null;
@@ -170,7 +259,7 @@ public class GUIDGenerator implements IdGenerator
      get a MessageDigest hash-generator
      @return a hash generator
      */
-    protected synchronized MessageDigest getDigest()
+    protected MessageDigest getDigest()
     {
         MessageDigest digest = null;
 
@@ -189,11 +278,14 @@ public class GUIDGenerator implements IdGenerator
         return digest;
     }
 
-    public synchronized Object clone()
+    public Object clone()
     {
         try
         {
-            return super.clone();
+            // the clone gets its own stripes
+            GUIDGenerator clone = (GUIDGenerator) super.clone();
+            clone._stripes = new AtomicReferenceArray(_stripes.length());
+            return clone;
         }
         catch (CloneNotSupportedException e)
         {
@@ -186,10 +186,16 @@ public class LocalState implements State, java.io.Serializable
         }
     }
 
-    protected long remainingTime()
+    // the max inactive interval in millisecs, after any override
+    protected long maxInactiveTime()
     {
         long maxInactiveInterval = _maxInactiveInterval < 1 ? _actualMaxInactiveInterval : _maxInactiveInterval;
-        return (_lastAccessedTime + (maxInactiveInterval * 1000L))
+        return maxInactiveInterval * 1000L;
+    }
+
+    protected long remainingTime()
+    {
+        return (_lastAccessedTime + maxInactiveTime())
                 - System.currentTimeMillis();
     }
 
@@ -15,9 +15,6 @@
 
 package org.mortbay.j2ee.session;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import javax.servlet.http.HttpServletRequest;
 
 import org.jboss.logging.Logger;
@@ -28,7 +25,7 @@ public class LocalStore implements Store
 {
     protected static final Logger _log = Logger.getLogger(LocalStore.class);
 
-    Map _sessions = new HashMap();
+    final SessionRegistry _sessions = new SessionRegistry();
 
     protected Manager _manager;
 
@@ -64,20 +61,14 @@ public class LocalStore implements Store
 
     public State loadState(String id)
     {
-        synchronized (_sessions)
-        {
-            return (State) _sessions.get(id);
-        }
+        return (State) _sessions.get(id);
     }
 
     public void storeState(State state)
     {
         try
         {
-            synchronized (_sessions)
-            {
-                _sessions.put(state.getId(), state);
-            }
+            _sessions.put(state.getId(), state);
         }
         catch (Exception e)
         {
@@ -89,10 +80,7 @@ public class LocalStore implements Store
     {
         try
         {
-            synchronized (_sessions)
-            {
-                _sessions.remove(state.getId());
-            }
+            _sessions.remove(state.getId());
         }
         catch (Exception e)
         {
@@ -19,12 +19,9 @@ package org.mortbay.j2ee.session;
 
 import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.EventListener;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -121,6 +118,22 @@ public class Manager implements org.eclipse.jetty.server.SessionManager
     {
         return _scavengerPeriod;
     }
+
+    protected int _scavengerSliceSize = 1000;
+
+    /**
+     * @param sessions the most sessions a scavenge looks at before it gives
+     *            other threads a go
+     */
+    public void setScavengerSliceSize(int sessions)
+    {
+        _scavengerSliceSize = sessions;
+    }
+
+    public int getScavengerSliceSize()
+    {
+        return _scavengerSliceSize;
+    }
     
     public void setCheckingRemoteSessionIdEncoding(boolean checking)
     {
@@ -219,7 +232,31 @@ public class Manager implements org.eclipse.jetty.server.SessionManager
 
     // ----------------------------------------
 
-    final Map _sessions = new HashMap();
+    // id:container - read without locking by every request that uses a session
+    final SessionRegistry _sessions = new SessionRegistry();
+
+    // id:expiry - so that the scavenger need only look at the sessions that
+    // are due, instead of at all of them
+    final ExpiryIndex _expiries = new ExpiryIndex();
+
+    // the max inactive interval of a session in millisecs, after the Store's
+    // override
+    protected long maxInactiveTime(int maxInactiveInterval)
+    {
+        if (maxInactiveInterval < 1)
+            maxInactiveInterval = _store.getActualMaxInactiveInterval();
+        return maxInactiveInterval * 1000L;
+    }
+
+    void touched(String id, long time)
+    {
+        _expiries.touch(id, time);
+    }
+
+    void maxInactiveIntervalChanged(String id, int maxInactiveInterval)
+    {
+        _expiries.setMaxInactive(id, maxInactiveTime(maxInactiveInterval));
+    }
 
     public String getContextPath()
     {
@@ -325,14 +362,12 @@ public class Manager implements org.eclipse.jetty.server.SessionManager
             // I guess we will have to ask the store for a list of sessions
             // to migrate... - TODO
 
-            synchronized (_sessions)
-            {
-                List copy = new ArrayList(_sessions.values());
-                for (Iterator i = copy.iterator(); i.hasNext();)
-                    ((StateAdaptor) i.next()).migrate();
+            List copy = _sessions.snapshot();
+            for (Iterator i = copy.iterator(); i.hasNext();)
+                ((StateAdaptor) i.next()).migrate();
 
-                _sessions.clear();
-            }
+            _sessions.clear();
+            _expiries.clear();
 
             LOG.debug("stopping local scavenger thread...");
             _scavenger.cancel();
@@ -507,10 +542,8 @@ public class Manager implements org.eclipse.jetty.server.SessionManager
         if (LOG.isDebugEnabled())
             LOG.debug("remembering session - " + id);
 
-        synchronized (_sessions)
-        {
-            _sessions.put(id, session);
-        }
+        _sessions.put(id, session);
+        _expiries.schedule(id, currentSecond(), maxInactiveTime(getMaxInactiveInterval()));
 
         notifySessionCreated(session);
 
@@ -527,12 +560,8 @@ public class Manager implements org.eclipse.jetty.server.SessionManager
         String id = container.getId();
         if (LOG.isDebugEnabled())
             LOG.debug("forgetting session - " + id);
-        Object tmp;
-        synchronized (_sessions)
-        {
-            tmp = _sessions.remove(id);
-        }
-        container = (HttpSession) tmp;
+        container = (HttpSession) _sessions.remove(id);
+        _expiries.remove(id);
         if (LOG.isDebugEnabled())
             LOG.debug("forgetting session - " + container);
 
@@ -628,29 +657,23 @@ public class Manager implements org.eclipse.jetty.server.SessionManager
             // if so
             if (state != null)
             {
+                // do we have an existing container ?
+                if (!create)
+                    return (HttpSession) _sessions.get(id);
 
-                // this looks slow - but to be 100% safe we need to make sure
-                // that no-one can enter another container for the same id,
+                // if not, make a new one - the registry makes sure that
+                // no-one can enter another container for the same id,
                 // whilst we are thinking about it...
-
-                // is there a container already available ?
-                synchronized (_sessions)
+                final State found = state;
+                container = (HttpSession) _sessions.getOrCreate(id, new SessionRegistry.Factory()
                 {
-                    // do we have an existing container ?
-                    container = (HttpSession) _sessions.get(id);
-
-                    // if not...
-                    if (container == null && create)
+                    public Object create(String id) throws Exception
                     {
-                        // make a new one...
-                        container = newContainer(id, state);// we could lower
-                        // contention by
-                        // preconstructing
-                        // containers... -
-                        // TODO
-                        _sessions.put(id, container);
+                        HttpSession created = newContainer(id, found);
+                        _expiries.schedule(id, found.getLastAccessedTime(), maxInactiveTime(found.getMaxInactiveInterval()));
+                        return created;
                     }
-                }
+                });
             }
         }
         catch (Exception ignore)
@@ -765,42 +788,43 @@ public class Manager implements org.eclipse.jetty.server.SessionManager
             // Let them scavenge locally instead.
             AbstractReplicatedStore.setReplicating(true);
             //
-            // take a quick copy...
-            Collection copy;
-            synchronized (_sessions)
-            {
-                copy = new ArrayList(_sessions.values());
-            }
-            if (LOG.isDebugEnabled())
-                LOG.debug(copy.size() + " local sessions");
-            //
-            // iterate over it at our leisure...
+            // only look at the sessions that the index thinks are due, a
+            // slice at a time...
             int n = 0;
-            for (Iterator i = copy.iterator(); i.hasNext();)
+            int checked = 0;
+            List due;
+            while (!(due = _expiries.due(currentSecond(), _scavengerSliceSize)).isEmpty())
             {
-                // all we have to do is check if a session isValid() to force it
-                // to examine itself and invalidate() itself if necessary... -
-                // because it has a local cache of the necessary details, it
-                // will only go to the Stored State if it really thinks that it
-                // is invalid...
-                StateAdaptor sa = null;
+                int i = 0;
                 try
                 {
-                    sa = (StateAdaptor) i.next();
-                    // the ValidationInterceptor should pick this up and throw an IllegalStateException
-                    long lat = sa.getLastAccessedTime();
+                    for (; i < due.size(); i++)
+                    {
+                        String id = (String) due.get(i);
+                        try
+                        {
+                            if (scavenge(id))
+                                ++n;
+                        }
+                        catch (RuntimeException e)
+                        {
+                            LOG.warn("could not scavenge local session " + id, e);
+                            _expiries.reschedule(id);
+                        }
+                    }
                 }
-                catch (IllegalStateException ignore)
+                finally
                 {
-                    if (LOG.isDebugEnabled())
-                        LOG.debug("scavenging local session " + sa.getId());
-                    destroySession(sa);
-                    i.remove();
-                    ++n;
+                    // the ids of the slice are out of the index until they
+                    // are dealt with - do not lose the rest of it
+                    for (; i < due.size(); i++)
+                        _expiries.reschedule((String) due.get(i));
                 }
+                checked += due.size();
+                Thread.yield();
             }
             if (LOG.isDebugEnabled())
-                LOG.debug("scavenged " + n + " local sessions");
+                LOG.debug("scavenged " + n + " of " + checked + " due local sessions");
         }
         finally
         {
@@ -809,6 +833,40 @@ public class Manager implements org.eclipse.jetty.server.SessionManager
         LOG.debug("...finished local scavenging");
     }
 
+    /**
+     * Destroys a due session if it has expired, or files it again.
+     *
+     * @return true if the session was destroyed
+     */
+    private boolean scavenge(String id)
+    {
+        StateAdaptor sa = (StateAdaptor) _sessions.get(id);
+        if (sa == null)
+        {
+            _expiries.remove(id);
+            return false;
+        }
+
+        // all we have to do is check if a session isValid() to
+        // force it to examine itself and invalidate() itself if
+        // necessary...
+        try
+        {
+            // the ValidationInterceptor should pick this up and throw an IllegalStateException
+            long lat = sa.getLastAccessedTime();
+            // still valid - it must have been touched since it was indexed
+            _expiries.schedule(id, lat, maxInactiveTime(sa.getMaxInactiveInterval()));
+            return false;
+        }
+        catch (IllegalStateException ignore)
+        {
+            if (LOG.isDebugEnabled())
+                LOG.debug("scavenging local session " + id);
+            destroySession(sa);
+            return true;
+        }
+    }
+
     /** 
      * @return True if cross context session IDs are first considered for new
      * session IDs
@@ -907,14 +965,20 @@ public class Manager implements org.eclipse.jetty.server.SessionManager
 
     public HttpCookie access(HttpSession arg0,boolean secure)
     {
+        // replicate the changes made by this request in one go, when it is
+        // complete - only here, since complete() is only called for a
+        // session that was accessed, and a batch must not be left behind
+        // on a pooled thread
+        if (_store instanceof AbstractReplicatedStore)
+            ((AbstractReplicatedStore) _store).startBatch();
         // TODO Auto-generated method stub
         return null;
     }
 
     public void complete(HttpSession arg0)
     {
-        // TODO Auto-generated method stub
-        
+        if (_store instanceof AbstractReplicatedStore)
+            ((AbstractReplicatedStore) _store).flushBatch();
     }
 
     public boolean getHttpOnly()
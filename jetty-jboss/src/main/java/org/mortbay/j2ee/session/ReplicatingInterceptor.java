@@ -0,0 +1,118 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+//----------------------------------------
+
+import java.rmi.RemoteException;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+
+//----------------------------------------
+/**
+ * Passes the changes made to a session by local users on to an
+ * AbstractReplicatedStore, which publishes them to the other members of the
+ * cluster - and subscribes the session, so that the changes that they
+ * publish are applied to it.
+ * <p>
+ * Changes that are themselves being replicated are not passed on again.
+ */
+public class ReplicatingInterceptor extends StateInterceptor
+{
+    protected static final Logger _log = Logger
+            .getLogger(ReplicatingInterceptor.class);
+
+    protected AbstractReplicatedStore getStore()
+    {
+        Store store = getManager().getStore();
+        return (store instanceof AbstractReplicatedStore) ? (AbstractReplicatedStore) store
+                : null;
+    }
+
+    protected boolean isReplicating()
+    {
+        return AbstractReplicatedStore.getReplicating() || getStore() == null;
+    }
+
+    public void start()
+    {
+        AbstractReplicatedStore store = getStore();
+        if (store == null)
+            return;
+        try
+        {
+            store.subscribe(getId(), this);
+        }
+        catch (RemoteException e)
+        {
+            _log.error("could not subscribe session", e);
+        }
+    }
+
+    public void stop()
+    {
+        AbstractReplicatedStore store = getStore();
+        if (store == null)
+            return;
+        try
+        {
+            store.unsubscribe(getId());
+        }
+        catch (RemoteException e)
+        {
+            _log.error("could not unsubscribe session", e);
+        }
+    }
+
+    public void setLastAccessedTime(long time) throws RemoteException
+    {
+        super.setLastAccessedTime(time);
+        if (!isReplicating())
+            getStore().replicateLastAccessedTime(getId(), time);
+    }
+
+    public void setAttributes(Map attributes) throws RemoteException
+    {
+        super.setAttributes(attributes);
+        if (!isReplicating())
+            getStore().replicateAttributes(getId(), attributes);
+    }
+
+    public void setMaxInactiveInterval(int interval) throws RemoteException
+    {
+        super.setMaxInactiveInterval(interval);
+        if (!isReplicating())
+            getStore().replicateMaxInactiveInterval(getId(), interval);
+    }
+
+    public Object setAttribute(String name, Object value, boolean returnValue)
+            throws RemoteException
+    {
+        Object tmp = super.setAttribute(name, value, returnValue);
+        if (!isReplicating())
+            getStore().replicateAttribute(getId(), name, value);
+        return tmp;
+    }
+
+    public Object removeAttribute(String name, boolean returnValue)
+            throws RemoteException
+    {
+        Object tmp = super.removeAttribute(name, returnValue);
+        if (!isReplicating())
+            getStore().replicateAttributeRemoval(getId(), name);
+        return tmp;
+    }
+}
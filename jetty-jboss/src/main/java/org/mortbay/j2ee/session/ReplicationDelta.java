@@ -0,0 +1,172 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//----------------------------------------
+
+/**
+ * The changes made to sessions by one request, coalesced so that they can
+ * be published as one message per session when the request is over.
+ * <p>
+ * The last value of an attribute wins, whether it was set or removed, and
+ * all touches are merged into a single touchSessions() with the latest
+ * time.
+ */
+class ReplicationDelta
+{
+    private static final Object REMOVED = new Object();
+
+    static class SessionDelta
+    {
+        final String _id;
+
+        Integer _maxInactiveInterval; // null if unchanged
+
+        // name:value, or name:REMOVED - in order of first change
+        final Map _attributes = new LinkedHashMap();
+
+        SessionDelta(String id)
+        {
+            _id = id;
+        }
+
+        boolean isEmpty()
+        {
+            return _maxInactiveInterval == null && _attributes.isEmpty();
+        }
+
+        /**
+         * @return the arguments of an APPLY_DELTA message: the new max
+         *         inactive interval or null, a Map of the attributes set and
+         *         a String[] of the attributes removed
+         */
+        Object[] getArgs()
+        {
+            Map set = new HashMap();
+            List removed = new ArrayList();
+            for (Iterator i = _attributes.entrySet().iterator(); i.hasNext();)
+            {
+                Map.Entry entry = (Map.Entry) i.next();
+                if (entry.getValue() == REMOVED)
+                    removed.add(entry.getKey());
+                else
+                    set.put(entry.getKey(), entry.getValue());
+            }
+            return new Object[] { _maxInactiveInterval, set,
+                    removed.toArray(new String[removed.size()]) };
+        }
+    }
+
+    // id:SessionDelta - in order of first change
+    private final Map _sessions = new LinkedHashMap();
+
+    private final List _touched = new ArrayList();
+
+    private long _touchTime = -1;
+
+    private SessionDelta session(String id)
+    {
+        SessionDelta delta = (SessionDelta) _sessions.get(id);
+        if (delta == null)
+        {
+            delta = new SessionDelta(id);
+            _sessions.put(id, delta);
+        }
+        return delta;
+    }
+
+    void setLastAccessedTime(String id, long time)
+    {
+        if (!_touched.contains(id)) // rarely more than one
+            _touched.add(id);
+        _touchTime = Math.max(_touchTime, time);
+    }
+
+    void setMaxInactiveInterval(String id, int interval)
+    {
+        session(id)._maxInactiveInterval = new Integer(interval);
+    }
+
+    void setAttribute(String id, String name, Object value)
+    {
+        session(id)._attributes.put(name, value);
+    }
+
+    void removeAttribute(String id, String name)
+    {
+        session(id)._attributes.put(name, REMOVED);
+    }
+
+    /**
+     * Forgets the changes to a session - there is no point in publishing
+     * them once it has been destroyed.
+     */
+    void discard(String id)
+    {
+        _sessions.remove(id);
+        _touched.remove(id);
+    }
+
+    /**
+     * Forgets the attribute changes to a session - they have been
+     * superseded by all of its attributes.
+     */
+    void discardAttributes(String id)
+    {
+        SessionDelta delta = (SessionDelta) _sessions.get(id);
+        if (delta != null)
+            delta._attributes.clear();
+    }
+
+    boolean isEmpty()
+    {
+        return _sessions.isEmpty() && _touched.isEmpty();
+    }
+
+    /**
+     * @return the SessionDeltas with changes to publish
+     */
+    List getSessions()
+    {
+        List sessions = new ArrayList(_sessions.size());
+        for (Iterator i = _sessions.values().iterator(); i.hasNext();)
+        {
+            SessionDelta delta = (SessionDelta) i.next();
+            if (!delta.isEmpty())
+                sessions.add(delta);
+        }
+        return sessions;
+    }
+
+    /**
+     * @return the ids of the sessions touched
+     */
+    String[] getTouched()
+    {
+        return (String[]) _touched.toArray(new String[_touched.size()]);
+    }
+
+    long getTouchTime()
+    {
+        return _touchTime;
+    }
+}
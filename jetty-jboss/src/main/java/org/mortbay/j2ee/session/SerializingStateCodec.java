@@ -0,0 +1,115 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+
+//----------------------------------------
+
+/**
+ * The original StateCodec - standard Java serialization of the LocalState,
+ * or of the id, method id and argument array of a Message.
+ */
+public class SerializingStateCodec implements StateCodec
+{
+    /**
+     * An ObjectInputStream that finds classes with the ClassLoader of the
+     * webapp, rather than with its own.
+     */
+    public static class LoaderObjectInputStream extends ObjectInputStream
+    {
+        private final ClassLoader _loader;
+
+        public LoaderObjectInputStream(InputStream in, ClassLoader loader)
+                throws IOException
+        {
+            super(in);
+            _loader = loader;
+        }
+
+        protected Class resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException
+        {
+            if (_loader != null)
+            {
+                try
+                {
+                    return Class.forName(desc.getName(), false, _loader);
+                }
+                catch (ClassNotFoundException e)
+                {
+                    // fall through to primitives and system classes
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
+
+    public byte[] encodeState(LocalState state) throws IOException
+    {
+        return serialize(state);
+    }
+
+    public LocalState decodeState(byte[] bytes, ClassLoader loader)
+            throws IOException, ClassNotFoundException
+    {
+        return (LocalState) deserialize(bytes, loader);
+    }
+
+    public byte[] encodeMessage(Message message) throws IOException
+    {
+        Object[] tuple = { message.getId(), new Integer(message.getMethod()),
+                message.getArgs() };
+        return serialize(tuple);
+    }
+
+    public Message decodeMessage(byte[] bytes, ClassLoader loader)
+            throws IOException, ClassNotFoundException
+    {
+        Object[] tuple = (Object[]) deserialize(bytes, loader);
+        return new Message((String) tuple[0], ((Integer) tuple[1]).intValue(),
+                (Object[]) tuple[2]);
+    }
+
+    static byte[] serialize(Object object) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(object);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Object deserialize(byte[] bytes, ClassLoader loader)
+            throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream in = new LoaderObjectInputStream(
+                new ByteArrayInputStream(bytes), loader);
+        try
+        {
+            return in.readObject();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+//----------------------------------------
+
+/**
+ * A map of session id to session object (container, State or subscriber)
+ * that can be read and written concurrently.
+ * <p>
+ * Lookups never lock. Creating the object of an id with
+ * {@link #getOrCreate(String, Factory)} locks one of a fixed set of stripes,
+ * chosen by the id, so that at most one object is ever created per id while
+ * creations for other ids go ahead in parallel.
+ */
+public class SessionRegistry
+{
+    public interface Factory
+    {
+        Object create(String id) throws Exception;
+    }
+
+    public static final int DEFAULT_STRIPES = 64;
+
+    private final ConcurrentHashMap _objects;
+
+    private final Object[] _stripes;
+
+    public SessionRegistry()
+    {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes the number of locks used to create objects, rounded up
+     *            to a power of 2
+     */
+    public SessionRegistry(int stripes)
+    {
+        int n = 1;
+        while (n < stripes)
+            n <<= 1;
+        _stripes = new Object[n];
+        for (int i = 0; i < n; i++)
+            _stripes[i] = new Object();
+        _objects = new ConcurrentHashMap(1024, 0.75f, n);
+    }
+
+    public Object get(String id)
+    {
+        return _objects.get(id);
+    }
+
+    public Object put(String id, Object object)
+    {
+        return _objects.put(id, object);
+    }
+
+    public Object remove(String id)
+    {
+        return _objects.remove(id);
+    }
+
+    /**
+     * Returns the object of the id, creating it with the factory if there is
+     * none. The factory is called at most once at a time per id.
+     *
+     * @return the object of the id, or null if the factory returned null
+     */
+    public Object getOrCreate(String id, Factory factory) throws Exception
+    {
+        Object object = _objects.get(id);
+        if (object != null)
+            return object;
+
+        synchronized (stripe(id))
+        {
+            object = _objects.get(id);
+            if (object == null)
+            {
+                object = factory.create(id);
+                if (object != null)
+                    _objects.put(id, object);
+            }
+        }
+        return object;
+    }
+
+    public int size()
+    {
+        return _objects.size();
+    }
+
+    /**
+     * @return a live, weakly consistent view of the objects: it never throws
+     *         ConcurrentModificationException and its iterator supports
+     *         remove()
+     */
+    public Collection values()
+    {
+        return _objects.values();
+    }
+
+    /**
+     * @return a copy of the objects, for the rare callers that need one
+     */
+    public List snapshot()
+    {
+        return new ArrayList(_objects.values());
+    }
+
+    public void clear()
+    {
+        _objects.clear();
+    }
+
+    private Object stripe(String id)
+    {
+        // spread the hash, as the low bits of String hashes are weak
+        int h = id.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return _stripes[h & (_stripes.length - 1)];
+    }
+}
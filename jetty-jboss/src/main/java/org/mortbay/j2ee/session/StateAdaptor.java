@@ -141,6 +141,7 @@ public class StateAdaptor implements Manager.Session
         try
         {
             _state.setMaxInactiveInterval(interval);
+            _manager.maxInactiveIntervalChanged(_id, interval);
         }
         catch (RemoteException e)
         {
@@ -348,6 +349,7 @@ public class StateAdaptor implements Manager.Session
     {
         long time = System.currentTimeMillis(); // we could get this from Manager - less accurate
         setLastAccessedTime(time);
+        _manager.touched(_id, time);
 
         _new = false; // synchronise - TODO
     }
@@ -0,0 +1,79 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.io.IOException;
+
+//----------------------------------------
+
+/**
+ * Turns the state of a replicated session, and the change notifications
+ * published by an AbstractReplicatedStore, into bytes and back.
+ * <p>
+ * All members of a cluster must use the same StateCodec.
+ */
+public interface StateCodec
+{
+    /**
+     * A change notification: a method id of AbstractReplicatedStore and its
+     * arguments, for a session or - if the id is null - for the store.
+     */
+    public static class Message
+    {
+        private final String _id;
+
+        private final int _method;
+
+        private final Object[] _args;
+
+        public Message(String id, int method, Object[] args)
+        {
+            _id = id;
+            _method = method;
+            _args = args;
+        }
+
+        public String getId()
+        {
+            return _id;
+        }
+
+        public int getMethod()
+        {
+            return _method;
+        }
+
+        public Object[] getArgs()
+        {
+            return _args;
+        }
+    }
+
+    byte[] encodeState(LocalState state) throws IOException;
+
+    /**
+     * @param loader the ClassLoader of the webapp, for attribute values
+     */
+    LocalState decodeState(byte[] bytes, ClassLoader loader)
+            throws IOException, ClassNotFoundException;
+
+    byte[] encodeMessage(Message message) throws IOException;
+
+    /**
+     * @param loader the ClassLoader of the webapp, for attribute values
+     */
+    Message decodeMessage(byte[] bytes, ClassLoader loader)
+            throws IOException, ClassNotFoundException;
+}
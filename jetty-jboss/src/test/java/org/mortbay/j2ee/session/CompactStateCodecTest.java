@@ -0,0 +1,210 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+//----------------------------------------
+
+public class CompactStateCodecTest extends TestCase
+{
+    private final CompactStateCodec _codec = new CompactStateCodec(
+            new String[] { "shared" });
+
+    public void testStateRoundTrip() throws Exception
+    {
+        // last accessed before creation - a negative delta
+        LocalState state = new LocalState("s\u00e9ssion", 1000000L, -1, 30);
+        state.setLastAccessedTime(999000L);
+        state.setAttribute("shared", "value", false);
+        state.setAttribute("null", null, false);
+        state.setAttribute("\u540d\u524d", "\u5024 \u20ac", false);
+        state.setAttribute("int", new Integer(-5), false);
+        state.setAttribute("long", new Long(Long.MIN_VALUE), false);
+        state.setAttribute("bool", Boolean.TRUE, false);
+
+        LocalState copy = _codec.decodeState(_codec.encodeState(state), null);
+        assertEquals("s\u00e9ssion", copy.getId());
+        assertEquals(1000000L, copy.getCreationTime());
+        assertEquals(999000L, copy.getLastAccessedTime());
+        assertEquals(-1, copy.getMaxInactiveInterval());
+        assertEquals(30, copy.getActualMaxInactiveInterval());
+        assertEquals(state.getAttributes(), copy.getAttributes());
+        assertTrue(copy.getAttributes().containsKey("null"));
+    }
+
+    public void testStateWithoutAttributes() throws Exception
+    {
+        LocalState state = new LocalState("s", 0L, 10, 10);
+        LocalState copy = _codec.decodeState(_codec.encodeState(state), null);
+        assertEquals(0, copy.getAttributes().size());
+    }
+
+    public void testValues() throws Exception
+    {
+        byte[] bytes = { 0, -1, 127, -128 };
+        String[] strings = { "a", null, "\u00fc", "a" };
+        Object[] args = roundTrip(new Object[] { null, "", "\u00e4\u00f6",
+                new Integer(Integer.MIN_VALUE), new Long(-1), Boolean.FALSE,
+                bytes, strings });
+
+        assertNull(args[0]);
+        assertEquals("", args[1]);
+        assertEquals("\u00e4\u00f6", args[2]);
+        assertEquals(new Integer(Integer.MIN_VALUE), args[3]);
+        assertEquals(new Long(-1), args[4]);
+        assertEquals(Boolean.FALSE, args[5]);
+        assertTrue(Arrays.equals(bytes, (byte[]) args[6]));
+        assertEquals(Arrays.asList(strings), Arrays.asList((String[]) args[7]));
+    }
+
+    public void testAttributeMaps() throws Exception
+    {
+        Map nested = new HashMap();
+        nested.put("x", "y");
+        Map numbered = new HashMap();
+        numbered.put(new Integer(1), "one");
+        Map attributes = new HashMap();
+        attributes.put("nested", nested);
+        attributes.put("numbered", numbered);
+        attributes.put("sorted", new TreeMap(nested));
+
+        Object[] args = roundTrip(new Object[] { attributes, numbered });
+        Map map = (Map) args[0];
+        assertEquals(attributes, map);
+        // values keep their class, whatever their keys
+        assertSame(TreeMap.class, map.get("sorted").getClass());
+        assertEquals(nested, map.get("nested"));
+        assertEquals(numbered, map.get("numbered"));
+        assertEquals(numbered, args[1]);
+    }
+
+    public void testSerializedValues() throws Exception
+    {
+        List list = new ArrayList();
+        list.add("a");
+        list.add(new Integer(1));
+        // shared objects stay shared
+        Object[] args = roundTrip(new Object[] { list, list, "after" });
+        assertEquals(list, args[0]);
+        assertSame(args[0], args[1]);
+        assertEquals("after", args[2]);
+    }
+
+    public void testMessageHeader() throws Exception
+    {
+        byte[] bytes = _codec.encodeMessage(new StateCodec.Message("id", 8,
+                new Object[0]));
+        StateCodec.Message message = _codec.decodeMessage(bytes, null);
+        assertEquals("id", message.getId());
+        assertEquals(8, message.getMethod());
+        assertEquals(0, message.getArgs().length);
+
+        message = _codec.decodeMessage(_codec.encodeMessage(new StateCodec.Message(
+                null, 2, new Object[0])), null);
+        assertNull(message.getId());
+    }
+
+    public void testTruncated() throws Exception
+    {
+        Map attributes = new HashMap();
+        attributes.put("a", "\u00e9t\u00e9");
+        attributes.put("b", new String[] { "c", null });
+        attributes.put("d", new ArrayList());
+        byte[] bytes = _codec.encodeMessage(new StateCodec.Message("id", 6,
+                new Object[] { attributes }));
+
+        for (int n = 0; n < bytes.length; n++)
+        {
+            byte[] truncated = new byte[n];
+            System.arraycopy(bytes, 0, truncated, 0, n);
+            try
+            {
+                _codec.decodeMessage(truncated, null);
+                fail("decoded " + n + " of " + bytes.length + " bytes");
+            }
+            catch (IOException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    public void testNotAMessage() throws Exception
+    {
+        LocalState state = new LocalState("s", 0L, 10, 10);
+        try
+        {
+            _codec.decodeMessage(_codec.encodeState(state), null);
+            fail();
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    public void testEncodingStore() throws Exception
+    {
+        LocalState state = new LocalState("s", 0L, 10, 10);
+        LoopbackStore remote = new LoopbackStore();
+        remote.subscribe("s", state);
+
+        LoopbackStore store = new LoopbackStore();
+        store._remote = remote;
+        store.startBatch();
+        store.replicateAttribute("s", "a", new String[] { null });
+        store.replicateAttribute("s", "b", "B");
+        store.replicateAttributeRemoval("s", "b");
+        store.replicateMaxInactiveInterval("s", 60);
+        store.flushBatch();
+        store.replicateLastAccessedTime("s", 1000);
+
+        assertEquals(1, ((String[]) state.getAttribute("a")).length);
+        assertNull(state.getAttribute("b"));
+        assertEquals(60, state.getMaxInactiveInterval());
+        assertEquals(1000, state.getLastAccessedTime());
+    }
+
+    private Object[] roundTrip(Object[] args) throws Exception
+    {
+        byte[] bytes = _codec.encodeMessage(new StateCodec.Message("id", 0,
+                args));
+        return _codec.decodeMessage(bytes, null).getArgs();
+    }
+
+    static class LoopbackStore extends AbstractEncodingReplicatedStore
+    {
+        LoopbackStore _remote;
+
+        LoopbackStore()
+        {
+            setCodec(new CompactStateCodec());
+        }
+
+        protected void send(byte[] message)
+        {
+            _remote.receive(message);
+        }
+    }
+}
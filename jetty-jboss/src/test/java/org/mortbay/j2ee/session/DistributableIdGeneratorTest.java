@@ -0,0 +1,99 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+
+//----------------------------------------
+
+public class DistributableIdGeneratorTest extends TestCase
+{
+    public void testWithoutNodeId()
+    {
+        DistributableIdGenerator generator = new DistributableIdGenerator();
+        assertNull(generator.getNodeId());
+
+        String id = nextId(generator);
+        assertEquals(24, id.length());
+        assertEquals(-1, id.indexOf(DistributableIdGenerator.NODE_ID_SEPARATOR));
+        assertNull(DistributableIdGenerator.getNodeId(id));
+    }
+
+    public void testNodeIdPrefix()
+    {
+        DistributableIdGenerator generator = new DistributableIdGenerator();
+        generator.setNodeId("node1");
+        assertEquals("node1", generator.getNodeId());
+
+        Set ids = new HashSet();
+        for (int i = 0; i < 100; i++)
+        {
+            String id = nextId(generator);
+            assertTrue(id, id.startsWith("node1."));
+            assertEquals(6 + 24, id.length());
+            assertEquals("node1", DistributableIdGenerator.getNodeId(id));
+            ids.add(id);
+        }
+        assertEquals(100, ids.size());
+
+        generator.setNodeId(null);
+        assertNull(DistributableIdGenerator.getNodeId(nextId(generator)));
+    }
+
+    public void testNodeIdWithSeparatorIsRejected()
+    {
+        DistributableIdGenerator generator = new DistributableIdGenerator();
+        generator.setNodeId("node1");
+        try
+        {
+            generator.setNodeId("node.1");
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // Expected
+        }
+        assertEquals("node1", generator.getNodeId());
+        assertEquals("node1", DistributableIdGenerator.getNodeId(nextId(generator)));
+    }
+
+    public void testGetNodeId()
+    {
+        assertNull(DistributableIdGenerator.getNodeId(""));
+        assertNull(DistributableIdGenerator.getNodeId("abc"));
+        assertEquals("", DistributableIdGenerator.getNodeId(".abc"));
+        assertEquals("a", DistributableIdGenerator.getNodeId("a.b.c"));
+    }
+
+    public void testCloneKeepsNodeId()
+    {
+        DistributableIdGenerator generator = new DistributableIdGenerator();
+        generator.setNodeId("node2");
+        DistributableIdGenerator clone = (DistributableIdGenerator) generator
+                .clone();
+        assertEquals("node2", clone.getNodeId());
+        assertEquals("node2", DistributableIdGenerator.getNodeId(nextId(clone)));
+    }
+
+    private static String nextId(IdGenerator generator)
+    {
+        return generator.nextId((HttpServletRequest) null);
+    }
+}
@@ -0,0 +1,159 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+//----------------------------------------
+
+public class ExpiryIndexTest extends TestCase
+{
+    public void testDueInOrderOfExpiry()
+    {
+        ExpiryIndex index = new ExpiryIndex();
+        index.schedule("a", 0, 1000);
+        index.schedule("b", 0, 2000);
+        assertEquals(2, index.size());
+
+        assertTrue(index.due(999, 10).isEmpty());
+        assertEquals(list("a"), index.due(1000, 10));
+        assertTrue(index.due(1999, 10).isEmpty());
+        assertEquals(list("b"), index.due(2000, 10));
+        // only taken out of the buckets, until removed
+        assertEquals(2, index.size());
+    }
+
+    public void testNotDueBeforeItsTime()
+    {
+        ExpiryIndex index = new ExpiryIndex();
+        // expires half way through a bucket - rounded up
+        index.schedule("a", 0, 1500);
+        assertTrue(index.due(1000, 10).isEmpty());
+        assertEquals(list("a"), index.due(2000, 10));
+    }
+
+    public void testTouchIsFiledLazily()
+    {
+        ExpiryIndex index = new ExpiryIndex();
+        index.schedule("a", 0, 1000);
+        index.touch("a", 5000);
+        // an older time does not put the expiry back
+        index.touch("a", 3000);
+
+        assertTrue(index.due(1000, 10).isEmpty());
+        assertTrue(index.due(5999, 10).isEmpty());
+        assertEquals(list("a"), index.due(6000, 10));
+    }
+
+    public void testSetMaxInactiveMovesEarlier()
+    {
+        ExpiryIndex index = new ExpiryIndex();
+        index.schedule("a", 0, 60000);
+        index.setMaxInactive("a", 1000);
+        assertEquals(list("a"), index.due(1000, 10));
+        assertTrue(index.due(60000, 10).isEmpty());
+    }
+
+    public void testNotPositiveMaxInactiveIsDueStraightAway()
+    {
+        ExpiryIndex index = new ExpiryIndex();
+        index.schedule("a", 1000, -1);
+        assertEquals(list("a"), index.due(1000, 10));
+    }
+
+    public void testRemove()
+    {
+        ExpiryIndex index = new ExpiryIndex();
+        index.schedule("a", 0, 1000);
+        index.schedule("b", 0, 1000);
+        index.remove("a");
+        index.setMaxInactive("a", 0);
+        index.touch("a", 0);
+
+        assertEquals(1, index.size());
+        assertEquals(list("b"), index.due(1000, 10));
+    }
+
+    public void testSlices()
+    {
+        ExpiryIndex index = new ExpiryIndex();
+        for (int i = 0; i < 25; i++)
+            index.schedule("s" + i, 0, 1000 + (i % 3) * 1000);
+
+        Set ids = new HashSet();
+        int[] slices = { 10, 10, 5 };
+        for (int i = 0; i < slices.length; i++)
+        {
+            List due = index.due(3000, 10);
+            assertEquals(slices[i], due.size());
+            ids.addAll(due);
+        }
+        assertTrue(index.due(3000, 10).isEmpty());
+        assertEquals(25, ids.size());
+    }
+
+    public void testScheduledAgainIsDueAgain()
+    {
+        ExpiryIndex index = new ExpiryIndex();
+        index.schedule("a", 0, 1000);
+        assertEquals(list("a"), index.due(1000, 10));
+        index.schedule("a", 1000, 1000);
+        assertEquals(list("a"), index.due(2000, 10));
+    }
+
+    public void testRescheduleWaitsForNextScavenge()
+    {
+        ExpiryIndex index = new ExpiryIndex();
+        index.schedule("a", 0, 1000);
+        index.schedule("b", 0, 1000);
+        index.schedule("c", 0, 1000);
+        assertEquals(3, index.due(1000, 10).size());
+
+        index.reschedule("a");
+        // removed meanwhile
+        index.remove("b");
+        index.reschedule("b");
+        // scheduled meanwhile - not filed twice
+        index.schedule("c", 0, 2000);
+        index.reschedule("c");
+
+        assertTrue(index.due(1000, 10).isEmpty());
+        List due = index.due(2000, 10);
+        assertEquals(2, due.size());
+        assertTrue(due.contains("a"));
+        assertTrue(due.contains("c"));
+        assertTrue(index.due(2000, 10).isEmpty());
+    }
+
+    public void testResolution()
+    {
+        ExpiryIndex index = new ExpiryIndex(10);
+        index.schedule("a", 0, 15);
+        assertTrue(index.due(19, 10).isEmpty());
+        assertEquals(list("a"), index.due(20, 10));
+    }
+
+    private static List list(String id)
+    {
+        List list = new ArrayList();
+        list.add(id);
+        return list;
+    }
+}
@@ -0,0 +1,123 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+
+//----------------------------------------
+
+/**
+ * Measures session id generation throughput of the striped
+ * {@link GUIDGenerator} against the single synchronized generator it
+ * replaces, from 1 to 64 threads.
+ * <p>
+ * Run with: <code>java org.mortbay.j2ee.session.GUIDGeneratorBenchmark [millis]</code>
+ */
+public class GUIDGeneratorBenchmark
+{
+    /**
+     * The generator as it was: one random-number generator and one
+     * hash-generator behind a single monitor.
+     */
+    static class SynchronizedGenerator extends GUIDGenerator
+    {
+        Random _random;
+
+        MessageDigest _digest;
+
+        public synchronized String nextId(HttpServletRequest request)
+        {
+            if (_digest == null)
+                _digest = getDigest();
+            if (_random == null)
+                _random = getRandom();
+
+            byte[] bytes = new byte[SESSION_ID_BYTES];
+            _random.nextBytes(bytes);
+            bytes = _digest.digest(bytes);
+            return encode(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+
+        System.out.println("threads  synchronized  striped  (ids/ms)");
+        for (int threads = 1; threads <= 64; threads *= 2)
+        {
+            IdGenerator synchronizedGenerator = new SynchronizedGenerator();
+            IdGenerator stripedGenerator = new DistributableIdGenerator();
+            // warm up both, then measure
+            run(synchronizedGenerator, threads, millis / 4);
+            run(stripedGenerator, threads, millis / 4);
+            long synchronizedRate = run(synchronizedGenerator, threads, millis);
+            long stripedRate = run(stripedGenerator, threads, millis);
+            System.out.println(pad(threads, 7) + pad(synchronizedRate, 14) + pad(stripedRate, 9));
+        }
+    }
+
+    static long run(final IdGenerator generator, int threads, final long millis) throws Exception
+    {
+        final AtomicLong ids = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++)
+        {
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        long n = 0;
+                        long end = System.currentTimeMillis() + millis;
+                        while ((n & 0xFF) != 0 || System.currentTimeMillis() < end)
+                        {
+                            generator.nextId(null);
+                            n++;
+                        }
+                        ids.addAndGet(n);
+                    }
+                    catch (Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        return ids.get() / millis;
+    }
+
+    static String pad(long value, int width)
+    {
+        StringBuffer buffer = new StringBuffer(String.valueOf(value));
+        while (buffer.length() < width)
+            buffer.insert(0, ' ');
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,175 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+//----------------------------------------
+
+public class ReplicationDeltaTest extends TestCase
+{
+    public void testLastWriteWins()
+    {
+        ReplicationDelta delta = new ReplicationDelta();
+        delta.setAttribute("s", "a", "1");
+        delta.setAttribute("s", "a", "2");
+        delta.removeAttribute("s", "b");
+        delta.setAttribute("s", "b", "3");
+        delta.setAttribute("s", "c", "4");
+        delta.removeAttribute("s", "c");
+        delta.setMaxInactiveInterval("s", 10);
+        delta.setMaxInactiveInterval("s", 20);
+
+        List sessions = delta.getSessions();
+        assertEquals(1, sessions.size());
+        Object[] args = ((ReplicationDelta.SessionDelta) sessions.get(0))
+                .getArgs();
+        assertEquals(new Integer(20), args[0]);
+        Map set = (Map) args[1];
+        assertEquals(2, set.size());
+        assertEquals("2", set.get("a"));
+        assertEquals("3", set.get("b"));
+        assertEquals(Arrays.asList(new String[] { "c" }), Arrays
+                .asList((String[]) args[2]));
+    }
+
+    public void testUnchangedIntervalIsNull()
+    {
+        ReplicationDelta delta = new ReplicationDelta();
+        delta.setAttribute("s", "a", "1");
+        Object[] args = ((ReplicationDelta.SessionDelta) delta.getSessions()
+                .get(0)).getArgs();
+        assertNull(args[0]);
+    }
+
+    public void testTouchesAreMerged()
+    {
+        ReplicationDelta delta = new ReplicationDelta();
+        assertTrue(delta.isEmpty());
+        delta.setLastAccessedTime("a", 10);
+        delta.setLastAccessedTime("b", 30);
+        delta.setLastAccessedTime("a", 20);
+
+        assertFalse(delta.isEmpty());
+        assertTrue(delta.getSessions().isEmpty());
+        assertEquals(Arrays.asList(new String[] { "a", "b" }), Arrays
+                .asList(delta.getTouched()));
+        assertEquals(30, delta.getTouchTime());
+    }
+
+    public void testDiscard()
+    {
+        ReplicationDelta delta = new ReplicationDelta();
+        delta.setAttribute("a", "x", "1");
+        delta.setLastAccessedTime("a", 10);
+        delta.setAttribute("b", "x", "1");
+        delta.setMaxInactiveInterval("b", 10);
+
+        delta.discard("a");
+        assertEquals(0, delta.getTouched().length);
+        List sessions = delta.getSessions();
+        assertEquals(1, sessions.size());
+        assertEquals("b", ((ReplicationDelta.SessionDelta) sessions.get(0))._id);
+
+        // the interval is still sent without the attributes
+        delta.discardAttributes("b");
+        Object[] args = ((ReplicationDelta.SessionDelta) delta.getSessions()
+                .get(0)).getArgs();
+        assertEquals(new Integer(10), args[0]);
+        assertTrue(((Map) args[1]).isEmpty());
+
+        delta.discard("b");
+        assertTrue(delta.isEmpty());
+    }
+
+    public void testBatchIsPublishedOnce() throws Exception
+    {
+        LoopbackStore store = new LoopbackStore();
+        store.startBatch();
+        store.replicateAttribute("s", "a", "1");
+        store.replicateAttribute("s", "a", "2");
+        store.replicateAttributeRemoval("s", "b");
+        store.replicateMaxInactiveInterval("s", 60);
+        store.replicateLastAccessedTime("s", 1000);
+        assertTrue(store._published.isEmpty());
+
+        store.flushBatch();
+        assertEquals(2, store._published.size());
+        assertSame(AbstractReplicatedStore.APPLY_DELTA, store.method(0));
+        assertSame(AbstractReplicatedStore.TOUCH_SESSIONS, store.method(1));
+
+        // the batch is over - changes are published straight away again
+        store.replicateAttribute("s", "a", "3");
+        assertEquals(3, store._published.size());
+        assertEquals("setAttribute", store.method(2).getName());
+    }
+
+    public void testApplyDeltaIsApplied() throws Exception
+    {
+        LocalState state = new LocalState("s", 0, 30, 30);
+        state.setAttribute("b", "B", false);
+        state.setAttribute("c", "C", false);
+        LoopbackStore remote = new LoopbackStore();
+        remote.subscribe("s", state);
+
+        LoopbackStore store = new LoopbackStore();
+        store.startBatch();
+        store.replicateAttribute("s", "a", "A");
+        store.replicateAttributeRemoval("s", "b");
+        store.replicateMaxInactiveInterval("s", 60);
+        store.replicateLastAccessedTime("s", 1000);
+        store.flushBatch();
+
+        for (int i = 0; i < store._published.size(); i++)
+            remote.deliver((Object[]) store._published.get(i));
+
+        assertEquals("A", state.getAttribute("a"));
+        assertNull(state.getAttribute("b"));
+        assertEquals("C", state.getAttribute("c"));
+        assertEquals(60, state.getMaxInactiveInterval());
+        assertEquals(1000, state.getLastAccessedTime());
+    }
+
+    // hands published changes back to dispatch(), the way a real
+    // transport would on another node
+
+    static class LoopbackStore extends AbstractReplicatedStore
+    {
+        final List _published = new ArrayList();
+
+        protected void publish(String id, Method method, Object[] argInstances)
+        {
+            _published.add(new Object[] { id, method, argInstances });
+        }
+
+        Method method(int i)
+        {
+            return (Method) ((Object[]) _published.get(i))[1];
+        }
+
+        void deliver(Object[] message)
+        {
+            Method method = (Method) message[1];
+            dispatch((String) message[0], (Integer) _methodToInteger
+                    .get(method.getName()), (Object[]) message[2]);
+        }
+    }
+}
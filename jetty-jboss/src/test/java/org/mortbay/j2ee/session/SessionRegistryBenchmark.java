@@ -0,0 +1,175 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+//----------------------------------------
+
+/**
+ * Measures session lookup throughput of the {@link SessionRegistry} against
+ * the synchronized HashMap it replaces, from 1 to 64 threads.
+ * <p>
+ * Each thread looks up random ids out of a fixed population of sessions, one
+ * in every 100 lookups being a miss that creates and then removes a session.
+ * Run with: <code>java org.mortbay.j2ee.session.SessionRegistryBenchmark [sessions] [millis]</code>
+ */
+public class SessionRegistryBenchmark
+{
+    interface Registry
+    {
+        Object find(String id) throws Exception;
+
+        void remove(String id);
+    }
+
+    static class SynchronizedRegistry implements Registry
+    {
+        final Map _sessions = new HashMap();
+
+        public Object find(String id)
+        {
+            synchronized (_sessions)
+            {
+                Object session = _sessions.get(id);
+                if (session == null)
+                {
+                    session = id;
+                    _sessions.put(id, session);
+                }
+                return session;
+            }
+        }
+
+        public void remove(String id)
+        {
+            synchronized (_sessions)
+            {
+                _sessions.remove(id);
+            }
+        }
+    }
+
+    static class ConcurrentRegistry implements Registry
+    {
+        final SessionRegistry _sessions = new SessionRegistry();
+
+        final SessionRegistry.Factory _factory = new SessionRegistry.Factory()
+        {
+            public Object create(String id)
+            {
+                return id;
+            }
+        };
+
+        public Object find(String id) throws Exception
+        {
+            return _sessions.getOrCreate(id, _factory);
+        }
+
+        public void remove(String id)
+        {
+            _sessions.remove(id);
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+        String[] ids = new String[sessions];
+        for (int i = 0; i < sessions; i++)
+            ids[i] = "session" + i;
+
+        System.out.println("threads  synchronized HashMap  SessionRegistry  (lookups/ms)");
+        for (int threads = 1; threads <= 64; threads *= 2)
+        {
+            // warm up both, then measure
+            run(new SynchronizedRegistry(), ids, threads, millis / 4);
+            run(new ConcurrentRegistry(), ids, threads, millis / 4);
+            long synchronizedRate = run(new SynchronizedRegistry(), ids, threads, millis);
+            long concurrentRate = run(new ConcurrentRegistry(), ids, threads, millis);
+            System.out.println(pad(threads, 7) + pad(synchronizedRate, 22) + pad(concurrentRate, 17));
+        }
+    }
+
+    static long run(final Registry registry, final String[] ids, int threads, final long millis) throws Exception
+    {
+        for (int i = 0; i < ids.length; i++)
+            registry.find(ids[i]);
+
+        final AtomicLong lookups = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++)
+        {
+            final int seed = t + 1;
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        // xorshift, so that the random numbers are not shared
+                        int random = seed * 0x9E3779B9;
+                        long n = 0;
+                        long end = System.currentTimeMillis() + millis;
+                        while ((n & 0xFF) != 0 || System.currentTimeMillis() < end)
+                        {
+                            random ^= random << 13;
+                            random ^= random >>> 17;
+                            random ^= random << 5;
+                            int index = (random & 0x7FFFFFFF) % ids.length;
+                            if (index % 100 == 0)
+                            {
+                                String id = "miss" + random;
+                                registry.find(id);
+                                registry.remove(id);
+                            }
+                            else
+                                registry.find(ids[index]);
+                            n++;
+                        }
+                        lookups.addAndGet(n);
+                    }
+                    catch (Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        return lookups.get() / millis;
+    }
+
+    static String pad(long value, int width)
+    {
+        StringBuffer buffer = new StringBuffer(String.valueOf(value));
+        while (buffer.length() < width)
+            buffer.insert(0, ' ');
+        return buffer.toString();
+    }
+}
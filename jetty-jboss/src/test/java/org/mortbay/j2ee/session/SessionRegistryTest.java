@@ -0,0 +1,170 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+//----------------------------------------
+
+public class SessionRegistryTest extends TestCase
+{
+    public void testGetOrCreate() throws Exception
+    {
+        SessionRegistry registry = new SessionRegistry();
+        final AtomicInteger created = new AtomicInteger();
+        SessionRegistry.Factory factory = new SessionRegistry.Factory()
+        {
+            public Object create(String id)
+            {
+                created.incrementAndGet();
+                return "session-" + id;
+            }
+        };
+
+        assertEquals("session-a", registry.getOrCreate("a", factory));
+        assertEquals("session-a", registry.getOrCreate("a", factory));
+        assertEquals(1, created.get());
+        assertEquals("session-a", registry.get("a"));
+        assertEquals(1, registry.size());
+    }
+
+    public void testNullIsNotRegistered() throws Exception
+    {
+        SessionRegistry registry = new SessionRegistry();
+        SessionRegistry.Factory factory = new SessionRegistry.Factory()
+        {
+            public Object create(String id)
+            {
+                return null;
+            }
+        };
+
+        assertNull(registry.getOrCreate("a", factory));
+        assertNull(registry.get("a"));
+        assertEquals(0, registry.size());
+    }
+
+    public void testFailedCreationIsNotRegistered() throws Exception
+    {
+        SessionRegistry registry = new SessionRegistry();
+        try
+        {
+            registry.getOrCreate("a", new SessionRegistry.Factory()
+            {
+                public Object create(String id) throws Exception
+                {
+                    throw new Exception("failed");
+                }
+            });
+            fail();
+        }
+        catch (Exception e)
+        {
+            assertEquals("failed", e.getMessage());
+        }
+        assertNull(registry.get("a"));
+    }
+
+    public void testOneCreationPerIdUnderContention() throws Exception
+    {
+        // few stripes, so that different ids share them too
+        final SessionRegistry registry = new SessionRegistry(4);
+        final int threads = 16;
+        final int ids = 200;
+        final AtomicInteger[] created = new AtomicInteger[ids];
+        for (int i = 0; i < ids; i++)
+            created[i] = new AtomicInteger();
+        final SessionRegistry.Factory factory = new SessionRegistry.Factory()
+        {
+            public Object create(String id)
+            {
+                created[Integer.parseInt(id)].incrementAndGet();
+                Thread.yield();
+                return new Object();
+            }
+        };
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference failure = new AtomicReference();
+        final Object[][] seen = new Object[threads][ids];
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for (int i = 0; i < ids; i++)
+                            seen[thread][i] = registry.getOrCreate(String.valueOf(i), factory);
+                    }
+                    catch (Throwable x)
+                    {
+                        failure.set(x);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertNull(failure.get());
+
+        assertEquals(ids, registry.size());
+        for (int i = 0; i < ids; i++)
+        {
+            assertEquals("id " + i, 1, created[i].get());
+            Object object = registry.get(String.valueOf(i));
+            assertNotNull(object);
+            // every thread got the one object that was registered
+            for (int t = 0; t < threads; t++)
+                assertSame(object, seen[t][i]);
+        }
+    }
+
+    public void testValuesIsLiveAndRemovable() throws Exception
+    {
+        SessionRegistry registry = new SessionRegistry();
+        registry.put("a", "A");
+        registry.put("b", "B");
+        assertEquals(2, registry.snapshot().size());
+
+        for (Iterator i = registry.values().iterator(); i.hasNext();)
+        {
+            if ("A".equals(i.next()))
+                i.remove();
+            // does not throw ConcurrentModificationException
+            registry.put("c", "C");
+        }
+        assertNull(registry.get("a"));
+        assertEquals(2, registry.size());
+
+        assertEquals("B", registry.remove("b"));
+        registry.clear();
+        assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,195 @@
+// ========================================================================
+// Copyright 2002-2004 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.j2ee.session;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+//----------------------------------------
+
+/**
+ * Compares the size and the encode/decode throughput of the
+ * {@link CompactStateCodec} with those of the {@link SerializingStateCodec}
+ * it can replace, for sessions of typical sizes and for the messages that
+ * replicate their changes.
+ * <p>
+ * Run with: <code>java org.mortbay.j2ee.session.StateCodecBenchmark [millis]</code>
+ */
+public class StateCodecBenchmark
+{
+    interface Codable
+    {
+        byte[] encode(StateCodec codec) throws Exception;
+
+        void decode(StateCodec codec, byte[] bytes) throws Exception;
+    }
+
+    static class StateCodable implements Codable
+    {
+        final LocalState _state;
+
+        StateCodable(LocalState state)
+        {
+            _state = state;
+        }
+
+        public byte[] encode(StateCodec codec) throws Exception
+        {
+            return codec.encodeState(_state);
+        }
+
+        public void decode(StateCodec codec, byte[] bytes) throws Exception
+        {
+            codec.decodeState(bytes, null);
+        }
+    }
+
+    static class MessageCodable implements Codable
+    {
+        final StateCodec.Message _message;
+
+        MessageCodable(StateCodec.Message message)
+        {
+            _message = message;
+        }
+
+        public byte[] encode(StateCodec codec) throws Exception
+        {
+            return codec.encodeMessage(_message);
+        }
+
+        public void decode(StateCodec codec, byte[] bytes) throws Exception
+        {
+            codec.decodeMessage(bytes, null);
+        }
+    }
+
+    static LocalState newState(int attributes)
+    {
+        long now = System.currentTimeMillis();
+        LocalState state = new LocalState("FWhd8m2nWvKzZ0o5Qeq0wQ", now - 600000, 1800, 60 * 60 * 24 * 28);
+        state.setLastAccessedTime(now);
+        for (int i = 0; i < attributes; i++)
+        {
+            String name = "com.example.app.attribute" + i;
+            switch (i % 5)
+            {
+                case 0:
+                    state.setAttribute(name, "value of attribute " + i, false);
+                    break;
+                case 1:
+                    state.setAttribute(name, new Integer(i * 1000), false);
+                    break;
+                case 2:
+                    state.setAttribute(name, new Long(now + i), false);
+                    break;
+                case 3:
+                    state.setAttribute(name, new byte[128], false);
+                    break;
+                default:
+                    List list = new ArrayList();
+                    list.add(new Date(now));
+                    list.add("item");
+                    state.setAttribute(name, list, false);
+            }
+        }
+        return state;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+
+        StateCodec[] codecs = { new SerializingStateCodec(), new CompactStateCodec() };
+
+        Map delta = new HashMap();
+        delta.put("com.example.app.cart", "3 items");
+        delta.put("com.example.app.visits", new Integer(42));
+
+        String[] names = { "state (2 attributes)", "state (10 attributes)", "state (40 attributes)",
+                "APPLY_DELTA (2 attributes)", "TOUCH_SESSIONS (10 ids)" };
+        Codable[] codables = {
+                new StateCodable(newState(2)),
+                new StateCodable(newState(10)),
+                new StateCodable(newState(40)),
+                new MessageCodable(new StateCodec.Message("FWhd8m2nWvKzZ0o5Qeq0wQ", AbstractReplicatedStore.APPLY_DELTA_ID,
+                        new Object[] { null, delta, new String[] { "com.example.app.step" } })),
+                new MessageCodable(new StateCodec.Message(null, AbstractReplicatedStore.TOUCH_SESSIONS_ID,
+                        new Object[] { newIds(10), new Long(System.currentTimeMillis()) })) };
+
+        System.out.println("payload                       serialized: bytes  enc/ms  dec/ms    compact: bytes  enc/ms  dec/ms");
+        for (int i = 0; i < codables.length; i++)
+        {
+            StringBuffer line = new StringBuffer(names[i]);
+            while (line.length() < 30)
+                line.append(' ');
+            for (int c = 0; c < codecs.length; c++)
+            {
+                // warm up, then measure
+                run(codecs[c], codables[i], millis / 4);
+                long[] result = run(codecs[c], codables[i], millis);
+                line.append(pad(result[0], c == 0 ? 17 : 18)).append(pad(result[1], 8)).append(pad(result[2], 8));
+            }
+            System.out.println(line);
+        }
+    }
+
+    static String[] newIds(int n)
+    {
+        String[] ids = new String[n];
+        for (int i = 0; i < n; i++)
+            ids[i] = "FWhd8m2nWvKzZ0o5Qeq" + (100 + i);
+        return ids;
+    }
+
+    /**
+     * @return the size of the encoding, encodings per ms and decodings per ms
+     */
+    static long[] run(StateCodec codec, Codable codable, long millis) throws Exception
+    {
+        byte[] bytes = codable.encode(codec);
+
+        long n = 0;
+        long end = System.currentTimeMillis() + millis;
+        while ((n & 0xFF) != 0 || System.currentTimeMillis() < end)
+        {
+            codable.encode(codec);
+            n++;
+        }
+        long encodes = n / millis;
+
+        n = 0;
+        end = System.currentTimeMillis() + millis;
+        while ((n & 0xFF) != 0 || System.currentTimeMillis() < end)
+        {
+            codable.decode(codec, bytes);
+            n++;
+        }
+        long decodes = n / millis;
+
+        return new long[] { bytes.length, encodes, decodes };
+    }
+
+    static String pad(long value, int width)
+    {
+        StringBuffer buffer = new StringBuffer(String.valueOf(value));
+        while (buffer.length() < width)
+            buffer.insert(0, ' ');
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,49 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.mortbay.jetty.jmx.ws.domain.jaxb;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+import org.mortbay.jetty.jmx.ws.service.impl.JMXConnectionPool;
+
+/* ------------------------------------------------------------ */
+/**
+ * The metrics of the pool of the connections to the nodes.
+ */
+@XmlRootElement(name = "ConnectionPool")
+public class ConnectionPoolJaxBean
+{
+    public int openConnections;
+    public long connects;
+    public long connectFailures;
+    public long connectTimeAverage;
+    public long connectTimeMax;
+    public long probeFailures;
+    public long evictions;
+
+    public ConnectionPoolJaxBean()
+    {
+    }
+
+    public ConnectionPoolJaxBean(JMXConnectionPool connectionPool)
+    {
+        this.openConnections = connectionPool.getOpenConnections();
+        this.connects = connectionPool.getConnects();
+        this.connectFailures = connectionPool.getConnectFailures();
+        this.connectTimeAverage = connectionPool.getConnectTimeAverage();
+        this.connectTimeMax = connectionPool.getConnectTimeMax();
+        this.probeFailures = connectionPool.getProbeFailures();
+        this.evictions = connectionPool.getEvictions();
+    }
+}
@@ -37,13 +37,14 @@ public class NodeJaxBean implements Comparable<NodeJaxBean>
     public Long heapCommitted;
     public Long heapMax;
     public String jmxServiceURL;
+    public String error;
 
     public NodeJaxBean()
     {
     }
 
     private NodeJaxBean(String name, String jettyVersion, int threadCount, int peakThreadCount, Long heapUsed, Long init, Long committed, Long max,
-            JMXServiceURL jmxServiceURL)
+            JMXServiceURL jmxServiceURL, String error)
     {
         this.name = name;
         this.threadCount = threadCount;
@@ -54,6 +55,7 @@ public class NodeJaxBean implements Comparable<NodeJaxBean>
         this.heapCommitted = committed;
         this.heapMax = max;
         this.jmxServiceURL = jmxServiceURL.toString();
+        this.error = error;
     }
 
     public static class NodeJaxBeanBuilder implements Builder<NodeJaxBean>
@@ -69,6 +71,7 @@ public class NodeJaxBean implements Comparable<NodeJaxBean>
         private Long init = 0L;
         private Long committed = 0L;
         private Long max = 0L;
+        private String error;
 
         public NodeJaxBeanBuilder(String name, String jettyVersion, JMXServiceURL jmxServiceURL)
         {
@@ -98,9 +101,18 @@ public class NodeJaxBean implements Comparable<NodeJaxBean>
             return this;
         }
 
+        /**
+         * Marks that the node data could not be fetched.
+         */
+        public NodeJaxBeanBuilder error(String error)
+        {
+            this.error = error;
+            return this;
+        }
+
         public NodeJaxBean build()
         {
-            return new NodeJaxBean(name,jettyVersion,threadCount,peakThreadCount,heapUsed,init,committed,max,jmxServiceURL);
+            return new NodeJaxBean(name,jettyVersion,threadCount,peakThreadCount,heapUsed,init,committed,max,jmxServiceURL,error);
         }
 
     }
@@ -145,6 +157,11 @@ public class NodeJaxBean implements Comparable<NodeJaxBean>
         return heapMax;
     }
 
+    public String getError()
+    {
+        return error;
+    }
+
     public JMXServiceURL getJmxServiceURL()
     {
         return JMXServiceURLUtils.getJMXServiceURL(jmxServiceURL);
@@ -162,6 +179,7 @@ public class NodeJaxBean implements Comparable<NodeJaxBean>
         result = prime * result + ((jmxServiceURL == null)?0:jmxServiceURL.hashCode());
         result = prime * result + ((heapMax == null)?0:heapMax.hashCode());
         result = prime * result + ((name == null)?0:name.hashCode());
+        result = prime * result + ((error == null)?0:error.hashCode());
         result = prime * result + peakThreadCount;
         result = prime * result + threadCount;
         return result;
@@ -226,6 +244,13 @@ public class NodeJaxBean implements Comparable<NodeJaxBean>
         }
         else if (!name.equals(other.name))
             return false;
+        if (error == null)
+        {
+            if (other.error != null)
+                return false;
+        }
+        else if (!error.equals(other.error))
+            return false;
         if (peakThreadCount != other.peakThreadCount)
             return false;
         if (threadCount != other.threadCount)
@@ -255,6 +280,8 @@ public class NodeJaxBean implements Comparable<NodeJaxBean>
         builder.append(heapMax);
         builder.append(", jmxServiceURL=");
         builder.append(jmxServiceURL);
+        builder.append(", error=");
+        builder.append(error);
         builder.append("]");
         return builder.toString();
     }
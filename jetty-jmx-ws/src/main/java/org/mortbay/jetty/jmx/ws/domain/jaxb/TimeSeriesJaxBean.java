@@ -0,0 +1,92 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.mortbay.jetty.jmx.ws.domain.jaxb;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/* ------------------------------------------------------------ */
+/**
+ */
+@XmlRootElement(name = "TimeSeries")
+public class TimeSeriesJaxBean implements Comparable<TimeSeriesJaxBean>
+{
+    @XmlElement(name = "NodeName")
+    public String nodeName;
+    @XmlElement(name = "Metric")
+    public String metric;
+    @XmlElement(name = "Count")
+    public int count;
+    @XmlElement(name = "Min")
+    public Double min;
+    @XmlElement(name = "Avg")
+    public Double avg;
+    @XmlElement(name = "Max")
+    public Double max;
+    @XmlElement(name = "Time")
+    public long[] times;
+    @XmlElement(name = "Value")
+    public double[] values;
+
+    public TimeSeriesJaxBean()
+    {
+    }
+
+    /**
+     * @param times the times of the samples, or null to return only the rollup
+     * @param values the values of the samples, or null to return only the rollup
+     */
+    public TimeSeriesJaxBean(String nodeName, String metric, int count, double min, double avg, double max, long[] times, double[] values)
+    {
+        this.nodeName = nodeName;
+        this.metric = metric;
+        this.count = count;
+        if (count > 0)
+        {
+            this.min = min;
+            this.avg = avg;
+            this.max = max;
+        }
+        this.times = times;
+        this.values = values;
+    }
+
+    public int compareTo(TimeSeriesJaxBean o)
+    {
+        int i = this.metric.compareTo(o.metric);
+        if (i == 0)
+            i = this.nodeName.compareTo(o.nodeName);
+        return i;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append("TimeSeriesJaxBean [nodeName=");
+        builder.append(nodeName);
+        builder.append(", metric=");
+        builder.append(metric);
+        builder.append(", count=");
+        builder.append(count);
+        builder.append(", min=");
+        builder.append(min);
+        builder.append(", avg=");
+        builder.append(avg);
+        builder.append(", max=");
+        builder.append(max);
+        builder.append("]");
+        return builder.toString();
+    }
+}
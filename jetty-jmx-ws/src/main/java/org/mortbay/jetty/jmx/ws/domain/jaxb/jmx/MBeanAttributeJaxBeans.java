@@ -27,6 +27,8 @@ public class MBeanAttributeJaxBeans
 {
     @XmlElement(name = "Attribute")
     public Set<MBeanAttributeJaxBean> mBeanAttributeJaxBeans = new TreeSet<MBeanAttributeJaxBean>();
+    @XmlElement(name = "NodeError")
+    public Set<NodeErrorJaxBean> nodeErrors = new TreeSet<NodeErrorJaxBean>();
 
     public MBeanAttributeJaxBeans()
     {
@@ -37,12 +39,20 @@ public class MBeanAttributeJaxBeans
         this.mBeanAttributeJaxBeans = mBeanAttributeJaxBeans;
     }
 
+    public MBeanAttributeJaxBeans(Set<MBeanAttributeJaxBean> mBeanAttributeJaxBeans, Set<NodeErrorJaxBean> nodeErrors)
+    {
+        this.mBeanAttributeJaxBeans = mBeanAttributeJaxBeans;
+        this.nodeErrors = nodeErrors;
+    }
+
     @Override
     public String toString()
     {
         StringBuilder builder = new StringBuilder();
         builder.append("MBeanAttributesJaxBean [attributes=");
         builder.append(mBeanAttributeJaxBeans);
+        builder.append(", nodeErrors=");
+        builder.append(nodeErrors);
         builder.append("]");
         return builder.toString();
     }
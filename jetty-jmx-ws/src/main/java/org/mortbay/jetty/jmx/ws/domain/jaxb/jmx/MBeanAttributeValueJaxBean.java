@@ -30,6 +30,8 @@ public class MBeanAttributeValueJaxBean implements Comparable<MBeanAttributeValu
     public String objectName;
     @XmlElement(name = "Value")
     public String value;
+    @XmlElement(name = "Error")
+    public String error;
 
     public MBeanAttributeValueJaxBean()
     {
@@ -43,6 +45,19 @@ public class MBeanAttributeValueJaxBean implements Comparable<MBeanAttributeValu
         parseValue(value);
     }
 
+    /**
+     * Creates a value marking that the attribute could not be read from the node.
+     */
+    public static MBeanAttributeValueJaxBean failure(String attributeName, String nodeName, String objectName, String error)
+    {
+        MBeanAttributeValueJaxBean mBeanAttributeValueJaxBean = new MBeanAttributeValueJaxBean();
+        mBeanAttributeValueJaxBean.attributeName = attributeName;
+        mBeanAttributeValueJaxBean.nodeName = nodeName;
+        mBeanAttributeValueJaxBean.objectName = objectName;
+        mBeanAttributeValueJaxBean.error = error;
+        return mBeanAttributeValueJaxBean;
+    }
+
     private void parseValue(Object value)
     {
         if (value == null)
@@ -79,6 +94,8 @@ public class MBeanAttributeValueJaxBean implements Comparable<MBeanAttributeValu
         builder.append(objectName);
         builder.append(", value=");
         builder.append(value);
+        builder.append(", error=");
+        builder.append(error);
         builder.append("]");
         return builder.toString();
     }
@@ -102,6 +119,7 @@ public class MBeanAttributeValueJaxBean implements Comparable<MBeanAttributeValu
         result = prime * result + ((nodeName == null)?0:nodeName.hashCode());
         result = prime * result + ((objectName == null)?0:objectName.hashCode());
         result = prime * result + ((value == null)?0:value.hashCode());
+        result = prime * result + ((error == null)?0:error.hashCode());
         return result;
     }
 
@@ -143,6 +161,13 @@ public class MBeanAttributeValueJaxBean implements Comparable<MBeanAttributeValu
         }
         else if (!value.equals(other.value))
             return false;
+        if (error == null)
+        {
+            if (other.error != null)
+                return false;
+        }
+        else if (!error.equals(other.error))
+            return false;
         return true;
     }
 }
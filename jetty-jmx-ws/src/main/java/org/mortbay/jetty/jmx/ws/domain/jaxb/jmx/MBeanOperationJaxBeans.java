@@ -15,6 +15,7 @@ package org.mortbay.jetty.jmx.ws.domain.jaxb.jmx;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.TreeSet;
 
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -30,6 +31,8 @@ public class MBeanOperationJaxBeans
     public String objectName;
     @XmlElement(name = "Operation")
     public Set<MBeanOperationJaxBean> mBeanOperationJaxBeans = new HashSet<MBeanOperationJaxBean>();
+    @XmlElement(name = "NodeError")
+    public Set<NodeErrorJaxBean> nodeErrors = new TreeSet<NodeErrorJaxBean>();
 
     public MBeanOperationJaxBeans()
     {
@@ -41,6 +44,13 @@ public class MBeanOperationJaxBeans
         this.mBeanOperationJaxBeans = mBeanOperationJaxBeans;
     }
 
+    public MBeanOperationJaxBeans(String objectName, Set<MBeanOperationJaxBean> mBeanOperationJaxBeans, Set<NodeErrorJaxBean> nodeErrors)
+    {
+        this.objectName = objectName;
+        this.mBeanOperationJaxBeans = mBeanOperationJaxBeans;
+        this.nodeErrors = nodeErrors;
+    }
+
     @Override
     public String toString()
     {
@@ -49,6 +59,8 @@ public class MBeanOperationJaxBeans
         builder.append(objectName);
         builder.append(", operations=");
         builder.append(mBeanOperationJaxBeans);
+        builder.append(", nodeErrors=");
+        builder.append(nodeErrors);
         builder.append("]");
         return builder.toString();
     }
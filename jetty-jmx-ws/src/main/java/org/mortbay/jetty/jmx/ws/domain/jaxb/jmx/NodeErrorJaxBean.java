@@ -0,0 +1,94 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.mortbay.jetty.jmx.ws.domain.jaxb.jmx;
+
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/* ------------------------------------------------------------ */
+/**
+ * A node left out of an aggregated result because it timed out or failed.
+ */
+@XmlRootElement
+public class NodeErrorJaxBean implements Comparable<NodeErrorJaxBean>
+{
+    @XmlElement(name = "NodeName")
+    public String nodeName;
+    @XmlElement(name = "Error")
+    public String error;
+
+    public NodeErrorJaxBean()
+    {
+    }
+
+    public NodeErrorJaxBean(String nodeName, String error)
+    {
+        this.nodeName = nodeName;
+        this.error = error;
+    }
+
+    public int compareTo(NodeErrorJaxBean o)
+    {
+        return nodeName.compareTo(o.nodeName);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append("NodeErrorJaxBean [nodeName=");
+        builder.append(nodeName);
+        builder.append(", error=");
+        builder.append(error);
+        builder.append("]");
+        return builder.toString();
+    }
+
+    @Override
+    public int hashCode()
+    {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((nodeName == null)?0:nodeName.hashCode());
+        result = prime * result + ((error == null)?0:error.hashCode());
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        NodeErrorJaxBean other = (NodeErrorJaxBean)obj;
+        if (nodeName == null)
+        {
+            if (other.nodeName != null)
+                return false;
+        }
+        else if (!nodeName.equals(other.nodeName))
+            return false;
+        if (error == null)
+        {
+            if (other.error != null)
+                return false;
+        }
+        else if (!error.equals(other.error))
+            return false;
+        return true;
+    }
+}
@@ -26,6 +26,8 @@ public class OperationReturnValueJaxBean implements Comparable<OperationReturnVa
     @XmlElement(name = "NodeName")
     public String nodeName;
     public String returnValue;
+    @XmlElement(name = "Error")
+    public String error;
 
     public OperationReturnValueJaxBean()
     {
@@ -37,6 +39,17 @@ public class OperationReturnValueJaxBean implements Comparable<OperationReturnVa
         this.returnValue = object == null?"success":object.toString();
     }
 
+    /**
+     * Creates a return value marking that the operation could not be invoked on the node.
+     */
+    public static OperationReturnValueJaxBean failure(String nodeName, String error)
+    {
+        OperationReturnValueJaxBean operationReturnValueJaxBean = new OperationReturnValueJaxBean();
+        operationReturnValueJaxBean.nodeName = nodeName;
+        operationReturnValueJaxBean.error = error;
+        return operationReturnValueJaxBean;
+    }
+
     public int compareTo(OperationReturnValueJaxBean o)
     {
         return nodeName.compareTo(o.nodeName);
@@ -50,6 +63,8 @@ public class OperationReturnValueJaxBean implements Comparable<OperationReturnVa
         builder.append(nodeName);
         builder.append(", returnValue=");
         builder.append(returnValue);
+        builder.append(", error=");
+        builder.append(error);
         builder.append("]");
         return builder.toString();
     }
@@ -61,6 +76,7 @@ public class OperationReturnValueJaxBean implements Comparable<OperationReturnVa
         int result = 1;
         result = prime * result + ((nodeName == null)?0:nodeName.hashCode());
         result = prime * result + ((returnValue == null)?0:returnValue.hashCode());
+        result = prime * result + ((error == null)?0:error.hashCode());
         return result;
     }
 
@@ -88,6 +104,13 @@ public class OperationReturnValueJaxBean implements Comparable<OperationReturnVa
         }
         else if (!returnValue.equals(other.returnValue))
             return false;
+        if (error == null)
+        {
+            if (other.error != null)
+                return false;
+        }
+        else if (!error.equals(other.error))
+            return false;
         return true;
     }
 }
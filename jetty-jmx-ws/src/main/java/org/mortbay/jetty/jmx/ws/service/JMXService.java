@@ -1,5 +1,6 @@
 package org.mortbay.jetty.jmx.ws.service;
 
+import java.util.Map;
 import java.util.Set;
 
 import javax.management.InstanceNotFoundException;
@@ -23,4 +24,11 @@ public interface JMXService
 
     public abstract Object getAttribute(JMXServiceURL jmxServiceURL, String objectName, String attributeName) throws InstanceNotFoundException;
 
+    /**
+     * Reads several attributes of an MBean in a single round-trip.
+     * 
+     * @return the values by attribute name, with the same values {@link #getAttribute(JMXServiceURL, String, String)} returns
+     */
+    public abstract Map<String, Object> getAttributeValues(JMXServiceURL jmxServiceURL, String objectName, String[] attributeNames) throws InstanceNotFoundException;
+
 }
\ No newline at end of file
@@ -0,0 +1,45 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.mortbay.jetty.jmx.ws.service;
+
+import java.util.Collection;
+import java.util.Set;
+
+import org.mortbay.jetty.jmx.ws.domain.JMXNode;
+import org.mortbay.jetty.jmx.ws.domain.jaxb.TimeSeriesJaxBeans;
+
+/* ------------------------------------------------------------ */
+/**
+ * Samples configured MBean attributes of all nodes in the background and keeps the
+ * recent samples in memory.
+ */
+public interface SamplerService
+{
+    public void start();
+
+    public void stop();
+
+    /**
+     * @return the names of the sampled metrics
+     */
+    public Set<String> getMetricNames();
+
+    /**
+     * @param jmxNodes the nodes to return the series of
+     * @param metricName the metric to return, or null for all metrics
+     * @param window the age in milliseconds of the oldest sample to return
+     * @param withSamples whether to return the samples, or only their min, avg and max
+     */
+    public TimeSeriesJaxBeans getTimeSeries(Collection<JMXNode> jmxNodes, String metricName, long window, boolean withSamples);
+}
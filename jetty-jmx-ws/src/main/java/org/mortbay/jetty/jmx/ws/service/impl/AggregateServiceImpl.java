@@ -1,13 +1,29 @@
 package org.mortbay.jetty.jmx.ws.service.impl;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanAttributeInfo;
@@ -17,6 +33,8 @@ import javax.management.openmbean.CompositeData;
 import javax.management.remote.JMXServiceURL;
 import javax.ws.rs.core.UriInfo;
 
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
 import org.mortbay.jetty.jmx.ws.domain.JMXNode;
 import org.mortbay.jetty.jmx.ws.domain.jaxb.NodeJaxBean;
 import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.MBeanAttributeJaxBean;
@@ -27,6 +45,7 @@ import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.MBeanOperationJaxBean;
 import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.MBeanOperationJaxBeans;
 import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.MBeanShortJaxBean;
 import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.MBeanShortJaxBeans;
+import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.NodeErrorJaxBean;
 import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.OperationReturnValueJaxBean;
 import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.OperationReturnValueJaxBeans;
 import org.mortbay.jetty.jmx.ws.service.AggregateService;
@@ -35,44 +54,129 @@ import org.mortbay.jetty.jmx.ws.service.JMXService;
 
 
 
+/* ------------------------------------------------------------ */
+/**
+ * Aggregates the MBeans of several nodes.
+ * <p>
+ * Nodes are queried concurrently by a bounded pool of threads. A node that does not answer within the node timeout, or that fails, does not
+ * fail the whole request: its results are left out and replaced by error markers, so that slow nodes only delay a request by the node timeout.
+ * When the pool is saturated, the queries that cannot be queued are rejected and their nodes are reported as failed, rather than run by the
+ * requesting thread without a timeout.
+ */
 public class AggregateServiceImpl implements AggregateService
 {
+    private static final Logger LOG = Log.getLogger(AggregateServiceImpl.class);
+
     private static final String[] HEAP_MEMORY_KEYS = new String[]
     { "init", "used", "committed", "max" };
     public static final String ID_REPLACE_REGEX = ",id=\\d+";
+    private static final Pattern ID_REPLACE_PATTERN = Pattern.compile(ID_REPLACE_REGEX);
+    private static final Pattern ID_MATCH_PATTERN = Pattern.compile(".*?" + ID_REPLACE_REGEX);
+    private static final int MAX_CACHED_OBJECT_NAMES = 10000;
+    public static final int DEFAULT_THREADS = 16;
+    public static final long DEFAULT_NODE_TIMEOUT = 10000;
 
     private JMXService _jmxService;
+    // Object names without their id, or the object name itself if it does not end with an id
+    private final ConcurrentMap<String, String> _objectNamesWithoutId = new ConcurrentHashMap<String, String>();
     // TODO: IOC
     private JMXNodeService _jmxNodeService = new JMXNodeServiceImpl();
+    private final ExecutorService _executor;
+    private volatile long _nodeTimeout = DEFAULT_NODE_TIMEOUT;
 
     public AggregateServiceImpl(JMXService jmxService)
+    {
+        this(jmxService,newExecutor(DEFAULT_THREADS));
+    }
+
+    /**
+     * @param jmxService the service used to query the nodes
+     * @param executor the executor querying the nodes concurrently
+     */
+    public AggregateServiceImpl(JMXService jmxService, ExecutorService executor)
     {
         this._jmxService = jmxService;
+        this._executor = executor;
     }
 
-    public Set<NodeJaxBean> getNodes()
+    /**
+     * Creates a pool of daemon threads with a bounded queue. When the queue is full, further queries are rejected.
+     */
+    public static ExecutorService newExecutor(int threads)
     {
-        Set<NodeJaxBean> nodes = new TreeSet<NodeJaxBean>();
-        for (JMXNode jmxNode : _jmxNodeService.getNodes())
+        ThreadFactory threadFactory = new ThreadFactory()
         {
-            JMXServiceURL jmxServiceURL = jmxNode.getJmxServiceURL();
-            String jettyVersion;
-            try
+            private final AtomicInteger _threads = new AtomicInteger();
+
+            public Thread newThread(Runnable task)
             {
-                jettyVersion = getJettyVersions(jmxServiceURL);
-                Map<String, Long> nodeMemoryUsageMap = getMemoryByNode(jmxNode);
-                NodeJaxBean NodeJaxBean = new NodeJaxBean.NodeJaxBeanBuilder(jmxNode.getNodeName(),jettyVersion,jmxServiceURL).memory(nodeMemoryUsageMap)
-                        .threadCount(getThreadCount(jmxServiceURL)).peakThreadCount(getPeakThreadCount(jmxServiceURL)).build();
-                nodes.add(NodeJaxBean);
+                Thread thread = new Thread(task,"jmx-ws-" + _threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
             }
-            catch (InstanceNotFoundException e)
+        };
+        return new ThreadPoolExecutor(threads,threads,0,TimeUnit.MILLISECONDS,new ArrayBlockingQueue<Runnable>(threads * 16),threadFactory);
+    }
+
+    /**
+     * @return the time in milliseconds to wait for the nodes of a request
+     */
+    public long getNodeTimeout()
+    {
+        return _nodeTimeout;
+    }
+
+    public void setNodeTimeout(long nodeTimeout)
+    {
+        _nodeTimeout = nodeTimeout;
+    }
+
+    public Set<NodeJaxBean> getNodes()
+    {
+        Collection<JMXNode> jmxNodes = _jmxNodeService.getNodes();
+        Map<JMXNode, String> errors = new LinkedHashMap<JMXNode, String>();
+        Map<JMXNode, NodeJaxBean> results;
+        try
+        {
+            results = queryNodes(jmxNodes,errors,new NodeQuery<NodeJaxBean>()
             {
-                throw new IllegalStateException("While fetching data for: " + jmxNode.getNodeName(),e);
-            }
+                public NodeJaxBean query(JMXNode jmxNode)
+                {
+                    return getNode(jmxNode);
+                }
+            });
+        }
+        catch (InstanceNotFoundException e)
+        {
+            // Not thrown by getNode()
+            throw new IllegalStateException(e);
+        }
+
+        Set<NodeJaxBean> nodes = new TreeSet<NodeJaxBean>(results.values());
+        for (Map.Entry<JMXNode, String> error : errors.entrySet())
+        {
+            JMXNode jmxNode = error.getKey();
+            nodes.add(new NodeJaxBean.NodeJaxBeanBuilder(jmxNode.getNodeName(),null,jmxNode.getJmxServiceURL()).error(error.getValue()).build());
         }
         return nodes;
     }
 
+    private NodeJaxBean getNode(JMXNode jmxNode)
+    {
+        JMXServiceURL jmxServiceURL = jmxNode.getJmxServiceURL();
+        try
+        {
+            String jettyVersion = getJettyVersions(jmxServiceURL);
+            Map<String, Long> nodeMemoryUsageMap = getMemoryByNode(jmxNode);
+            return new NodeJaxBean.NodeJaxBeanBuilder(jmxNode.getNodeName(),jettyVersion,jmxServiceURL).memory(nodeMemoryUsageMap)
+                    .threadCount(getThreadCount(jmxServiceURL)).peakThreadCount(getPeakThreadCount(jmxServiceURL)).build();
+        }
+        catch (InstanceNotFoundException e)
+        {
+            throw new IllegalStateException("While fetching data for: " + jmxNode.getNodeName(),e);
+        }
+    }
+
     private String getJettyVersions(JMXServiceURL jmxServiceURL) throws InstanceNotFoundException
     {
         return (String)_jmxService.getAttribute(jmxServiceURL,JMXServiceImpl.JETTY_SERVER_MBEAN,"version");
@@ -112,12 +216,28 @@ public class AggregateServiceImpl implements AggregateService
 
     public MBeanShortJaxBeans getMBeanShortJaxBeans(UriInfo uriInfo, Collection<JMXNode> jmxNodes)
     {
+        Map<JMXNode, Set<ObjectName>> objectNamesByNode;
+        try
+        {
+            objectNamesByNode = queryNodes(jmxNodes,new LinkedHashMap<JMXNode, String>(),new NodeQuery<Set<ObjectName>>()
+            {
+                public Set<ObjectName> query(JMXNode jmxNode)
+                {
+                    return _jmxService.getObjectNames(jmxNode.getJmxServiceURL());
+                }
+            });
+        }
+        catch (InstanceNotFoundException e)
+        {
+            // Not thrown by getObjectNames()
+            throw new IllegalStateException(e);
+        }
+
         Set<ObjectName> commonObjectNames = new HashSet<ObjectName>();
 
         Set<MBeanShortJaxBean> mBeanShortJaxBeans = new TreeSet<MBeanShortJaxBean>();
-        for (JMXNode jmxNode : jmxNodes)
+        for (Set<ObjectName> nodeObjectNames : objectNamesByNode.values())
         {
-            Set<ObjectName> nodeObjectNames = _jmxService.getObjectNames(jmxNode.getJmxServiceURL());
             if (commonObjectNames.isEmpty())
                 commonObjectNames.addAll(nodeObjectNames);
             else
@@ -146,107 +266,131 @@ public class AggregateServiceImpl implements AggregateService
         Set<String> objectNameStrings = new TreeSet<String>();
         for (ObjectName objectName : objectNames)
         {
-            objectNameStrings.add(objectName.toString().replaceFirst(ID_REPLACE_REGEX,""));
+            objectNameStrings.add(ID_REPLACE_PATTERN.matcher(objectName.toString()).replaceFirst(""));
         }
         return objectNameStrings;
     }
 
     public MBeanAttributeValueJaxBeans getAllAttributeValues(Collection<JMXNode> jmxNodes, String objectName) throws InstanceNotFoundException
     {
-        Set<MBeanAttributeValueJaxBean> mBeanAttributeValueJaxBeans = new TreeSet<MBeanAttributeValueJaxBean>();
-        Map<String, MBeanAttributeInfo> mBeanAttributeInfos = aggregateMBeanAttributeInfos(jmxNodes,objectName);
-        for (JMXNode jmxNode : jmxNodes)
+        Map<JMXNode, String> errors = new LinkedHashMap<JMXNode, String>();
+        Map<String, MBeanAttributeInfo> mBeanAttributeInfos = aggregateMBeanAttributeInfos(jmxNodes,objectName,errors);
+        String[] attributeNames = mBeanAttributeInfos.keySet().toArray(new String[mBeanAttributeInfos.size()]);
+
+        // Nodes whose attributes could not be listed are not queried again, but reported as failed
+        Collection<JMXNode> answeredJmxNodes = new ArrayList<JMXNode>(jmxNodes);
+        answeredJmxNodes.removeAll(errors.keySet());
+        MBeanAttributeValueJaxBeans mBeanAttributeValueJaxBeans = getAttributeValues(answeredJmxNodes,objectName,attributeNames);
+        for (Map.Entry<JMXNode, String> error : errors.entrySet())
         {
-            JMXServiceURL jmxServiceURL = jmxNode.getJmxServiceURL();
-            Set<String> objectNames = parseObjectNameToAggregateMBeansWithMultipleIDs(objectName,jmxServiceURL);
-            try
-            {
-                mBeanAttributeValueJaxBeans.addAll(getAttributeValues(objectNames,mBeanAttributeInfos,jmxNode));
-            }
-            catch (InstanceNotFoundException e)
-            {
-                objectNames = _jmxService.getObjectNamesByPrefix(jmxServiceURL,objectName);
-                mBeanAttributeValueJaxBeans.addAll(getAttributeValues(objectNames,mBeanAttributeInfos,jmxNode));
-            }
+            for (String attributeName : attributeNames)
+                mBeanAttributeValueJaxBeans.mBeanAttributeValueJaxBeans.add(MBeanAttributeValueJaxBean.failure(attributeName,error.getKey().getNodeName(),
+                        objectName,error.getValue()));
         }
-        return new MBeanAttributeValueJaxBeans(mBeanAttributeValueJaxBeans);
+        return mBeanAttributeValueJaxBeans;
     }
 
-    private Set<MBeanAttributeValueJaxBean> getAttributeValues(Set<String> objectNames, Map<String, MBeanAttributeInfo> mBeanAttributeInfos,
-            JMXNode jmxNode) throws InstanceNotFoundException
+    public MBeanAttributeValueJaxBeans getAttributeValues(Collection<JMXNode> jmxNodes, String objectName, String attributeName)
+            throws InstanceNotFoundException
     {
-        Set<MBeanAttributeValueJaxBean> mBeanAttributeValueJaxBeans = new TreeSet<MBeanAttributeValueJaxBean>();
-        for (String attributeName : mBeanAttributeInfos.keySet())
-        {
-            getAttributeValuesForNode(attributeName,mBeanAttributeValueJaxBeans,jmxNode,objectNames);
-        }
-        return mBeanAttributeValueJaxBeans;
+        return getAttributeValues(jmxNodes,objectName,new String[]
+        { attributeName });
     }
 
-    public MBeanAttributeValueJaxBeans getAttributeValues(Collection<JMXNode> jmxNodes, String objectName, String attributeName)
+    private MBeanAttributeValueJaxBeans getAttributeValues(Collection<JMXNode> jmxNodes, final String objectName, final String[] attributeNames)
             throws InstanceNotFoundException
     {
-        Set<MBeanAttributeValueJaxBean> mBeanAttributeValueJaxBeans = new TreeSet<MBeanAttributeValueJaxBean>();
-        for (JMXNode jmxNode : jmxNodes)
+        Map<JMXNode, String> errors = new LinkedHashMap<JMXNode, String>();
+        Map<JMXNode, Set<MBeanAttributeValueJaxBean>> results = queryNodes(jmxNodes,errors,new NodeQuery<Set<MBeanAttributeValueJaxBean>>()
         {
-            JMXServiceURL jmxServiceURL = jmxNode.getJmxServiceURL();
-            Set<String> objectNames = parseObjectNameToAggregateMBeansWithMultipleIDs(objectName,jmxServiceURL);
-            try
+            public Set<MBeanAttributeValueJaxBean> query(JMXNode jmxNode) throws InstanceNotFoundException
             {
-                getAttributeValuesForNode(attributeName,mBeanAttributeValueJaxBeans,jmxNode,objectNames);
-            }
-            catch (InstanceNotFoundException e)
-            {
-                objectNames = _jmxService.getObjectNamesByPrefix(jmxServiceURL,objectName);
-                getAttributeValuesForNode(attributeName,mBeanAttributeValueJaxBeans,jmxNode,objectNames);
+                JMXServiceURL jmxServiceURL = jmxNode.getJmxServiceURL();
+                Set<String> objectNames = parseObjectNameToAggregateMBeansWithMultipleIDs(objectName,jmxServiceURL);
+                try
+                {
+                    return getAttributeValuesForNode(attributeNames,jmxNode,objectNames);
+                }
+                catch (InstanceNotFoundException e)
+                {
+                    objectNames = _jmxService.getObjectNamesByPrefix(jmxServiceURL,objectName);
+                    return getAttributeValuesForNode(attributeNames,jmxNode,objectNames);
+                }
             }
+        });
+
+        Set<MBeanAttributeValueJaxBean> mBeanAttributeValueJaxBeans = new TreeSet<MBeanAttributeValueJaxBean>();
+        for (Set<MBeanAttributeValueJaxBean> nodeMBeanAttributeValueJaxBeans : results.values())
+            mBeanAttributeValueJaxBeans.addAll(nodeMBeanAttributeValueJaxBeans);
+        for (Map.Entry<JMXNode, String> error : errors.entrySet())
+        {
+            for (String attributeName : attributeNames)
+                mBeanAttributeValueJaxBeans.add(MBeanAttributeValueJaxBean.failure(attributeName,error.getKey().getNodeName(),objectName,error.getValue()));
         }
         return new MBeanAttributeValueJaxBeans(mBeanAttributeValueJaxBeans);
     }
 
-    private void getAttributeValuesForNode(String attributeName, Set<MBeanAttributeValueJaxBean> mBeanAttributeValueJaxBeans,
-            JMXNode jmxNode, Set<String> objectNames) throws InstanceNotFoundException
+    private Set<MBeanAttributeValueJaxBean> getAttributeValuesForNode(String[] attributeNames, JMXNode jmxNode, Set<String> objectNames)
+            throws InstanceNotFoundException
     {
+        Set<MBeanAttributeValueJaxBean> mBeanAttributeValueJaxBeans = new TreeSet<MBeanAttributeValueJaxBean>();
+        if (attributeNames.length == 0)
+            return mBeanAttributeValueJaxBeans;
         for (String aggregatedObjectName : objectNames)
         {
-            Object value = _jmxService.getAttribute(jmxNode.getJmxServiceURL(),aggregatedObjectName,attributeName);
-            mBeanAttributeValueJaxBeans.add(new MBeanAttributeValueJaxBean(attributeName,jmxNode.getNodeName(),aggregatedObjectName,value));
+            Map<String, Object> values = _jmxService.getAttributeValues(jmxNode.getJmxServiceURL(),aggregatedObjectName,attributeNames);
+            for (String attributeName : attributeNames)
+                mBeanAttributeValueJaxBeans.add(new MBeanAttributeValueJaxBean(attributeName,jmxNode.getNodeName(),aggregatedObjectName,
+                        values.get(attributeName)));
         }
+        return mBeanAttributeValueJaxBeans;
     }
 
     public MBeanOperationJaxBeans getOperationsMetaData(UriInfo uriInfo, Collection<JMXNode> jmxNodes, String objectName)
             throws InstanceNotFoundException
     {
         Set<MBeanOperationJaxBean> mBeanOperationJaxBeans = new TreeSet<MBeanOperationJaxBean>();
-        Map<String, MBeanOperationInfo> mBeanOperations = aggregateOperations(jmxNodes,objectName);
+        Map<JMXNode, String> errors = new LinkedHashMap<JMXNode, String>();
+        Map<String, MBeanOperationInfo> mBeanOperations = aggregateOperations(jmxNodes,objectName,errors);
 
         for (MBeanOperationInfo mBeanOperationInfo : mBeanOperations.values())
             mBeanOperationJaxBeans.add(new MBeanOperationJaxBean(uriInfo,mBeanOperationInfo));
 
-        return new MBeanOperationJaxBeans(objectName,mBeanOperationJaxBeans);
+        return new MBeanOperationJaxBeans(objectName,mBeanOperationJaxBeans,toNodeErrorJaxBeans(errors));
     }
 
-    private Map<String, MBeanOperationInfo> aggregateOperations(Collection<JMXNode> jmxNodes, String objectName) throws InstanceNotFoundException
+    /**
+     * @param errors receives the nodes that timed out or failed, with the reason
+     */
+    private Map<String, MBeanOperationInfo> aggregateOperations(Collection<JMXNode> jmxNodes, final String objectName, Map<JMXNode, String> errors)
+            throws InstanceNotFoundException
     {
+        // The operations of each node are fetched concurrently, then merged in node order
+        Map<JMXNode, Map<String, MBeanOperationInfo[]>> results = queryNodes(jmxNodes,errors,
+                new NodeQuery<Map<String, MBeanOperationInfo[]>>()
+                {
+                    public Map<String, MBeanOperationInfo[]> query(JMXNode jmxNode) throws InstanceNotFoundException
+                    {
+                        JMXServiceURL jmxServiceURL = jmxNode.getJmxServiceURL();
+                        Set<String> objectNames = parseObjectNameToAggregateMBeansWithMultipleIDs(objectName,jmxServiceURL);
+                        try
+                        {
+                            return getMBeanOperationInfosForNode(objectNames,jmxServiceURL);
+                        }
+                        catch (InstanceNotFoundException e)
+                        {
+                            objectNames = _jmxService.getObjectNamesByPrefix(jmxServiceURL,objectName);
+                            return getMBeanOperationInfosForNode(objectNames,jmxServiceURL);
+                        }
+                    }
+                });
 
         Map<String, MBeanOperationInfo> mBeanOperations = new HashMap<String, MBeanOperationInfo>();
         Set<MBeanOperationInfo> nonEqualOperationsToRemove = new HashSet<MBeanOperationInfo>();
-        // TODO: three nested for loops and some if clauses...too high cyclomatic complexity
-        for (JMXNode jmxNode : jmxNodes)
+        for (Map<String, MBeanOperationInfo[]> mBeanOperationInfosByObjectName : results.values())
         {
-            JMXServiceURL jmxServiceURL = jmxNode.getJmxServiceURL();
-            Set<String> objectNames = parseObjectNameToAggregateMBeansWithMultipleIDs(objectName,jmxServiceURL);
-            try
-            {
-                if (!aggregateMBeanOperationInfosForNode(objectNames,mBeanOperations,nonEqualOperationsToRemove,jmxServiceURL))
-                    return Collections.emptyMap();
-            }
-            catch (InstanceNotFoundException e)
-            {
-                objectNames = _jmxService.getObjectNamesByPrefix(jmxServiceURL,objectName);
-                if (!aggregateMBeanOperationInfosForNode(objectNames,mBeanOperations,nonEqualOperationsToRemove,jmxServiceURL))
-                    return Collections.emptyMap();
-            }
+            if (!aggregateMBeanOperationInfosForNode(mBeanOperationInfosByObjectName,mBeanOperations,nonEqualOperationsToRemove))
+                return Collections.emptyMap();
         }
 
         removeNonEqualOperations(mBeanOperations,nonEqualOperationsToRemove);
@@ -254,12 +398,20 @@ public class AggregateServiceImpl implements AggregateService
         return mBeanOperations;
     }
 
-    private boolean aggregateMBeanOperationInfosForNode(Set<String> objectNames, Map<String, MBeanOperationInfo> mBeanOperations,
-            Set<MBeanOperationInfo> nonEqualOperationsToRemove, JMXServiceURL jmxServiceURL) throws InstanceNotFoundException
+    private Map<String, MBeanOperationInfo[]> getMBeanOperationInfosForNode(Set<String> objectNames, JMXServiceURL jmxServiceURL)
+            throws InstanceNotFoundException
     {
+        Map<String, MBeanOperationInfo[]> mBeanOperationInfosByObjectName = new LinkedHashMap<String, MBeanOperationInfo[]>();
         for (String aggregatedObjectName : objectNames)
+            mBeanOperationInfosByObjectName.put(aggregatedObjectName,_jmxService.getOperations(jmxServiceURL,aggregatedObjectName));
+        return mBeanOperationInfosByObjectName;
+    }
+
+    private boolean aggregateMBeanOperationInfosForNode(Map<String, MBeanOperationInfo[]> mBeanOperationInfosByObjectName,
+            Map<String, MBeanOperationInfo> mBeanOperations, Set<MBeanOperationInfo> nonEqualOperationsToRemove)
+    {
+        for (MBeanOperationInfo[] mBeanOperationInfoArray : mBeanOperationInfosByObjectName.values())
         {
-            MBeanOperationInfo[] mBeanOperationInfoArray = _jmxService.getOperations(jmxServiceURL,aggregatedObjectName);
             if (mBeanOperationInfoArray != null)
                 for (MBeanOperationInfo mBeanOperationInfo : mBeanOperationInfoArray)
                 {
@@ -287,35 +439,47 @@ public class AggregateServiceImpl implements AggregateService
             throws InstanceNotFoundException
     {
         Set<MBeanAttributeJaxBean> mBeanAttributeJaxBeans = new TreeSet<MBeanAttributeJaxBean>();
-        Map<String, MBeanAttributeInfo> mBeanAttributeInfos = aggregateMBeanAttributeInfos(jmxNodes,objectName);
+        Map<JMXNode, String> errors = new LinkedHashMap<JMXNode, String>();
+        Map<String, MBeanAttributeInfo> mBeanAttributeInfos = aggregateMBeanAttributeInfos(jmxNodes,objectName,errors);
 
         for (String attributeName : mBeanAttributeInfos.keySet())
             mBeanAttributeJaxBeans.add(new MBeanAttributeJaxBean(uriInfo,mBeanAttributeInfos.get(attributeName)));
 
-        return new MBeanAttributeJaxBeans(mBeanAttributeJaxBeans);
+        return new MBeanAttributeJaxBeans(mBeanAttributeJaxBeans,toNodeErrorJaxBeans(errors));
     }
 
-    private Map<String, MBeanAttributeInfo> aggregateMBeanAttributeInfos(Collection<JMXNode> jmxNodes, String objectName)
-            throws InstanceNotFoundException
+    /**
+     * @param errors receives the nodes that timed out or failed, with the reason
+     */
+    private Map<String, MBeanAttributeInfo> aggregateMBeanAttributeInfos(Collection<JMXNode> jmxNodes, final String objectName,
+            Map<JMXNode, String> errors) throws InstanceNotFoundException
     {
+        // The attributes of each node are fetched concurrently, then merged in node order
+        Map<JMXNode, Map<String, MBeanAttributeInfo[]>> results = queryNodes(jmxNodes,errors,
+                new NodeQuery<Map<String, MBeanAttributeInfo[]>>()
+                {
+                    public Map<String, MBeanAttributeInfo[]> query(JMXNode jmxNode) throws InstanceNotFoundException
+                    {
+                        JMXServiceURL jmxServiceURL = jmxNode.getJmxServiceURL();
+                        Set<String> objectNames = parseObjectNameToAggregateMBeansWithMultipleIDs(objectName,jmxServiceURL);
+                        try
+                        {
+                            return getMBeanAttributeInfosForNode(jmxServiceURL,objectNames);
+                        }
+                        catch (InstanceNotFoundException e)
+                        {
+                            objectNames = _jmxService.getObjectNamesByPrefix(jmxServiceURL,objectName);
+                            return getMBeanAttributeInfosForNode(jmxServiceURL,objectNames);
+                        }
+                    }
+                });
+
         Map<String, MBeanAttributeInfo> mBeanAttributeInfos = new HashMap<String, MBeanAttributeInfo>();
         Set<String> nonEqualAttributeNamesToRemove = new HashSet<String>();
-        for (JMXNode jmxNode : jmxNodes)
+        for (Map<String, MBeanAttributeInfo[]> mBeanAttributeInfosByObjectName : results.values())
         {
-            JMXServiceURL jmxServiceURL = jmxNode.getJmxServiceURL();
-            Set<String> objectNames = parseObjectNameToAggregateMBeansWithMultipleIDs(objectName,jmxServiceURL);
-
-            try
-            {
-                if (!aggregateMBeanAttributeInfosForNode(mBeanAttributeInfos,nonEqualAttributeNamesToRemove,jmxServiceURL,objectNames))
-                    return Collections.emptyMap();
-            }
-            catch (InstanceNotFoundException e)
-            {
-                objectNames = _jmxService.getObjectNamesByPrefix(jmxServiceURL,objectName);
-                if (!aggregateMBeanAttributeInfosForNode(mBeanAttributeInfos,nonEqualAttributeNamesToRemove,jmxServiceURL,objectNames))
-                    return Collections.emptyMap();
-            }
+            if (!aggregateMBeanAttributeInfosForNode(mBeanAttributeInfos,nonEqualAttributeNamesToRemove,mBeanAttributeInfosByObjectName))
+                return Collections.emptyMap();
         }
 
         removeDuplicates(mBeanAttributeInfos,nonEqualAttributeNamesToRemove);
@@ -323,12 +487,20 @@ public class AggregateServiceImpl implements AggregateService
         return mBeanAttributeInfos;
     }
 
-    private boolean aggregateMBeanAttributeInfosForNode(Map<String, MBeanAttributeInfo> mBeanAttributeInfos, Set<String> nonEqualAttributeNamesToRemove,
-            JMXServiceURL jmxServiceURL, Set<String> objectNames) throws InstanceNotFoundException
+    private Map<String, MBeanAttributeInfo[]> getMBeanAttributeInfosForNode(JMXServiceURL jmxServiceURL, Set<String> objectNames)
+            throws InstanceNotFoundException
     {
+        Map<String, MBeanAttributeInfo[]> mBeanAttributeInfosByObjectName = new LinkedHashMap<String, MBeanAttributeInfo[]>();
         for (String aggregatedObjectName : objectNames)
+            mBeanAttributeInfosByObjectName.put(aggregatedObjectName,_jmxService.getAttributes(jmxServiceURL,aggregatedObjectName));
+        return mBeanAttributeInfosByObjectName;
+    }
+
+    private boolean aggregateMBeanAttributeInfosForNode(Map<String, MBeanAttributeInfo> mBeanAttributeInfos, Set<String> nonEqualAttributeNamesToRemove,
+            Map<String, MBeanAttributeInfo[]> mBeanAttributeInfosByObjectName)
+    {
+        for (MBeanAttributeInfo[] mBeanAttributeInfoArray : mBeanAttributeInfosByObjectName.values())
         {
-            MBeanAttributeInfo[] mBeanAttributeInfoArray = _jmxService.getAttributes(jmxServiceURL,aggregatedObjectName);
             if (mBeanAttributeInfoArray != null)
                 addAttributeInfosToMap(mBeanAttributeInfos,nonEqualAttributeNamesToRemove,mBeanAttributeInfoArray);
             else
@@ -342,15 +514,29 @@ public class AggregateServiceImpl implements AggregateService
         Set<String> objectNames = new TreeSet<String>();
         objectNames.add(objectName);
 
-        String string = objectName.toString();
-        String idMatchRegex = ".*?" + ID_REPLACE_REGEX;
+        String objectNamePrefix = getObjectNameWithoutId(objectName);
+        if (objectNamePrefix != null)
+            objectNames = _jmxService.getObjectNamesByPrefix(jmxServiceURL,objectNamePrefix);
+        return objectNames;
+    }
 
-        if (string.matches(idMatchRegex))
+    /**
+     * @return the object name without its trailing id, or null if it does not end with an id
+     */
+    private String getObjectNameWithoutId(String objectName)
+    {
+        String objectNamePrefix = _objectNamesWithoutId.get(objectName);
+        if (objectNamePrefix == null)
         {
-            String objectNamePrefix = objectName.replaceFirst(ID_REPLACE_REGEX,"");
-            objectNames = _jmxService.getObjectNamesByPrefix(jmxServiceURL,objectNamePrefix);
+            objectNamePrefix = objectName;
+            if (ID_MATCH_PATTERN.matcher(objectName).matches())
+                objectNamePrefix = ID_REPLACE_PATTERN.matcher(objectName).replaceFirst("");
+            // Object names are requested by clients, do not let them grow the cache forever.
+            // Once it is full, the cached names keep being served and the others are computed every time.
+            if (_objectNamesWithoutId.size() < MAX_CACHED_OBJECT_NAMES)
+                _objectNamesWithoutId.putIfAbsent(objectName,objectNamePrefix);
         }
-        return objectNames;
+        return objectNamePrefix.equals(objectName)?null:objectNamePrefix;
     }
 
     private void addAttributeInfosToMap(Map<String, MBeanAttributeInfo> mBeanAttributeInfos, Set<String> duplicatesToRemove,
@@ -374,24 +560,121 @@ public class AggregateServiceImpl implements AggregateService
 
     public OperationReturnValueJaxBeans invokeOperation(Collection<JMXNode> jmxNodes, String objectName, String operationName)
     {
-        Set<OperationReturnValueJaxBean> operationReturnValueJaxBeans = new TreeSet<OperationReturnValueJaxBean>();
-        for (JMXNode jmxNode : jmxNodes)
+        return invokeOperation(jmxNodes,objectName,operationName,null,null);
+    }
+
+    public OperationReturnValueJaxBeans invokeOperation(Collection<JMXNode> jmxNodes, final String objectName, final String operationName,
+            final Object[] params, final String[] signature)
+    {
+        Map<JMXNode, String> errors = new LinkedHashMap<JMXNode, String>();
+        Map<JMXNode, Object> results;
+        try
+        {
+            results = queryNodes(jmxNodes,errors,new NodeQuery<Object>()
+            {
+                public Object query(JMXNode jmxNode)
+                {
+                    return _jmxService.invoke(jmxNode.getJmxServiceURL(),objectName,operationName,params,signature);
+                }
+            });
+        }
+        catch (InstanceNotFoundException e)
         {
-            Object returnValue = _jmxService.invoke(jmxNode.getJmxServiceURL(),objectName,operationName,null,null);
-            operationReturnValueJaxBeans.add(new OperationReturnValueJaxBean(jmxNode.getNodeName(),returnValue));
+            // Not thrown by invoke()
+            throw new IllegalStateException(e);
         }
+
+        Set<OperationReturnValueJaxBean> operationReturnValueJaxBeans = new TreeSet<OperationReturnValueJaxBean>();
+        for (Map.Entry<JMXNode, Object> result : results.entrySet())
+            operationReturnValueJaxBeans.add(new OperationReturnValueJaxBean(result.getKey().getNodeName(),result.getValue()));
+        for (Map.Entry<JMXNode, String> error : errors.entrySet())
+            operationReturnValueJaxBeans.add(OperationReturnValueJaxBean.failure(error.getKey().getNodeName(),error.getValue()));
         return new OperationReturnValueJaxBeans(operationReturnValueJaxBeans);
     }
 
-    public OperationReturnValueJaxBeans invokeOperation(Collection<JMXNode> jmxNodes, String objectName, String operationName, Object[] params,
-            String[] signature)
+    private Set<NodeErrorJaxBean> toNodeErrorJaxBeans(Map<JMXNode, String> errors)
     {
-        Set<OperationReturnValueJaxBean> operationReturnValueJaxBeans = new TreeSet<OperationReturnValueJaxBean>();
-        for (JMXNode jmxNode : jmxNodes)
+        Set<NodeErrorJaxBean> nodeErrorJaxBeans = new TreeSet<NodeErrorJaxBean>();
+        for (Map.Entry<JMXNode, String> error : errors.entrySet())
+            nodeErrorJaxBeans.add(new NodeErrorJaxBean(error.getKey().getNodeName(),error.getValue()));
+        return nodeErrorJaxBeans;
+    }
+
+    /**
+     * Runs a query on all nodes concurrently and waits at most the node timeout for the results.
+     * 
+     * @param jmxNodes the nodes to query
+     * @param errors receives the nodes that timed out, failed or whose query was rejected by the saturated pool, with the reason
+     * @param nodeQuery the query
+     * @return the results of the nodes that answered in time, in the order of <code>jmxNodes</code>
+     * @throws InstanceNotFoundException if the query of any node threw it
+     */
+    private <T> Map<JMXNode, T> queryNodes(Collection<JMXNode> jmxNodes, Map<JMXNode, String> errors, final NodeQuery<T> nodeQuery)
+            throws InstanceNotFoundException
+    {
+        Map<JMXNode, Future<T>> futures = new LinkedHashMap<JMXNode, Future<T>>();
+        for (final JMXNode jmxNode : jmxNodes)
         {
-            Object returnValue = _jmxService.invoke(jmxNode.getJmxServiceURL(),objectName,operationName,params,signature);
-            operationReturnValueJaxBeans.add(new OperationReturnValueJaxBean(jmxNode.getNodeName(),returnValue));
+            try
+            {
+                futures.put(jmxNode,_executor.submit(new Callable<T>()
+                {
+                    public T call() throws Exception
+                    {
+                        return nodeQuery.query(jmxNode);
+                    }
+                }));
+            }
+            catch (RejectedExecutionException e)
+            {
+                LOG.warn("Node " + jmxNode.getNodeName() + " not queried, too many queries pending");
+                errors.put(jmxNode,"Rejected, too many queries pending");
+            }
         }
-        return new OperationReturnValueJaxBeans(operationReturnValueJaxBeans);
+
+        Map<JMXNode, T> results = new LinkedHashMap<JMXNode, T>();
+        long deadline = System.currentTimeMillis() + _nodeTimeout;
+        try
+        {
+            for (Map.Entry<JMXNode, Future<T>> entry : futures.entrySet())
+            {
+                JMXNode jmxNode = entry.getKey();
+                Future<T> future = entry.getValue();
+                try
+                {
+                    results.put(jmxNode,future.get(Math.max(0,deadline - System.currentTimeMillis()),TimeUnit.MILLISECONDS));
+                }
+                catch (TimeoutException e)
+                {
+                    LOG.warn("Node " + jmxNode.getNodeName() + " did not answer within " + _nodeTimeout + " ms");
+                    errors.put(jmxNode,"Timed out after " + _nodeTimeout + " ms");
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof InstanceNotFoundException)
+                        throw (InstanceNotFoundException)cause;
+                    LOG.warn("Node " + jmxNode.getNodeName() + " failed: ",cause);
+                    errors.put(jmxNode,cause.toString());
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            // Do not let slow nodes hold threads of the pool after the results are returned
+            for (Future<T> future : futures.values())
+                future.cancel(true);
+        }
+        return results;
+    }
+
+    private interface NodeQuery<T>
+    {
+        T query(JMXNode jmxNode) throws InstanceNotFoundException;
     }
 }
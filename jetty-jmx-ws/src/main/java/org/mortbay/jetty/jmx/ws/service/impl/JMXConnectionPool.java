@@ -0,0 +1,580 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.mortbay.jetty.jmx.ws.service.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/* ------------------------------------------------------------ */
+/**
+ * Keeps one {@link JMXConnector} per node.
+ * <p>
+ * Connections are opened on first use by one caller per node while the other callers wait for it,
+ * so concurrent callers never open duplicate connectors. No lock is held while connecting, so a
+ * hanging node does not block the callers closing its connection. A background task closes the
+ * connections that have been idle for longer than the idle timeout, and probes the others, each
+ * node on its own thread, reconnecting the broken ones that are still in use. The probe of a node
+ * is skipped while its previous probe is still running, so a hanging node holds at most one probe
+ * thread and does not delay the probes of the other nodes; a probe that runs for longer than the
+ * probe timeout counts as a failure and closes the connection of its node. Failed connection
+ * attempts are retried with an exponential backoff, during which callers fail fast instead of
+ * waiting for the connect timeout of a dead node.
+ */
+public class JMXConnectionPool
+{
+    private static final Logger LOG = Log.getLogger(JMXConnectionPool.class);
+
+    public static final long DEFAULT_PROBE_INTERVAL = 30000;
+    public static final long DEFAULT_IDLE_TIMEOUT = 300000;
+    public static final long DEFAULT_MIN_BACKOFF = 1000;
+    public static final long DEFAULT_MAX_BACKOFF = 60000;
+    public static final long DEFAULT_PROBE_TIMEOUT = 10000;
+
+    private final ConcurrentMap<JMXServiceURL, NodeConnection> _connections = new ConcurrentHashMap<JMXServiceURL, NodeConnection>();
+    private final ScheduledExecutorService _scheduler;
+    private final ExecutorService _probes;
+    private volatile long _idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile long _minBackoff = DEFAULT_MIN_BACKOFF;
+    private volatile long _maxBackoff = DEFAULT_MAX_BACKOFF;
+    private volatile long _probeTimeout = DEFAULT_PROBE_TIMEOUT;
+
+    private final AtomicLong _connects = new AtomicLong();
+    private final AtomicLong _connectFailures = new AtomicLong();
+    private final AtomicLong _connectTimeTotal = new AtomicLong();
+    private final AtomicLong _connectTimeMax = new AtomicLong();
+    private final AtomicLong _probeFailures = new AtomicLong();
+    private final AtomicLong _evictions = new AtomicLong();
+
+    public JMXConnectionPool()
+    {
+        this(DEFAULT_PROBE_INTERVAL);
+    }
+
+    public JMXConnectionPool(long probeInterval)
+    {
+        _scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable,"jmx-ws-probe");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _probes = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private final AtomicInteger _threads = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable,"jmx-ws-probe-" + _threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                probe();
+            }
+        },probeInterval,probeInterval,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the connection to the node, opened if needed
+     * @throws IOException if the node cannot be connected, or if it is backing off after a failed attempt
+     */
+    public MBeanServerConnection getConnection(JMXServiceURL jmxServiceURL) throws IOException
+    {
+        while (true)
+        {
+            NodeConnection nodeConnection = _connections.get(jmxServiceURL);
+            if (nodeConnection == null)
+            {
+                nodeConnection = new NodeConnection(jmxServiceURL);
+                NodeConnection existing = _connections.putIfAbsent(jmxServiceURL,nodeConnection);
+                if (existing != null)
+                    nodeConnection = existing;
+            }
+            MBeanServerConnection connection = nodeConnection.getConnection();
+            if (connection != null)
+                return connection;
+            // Lost a race with the eviction of the node connection: retry with a new one
+            _connections.remove(jmxServiceURL,nodeConnection);
+        }
+    }
+
+    /**
+     * Closes the connection to the node if the failure shows it is broken, so that the next
+     * call opens a new one.
+     */
+    public void failed(JMXServiceURL jmxServiceURL, Throwable failure)
+    {
+        if (!(failure instanceof IOException))
+            return;
+        NodeConnection nodeConnection = _connections.get(jmxServiceURL);
+        if (nodeConnection != null)
+            nodeConnection.close("failed: " + failure);
+    }
+
+    /**
+     * Evicts the idle connections, and starts the probes of the others, which reconnect the broken ones.
+     */
+    void probe()
+    {
+        long now = System.currentTimeMillis();
+        for (final NodeConnection nodeConnection : _connections.values())
+        {
+            try
+            {
+                if (nodeConnection.evictIfIdle(now))
+                {
+                    _connections.remove(nodeConnection._jmxServiceURL,nodeConnection);
+                    if (nodeConnection.close("idle"))
+                        _evictions.incrementAndGet();
+                }
+                else if (nodeConnection.startProbe(now))
+                {
+                    _probes.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                nodeConnection.probe(System.currentTimeMillis());
+                            }
+                            catch (RuntimeException e)
+                            {
+                                LOG.warn("probe: " + nodeConnection._jmxServiceURL,e);
+                            }
+                            finally
+                            {
+                                nodeConnection.probeDone();
+                            }
+                        }
+                    });
+                }
+                else if (nodeConnection.timeOutProbe(now))
+                {
+                    _probeFailures.incrementAndGet();
+                    LOG.warn("probe: " + nodeConnection._jmxServiceURL + " did not answer within " + _probeTimeout + " ms");
+                    nodeConnection.close("probe timed out");
+                }
+            }
+            catch (RejectedExecutionException e)
+            {
+                // Stopped
+                nodeConnection.probeDone();
+            }
+            catch (RuntimeException e)
+            {
+                LOG.warn("probe: " + nodeConnection._jmxServiceURL,e);
+            }
+        }
+    }
+
+    public void stop()
+    {
+        _scheduler.shutdownNow();
+        _probes.shutdownNow();
+        for (NodeConnection nodeConnection : _connections.values())
+        {
+            nodeConnection.evict();
+            nodeConnection.close("stopped");
+        }
+        _connections.clear();
+    }
+
+    public long getIdleTimeout()
+    {
+        return _idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout)
+    {
+        _idleTimeout = idleTimeout;
+    }
+
+    public long getMinBackoff()
+    {
+        return _minBackoff;
+    }
+
+    public void setMinBackoff(long minBackoff)
+    {
+        _minBackoff = minBackoff;
+    }
+
+    public long getMaxBackoff()
+    {
+        return _maxBackoff;
+    }
+
+    public void setMaxBackoff(long maxBackoff)
+    {
+        _maxBackoff = maxBackoff;
+    }
+
+    /**
+     * @return the time in ms after which a probe that did not return counts as failed
+     */
+    public long getProbeTimeout()
+    {
+        return _probeTimeout;
+    }
+
+    public void setProbeTimeout(long probeTimeout)
+    {
+        _probeTimeout = probeTimeout;
+    }
+
+    public int getOpenConnections()
+    {
+        int open = 0;
+        for (NodeConnection nodeConnection : _connections.values())
+            if (nodeConnection.isOpen())
+                open++;
+        return open;
+    }
+
+    public long getConnects()
+    {
+        return _connects.get();
+    }
+
+    public long getConnectFailures()
+    {
+        return _connectFailures.get();
+    }
+
+    /**
+     * @return the average time in ms taken to open a connection
+     */
+    public long getConnectTimeAverage()
+    {
+        long connects = _connects.get();
+        return connects == 0?0:_connectTimeTotal.get() / connects;
+    }
+
+    /**
+     * @return the longest time in ms taken to open a connection
+     */
+    public long getConnectTimeMax()
+    {
+        return _connectTimeMax.get();
+    }
+
+    public long getProbeFailures()
+    {
+        return _probeFailures.get();
+    }
+
+    public long getEvictions()
+    {
+        return _evictions.get();
+    }
+
+    private void connected(long connectTime)
+    {
+        _connects.incrementAndGet();
+        _connectTimeTotal.addAndGet(connectTime);
+        long max = _connectTimeMax.get();
+        while (connectTime > max && !_connectTimeMax.compareAndSet(max,connectTime))
+            max = _connectTimeMax.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * The connection to one node. All state changes happen while holding its monitor. A
+     * connector is opened outside of the monitor by the thread that set <code>_connecting</code>,
+     * so that only one connector is ever opened per node.
+     */
+    private class NodeConnection implements NotificationListener
+    {
+        private final JMXServiceURL _jmxServiceURL;
+        private JMXConnector _connector;
+        private MBeanServerConnection _connection;
+        private long _backoff;
+        private long _nextAttempt;
+        private long _lastUsed = System.currentTimeMillis();
+        private boolean _evicted;
+        private boolean _connecting;
+        private long _probeStarted;
+        private boolean _probeTimedOut;
+
+        private NodeConnection(JMXServiceURL jmxServiceURL)
+        {
+            _jmxServiceURL = jmxServiceURL;
+        }
+
+        /**
+         * @return the connection, or null if this node connection has been evicted
+         */
+        private MBeanServerConnection getConnection() throws IOException
+        {
+            synchronized (this)
+            {
+                if (_evicted)
+                    return null;
+                _lastUsed = System.currentTimeMillis();
+                while (_connecting)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the connection to " + _jmxServiceURL);
+                    }
+                }
+                if (_evicted)
+                    return null;
+                if (_connection != null)
+                    return _connection;
+                long now = System.currentTimeMillis();
+                if (now < _nextAttempt)
+                    throw new IOException("Not connecting to " + _jmxServiceURL + " for another " + (_nextAttempt - now) + " ms after a failure");
+                _connecting = true;
+            }
+            return connect();
+        }
+
+        private synchronized boolean evictIfIdle(long now)
+        {
+            if (now - _lastUsed > _idleTimeout)
+                _evicted = true;
+            return _evicted;
+        }
+
+        /**
+         * @return true if no probe of this node is running, in which case the caller must run one
+         */
+        private synchronized boolean startProbe(long now)
+        {
+            if (_probeStarted != 0)
+                return false;
+            _probeStarted = now;
+            return true;
+        }
+
+        private synchronized void probeDone()
+        {
+            _probeStarted = 0;
+            _probeTimedOut = false;
+        }
+
+        /**
+         * @return true the first time the running probe is found to take longer than the probe timeout
+         */
+        private synchronized boolean timeOutProbe(long now)
+        {
+            if (_probeStarted == 0 || _probeTimedOut || now - _probeStarted <= _probeTimeout)
+                return false;
+            _probeTimedOut = true;
+            return true;
+        }
+
+        private synchronized void evict()
+        {
+            _evicted = true;
+        }
+
+        private synchronized boolean isOpen()
+        {
+            return _connection != null;
+        }
+
+        /**
+         * Opens the connector without holding the monitor. The caller must have set
+         * <code>_connecting</code>, which is cleared when done.
+         *
+         * @return the connection, or null if this node connection was evicted meanwhile
+         */
+        private MBeanServerConnection connect() throws IOException
+        {
+            LOG.debug("connect: opening jmx connection to: " + _jmxServiceURL);
+            long start = System.currentTimeMillis();
+            JMXConnector connector = null;
+            try
+            {
+                connector = JMXConnectorFactory.connect(_jmxServiceURL,null);
+                connector.addConnectionNotificationListener(this,null,null);
+                MBeanServerConnection connection = connector.getMBeanServerConnection();
+                synchronized (this)
+                {
+                    if (_evicted)
+                        return null;
+                    _connection = connection;
+                    _connector = connector;
+                    _backoff = 0;
+                    _nextAttempt = 0;
+                }
+                connector = null;
+                long connectTime = System.currentTimeMillis() - start;
+                connected(connectTime);
+                LOG.debug("connect: connected to " + _jmxServiceURL + " in " + connectTime + " ms");
+                return connection;
+            }
+            catch (IOException e)
+            {
+                _connectFailures.incrementAndGet();
+                long backoff;
+                synchronized (this)
+                {
+                    _backoff = _backoff == 0?_minBackoff:Math.min(_backoff * 2,_maxBackoff);
+                    _nextAttempt = System.currentTimeMillis() + _backoff;
+                    backoff = _backoff;
+                }
+                LOG.warn("connect: couldn't connect to " + _jmxServiceURL + ", retrying in " + backoff + " ms: " + e);
+                throw e;
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    _connecting = false;
+                    notifyAll();
+                }
+                // Not installed, because it failed half way or because this node connection was evicted
+                if (connector != null)
+                    close(connector);
+            }
+        }
+
+        private void probe(long now)
+        {
+            MBeanServerConnection connection;
+            synchronized (this)
+            {
+                connection = _connection;
+                if (connection == null)
+                {
+                    // Still in use, so reconnect before the next request needs it, outside of the lock
+                    if (_connecting || now < _nextAttempt)
+                        return;
+                    _connecting = true;
+                }
+            }
+
+            if (connection == null)
+            {
+                try
+                {
+                    connect();
+                }
+                catch (IOException e)
+                {
+                    LOG.ignore(e);
+                }
+                return;
+            }
+
+            // The probe is done outside of the lock, so that requests are not blocked by a hanging node
+            try
+            {
+                connection.getMBeanCount();
+            }
+            catch (IOException e)
+            {
+                _probeFailures.incrementAndGet();
+                LOG.warn("probe: connection to " + _jmxServiceURL + " is broken: " + e);
+                close(connection,"probe failed");
+            }
+        }
+
+        /**
+         * @return true if a connection was closed
+         */
+        private boolean close(String reason)
+        {
+            MBeanServerConnection connection;
+            synchronized (this)
+            {
+                connection = _connection;
+            }
+            return close(connection,reason);
+        }
+
+        /**
+         * Closes the connection only if it is still the current one, so that a late failure
+         * report does not close the connection opened after it.
+         */
+        private boolean close(MBeanServerConnection connection, String reason)
+        {
+            JMXConnector connector;
+            synchronized (this)
+            {
+                if (connection == null || connection != _connection)
+                    return false;
+                connector = _connector;
+                _connector = null;
+                _connection = null;
+            }
+            LOG.debug("close: closing jmx connection to " + _jmxServiceURL + ", " + reason);
+            close(connector);
+            return true;
+        }
+
+        private void close(JMXConnector connector)
+        {
+            try
+            {
+                connector.removeConnectionNotificationListener(this);
+            }
+            catch (Exception e)
+            {
+                LOG.ignore(e);
+            }
+            try
+            {
+                connector.close();
+            }
+            catch (Exception e)
+            {
+                LOG.ignore(e);
+            }
+        }
+
+        public void handleNotification(Notification notification, Object handback)
+        {
+            String type = notification.getType();
+            if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type))
+                close(type);
+        }
+    }
+}
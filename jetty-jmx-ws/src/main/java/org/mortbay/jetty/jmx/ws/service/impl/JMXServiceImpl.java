@@ -20,13 +20,13 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanOperationInfo;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
-import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
 import org.eclipse.jetty.util.log.Log;
@@ -47,7 +47,8 @@ public class JMXServiceImpl implements JMXService
     public static final String MEMORY_MXBEAN_OBJECT_PENDING_FINALIZATION = "ObjectPendingFinalizationCount";
     public static final String MEMORY_MXBEAN_VERBOSE = "Verbose";
 
-    private static Map<JMXServiceURL, MBeanServerConnection> connections = new HashMap<JMXServiceURL, MBeanServerConnection>();
+    private final JMXConnectionPool connectionPool = new JMXConnectionPool();
+    private final MBeanMetadataCache metadataCache = new MBeanMetadataCache();
 
     private static JMXService jmxService;
 
@@ -55,7 +56,7 @@ public class JMXServiceImpl implements JMXService
     {
     }
 
-    public static JMXService getInstance()
+    public static synchronized JMXService getInstance()
     {
         if (jmxService == null)
         {
@@ -63,15 +64,32 @@ public class JMXServiceImpl implements JMXService
         }
         return jmxService;
     }
+
+    /**
+     * @return the pool of the connections to the nodes, which keeps the connection metrics
+     */
+    public JMXConnectionPool getConnectionPool()
+    {
+        return connectionPool;
+    }
+
+    /**
+     * @return the cache of the object names and MBean metadata of the nodes
+     */
+    public MBeanMetadataCache getMetadataCache()
+    {
+        return metadataCache;
+    }
     
     public Set<ObjectName> getObjectNames(JMXServiceURL jmxServiceURL)
     {
         try
         {
-            return getConnection(jmxServiceURL).queryNames(null,null);
+            return metadataCache.getObjectNames(jmxServiceURL,getConnection(jmxServiceURL));
         }
         catch (IOException e)
         {
+            connectionPool.failed(jmxServiceURL,e);
             LOG.warn("getObjectNames: ",e);
         }
         return Collections.emptySet();
@@ -94,7 +112,7 @@ public class JMXServiceImpl implements JMXService
     {
         try
         {
-            return getConnection(jmxServiceURL).getMBeanInfo(new ObjectName(objectName)).getAttributes();
+            return metadataCache.getMBeanInfo(jmxServiceURL,getConnection(jmxServiceURL),new ObjectName(objectName)).getAttributes();
         }
         catch (InstanceNotFoundException e)
         {
@@ -102,6 +120,7 @@ public class JMXServiceImpl implements JMXService
         }
         catch (Exception e)
         {
+            connectionPool.failed(jmxServiceURL,e);
             LOG.warn("getAttributes: ",e);
         }
         return new MBeanAttributeInfo[] {};
@@ -111,7 +130,7 @@ public class JMXServiceImpl implements JMXService
     {
         try
         {
-            return getConnection(jmxServiceURL).getMBeanInfo(new ObjectName(objectName)).getOperations();
+            return metadataCache.getMBeanInfo(jmxServiceURL,getConnection(jmxServiceURL),new ObjectName(objectName)).getOperations();
         }
         catch (InstanceNotFoundException e)
         {
@@ -119,6 +138,7 @@ public class JMXServiceImpl implements JMXService
         }
         catch (Exception e)
         {
+            connectionPool.failed(jmxServiceURL,e);
             LOG.warn("getOperations: ",e);
         }
         return new MBeanOperationInfo[] {};
@@ -133,6 +153,7 @@ public class JMXServiceImpl implements JMXService
         }
         catch (Exception e)
         {
+            connectionPool.failed(jmxServiceURL,e);
             LOG.warn("invoke: jmxServiceURL: " + jmxServiceURL.toString() + ", objectName: " + objectName + ", operationName: " + operationName,e);
             return e.toString();
         }
@@ -150,21 +171,49 @@ public class JMXServiceImpl implements JMXService
         }
         catch (Exception e)
         {
+            connectionPool.failed(jmxServiceURL,e);
             LOG.warn("Couldn't get attribute: " + attribute,e);
             return e.toString();
         }
 
     }
 
-    private MBeanServerConnection getConnection(JMXServiceURL jmxServiceURL) throws IOException
+    public Map<String, Object> getAttributeValues(JMXServiceURL jmxServiceURL, String objectName, String[] attributeNames)
+            throws InstanceNotFoundException
     {
-        if (connections.get(jmxServiceURL) == null)
+        Map<String, Object> values = new HashMap<String, Object>();
+        try
+        {
+            AttributeList attributeList = getConnection(jmxServiceURL).getAttributes(new ObjectName(objectName),attributeNames);
+            for (Object attribute : attributeList)
+                values.put(((Attribute)attribute).getName(),((Attribute)attribute).getValue());
+        }
+        catch (InstanceNotFoundException e)
         {
-            LOG.debug("getConnection: opening jmx connection to: " + jmxServiceURL.toString());
-            JMXConnector jmxConnector = JMXConnectorFactory.connect(jmxServiceURL,null);
-            connections.put(jmxServiceURL,jmxConnector.getMBeanServerConnection());
+            throw e;
+        }
+        catch (Exception e)
+        {
+            connectionPool.failed(jmxServiceURL,e);
+            LOG.warn("Couldn't get attributes of: " + objectName,e);
+            for (String attributeName : attributeNames)
+                values.put(attributeName,e.toString());
+            return values;
         }
-        return connections.get(jmxServiceURL);
+
+        // Attributes that could not be read are missing from the list: read
+        // them one by one to report why
+        for (String attributeName : attributeNames)
+        {
+            if (!values.containsKey(attributeName))
+                values.put(attributeName,getAttribute(jmxServiceURL,objectName,attributeName));
+        }
+        return values;
+    }
+
+    private MBeanServerConnection getConnection(JMXServiceURL jmxServiceURL) throws IOException
+    {
+        return connectionPool.getConnection(jmxServiceURL);
     }
 
 }
@@ -0,0 +1,214 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.mortbay.jetty.jmx.ws.service.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXServiceURL;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/* ------------------------------------------------------------ */
+/**
+ * Caches the object names and the {@link MBeanInfo}s of each node.
+ * <p>
+ * Entries expire after the time to live. They are also invalidated as soon as the node
+ * reports that an MBean has been registered or unregistered, through a listener on its
+ * {@link MBeanServerDelegate}. The cache of a node is dropped whenever a new connection is
+ * used for it, because notifications may have been missed while it was disconnected.
+ */
+public class MBeanMetadataCache
+{
+    private static final Logger LOG = Log.getLogger(MBeanMetadataCache.class);
+
+    public static final long DEFAULT_TIME_TO_LIVE = 300000;
+
+    private final ConcurrentMap<JMXServiceURL, NodeMetadata> _nodes = new ConcurrentHashMap<JMXServiceURL, NodeMetadata>();
+    private volatile long _timeToLive = DEFAULT_TIME_TO_LIVE;
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+
+    public Set<ObjectName> getObjectNames(JMXServiceURL jmxServiceURL, MBeanServerConnection connection) throws IOException
+    {
+        NodeMetadata nodeMetadata = getNodeMetadata(jmxServiceURL,connection);
+        long now = System.currentTimeMillis();
+        Entry<Set<ObjectName>> entry = nodeMetadata._objectNames;
+        if (entry != null && entry._expires > now)
+        {
+            _hits.incrementAndGet();
+            return entry._value;
+        }
+
+        _misses.incrementAndGet();
+        long generation = nodeMetadata._generation.get();
+        Set<ObjectName> objectNames = Collections.unmodifiableSet(connection.queryNames(null,null));
+        // Do not cache a result that may predate a notification received during the query
+        if (nodeMetadata._generation.get() == generation)
+            nodeMetadata._objectNames = new Entry<Set<ObjectName>>(objectNames,now + _timeToLive);
+        return objectNames;
+    }
+
+    public MBeanInfo getMBeanInfo(JMXServiceURL jmxServiceURL, MBeanServerConnection connection, ObjectName objectName) throws IOException,
+            JMException
+    {
+        NodeMetadata nodeMetadata = getNodeMetadata(jmxServiceURL,connection);
+        long now = System.currentTimeMillis();
+        Entry<MBeanInfo> entry = nodeMetadata._mBeanInfos.get(objectName);
+        if (entry != null && entry._expires > now)
+        {
+            _hits.incrementAndGet();
+            return entry._value;
+        }
+
+        _misses.incrementAndGet();
+        long generation = nodeMetadata._generation.get();
+        MBeanInfo mBeanInfo = connection.getMBeanInfo(objectName);
+        if (nodeMetadata._generation.get() == generation)
+            nodeMetadata._mBeanInfos.put(objectName,new Entry<MBeanInfo>(mBeanInfo,now + _timeToLive));
+        return mBeanInfo;
+    }
+
+    public void invalidate(JMXServiceURL jmxServiceURL)
+    {
+        NodeMetadata nodeMetadata = _nodes.remove(jmxServiceURL);
+        if (nodeMetadata != null)
+            nodeMetadata.stopListening();
+    }
+
+    public long getTimeToLive()
+    {
+        return _timeToLive;
+    }
+
+    public void setTimeToLive(long timeToLive)
+    {
+        _timeToLive = timeToLive;
+    }
+
+    public long getHits()
+    {
+        return _hits.get();
+    }
+
+    public long getMisses()
+    {
+        return _misses.get();
+    }
+
+    private NodeMetadata getNodeMetadata(JMXServiceURL jmxServiceURL, MBeanServerConnection connection)
+    {
+        NodeMetadata nodeMetadata = _nodes.get(jmxServiceURL);
+        while (nodeMetadata == null || nodeMetadata._connection != connection)
+        {
+            NodeMetadata newNodeMetadata = new NodeMetadata(connection);
+            boolean replaced = nodeMetadata == null?_nodes.putIfAbsent(jmxServiceURL,newNodeMetadata) == null:_nodes.replace(jmxServiceURL,
+                    nodeMetadata,newNodeMetadata);
+            if (replaced)
+            {
+                if (nodeMetadata != null)
+                    nodeMetadata.stopListening();
+                newNodeMetadata.startListening();
+                return newNodeMetadata;
+            }
+            nodeMetadata = _nodes.get(jmxServiceURL);
+        }
+        return nodeMetadata;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static class Entry<T>
+    {
+        private final T _value;
+        private final long _expires;
+
+        private Entry(T value, long expires)
+        {
+            _value = value;
+            _expires = expires;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * The metadata cached for one connection to a node.
+     */
+    private static class NodeMetadata implements NotificationListener
+    {
+        private final MBeanServerConnection _connection;
+        private final AtomicLong _generation = new AtomicLong();
+        private final ConcurrentMap<ObjectName, Entry<MBeanInfo>> _mBeanInfos = new ConcurrentHashMap<ObjectName, Entry<MBeanInfo>>();
+        private volatile Entry<Set<ObjectName>> _objectNames;
+        private volatile boolean _listening;
+
+        private NodeMetadata(MBeanServerConnection connection)
+        {
+            _connection = connection;
+        }
+
+        private void startListening()
+        {
+            try
+            {
+                _connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME,this,null,null);
+                _listening = true;
+            }
+            catch (Exception e)
+            {
+                // The entries will only expire with their time to live
+                LOG.warn("Couldn't listen to MBean registrations, relying on the time to live: " + e);
+            }
+        }
+
+        private void stopListening()
+        {
+            if (!_listening)
+                return;
+            _listening = false;
+            try
+            {
+                _connection.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME,this);
+            }
+            catch (Exception e)
+            {
+                LOG.ignore(e);
+            }
+        }
+
+        public void handleNotification(Notification notification, Object handback)
+        {
+            if (notification instanceof MBeanServerNotification)
+            {
+                // Both registrations and unregistrations change the object names, and a
+                // registration may replace an MBean with a different one of the same name
+                _generation.incrementAndGet();
+                _objectNames = null;
+                _mBeanInfos.remove(((MBeanServerNotification)notification).getMBeanName());
+            }
+        }
+    }
+}
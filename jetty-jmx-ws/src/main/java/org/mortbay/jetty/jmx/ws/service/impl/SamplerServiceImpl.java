@@ -0,0 +1,454 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.mortbay.jetty.jmx.ws.service.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.mortbay.jetty.jmx.ws.domain.JMXNode;
+import org.mortbay.jetty.jmx.ws.domain.jaxb.TimeSeriesJaxBean;
+import org.mortbay.jetty.jmx.ws.domain.jaxb.TimeSeriesJaxBeans;
+import org.mortbay.jetty.jmx.ws.service.JMXNodeService;
+import org.mortbay.jetty.jmx.ws.service.JMXService;
+import org.mortbay.jetty.jmx.ws.service.SamplerService;
+
+/* ------------------------------------------------------------ */
+/**
+ * Samples the configured metrics of all nodes at a fixed rate into {@link TimeSeries}.
+ * <p>
+ * The sampler is configured in <code>jmxNodes.properties</code>:
+ * <pre>
+ * sampler.interval = 5000
+ * sampler.capacity = 720
+ * sampler.metric.heapUsed = java.lang:type=Memory/HeapMemoryUsage/used
+ * sampler.metric.threadCount = java.lang:type=Threading/ThreadCount
+ * sampler.metric.requests.objectName = org.eclipse.jetty.server.handler:type=statisticshandler,name=/app,id=0
+ * sampler.metric.requests.attribute = requests
+ * </pre>
+ * A metric is an object name, an attribute name and, for composite attributes, the key of
+ * the numeric item to sample. The short form separates them with slashes, so an object name
+ * that contains a slash is given with the <code>objectName</code>, <code>attribute</code> and
+ * <code>key</code> properties of the metric instead.
+ * <p>
+ * Each node is sampled by a task of its own on the sampler's own pool, and a node whose
+ * previous sample is still running is skipped, so a slow node only loses its own samples and
+ * there is never more than one task queued per node. The memory used is fixed: capacity
+ * samples per metric and node.
+ */
+public class SamplerServiceImpl implements SamplerService
+{
+    private static final Logger LOG = Log.getLogger(SamplerServiceImpl.class);
+
+    public static final long DEFAULT_INTERVAL = 5000;
+    public static final int DEFAULT_CAPACITY = 720;
+    private static final String METRIC_PREFIX = "sampler.metric.";
+    private static final String OBJECT_NAME_SUFFIX = ".objectName";
+    private static final String ATTRIBUTE_SUFFIX = ".attribute";
+    private static final String KEY_SUFFIX = ".key";
+    private static final int SAMPLER_THREADS = 4;
+
+    private static SamplerService samplerService;
+
+    private final JMXService _jmxService;
+    private final JMXNodeService _jmxNodeService;
+    private final long _interval;
+    private final int _capacity;
+    // Metrics grouped by object name, so that each MBean is read with a single request
+    private final Map<String, List<Metric>> _metrics = new LinkedHashMap<String, List<Metric>>();
+    private final ConcurrentMap<String, NodeSamples> _nodes = new ConcurrentHashMap<String, NodeSamples>();
+    private volatile ScheduledExecutorService _scheduler;
+    private volatile ExecutorService _executor;
+
+    public static synchronized SamplerService getInstance()
+    {
+        if (samplerService == null)
+        {
+            samplerService = new SamplerServiceImpl(JMXServiceImpl.getInstance(),new JMXNodeServiceImpl(),loadProperties());
+            samplerService.start();
+        }
+        return samplerService;
+    }
+
+    public SamplerServiceImpl(JMXService jmxService, JMXNodeService jmxNodeService, Properties properties)
+    {
+        _jmxService = jmxService;
+        _jmxNodeService = jmxNodeService;
+        _interval = Long.parseLong(properties.getProperty("sampler.interval",String.valueOf(DEFAULT_INTERVAL)).trim());
+        _capacity = Integer.parseInt(properties.getProperty("sampler.capacity",String.valueOf(DEFAULT_CAPACITY)).trim());
+
+        // name -> { objectName, attribute, key }
+        Map<String, String[]> metrics = new TreeMap<String, String[]>();
+        for (Enumeration<?> names = properties.propertyNames(); names.hasMoreElements();)
+        {
+            String name = (String)names.nextElement();
+            if (!name.startsWith(METRIC_PREFIX))
+                continue;
+            String value = properties.getProperty(name).trim();
+            String metricName = name.substring(METRIC_PREFIX.length());
+            if (metricName.endsWith(OBJECT_NAME_SUFFIX))
+                getMetricSpec(metrics,metricName.substring(0,metricName.length() - OBJECT_NAME_SUFFIX.length()))[0] = value;
+            else if (metricName.endsWith(ATTRIBUTE_SUFFIX))
+                getMetricSpec(metrics,metricName.substring(0,metricName.length() - ATTRIBUTE_SUFFIX.length()))[1] = value;
+            else if (metricName.endsWith(KEY_SUFFIX))
+                getMetricSpec(metrics,metricName.substring(0,metricName.length() - KEY_SUFFIX.length()))[2] = value;
+            else
+            {
+                String[] parts = value.split("/");
+                if (parts.length < 2 || parts.length > 3)
+                {
+                    LOG.warn("Ignoring metric " + metricName + ", expected objectName/attribute[/key], or the " + OBJECT_NAME_SUFFIX + " and "
+                            + ATTRIBUTE_SUFFIX + " properties for an object name with a slash: " + value);
+                    continue;
+                }
+                String[] spec = getMetricSpec(metrics,metricName);
+                spec[0] = parts[0];
+                spec[1] = parts[1];
+                spec[2] = parts.length == 3?parts[2]:null;
+            }
+        }
+        if (metrics.isEmpty())
+        {
+            metrics.put("heapUsed",new String[]
+            { JMXServiceImpl.MEMORY_MXBEAN, JMXServiceImpl.MEMORY_MXBEAN_HEAP, "used" });
+            metrics.put("threadCount",new String[]
+            { JMXServiceImpl.THREADING_MXBEAN, "ThreadCount", null });
+            metrics.put("peakThreadCount",new String[]
+            { JMXServiceImpl.THREADING_MXBEAN, "PeakThreadCount", null });
+        }
+        for (Map.Entry<String, String[]> entry : metrics.entrySet())
+        {
+            String[] spec = entry.getValue();
+            if (spec[0] == null || spec[1] == null)
+            {
+                LOG.warn("Ignoring metric " + entry.getKey() + ", it has no object name or no attribute");
+                continue;
+            }
+            try
+            {
+                new ObjectName(spec[0]);
+            }
+            catch (MalformedObjectNameException e)
+            {
+                LOG.warn("Ignoring metric " + entry.getKey() + ", " + spec[0] + " is not an object name: " + e.getMessage());
+                continue;
+            }
+            Metric metric = new Metric(entry.getKey(),spec[1],spec[2]);
+            List<Metric> objectNameMetrics = _metrics.get(spec[0]);
+            if (objectNameMetrics == null)
+            {
+                objectNameMetrics = new ArrayList<Metric>();
+                _metrics.put(spec[0],objectNameMetrics);
+            }
+            objectNameMetrics.add(metric);
+        }
+    }
+
+    private static String[] getMetricSpec(Map<String, String[]> metrics, String metricName)
+    {
+        String[] spec = metrics.get(metricName);
+        if (spec == null)
+        {
+            spec = new String[3];
+            metrics.put(metricName,spec);
+        }
+        return spec;
+    }
+
+    private static Properties loadProperties()
+    {
+        Properties properties = new Properties();
+        InputStream propertyInputStream = SamplerServiceImpl.class.getClassLoader().getResourceAsStream("jmxNodes.properties");
+        if (propertyInputStream == null)
+            return properties;
+        try
+        {
+            properties.load(propertyInputStream);
+        }
+        catch (IOException e)
+        {
+            LOG.warn(e);
+        }
+        finally
+        {
+            try
+            {
+                propertyInputStream.close();
+            }
+            catch (IOException e)
+            {
+                LOG.ignore(e);
+            }
+        }
+        return properties;
+    }
+
+    public synchronized void start()
+    {
+        if (_scheduler != null)
+            return;
+        // Not shared with the aggregate service: its pool rejects tasks when saturated, and the
+        // sampling flags of the nodes already bound the queue of this one to a task per node
+        _executor = Executors.newFixedThreadPool(SAMPLER_THREADS,new ThreadFactory()
+        {
+            private final AtomicInteger _threads = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable,"jmx-ws-sampler-" + _threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable,"jmx-ws-sampler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        _scheduler.scheduleAtFixedRate(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    sample();
+                }
+                catch (RuntimeException e)
+                {
+                    // An exception would cancel the schedule
+                    LOG.warn("sample: ",e);
+                }
+            }
+        },0,_interval,TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop()
+    {
+        if (_scheduler == null)
+            return;
+        _scheduler.shutdownNow();
+        _executor.shutdownNow();
+        _scheduler = null;
+        _executor = null;
+    }
+
+    public Set<String> getMetricNames()
+    {
+        Set<String> metricNames = new TreeSet<String>();
+        for (List<Metric> metrics : _metrics.values())
+            for (Metric metric : metrics)
+                metricNames.add(metric._name);
+        return metricNames;
+    }
+
+    public TimeSeriesJaxBeans getTimeSeries(Collection<JMXNode> jmxNodes, String metricName, long window, boolean withSamples)
+    {
+        long since = System.currentTimeMillis() - window;
+        Set<TimeSeriesJaxBean> timeSeriesJaxBeans = new TreeSet<TimeSeriesJaxBean>();
+        for (JMXNode jmxNode : jmxNodes)
+        {
+            NodeSamples nodeSamples = _nodes.get(jmxNode.getNodeName());
+            if (nodeSamples == null)
+                continue;
+            for (Map.Entry<String, TimeSeries> entry : nodeSamples._series.entrySet())
+            {
+                if (metricName != null && !metricName.equals(entry.getKey()))
+                    continue;
+                TimeSeries.Window samples = entry.getValue().getWindow(since,withSamples);
+                timeSeriesJaxBeans.add(new TimeSeriesJaxBean(jmxNode.getNodeName(),entry.getKey(),samples.getCount(),samples.getMin(),samples.getAvg(),
+                        samples.getMax(),samples.getTimes(),samples.getValues()));
+            }
+        }
+        return new TimeSeriesJaxBeans(timeSeriesJaxBeans);
+    }
+
+    /**
+     * Starts sampling all nodes, at the same timestamp.
+     */
+    void sample()
+    {
+        final long now = System.currentTimeMillis();
+        Set<String> nodeNames = new HashSet<String>();
+        for (JMXNode jmxNode : _jmxNodeService.getNodes())
+        {
+            nodeNames.add(jmxNode.getNodeName());
+            NodeSamples nodeSamples = _nodes.get(jmxNode.getNodeName());
+            if (nodeSamples == null)
+            {
+                nodeSamples = new NodeSamples();
+                NodeSamples existing = _nodes.putIfAbsent(jmxNode.getNodeName(),nodeSamples);
+                if (existing != null)
+                    nodeSamples = existing;
+            }
+            if (!nodeSamples._sampling.compareAndSet(false,true))
+            {
+                LOG.debug("sample: skipping " + jmxNode.getNodeName() + ", the previous sample is still running");
+                continue;
+            }
+
+            final JMXNode node = jmxNode;
+            final NodeSamples samples = nodeSamples;
+            Runnable task = new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        sample(node,samples,now);
+                    }
+                    finally
+                    {
+                        samples._sampling.set(false);
+                    }
+                }
+            };
+            ExecutorService executor = _executor;
+            if (executor == null)
+                task.run();
+            else
+            {
+                try
+                {
+                    executor.execute(task);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // Stopped meanwhile
+                    samples._sampling.set(false);
+                }
+            }
+        }
+        // Forget the nodes that are no longer configured
+        _nodes.keySet().retainAll(nodeNames);
+    }
+
+    private void sample(JMXNode jmxNode, NodeSamples nodeSamples, long now)
+    {
+        for (Map.Entry<String, List<Metric>> entry : _metrics.entrySet())
+        {
+            String objectName = entry.getKey();
+            List<Metric> metrics = entry.getValue();
+            String[] attributeNames = new String[metrics.size()];
+            for (int i = 0; i < attributeNames.length; i++)
+                attributeNames[i] = metrics.get(i)._attribute;
+
+            Map<String, Object> values;
+            try
+            {
+                values = _jmxService.getAttributeValues(jmxNode.getJmxServiceURL(),objectName,attributeNames);
+            }
+            catch (InstanceNotFoundException e)
+            {
+                LOG.debug("sample: " + objectName + " not found on " + jmxNode.getNodeName());
+                continue;
+            }
+            catch (RuntimeException e)
+            {
+                LOG.warn("sample: " + jmxNode.getNodeName() + " " + objectName,e);
+                continue;
+            }
+
+            for (Metric metric : metrics)
+            {
+                double value = metric.toDouble(values.get(metric._attribute));
+                if (!Double.isNaN(value))
+                    nodeSamples.getSeries(metric._name).add(now,value);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private static class Metric
+    {
+        private final String _name;
+        private final String _attribute;
+        private final String _key;
+
+        private Metric(String name, String attribute, String key)
+        {
+            _name = name;
+            _attribute = attribute;
+            _key = key;
+        }
+
+        /**
+         * @return the numeric value of the attribute, or NaN if it could not be read
+         */
+        private double toDouble(Object value)
+        {
+            if (_key != null && value instanceof CompositeData)
+            {
+                CompositeData compositeData = (CompositeData)value;
+                value = compositeData.containsKey(_key)?compositeData.get(_key):null;
+            }
+            if (value instanceof Number)
+                return ((Number)value).doubleValue();
+            if (value instanceof Boolean)
+                return ((Boolean)value)?1:0;
+            // Failed reads are reported as the exception string
+            return Double.NaN;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private class NodeSamples
+    {
+        private final AtomicBoolean _sampling = new AtomicBoolean();
+        private final ConcurrentMap<String, TimeSeries> _series = new ConcurrentHashMap<String, TimeSeries>();
+
+        private TimeSeries getSeries(String metricName)
+        {
+            TimeSeries series = _series.get(metricName);
+            if (series == null)
+            {
+                series = new TimeSeries(_capacity);
+                TimeSeries existing = _series.putIfAbsent(metricName,series);
+                if (existing != null)
+                    series = existing;
+            }
+            return series;
+        }
+    }
+}
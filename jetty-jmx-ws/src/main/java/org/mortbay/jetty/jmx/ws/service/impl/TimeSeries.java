@@ -0,0 +1,147 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.mortbay.jetty.jmx.ws.service.impl;
+
+/* ------------------------------------------------------------ */
+/**
+ * A fixed size ring buffer of samples.
+ * <p>
+ * Timestamps and values are kept in primitive arrays allocated once, so adding a sample
+ * neither allocates nor boxes. When the buffer is full the oldest sample is overwritten.
+ * Samples must be added in time order.
+ */
+public class TimeSeries
+{
+    private final long[] _times;
+    private final double[] _values;
+    private int _next;
+    private int _count;
+
+    public TimeSeries(int capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity: " + capacity);
+        _times = new long[capacity];
+        _values = new double[capacity];
+    }
+
+    public synchronized void add(long time, double value)
+    {
+        _times[_next] = time;
+        _values[_next] = value;
+        _next = (_next + 1) % _times.length;
+        if (_count < _times.length)
+            _count++;
+    }
+
+    public int getCapacity()
+    {
+        return _times.length;
+    }
+
+    public synchronized int size()
+    {
+        return _count;
+    }
+
+    /**
+     * @param since the time of the oldest sample to include
+     * @param withSamples whether to copy the samples, or only compute the rollup
+     * @return the samples taken at or after <code>since</code>, oldest first
+     */
+    public synchronized Window getWindow(long since, boolean withSamples)
+    {
+        // Samples are in time order: walk back from the newest one
+        int capacity = _times.length;
+        int count = 0;
+        while (count < _count && _times[(_next - 1 - count + capacity) % capacity] >= since)
+            count++;
+
+        Window window = new Window(count,withSamples);
+        int first = (_next - count + capacity) % capacity;
+        for (int i = 0; i < count; i++)
+        {
+            int index = (first + i) % capacity;
+            double value = _values[index];
+            if (withSamples)
+            {
+                window._times[i] = _times[index];
+                window._values[i] = value;
+            }
+            window._sum += value;
+            if (value < window._min)
+                window._min = value;
+            if (value > window._max)
+                window._max = value;
+        }
+        return window;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * A copy of the most recent samples of a series, with their min, avg and max.
+     */
+    public static class Window
+    {
+        private final int _count;
+        private final long[] _times;
+        private final double[] _values;
+        private double _min = Double.POSITIVE_INFINITY;
+        private double _max = Double.NEGATIVE_INFINITY;
+        private double _sum;
+
+        private Window(int count, boolean withSamples)
+        {
+            _count = count;
+            _times = withSamples?new long[count]:null;
+            _values = withSamples?new double[count]:null;
+        }
+
+        public int getCount()
+        {
+            return _count;
+        }
+
+        /**
+         * @return the times of the samples, or null if the samples were not requested
+         */
+        public long[] getTimes()
+        {
+            return _times;
+        }
+
+        /**
+         * @return the values of the samples, or null if the samples were not requested
+         */
+        public double[] getValues()
+        {
+            return _values;
+        }
+
+        public double getMin()
+        {
+            return _count == 0?Double.NaN:_min;
+        }
+
+        public double getMax()
+        {
+            return _count == 0?Double.NaN:_max;
+        }
+
+        public double getAvg()
+        {
+            return _count == 0?Double.NaN:_sum / _count;
+        }
+    }
+}
@@ -1,15 +1,24 @@
 package org.mortbay.jetty.jmx.ws.web;
 
 import org.mortbay.jetty.jmx.ws.service.AggregateService;
+import org.mortbay.jetty.jmx.ws.service.SamplerService;
 import org.mortbay.jetty.jmx.ws.service.impl.AggregateServiceImpl;
 import org.mortbay.jetty.jmx.ws.service.impl.JMXServiceImpl;
+import org.mortbay.jetty.jmx.ws.service.impl.SamplerServiceImpl;
 
 public class BaseAggregateWebController
 {
     protected static AggregateService aggregateService = new AggregateServiceImpl(JMXServiceImpl.getInstance());
+    // Started with the first request, so that the history is already there for the next ones
+    protected static SamplerService samplerService = SamplerServiceImpl.getInstance();
 
     public void setAggregateService(AggregateService aggregateService)
     {
         BaseAggregateWebController.aggregateService = aggregateService;
     }
+
+    public void setSamplerService(SamplerService samplerService)
+    {
+        BaseAggregateWebController.samplerService = samplerService;
+    }
 }
@@ -4,6 +4,7 @@ import javax.ws.rs.ext.ContextResolver;
 import javax.ws.rs.ext.Provider;
 import javax.xml.bind.JAXBContext;
 
+import org.mortbay.jetty.jmx.ws.domain.jaxb.TimeSeriesJaxBeans;
 import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.MBeanAttributeValueJaxBeans;
 
 import com.sun.jersey.api.json.JSONConfiguration;
@@ -15,15 +16,21 @@ public class JAXBContextResolver implements ContextResolver<JAXBContext>
 
     private JAXBContext context;
     private Class<?>[] types =    { MBeanAttributeValueJaxBeans.class };
+    // Separate context, so that the names of its arrays do not apply to the other types
+    private JAXBContext timeSeriesContext;
 
     public JAXBContextResolver() throws Exception
     {
         JSONConfiguration config = JSONConfiguration.mapped().arrays("Attribute").build();
         context = new JSONJAXBContext(config,types);
+        JSONConfiguration timeSeriesConfig = JSONConfiguration.mapped().arrays("TimeSeries","Time","Value").build();
+        timeSeriesContext = new JSONJAXBContext(timeSeriesConfig,TimeSeriesJaxBeans.class);
     }
 
     public JAXBContext getContext(Class<?> objectType)
     {
+        if (objectType == TimeSeriesJaxBeans.class)
+            return timeSeriesContext;
         for (Class<?> type : types)
         {
             if (type == objectType)
@@ -0,0 +1,44 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at 
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses. 
+// ========================================================================
+package org.mortbay.jetty.jmx.ws.web;
+
+import java.util.Collection;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+
+import org.mortbay.jetty.jmx.ws.domain.JMXNode;
+import org.mortbay.jetty.jmx.ws.domain.jaxb.TimeSeriesJaxBeans;
+import org.mortbay.jetty.jmx.ws.util.FilterNodesUtils;
+
+/* ------------------------------------------------------------ */
+/**
+ * The min, avg and max of all sampled metrics of the nodes over the last <code>window</code> seconds.
+ */
+@Path("/metrics")
+public class Metrics extends BaseAggregateWebController
+{
+    @GET
+    @Produces(
+    { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public TimeSeriesJaxBeans getMetrics(@QueryParam("nodes") String nodes, @QueryParam("window") @DefaultValue("300") long window,
+            @QueryParam("samples") @DefaultValue("false") boolean samples)
+    {
+        Collection<JMXNode> jmxNodes = FilterNodesUtils.getNodesToAggregate(nodes);
+        return samplerService.getTimeSeries(jmxNodes,null,window * 1000,samples);
+    }
+}
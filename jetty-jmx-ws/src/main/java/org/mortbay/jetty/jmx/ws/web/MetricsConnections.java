@@ -0,0 +1,38 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at 
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses. 
+// ========================================================================
+package org.mortbay.jetty.jmx.ws.web;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.mortbay.jetty.jmx.ws.domain.jaxb.ConnectionPoolJaxBean;
+import org.mortbay.jetty.jmx.ws.service.impl.JMXServiceImpl;
+
+/* ------------------------------------------------------------ */
+/**
+ * The connect latencies, failures and evictions of the connections to the nodes.
+ */
+@Path("/metrics/connections")
+public class MetricsConnections
+{
+    @GET
+    @Produces(
+    { MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public ConnectionPoolJaxBean getConnectionPoolMetrics()
+    {
+        JMXServiceImpl jmxService = (JMXServiceImpl)JMXServiceImpl.getInstance();
+        return new ConnectionPoolJaxBean(jmxService.getConnectionPool());
+    }
+}
@@ -1,10 +1,14 @@
 package org.mortbay.jetty.jmx.ws.service.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -12,11 +16,18 @@ import static org.mockito.Mockito.when;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanAttributeInfo;
@@ -36,6 +47,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mortbay.jetty.jmx.ws.AbstractMockitoTest;
 import org.mortbay.jetty.jmx.ws.domain.JMXNode;
 import org.mortbay.jetty.jmx.ws.domain.jaxb.NodeJaxBean;
@@ -44,6 +57,7 @@ import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.MBeanAttributeValueJaxBean;
 import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.MBeanAttributeValueJaxBeans;
 import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.MBeanOperationJaxBeans;
 import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.MBeanShortJaxBeans;
+import org.mortbay.jetty.jmx.ws.domain.jaxb.jmx.NodeErrorJaxBean;
 import org.mortbay.jetty.jmx.ws.service.AggregateService;
 import org.mortbay.jetty.jmx.ws.service.JMXNodeService;
 import org.mortbay.jetty.jmx.ws.service.JMXService;
@@ -130,6 +144,19 @@ public class AggregateServiceTest extends AbstractMockitoTest
 
         _jettyServerObjectNames.add(JMXServiceImpl.JETTY_SERVER_MBEAN);
         _jettyServerObjectNames.add(JMXServiceImpl.JETTY_SERVER_MBEANID1);
+
+        // Bulk attribute reads answer with whatever the single attribute reads are stubbed to return
+        when(_jmxService.getAttributeValues(any(JMXServiceURL.class),any(String.class),any(String[].class))).thenAnswer(new Answer<Map<String, Object>>()
+        {
+            public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable
+            {
+                Object[] args = invocation.getArguments();
+                Map<String, Object> values = new HashMap<String, Object>();
+                for (String attributeName : (String[])args[2])
+                    values.put(attributeName,_jmxService.getAttribute((JMXServiceURL)args[0],(String)args[1],attributeName));
+                return values;
+            }
+        });
     }
 
     private Map<String, Long> fillCompositeDataMap(Long init, Long used, Long committed, Long max)
@@ -216,6 +243,118 @@ public class AggregateServiceTest extends AbstractMockitoTest
         }
     }
 
+    @Test
+    public void testGetAttributeValuesWithSlowNode() throws InstanceNotFoundException
+    {
+        setExpectationsForJmxServiceGetMemoryAttribute();
+        final CountDownLatch slowNodeLatch = new CountDownLatch(1);
+        // A stub of its own: Mockito answers each stub under a lock, a shared stub would block the other nodes too
+        doAnswer(new Answer<Map<String, Object>>()
+        {
+            public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable
+            {
+                // Answers only once the request gave up on the node
+                slowNodeLatch.await();
+                return Collections.<String, Object>singletonMap(JMXServiceImpl.MEMORY_MXBEAN_HEAP,_compositeDataHeapNode3);
+            }
+        }).when(_jmxService).getAttributeValues(eq(_jmxServiceURLNode3),eq(JMXServiceImpl.MEMORY_MXBEAN),aryEq(new String[]
+        { JMXServiceImpl.MEMORY_MXBEAN_HEAP }));
+        // Well above the latency of the healthy nodes, so that only the slow node times out
+        ((AggregateServiceImpl)_aggregateServiceImpl).setNodeTimeout(2000);
+
+        MBeanAttributeValueJaxBeans mBeanAttributeValuesJaxBean;
+        try
+        {
+            mBeanAttributeValuesJaxBean = _aggregateServiceImpl.getAttributeValues(_jmxNodes,JMXServiceImpl.MEMORY_MXBEAN,JMXServiceImpl.MEMORY_MXBEAN_HEAP);
+        }
+        finally
+        {
+            slowNodeLatch.countDown();
+        }
+        assertEquals(_jmxNodes.size(),mBeanAttributeValuesJaxBean.mBeanAttributeValueJaxBeans.size());
+        assertOnlyFailed(mBeanAttributeValuesJaxBean,NODE3);
+    }
+
+    @Test
+    public void testGetAttributeValuesWithSaturatedPool() throws Exception
+    {
+        final CountDownLatch busyLatch = new CountDownLatch(1);
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        JMXService busyJmxService = mock(JMXService.class);
+        when(busyJmxService.getAttributeValues(eq(_jmxServiceURLNode1),eq(JMXServiceImpl.MEMORY_MXBEAN),aryEq(new String[]
+        { JMXServiceImpl.MEMORY_MXBEAN_HEAP }))).thenAnswer(new Answer<Map<String, Object>>()
+        {
+            public Map<String, Object> answer(InvocationOnMock invocation) throws Throwable
+            {
+                busyLatch.countDown();
+                releaseLatch.await();
+                return null;
+            }
+        });
+
+        // A single thread and no queue: keep the thread busy so that every query of the request is rejected
+        ExecutorService executor = new ThreadPoolExecutor(1,1,0,TimeUnit.MILLISECONDS,new SynchronousQueue<Runnable>());
+        try
+        {
+            final AggregateServiceImpl aggregateService = new AggregateServiceImpl(_jmxService,executor);
+            final AggregateServiceImpl busyAggregateService = new AggregateServiceImpl(busyJmxService,executor);
+            Thread busy = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        busyAggregateService.getAttributeValues(Collections.singleton(_localCloudtideNode),JMXServiceImpl.MEMORY_MXBEAN,
+                                JMXServiceImpl.MEMORY_MXBEAN_HEAP);
+                    }
+                    catch (InstanceNotFoundException e)
+                    {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+            busy.start();
+            assertTrue(busyLatch.await(5,TimeUnit.SECONDS));
+
+            long start = System.currentTimeMillis();
+            MBeanAttributeValueJaxBeans mBeanAttributeValuesJaxBean = aggregateService.getAttributeValues(_jmxNodes,JMXServiceImpl.MEMORY_MXBEAN,
+                    JMXServiceImpl.MEMORY_MXBEAN_HEAP);
+            assertTrue("Rejected queries must not wait for the node timeout",System.currentTimeMillis() - start < AggregateServiceImpl.DEFAULT_NODE_TIMEOUT);
+            assertEquals(_jmxNodes.size(),mBeanAttributeValuesJaxBean.mBeanAttributeValueJaxBeans.size());
+            for (MBeanAttributeValueJaxBean mBeanAttributeValueJaxBean : mBeanAttributeValuesJaxBean.mBeanAttributeValueJaxBeans)
+            {
+                assertNull(mBeanAttributeValueJaxBean.value);
+                assertNotNull("Expected an error for a rejected query",mBeanAttributeValueJaxBean.error);
+            }
+
+            releaseLatch.countDown();
+            busy.join(5000);
+        }
+        finally
+        {
+            releaseLatch.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private void assertOnlyFailed(MBeanAttributeValueJaxBeans mBeanAttributeValuesJaxBean, String failedNodeName)
+    {
+        for (MBeanAttributeValueJaxBean mBeanAttributeValueJaxBean : mBeanAttributeValuesJaxBean.mBeanAttributeValueJaxBeans)
+        {
+            if (failedNodeName.equals(mBeanAttributeValueJaxBean.nodeName))
+            {
+                assertNull(mBeanAttributeValueJaxBean.value);
+                assertNotNull("Expected an error for " + failedNodeName,mBeanAttributeValueJaxBean.error);
+            }
+            else
+            {
+                assertNotNull(mBeanAttributeValueJaxBean.value);
+                assertNull(mBeanAttributeValueJaxBean.error);
+            }
+        }
+    }
+
     @Test
     public void testGetAttributeValuesForJettyServerMBeanWithMultipleIds() throws InstanceNotFoundException
     {
@@ -377,6 +516,52 @@ public class AggregateServiceTest extends AbstractMockitoTest
 
     }
 
+    @Test
+    public void testGetAttributesMetaDataReportsFailedNode() throws UriBuilderException, URISyntaxException, InstanceNotFoundException
+    {
+        setExpectationsForJmxServiceGetAttributes();
+        when(_jmxService.getAttributes(_jmxServiceURLNode3,JMXServiceImpl.MEMORY_MXBEAN)).thenThrow(new IllegalStateException("node down"));
+
+        MBeanAttributeJaxBeans mBeanAttributesInfoJaxBean = _aggregateServiceImpl.getAttributesMetaData(_uriInfo,_jmxNodes,JMXServiceImpl.MEMORY_MXBEAN);
+
+        assertEquals(4,mBeanAttributesInfoJaxBean.mBeanAttributeJaxBeans.size());
+        assertEquals(1,mBeanAttributesInfoJaxBean.nodeErrors.size());
+        NodeErrorJaxBean nodeError = mBeanAttributesInfoJaxBean.nodeErrors.iterator().next();
+        assertEquals(NODE3,nodeError.nodeName);
+        assertTrue(nodeError.error,nodeError.error.contains("node down"));
+    }
+
+    @Test
+    public void testGetAllAttributeValuesReportsFailedNode() throws URISyntaxException, InstanceNotFoundException
+    {
+        setExpectationsForJmxServiceGetAttributes();
+        when(_jmxService.getAttributes(_jmxServiceURLNode3,JMXServiceImpl.MEMORY_MXBEAN)).thenThrow(new IllegalStateException("node down"));
+
+        MBeanAttributeValueJaxBeans attributes = _aggregateServiceImpl.getAllAttributeValues(_jmxNodes,JMXServiceImpl.MEMORY_MXBEAN);
+
+        assertEquals("expected four values for each node",12,attributes.mBeanAttributeValueJaxBeans.size());
+        for (MBeanAttributeValueJaxBean mBeanAttributeValueJaxBean : attributes.mBeanAttributeValueJaxBeans)
+        {
+            if (NODE3.equals(mBeanAttributeValueJaxBean.nodeName))
+                assertNotNull("Expected an error for " + NODE3,mBeanAttributeValueJaxBean.error);
+            else
+                assertNull(mBeanAttributeValueJaxBean.error);
+        }
+    }
+
+    @Test
+    public void testGetOperationsMetaDataReportsFailedNode() throws UriBuilderException, URISyntaxException, InstanceNotFoundException
+    {
+        setDefaultGetOperationsExpectations();
+        when(_jmxService.getOperations(_jmxServiceURLNode3,JMXServiceImpl.MEMORY_MXBEAN)).thenThrow(new IllegalStateException("node down"));
+
+        MBeanOperationJaxBeans mBeanOperationsInfoJaxBean = _aggregateServiceImpl.getOperationsMetaData(_uriInfo,_jmxNodes,JMXServiceImpl.MEMORY_MXBEAN);
+
+        assertEquals(1,mBeanOperationsInfoJaxBean.mBeanOperationJaxBeans.size());
+        assertEquals(1,mBeanOperationsInfoJaxBean.nodeErrors.size());
+        assertEquals(NODE3,mBeanOperationsInfoJaxBean.nodeErrors.iterator().next().nodeName);
+    }
+
     private MBeanAttributeInfo[] prepareMBeanAttributeInfoArrayForMemoryMXBean(boolean isReadable)
     {
         MBeanAttributeInfo mBeanAttributeInfoHeap = new MBeanAttributeInfo(JMXServiceImpl.MEMORY_MXBEAN_HEAP,"type","description",isReadable,false,false);
@@ -0,0 +1,188 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.mortbay.jetty.jmx.ws.service.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mortbay.jetty.jmx.ws.util.RandomIntRangeGenerator;
+
+public class JMXConnectionPoolTest
+{
+    private static int port = RandomIntRangeGenerator.getRandomInt(1024,65535);
+    private static JMXServiceURL jmxServiceURL;
+    private static JMXConnectorServer connectorServer;
+    private JMXConnectionPool pool;
+
+    @BeforeClass
+    public static void setUpConnectorServer() throws Exception
+    {
+        LocateRegistry.createRegistry(port);
+        jmxServiceURL = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:" + port + "/jettyjmx");
+        connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(jmxServiceURL,null,ManagementFactory.getPlatformMBeanServer());
+        connectorServer.start();
+    }
+
+    @Before
+    public void setUp()
+    {
+        pool = new JMXConnectionPool(100);
+    }
+
+    @After
+    public void tearDown()
+    {
+        pool.stop();
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneConnection() throws Exception
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try
+        {
+            List<Future<MBeanServerConnection>> futures = new ArrayList<Future<MBeanServerConnection>>();
+            for (int i = 0; i < 64; i++)
+            {
+                futures.add(executor.submit(new Callable<MBeanServerConnection>()
+                {
+                    public MBeanServerConnection call() throws Exception
+                    {
+                        return pool.getConnection(jmxServiceURL);
+                    }
+                }));
+            }
+            MBeanServerConnection connection = futures.get(0).get();
+            for (Future<MBeanServerConnection> future : futures)
+                assertSame(connection,future.get());
+            assertEquals("Expected a single connector",1,pool.getConnects());
+            assertEquals(1,pool.getOpenConnections());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testIdleConnectionIsEvictedAndReopened() throws Exception
+    {
+        pool.setIdleTimeout(200);
+        pool.getConnection(jmxServiceURL);
+        Thread.sleep(600);
+        assertEquals(0,pool.getOpenConnections());
+        assertEquals(1,pool.getEvictions());
+
+        assertTrue(pool.getConnection(jmxServiceURL).getMBeanCount() > 0);
+        assertEquals(2,pool.getConnects());
+    }
+
+    @Test
+    public void testBrokenConnectionIsReconnectedByProbe() throws Exception
+    {
+        pool.getConnection(jmxServiceURL);
+        pool.failed(jmxServiceURL,new IOException("broken"));
+        assertEquals(0,pool.getOpenConnections());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getOpenConnections() == 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(50);
+        assertEquals(1,pool.getOpenConnections());
+        assertEquals(2,pool.getConnects());
+    }
+
+    @Test
+    public void testFailedConnectBacksOff() throws Exception
+    {
+        pool.setMinBackoff(60000);
+        JMXServiceURL deadNode = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:" + (port == 1024?1025:port - 1) + "/jettyjmx");
+        for (int i = 0; i < 3; i++)
+        {
+            try
+            {
+                pool.getConnection(deadNode);
+                fail("Expected IOException");
+            }
+            catch (IOException e)
+            {
+                // expected
+            }
+        }
+        assertEquals("Expected only one attempt during the backoff",1,pool.getConnectFailures());
+    }
+
+    @Test
+    public void testHangingNodeDoesNotBlockTheProbesOfOtherNodes() throws Exception
+    {
+        pool.setMinBackoff(50);
+        pool.setProbeTimeout(200);
+
+        // A node that refuses the first connection attempt, then accepts connections and never answers
+        ServerSocket hangingServer = new ServerSocket(0);
+        int hangingPort = hangingServer.getLocalPort();
+        hangingServer.close();
+        JMXServiceURL hangingNode = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://localhost:" + hangingPort + "/jettyjmx");
+        try
+        {
+            pool.getConnection(hangingNode);
+            fail("Expected IOException");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+        hangingServer = new ServerSocket(hangingPort);
+        try
+        {
+            // Let the probe reconnect the hanging node, and hang
+            Thread.sleep(500);
+            assertTrue("Expected the hanging probe to time out",pool.getProbeFailures() > 0);
+
+            pool.getConnection(jmxServiceURL);
+            pool.failed(jmxServiceURL,new IOException("broken"));
+            assertEquals(0,pool.getOpenConnections());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.getOpenConnections() == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(50);
+            assertEquals(1,pool.getOpenConnections());
+        }
+        finally
+        {
+            hangingServer.close();
+        }
+    }
+}
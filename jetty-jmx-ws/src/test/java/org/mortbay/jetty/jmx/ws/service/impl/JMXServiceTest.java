@@ -126,6 +126,45 @@ public class JMXServiceTest
         assertEquals("Two servlet objectNames starting with \"" + prefix + "\" expected.",2, objectNames.size());
     }
 
+    @Test
+    public void testObjectNamesAreCachedUntilAnMBeanIsRegistered() throws Exception
+    {
+        MBeanMetadataCache cache = ((JMXServiceImpl)service).getMetadataCache();
+        String prefix = "org.mortbay.jetty.jmx.ws.test:type=cached";
+        assertEquals(0,service.getObjectNamesByPrefix(jmxServiceURL,prefix).size());
+        long hits = cache.getHits();
+        assertEquals(0,service.getObjectNamesByPrefix(jmxServiceURL,prefix).size());
+        assertEquals("Expected the object names to come from the cache",hits + 1,cache.getHits());
+
+        ObjectName objectName = new ObjectName(prefix);
+        mBeanServer.registerMBean(new Cached(),objectName);
+        try
+        {
+            // The registration notification is delivered asynchronously
+            long end = System.currentTimeMillis() + 5000;
+            while (service.getObjectNamesByPrefix(jmxServiceURL,prefix).isEmpty() && System.currentTimeMillis() < end)
+                Thread.sleep(50);
+            assertEquals(1,service.getObjectNamesByPrefix(jmxServiceURL,prefix).size());
+        }
+        finally
+        {
+            mBeanServer.unregisterMBean(objectName);
+        }
+    }
+
+    public interface CachedMBean
+    {
+        int getValue();
+    }
+
+    public static class Cached implements CachedMBean
+    {
+        public int getValue()
+        {
+            return 1;
+        }
+    }
+
     @Test
     public void testGetMBeanOperationInfo() throws MalformedObjectNameException, NullPointerException, InstanceNotFoundException
     {
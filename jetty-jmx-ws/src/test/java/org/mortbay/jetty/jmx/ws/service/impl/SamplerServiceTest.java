@@ -0,0 +1,127 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.mortbay.jetty.jmx.ws.service.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.when;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.management.remote.JMXServiceURL;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mortbay.jetty.jmx.ws.AbstractMockitoTest;
+import org.mortbay.jetty.jmx.ws.domain.JMXNode;
+import org.mortbay.jetty.jmx.ws.domain.jaxb.TimeSeriesJaxBean;
+import org.mortbay.jetty.jmx.ws.domain.jaxb.TimeSeriesJaxBeans;
+import org.mortbay.jetty.jmx.ws.service.JMXNodeService;
+import org.mortbay.jetty.jmx.ws.service.JMXService;
+import org.mortbay.jetty.jmx.ws.util.JMXServiceURLUtils;
+
+public class SamplerServiceTest extends AbstractMockitoTest
+{
+    @Mock
+    JMXService _jmxService;
+    @Mock
+    JMXNodeService _jmxNodeService;
+
+    SamplerServiceImpl _samplerService;
+    Collection<JMXNode> _jmxNodes = new HashSet<JMXNode>();
+    JMXServiceURL _jmxServiceURLNode1 = JMXServiceURLUtils.getJMXServiceURL("service:jmx:rmi://localhost/jndi/rmi://localhost:1099/jettyjmx");
+    JMXServiceURL _jmxServiceURLNode2 = JMXServiceURLUtils.getJMXServiceURL("service:jmx:rmi://node2/jndi/rmi://localhost:1100/jettyjmx");
+
+    @Before
+    public void setUp() throws Exception
+    {
+        _jmxNodes.add(new JMXNode("node1",_jmxServiceURLNode1));
+        _jmxNodes.add(new JMXNode("node2",_jmxServiceURLNode2));
+        when(_jmxNodeService.getNodes()).thenReturn(new HashSet<JMXNode>(_jmxNodes));
+
+        Properties properties = new Properties();
+        properties.setProperty("sampler.capacity","3");
+        properties.setProperty("sampler.metric.threadCount",JMXServiceImpl.THREADING_MXBEAN + "/ThreadCount");
+        _samplerService = new SamplerServiceImpl(_jmxService,_jmxNodeService,properties);
+    }
+
+    @Test
+    public void testSample() throws Exception
+    {
+        Map<String, Object> node1Values = new HashMap<String, Object>();
+        Map<String, Object> node2Values = new HashMap<String, Object>();
+        when(_jmxService.getAttributeValues(eq(_jmxServiceURLNode1),eq(JMXServiceImpl.THREADING_MXBEAN),any(String[].class))).thenReturn(node1Values);
+        when(_jmxService.getAttributeValues(eq(_jmxServiceURLNode2),eq(JMXServiceImpl.THREADING_MXBEAN),any(String[].class))).thenReturn(node2Values);
+
+        for (int i = 1; i <= 4; i++)
+        {
+            node1Values.put("ThreadCount",i * 10);
+            // A failed read is reported as the exception string and must not be sampled
+            node2Values.put("ThreadCount",i % 2 == 0?"java.io.IOException":(Object)i);
+            _samplerService.sample();
+        }
+
+        TimeSeriesJaxBeans timeSeriesJaxBeans = _samplerService.getTimeSeries(_jmxNodes,"threadCount",60000,true);
+        assertEquals(2,timeSeriesJaxBeans.timeSeriesJaxBeans.size());
+        for (TimeSeriesJaxBean timeSeriesJaxBean : timeSeriesJaxBeans.timeSeriesJaxBeans)
+        {
+            if ("node1".equals(timeSeriesJaxBean.nodeName))
+            {
+                assertEquals("Expected the capacity to limit the samples",3,timeSeriesJaxBean.count);
+                assertEquals(20,timeSeriesJaxBean.min,0);
+                assertEquals(30,timeSeriesJaxBean.avg,0);
+                assertEquals(40,timeSeriesJaxBean.max,0);
+            }
+            else
+            {
+                assertEquals(2,timeSeriesJaxBean.count);
+                assertEquals(2,timeSeriesJaxBean.avg,0);
+            }
+        }
+    }
+
+    @Test
+    public void testMetricWithSlashInObjectName() throws Exception
+    {
+        String objectName = "org.eclipse.jetty.server.handler:type=statisticshandler,name=/app/v1,id=0";
+        Properties properties = new Properties();
+        properties.setProperty("sampler.metric.requests.objectName",objectName);
+        properties.setProperty("sampler.metric.requests.attribute","requests");
+        // The short form cannot tell the slashes of the object name from the separators
+        properties.setProperty("sampler.metric.broken",objectName + "/requests");
+        SamplerServiceImpl samplerService = new SamplerServiceImpl(_jmxService,_jmxNodeService,properties);
+
+        Set<String> metricNames = samplerService.getMetricNames();
+        assertEquals(1,metricNames.size());
+        assertTrue(metricNames.contains("requests"));
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        values.put("requests",42);
+        when(_jmxService.getAttributeValues(any(JMXServiceURL.class),eq(objectName),any(String[].class))).thenReturn(values);
+        samplerService.sample();
+
+        TimeSeriesJaxBeans timeSeriesJaxBeans = samplerService.getTimeSeries(_jmxNodes,"requests",60000,false);
+        assertEquals(2,timeSeriesJaxBeans.timeSeriesJaxBeans.size());
+        for (TimeSeriesJaxBean timeSeriesJaxBean : timeSeriesJaxBeans.timeSeriesJaxBeans)
+            assertEquals(42,timeSeriesJaxBean.max,0);
+    }
+}
@@ -0,0 +1,65 @@
+// ========================================================================
+// Copyright (c) 2009-2009 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// All rights reserved. This program and the accompanying materials
+// are made available under the terms of the Eclipse Public License v1.0
+// and Apache License v2.0 which accompanies this distribution.
+// The Eclipse Public License is available at
+// http://www.eclipse.org/legal/epl-v10.html
+// The Apache License v2.0 is available at
+// http://www.opensource.org/licenses/apache2.0.php
+// You may elect to redistribute this code under either of these licenses.
+// ========================================================================
+
+package org.mortbay.jetty.jmx.ws.service.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TimeSeriesTest
+{
+    @Test
+    public void testOldestSamplesAreOverwritten()
+    {
+        TimeSeries timeSeries = new TimeSeries(4);
+        for (int i = 1; i <= 6; i++)
+            timeSeries.add(i * 10,i);
+
+        TimeSeries.Window window = timeSeries.getWindow(0,true);
+        assertEquals(4,window.getCount());
+        assertArrayEquals(new long[] { 30, 40, 50, 60 },window.getTimes());
+        assertArrayEquals(new double[] { 3, 4, 5, 6 },window.getValues(),0);
+        assertEquals(3,window.getMin(),0);
+        assertEquals(4.5,window.getAvg(),0);
+        assertEquals(6,window.getMax(),0);
+    }
+
+    @Test
+    public void testWindowWithoutSamples()
+    {
+        TimeSeries timeSeries = new TimeSeries(4);
+        for (int i = 1; i <= 6; i++)
+            timeSeries.add(i * 10,i);
+
+        TimeSeries.Window window = timeSeries.getWindow(45,false);
+        assertEquals(2,window.getCount());
+        assertNull(window.getTimes());
+        assertNull(window.getValues());
+        assertEquals(5,window.getMin(),0);
+        assertEquals(5.5,window.getAvg(),0);
+        assertEquals(6,window.getMax(),0);
+    }
+
+    @Test
+    public void testEmptyWindow()
+    {
+        TimeSeries.Window window = new TimeSeries(4).getWindow(0,true);
+        assertEquals(0,window.getCount());
+        assertEquals(0,window.getTimes().length);
+        assertTrue(Double.isNaN(window.getAvg()));
+    }
+}
@@ -19,10 +19,15 @@ package org.mortbay.jetty.rhttp.client;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.eclipse.jetty.util.log.Log;
@@ -36,8 +41,15 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
     private final Logger logger = Log.getLogger("org.mortbay.jetty.rhttp.client");
     private final List<RHTTPListener> listeners = new CopyOnWriteArrayList<RHTTPListener>();
     private final List<ClientListener> clientListeners = new CopyOnWriteArrayList<ClientListener>();
+    private final Queue<RHTTPResponse> deliveries = new ConcurrentLinkedQueue<RHTTPResponse>();
+    private final AtomicInteger deliveriesInFlight = new AtomicInteger();
+    // Set while a thread drains the deliveries, so that deliveries completing on it do not recurse
+    private final ThreadLocal<Boolean> flushing = new ThreadLocal<Boolean>();
     private final String targetId;
     private volatile Status status = Status.DISCONNECTED;
+    private volatile boolean batchDeliveries;
+    private volatile int maxBatchSize = 64;
+    private volatile int maxDeliveriesInFlight = 1;
 
     public AbstractClient(String targetId)
     {
@@ -59,6 +71,55 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
         return logger;
     }
 
+    /**
+     * @return whether responses are coalesced and delivered in batches, many per HTTP request
+     * @see #setBatchDeliveries(boolean)
+     */
+    public boolean isBatchDeliveries()
+    {
+        return batchDeliveries;
+    }
+
+    /**
+     * <p>Enables or disables batched deliveries.</p>
+     * <p>When enabled, {@link #deliver(RHTTPResponse) delivered} responses are queued and at most
+     * {@link #getMaxDeliveriesInFlight()} HTTP requests are used to deliver them concurrently;
+     * responses delivered while those requests are in flight are coalesced into the body of the
+     * next HTTP request, as a sequence of frames.</p>
+     *
+     * @param batchDeliveries whether responses should be delivered in batches
+     */
+    public void setBatchDeliveries(boolean batchDeliveries)
+    {
+        this.batchDeliveries = batchDeliveries;
+    }
+
+    /**
+     * @return the max number of responses delivered in a single HTTP request
+     */
+    public int getMaxBatchSize()
+    {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return the max number of concurrent HTTP requests used to deliver batches of responses
+     */
+    public int getMaxDeliveriesInFlight()
+    {
+        return maxDeliveriesInFlight;
+    }
+
+    public void setMaxDeliveriesInFlight(int maxDeliveriesInFlight)
+    {
+        this.maxDeliveriesInFlight = maxDeliveriesInFlight;
+    }
+
     public void addListener(RHTTPListener listener)
     {
         listeners.add(listener);
@@ -238,7 +299,107 @@ public abstract class AbstractClient extends AbstractLifeCycle implements RHTTPC
 
     public void deliver(RHTTPResponse response) throws IOException
     {
-        asyncDeliver(response);
+        if (isBatchDeliveries())
+        {
+            deliveries.offer(response);
+            flushDeliveries();
+        }
+        else
+        {
+            asyncDeliver(response);
+        }
+    }
+
+    private void flushDeliveries()
+    {
+        // A batch that completed on the draining thread is followed by the loop below
+        if (flushing.get() != null)
+            return;
+
+        flushing.set(Boolean.TRUE);
+        try
+        {
+            drainDeliveries();
+        }
+        finally
+        {
+            flushing.remove();
+        }
+    }
+
+    private void drainDeliveries()
+    {
+        while (!deliveries.isEmpty())
+        {
+            int inFlight = deliveriesInFlight.get();
+            if (inFlight >= getMaxDeliveriesInFlight())
+                return;
+            if (!deliveriesInFlight.compareAndSet(inFlight, inFlight + 1))
+                continue;
+
+            int maxBatchSize = getMaxBatchSize();
+            List<RHTTPResponse> batch = new ArrayList<RHTTPResponse>();
+            RHTTPResponse response;
+            while (batch.size() < maxBatchSize && (response = deliveries.poll()) != null)
+                batch.add(response);
+
+            if (batch.isEmpty())
+                deliveriesInFlight.decrementAndGet();
+            else
+                asyncDeliver(batch);
+        }
+    }
+
+    /**
+     * <p>Subclasses must call this method when the delivery of a batch of responses started by
+     * {@link #asyncDeliver(List)} completes, either successfully or not.</p>
+     */
+    protected void deliverComplete()
+    {
+        deliveriesInFlight.decrementAndGet();
+        flushDeliveries();
+    }
+
+    /**
+     * <p>Delivers the given batch of responses in a single HTTP request, whose body is the
+     * concatenation of the responses' frames, and calls {@link #deliverComplete()} when done.</p>
+     * <p>This implementation delivers each response separately via {@link #asyncDeliver(RHTTPResponse)}.</p>
+     *
+     * @param responses the batch of responses to deliver
+     */
+    protected void asyncDeliver(List<RHTTPResponse> responses)
+    {
+        try
+        {
+            for (RHTTPResponse response : responses)
+                asyncDeliver(response);
+        }
+        finally
+        {
+            deliverComplete();
+        }
+    }
+
+    /**
+     * @param responses the responses to concatenate
+     * @return the concatenation of the frames of the given responses
+     */
+    protected byte[] toFrameBytes(List<RHTTPResponse> responses)
+    {
+        if (responses.size() == 1)
+            return responses.get(0).getFrameBytes();
+
+        int length = 0;
+        for (RHTTPResponse response : responses)
+            length += response.getFrameLength();
+        ByteBuffer frames = ByteBuffer.allocate(length);
+        for (RHTTPResponse response : responses)
+        {
+            ByteBuffer payload = response.getResponseBuffer();
+            frames.put(RHTTPFrameGenerator.generateHeader(response.getId(), payload.remaining()));
+            frames.put(payload);
+        }
+        return frames.array();
     }
 
     protected abstract void syncHandshake() throws IOException;
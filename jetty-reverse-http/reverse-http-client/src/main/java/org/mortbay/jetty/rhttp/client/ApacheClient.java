@@ -17,6 +17,9 @@
 package org.mortbay.jetty.rhttp.client;
 
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
@@ -25,11 +28,27 @@ import org.apache.http.HttpStatus;
 import org.apache.http.NoHttpResponseException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
 import org.apache.http.util.EntityUtils;
 
 /**
- * Implementation of {@link RHTTPClient} that uses Apache's HttpClient.
+ * <p>Implementation of {@link RHTTPClient} that uses Apache's HttpClient.</p>
+ * <p>Since Apache's HttpClient is blocking, connect and deliver requests are performed by an
+ * {@link Executor}; many clients can share the same {@link BoundedExecutor} and the same
+ * {@link #newHttpClient(String, int, int) pooled HttpClient} to bound the number of threads
+ * and connections they use for deliveries. Each client still holds a thread and a connection
+ * for its connect long poll, since the gateway expires clients that have no long poll
+ * outstanding.</p>
  *
  * @version $Revision$ $Date$
  */
@@ -37,12 +56,55 @@ public class ApacheClient extends AbstractClient
 {
     private final HttpClient httpClient;
     private final String gatewayPath;
+    private final Executor executor;
 
     public ApacheClient(HttpClient httpClient, String gatewayPath, String targetId)
+    {
+        this(httpClient, gatewayPath, targetId, null);
+    }
+
+    /**
+     * @param httpClient the Apache HttpClient, see {@link #newHttpClient(String, int, int)}
+     * @param gatewayPath the path of the gateway connector servlet
+     * @param targetId the target id of this client
+     * @param executor the executor that performs the connect and deliver requests, typically a
+     * {@link BoundedExecutor} shared by many clients, or null to use a new thread for each request
+     */
+    public ApacheClient(HttpClient httpClient, String gatewayPath, String targetId, Executor executor)
     {
         super(targetId);
         this.httpClient = httpClient;
         this.gatewayPath = gatewayPath;
+        this.executor = executor == null ? new ThreadPerTaskExecutor() : executor;
+    }
+
+    /**
+     * <p>Creates an Apache HttpClient for the given gateway, backed by a pool of connections
+     * that can be shared by many clients.</p>
+     * <p>Each client holds a connection for its connect request and one for each concurrent
+     * deliver request, so the pool should be sized accordingly.</p>
+     *
+     * @param host the gateway host
+     * @param port the gateway port
+     * @param maxConnections the max number of pooled connections to the gateway
+     * @return a new Apache HttpClient; its connection manager should be shut down when no longer used
+     */
+    public static HttpClient newHttpClient(String host, int port, int maxConnections)
+    {
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), port));
+        HttpParams connectionParams = new BasicHttpParams();
+        ConnManagerParams.setMaxTotalConnections(connectionParams, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(connectionParams, new ConnPerRouteBean(maxConnections));
+        ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(connectionParams, schemeRegistry);
+        HttpParams httpParams = new BasicHttpParams();
+        httpParams.setParameter("http.default-host", new HttpHost(host, port));
+        return new DefaultHttpClient(connectionManager, httpParams);
+    }
+
+    public Executor getExecutor()
+    {
+        return executor;
     }
 
     public String getHost()
@@ -75,9 +137,8 @@ public class ApacheClient extends AbstractClient
 
     protected void asyncConnect()
     {
-        new Thread()
+        Runnable connect = new Runnable()
         {
-            @Override
             public void run()
             {
                 try
@@ -105,7 +166,12 @@ public class ApacheClient extends AbstractClient
                     notifyConnectException();
                 }
             }
-        }.start();
+        };
+        // Long polls must not take the threads of a shared executor
+        if (executor instanceof BoundedExecutor)
+            ((BoundedExecutor)executor).executeLongPoll(connect);
+        else
+            executor.execute(connect);
     }
 
     protected void syncDisconnect() throws IOException
@@ -123,9 +189,8 @@ public class ApacheClient extends AbstractClient
 
     protected void asyncDeliver(final RHTTPResponse response)
     {
-        new Thread()
+        executor.execute(new Runnable()
         {
-            @Override
             public void run()
             {
                 try
@@ -149,6 +214,65 @@ public class ApacheClient extends AbstractClient
                     notifyDeliverException(response);
                 }
             }
-        }.start();
+        });
+    }
+
+    @Override
+    protected void asyncDeliver(final List<RHTTPResponse> responses)
+    {
+        Runnable deliver = new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    HttpPost deliver = new HttpPost(gatewayPath + "/" + urlEncode(getTargetId()) + "/deliver");
+                    deliver.setEntity(new ByteArrayEntity(toFrameBytes(responses)));
+                    getLogger().debug("Client {} deliver sent to gateway, responses {}", getTargetId(), responses);
+                    HttpResponse httpResponse = httpClient.execute(deliver);
+                    int statusCode = httpResponse.getStatusLine().getStatusCode();
+                    HttpEntity entity = httpResponse.getEntity();
+                    if (entity != null)
+                        entity.consumeContent();
+                    if (statusCode == HttpStatus.SC_UNAUTHORIZED)
+                    {
+                        notifyConnectRequired();
+                    }
+                    else if (statusCode != HttpStatus.SC_OK)
+                    {
+                        for (RHTTPResponse response : responses)
+                            notifyDeliverException(response);
+                    }
+                }
+                catch (IOException x)
+                {
+                    getLogger().debug("", x);
+                    for (RHTTPResponse response : responses)
+                        notifyDeliverException(response);
+                }
+                finally
+                {
+                    deliverComplete();
+                }
+            }
+        };
+        try
+        {
+            executor.execute(deliver);
+        }
+        catch (RejectedExecutionException x)
+        {
+            // The executor is shut down, the batch is never delivered
+            getLogger().debug("", x);
+            deliverComplete();
+        }
+    }
+
+    private static class ThreadPerTaskExecutor implements Executor
+    {
+        public void execute(Runnable task)
+        {
+            new Thread(task).start();
+        }
     }
 }
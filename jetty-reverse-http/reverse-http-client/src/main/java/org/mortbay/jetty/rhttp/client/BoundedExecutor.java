@@ -0,0 +1,252 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A thread pool with a bounded number of threads and a bounded queue of pending tasks,
+ * meant to be shared by many {@link ApacheClient}s.</p>
+ * <p>When the queue is full, the thread that submits a task blocks until there is room in
+ * the queue, so that clients producing deliveries faster than they can be sent are slowed
+ * down instead of piling up tasks.<br />
+ * Tasks submitted by the pool's own threads are never blocked, since that could starve the
+ * pool: they are handed back to the submitting thread, which runs them once the task it is
+ * running returns - never nested inside it, so that chains of tasks do not recurse.
+ * At most {@code maxQueuedTasks} tasks are handed back to each thread; beyond that the
+ * submitting thread runs the task itself.</p>
+ * <p>The connect requests of {@link ApacheClient}s are long polls that hold a thread until
+ * the gateway returns, and are submitted via {@link #executeLongPoll(Runnable)}: they run on
+ * a separate pool of threads that are reused from one long poll to the next, so that they
+ * never take the threads that send deliveries.
+ * Every client must always have its long poll outstanding, or the gateway expires it after
+ * its client timeout, so that pool grows to about one thread for each connected client:
+ * this executor bounds the threads used for deliveries, not the threads used for long polls.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class BoundedExecutor extends ThreadPoolExecutor
+{
+    private final AtomicInteger longPolls = new AtomicInteger();
+    private final ThreadPoolExecutor longPollExecutor;
+    private final int maxDeferredTasks;
+
+    /**
+     * @param maxThreads the max number of threads
+     * @param maxQueuedTasks the max number of tasks waiting for a thread
+     */
+    public BoundedExecutor(int maxThreads, int maxQueuedTasks)
+    {
+        super(maxThreads, maxThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(maxQueuedTasks));
+        this.maxDeferredTasks = maxQueuedTasks;
+        setThreadFactory(new PoolThreadFactory());
+        setRejectedExecutionHandler(new BlockingPolicy());
+        this.longPollExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        this.longPollExecutor.setThreadFactory(new LongPollThreadFactory());
+    }
+
+    /**
+     * <p>Executes a task that may hold its thread for a long time, such as a long poll.</p>
+     * <p>The task runs on a thread outside of the pool, so that it takes neither a thread
+     * of the pool nor a slot in the queue; threads that ran a long poll are kept alive for
+     * a while to run the next ones, so that reconnecting clients do not create new threads.</p>
+     *
+     * @param task the long poll to execute
+     * @throws RejectedExecutionException if this executor is shut down
+     */
+    public void executeLongPoll(Runnable task)
+    {
+        if (isShutdown())
+            throw new RejectedExecutionException("Executor is shut down");
+        longPolls.incrementAndGet();
+        try
+        {
+            longPollExecutor.execute(new LongPoll(task));
+        }
+        catch (RejectedExecutionException x)
+        {
+            longPolls.decrementAndGet();
+            throw x;
+        }
+    }
+
+    /**
+     * @return the number of long polls that are running
+     */
+    public int getLongPolls()
+    {
+        return longPolls.get();
+    }
+
+    /**
+     * @return the number of threads that run long polls, either running or waiting for the next one
+     */
+    public int getLongPollThreads()
+    {
+        return longPollExecutor.getPoolSize();
+    }
+
+    @Override
+    public void shutdown()
+    {
+        super.shutdown();
+        longPollExecutor.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        List<Runnable> tasks = super.shutdownNow();
+        longPollExecutor.shutdownNow();
+        return tasks;
+    }
+
+    private class PoolThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threads = new AtomicInteger();
+
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new PoolThread(task, "rhttp-client-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static class LongPollThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger threads = new AtomicInteger();
+
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(task, "rhttp-client-poll-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable task, Throwable failure)
+    {
+        super.afterExecute(task, failure);
+        Thread thread = Thread.currentThread();
+        if (thread instanceof PoolThread)
+            ((PoolThread)thread).runDeferred();
+    }
+
+    private class LongPoll implements Runnable
+    {
+        private final Runnable task;
+
+        private LongPoll(Runnable task)
+        {
+            this.task = task;
+        }
+
+        public void run()
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                longPolls.decrementAndGet();
+            }
+        }
+    }
+
+    private class PoolThread extends Thread
+    {
+        // Only accessed by this thread
+        private final Queue<Runnable> deferred = new LinkedList<Runnable>();
+
+        private PoolThread(Runnable task, String name)
+        {
+            super(task, name);
+        }
+
+        private void defer(Runnable task)
+        {
+            if (deferred.size() < maxDeferredTasks)
+                deferred.offer(task);
+            else
+                task.run();
+        }
+
+        private void runDeferred()
+        {
+            Runnable task;
+            while ((task = deferred.poll()) != null)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (Throwable x)
+                {
+                    getUncaughtExceptionHandler().uncaughtException(this, x);
+                }
+            }
+        }
+
+        private BoundedExecutor getExecutor()
+        {
+            return BoundedExecutor.this;
+        }
+    }
+
+    private static class BlockingPolicy implements RejectedExecutionHandler
+    {
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor)
+        {
+            if (executor.isShutdown())
+                throw new RejectedExecutionException("Executor is shut down");
+
+            Thread thread = Thread.currentThread();
+            if (thread instanceof PoolThread && ((PoolThread)thread).getExecutor() == executor)
+            {
+                ((PoolThread)thread).defer(task);
+                return;
+            }
+
+            try
+            {
+                executor.getQueue().put(task);
+            }
+            catch (InterruptedException x)
+            {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(x);
+            }
+
+            // The executor may have been shut down while we were waiting
+            if (executor.isShutdown() && executor.remove(task))
+                throw new RejectedExecutionException("Executor is shut down");
+        }
+    }
+}
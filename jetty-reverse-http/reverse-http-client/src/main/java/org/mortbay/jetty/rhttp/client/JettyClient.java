@@ -19,6 +19,9 @@ package org.mortbay.jetty.rhttp.client;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.eclipse.jetty.client.Address;
 import org.eclipse.jetty.client.ContentExchange;
@@ -180,6 +183,35 @@ public class JettyClient extends AbstractClient
         }
     }
 
+    @Override
+    protected void asyncDeliver(List<RHTTPResponse> responses)
+    {
+        try
+        {
+            DeliverExchange exchange = new DeliverExchange(responses, true);
+            exchange.setMethod(HttpMethods.POST);
+            exchange.setAddress(gatewayAddress);
+            exchange.setRequestURI(gatewayPath + "/" + urlEncode(getTargetId()) + "/deliver");
+            exchange.setRequestContent(new ByteArrayBuffer(toFrameBytes(responses)));
+            httpClient.send(exchange);
+            getLogger().debug("Client {} deliver sent to gateway, responses {}", getTargetId(), responses);
+        }
+        catch (IOException x)
+        {
+            getLogger().debug("Could not send exchange", x);
+            // Asynchronous callers cannot handle exceptions, notify each response instead
+            try
+            {
+                for (RHTTPResponse response : responses)
+                    notifyDeliverException(response);
+            }
+            finally
+            {
+                deliverComplete();
+            }
+        }
+    }
+
     protected class HandshakeExchange extends ContentExchange
     {
         protected HandshakeExchange()
@@ -266,25 +298,41 @@ public class JettyClient extends AbstractClient
 
     protected class DeliverExchange extends ContentExchange
     {
-        private final RHTTPResponse response;
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private final List<RHTTPResponse> responses;
+        private final boolean batch;
 
         protected DeliverExchange(RHTTPResponse response)
+        {
+            this(Collections.singletonList(response), false);
+        }
+
+        protected DeliverExchange(List<RHTTPResponse> responses, boolean batch)
         {
             super(true);
-            this.response = response;
+            this.responses = responses;
+            this.batch = batch;
         }
 
         @Override
         protected void onResponseComplete() throws IOException
         {
-            int responseStatus = getResponseStatus();
-            if (responseStatus == 401)
+            try
             {
-                notifyConnectRequired();
+                int responseStatus = getResponseStatus();
+                if (responseStatus == 401)
+                {
+                    notifyConnectRequired();
+                }
+                else if (responseStatus != 200)
+                {
+                    for (RHTTPResponse response : responses)
+                        notifyDeliverException(response);
+                }
             }
-            else if (responseStatus != 200)
+            finally
             {
-                notifyDeliverException(response);
+                complete();
             }
         }
 
@@ -292,13 +340,41 @@ public class JettyClient extends AbstractClient
         protected void onException(Throwable x)
         {
             getLogger().debug(x);
-            notifyDeliverException(response);
+            // An expiration may follow the response: it has already been handled
+            if (completed.get())
+                return;
+            try
+            {
+                for (RHTTPResponse response : responses)
+                    notifyDeliverException(response);
+            }
+            finally
+            {
+                complete();
+            }
         }
 
         @Override
         protected void onConnectionFailed(Throwable x)
         {
             getLogger().debug(x);
+            if (batch)
+                onException(x);
+        }
+
+        @Override
+        protected void onExpire()
+        {
+            super.onExpire();
+            if (batch)
+                onException(new EOFException());
+        }
+
+        private void complete()
+        {
+            // Runs once, or the count of deliveries in flight would drift
+            if (completed.compareAndSet(false, true) && batch)
+                deliverComplete();
         }
     }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Generates frames in the format parsed by {@link RHTTPFrameParser}.</p>
+ * <p>The id/length prefix is generated directly as ASCII bytes, without creating intermediate
+ * strings, and payloads are written to the destination straight from their buffer, so that
+ * a frame never needs to be materialized as a whole.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class RHTTPFrameGenerator
+{
+    private static final int CHUNK_SIZE = 8192;
+
+    private RHTTPFrameGenerator()
+    {
+    }
+
+    /**
+     * @param id the frame id
+     * @param length the frame payload length
+     * @return the number of bytes of the frame header for the given id and payload length
+     */
+    public static int headerLength(int id, int length)
+    {
+        return digits(id) + 1 + digits(length) + 2;
+    }
+
+    /**
+     * @param id the frame id
+     * @param length the frame payload length
+     * @return the frame header bytes for the given id and payload length
+     */
+    public static byte[] generateHeader(int id, int length)
+    {
+        byte[] header = new byte[headerLength(id, length)];
+        int index = putNumber(header, 0, id);
+        header[index++] = ' ';
+        index = putNumber(header, index, length);
+        header[index++] = '\r';
+        header[index] = '\n';
+        return header;
+    }
+
+    /**
+     * <p>Generates the whole frame for the given id and payload into a new array.</p>
+     *
+     * @param id the frame id
+     * @param payload the frame payload, between position and limit; it is not modified
+     * @return the frame bytes
+     */
+    public static byte[] generate(int id, ByteBuffer payload)
+    {
+        int length = payload.remaining();
+        byte[] header = generateHeader(id, length);
+        byte[] frame = new byte[header.length + length];
+        System.arraycopy(header, 0, frame, 0, header.length);
+        payload.duplicate().get(frame, header.length, length);
+        return frame;
+    }
+
+    /**
+     * <p>Writes the frame for the given id and payload to the given stream.</p>
+     *
+     * @param output the stream to write to
+     * @param id the frame id
+     * @param payload the frame payload, between position and limit; it is not modified
+     * @throws IOException if writing to the stream fails
+     */
+    public static void write(OutputStream output, int id, ByteBuffer payload) throws IOException
+    {
+        int length = payload.remaining();
+        output.write(generateHeader(id, length));
+        if (payload.hasArray())
+        {
+            output.write(payload.array(), payload.arrayOffset() + payload.position(), length);
+        }
+        else
+        {
+            // Copy in chunks, so that large direct or mapped payloads are not copied on the heap at once
+            ByteBuffer source = payload.duplicate();
+            byte[] chunk = new byte[Math.min(length, CHUNK_SIZE)];
+            while (source.hasRemaining())
+            {
+                int size = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, size);
+                output.write(chunk, 0, size);
+            }
+        }
+    }
+
+    private static int digits(int number)
+    {
+        long value = number;
+        int result = 1;
+        if (value < 0)
+        {
+            ++result;
+            value = -value;
+        }
+        while (value >= 10)
+        {
+            value /= 10;
+            ++result;
+        }
+        return result;
+    }
+
+    private static int putNumber(byte[] bytes, int index, int number)
+    {
+        int end = index + digits(number);
+        long value = number;
+        if (value < 0)
+        {
+            bytes[index] = '-';
+            value = -value;
+        }
+        int cursor = end;
+        do
+        {
+            bytes[--cursor] = (byte)('0' + (int)(value % 10));
+            value /= 10;
+        }
+        while (value > 0);
+        return end;
+    }
+}
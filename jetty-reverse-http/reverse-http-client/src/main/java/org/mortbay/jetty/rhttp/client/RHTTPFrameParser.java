@@ -0,0 +1,282 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Incremental parser for the frame format shared by {@link RHTTPRequest} and {@link RHTTPResponse}:</p>
+ * <pre>
+ * &lt;id&gt; SPACE &lt;payload-length&gt; CRLF
+ * &lt;payload&gt;
+ * </pre>
+ * <p>The id/length prefix is parsed byte by byte, without creating intermediate strings, so that
+ * frames may be split across any number of {@link #parse(ByteBuffer)} invocations, and any number
+ * of frames may be concatenated in the same buffer.</p>
+ * <p>A payload that is entirely contained in the buffer passed to {@link #parse(ByteBuffer)} is
+ * notified as a slice of that buffer, without copying; a payload that spans several buffers is
+ * aggregated into a buffer of the exact payload length.<br />
+ * Listeners that do not own the parsed buffers must therefore copy the payload if they need it
+ * after the notification returns.</p>
+ * <p>When parsing from an {@link InputStream} via {@link #parse(InputStream)}, each payload is read
+ * directly into a buffer of the exact payload length, that is owned by the listener.</p>
+ * <p>Since payload buffers are allocated from the length in the frame header, parsers of untrusted
+ * input should be given a max payload length: frames that declare a longer payload are rejected
+ * before anything is allocated for them.</p>
+ *
+ * @see RHTTPFrameGenerator
+ * @version $Revision$ $Date$
+ */
+public class RHTTPFrameParser
+{
+    private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0);
+
+    private final Listener listener;
+    private final int maxPayloadLength;
+    private State state = State.ID;
+    private boolean negative;
+    private int digits;
+    private long value;
+    private int id;
+    private int length;
+    private ByteBuffer payload;
+
+    public RHTTPFrameParser(Listener listener)
+    {
+        this(listener, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param listener the listener notified of parsed frames
+     * @param maxPayloadLength the max payload length of a frame; longer frames are rejected
+     */
+    public RHTTPFrameParser(Listener listener, int maxPayloadLength)
+    {
+        this.listener = listener;
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    public int getMaxPayloadLength()
+    {
+        return maxPayloadLength;
+    }
+
+    /**
+     * @return whether this parser is at a frame boundary, i.e. it is not in the middle of a frame
+     */
+    public boolean isIdle()
+    {
+        return state == State.ID && digits == 0 && !negative;
+    }
+
+    /**
+     * <p>Discards any partially parsed frame.</p>
+     */
+    public void reset()
+    {
+        state = State.ID;
+        negative = false;
+        digits = 0;
+        value = 0;
+        id = 0;
+        length = 0;
+        payload = null;
+    }
+
+    /**
+     * <p>Parses the bytes between the buffer's position and limit, notifying the listener for every
+     * complete frame; on return the buffer's position is equal to its limit.</p>
+     *
+     * @param buffer the buffer to parse, heap or direct
+     * @throws IOException if the bytes do not represent a valid frame
+     */
+    public void parse(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (state == State.PAYLOAD)
+            {
+                int position = buffer.position();
+                if (payload == null && buffer.remaining() >= length)
+                {
+                    ByteBuffer slice = buffer.slice();
+                    slice.limit(length);
+                    buffer.position(position + length);
+                    frame(slice);
+                }
+                else
+                {
+                    if (payload == null)
+                        payload = ByteBuffer.allocate(length);
+                    int chunk = Math.min(payload.remaining(), buffer.remaining());
+                    ByteBuffer source = buffer.duplicate();
+                    source.limit(position + chunk);
+                    payload.put(source);
+                    buffer.position(position + chunk);
+                    if (!payload.hasRemaining())
+                    {
+                        ByteBuffer complete = payload;
+                        complete.flip();
+                        payload = null;
+                        frame(complete);
+                    }
+                }
+            }
+            else
+            {
+                parseHeader(buffer.get());
+            }
+        }
+    }
+
+    /**
+     * <p>Parses frames from the given stream until the end of the stream is reached.</p>
+     *
+     * @param input the stream to parse
+     * @throws EOFException if the stream ends in the middle of a frame
+     * @throws IOException if the bytes do not represent a valid frame, or if reading from the stream fails
+     */
+    public void parse(InputStream input) throws IOException
+    {
+        while (true)
+        {
+            if (state == State.PAYLOAD)
+            {
+                if (payload == null)
+                    payload = ByteBuffer.allocate(length);
+                byte[] bytes = payload.array();
+                while (payload.hasRemaining())
+                {
+                    int read = input.read(bytes, payload.position(), payload.remaining());
+                    if (read < 0)
+                        throw new EOFException("Frame " + id + " truncated after " + payload.position() + "/" + length + " bytes");
+                    payload.position(payload.position() + read);
+                }
+                ByteBuffer complete = payload;
+                complete.flip();
+                payload = null;
+                frame(complete);
+            }
+            else
+            {
+                int read = input.read();
+                if (read < 0)
+                {
+                    if (!isIdle())
+                        throw new EOFException("Frame header truncated");
+                    return;
+                }
+                parseHeader((byte)read);
+            }
+        }
+    }
+
+    private void parseHeader(byte b) throws IOException
+    {
+        switch (state)
+        {
+            case ID:
+                if (b == ' ')
+                {
+                    if (digits == 0)
+                        throw new IOException("Invalid frame: missing id");
+                    id = (int)(negative ? -value : value);
+                    negative = false;
+                    digits = 0;
+                    value = 0;
+                    state = State.LENGTH;
+                }
+                else if (b == '-' && digits == 0 && !negative)
+                {
+                    negative = true;
+                }
+                else
+                {
+                    digit(b);
+                }
+                break;
+            case LENGTH:
+                if (b == '\r')
+                {
+                    if (digits == 0)
+                        throw new IOException("Invalid frame " + id + ": missing length");
+                    if (value > maxPayloadLength)
+                        throw new IOException("Invalid frame " + id + ": payload length " + value + " exceeds " + maxPayloadLength);
+                    length = (int)value;
+                    digits = 0;
+                    value = 0;
+                    state = State.LF;
+                }
+                else
+                {
+                    digit(b);
+                }
+                break;
+            case LF:
+                if (b != '\n')
+                    throw new IOException("Invalid frame " + id + ": expected LF, found " + (b & 0xFF));
+                state = State.PAYLOAD;
+                if (length == 0)
+                    frame(EMPTY_PAYLOAD.duplicate());
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private void digit(byte b) throws IOException
+    {
+        int digit = b - '0';
+        if (digit < 0 || digit > 9)
+            throw new IOException("Invalid frame: unexpected byte " + (b & 0xFF) + " in " + state.name().toLowerCase());
+        // A negative id may reach Integer.MIN_VALUE, which generators produce when their ids wrap around
+        long max = negative ? -(long)Integer.MIN_VALUE : Integer.MAX_VALUE;
+        if (value * 10 + digit > max)
+            throw new IOException("Invalid frame: " + state.name().toLowerCase() + " overflow");
+        value = value * 10 + digit;
+        ++digits;
+    }
+
+    private void frame(ByteBuffer frame)
+    {
+        int frameId = id;
+        reset();
+        listener.onFrame(frameId, frame);
+    }
+
+    private enum State
+    {
+        ID, LENGTH, LF, PAYLOAD
+    }
+
+    /**
+     * <p>Listener for frames parsed by {@link RHTTPFrameParser}.</p>
+     */
+    public interface Listener
+    {
+        /**
+         * <p>Callback method invoked when a frame has been completely parsed.</p>
+         *
+         * @param id the frame id
+         * @param payload the frame payload, between position and limit
+         */
+        public void onFrame(int id, ByteBuffer payload);
+    }
+}
@@ -18,6 +18,8 @@ package org.mortbay.jetty.rhttp.client;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -45,8 +47,9 @@ public class RHTTPRequest
     private static final byte[] CRLF_BYTES = CRLF.getBytes();
 
     private final int id;
-    private final byte[] requestBytes;
-    private final byte[] frameBytes;
+    private final ByteBuffer requestBuffer;
+    private volatile byte[] requestBytes;
+    private volatile byte[] frameBytes;
     private volatile String method;
     private volatile String uri;
     private volatile Map<String, String> headers;
@@ -54,33 +57,44 @@ public class RHTTPRequest
 
     public static List<RHTTPRequest> fromFrameBytes(byte[] bytes)
     {
-        List<RHTTPRequest> result = new ArrayList<RHTTPRequest>();
-        int start = 0;
-        while (start < bytes.length)
+        final List<RHTTPRequest> result = new ArrayList<RHTTPRequest>();
+        RHTTPFrameParser parser = new RHTTPFrameParser(new RHTTPFrameParser.Listener()
         {
-            // Scan until we find the space
-            int end = start;
-            while (bytes[end] != ' ') ++end;
-            int requestId = Integer.parseInt(new String(bytes, start, end - start));
-            start = end + 1;
-
-            // Scan until end of line
-            while (bytes[end] != '\n') ++end;
-            int length = Integer.parseInt(new String(bytes, start, end - start - 1));
-            start = end + 1;
-
-            byte[] requestBytes = new byte[length];
-            System.arraycopy(bytes, start, requestBytes, 0, length);
-            RHTTPRequest request = fromRequestBytes(requestId, requestBytes);
-            result.add(request);
-            start += length;
+            public void onFrame(int id, ByteBuffer payload)
+            {
+                // We own the bytes, so the payload can be retained without copying
+                result.add(fromRequestBuffer(id, payload));
+            }
+        });
+        try
+        {
+            parser.parse(ByteBuffer.wrap(bytes));
         }
+        catch (IOException x)
+        {
+            throw new IllegalArgumentException(x);
+        }
+        if (!parser.isIdle())
+            throw new IllegalArgumentException("Truncated frame");
         return result;
     }
 
     public static RHTTPRequest fromRequestBytes(int requestId, byte[] requestBytes)
     {
-        return new RHTTPRequest(requestId, requestBytes);
+        return new RHTTPRequest(requestId, ByteBuffer.wrap(requestBytes));
+    }
+
+    /**
+     * <p>Creates a request from the bytes between the buffer's position and limit.</p>
+     * <p>The buffer is retained (not copied), so its content must not be modified afterwards.</p>
+     *
+     * @param requestId the request id
+     * @param requestBuffer the request bytes, heap or direct
+     * @return a new request
+     */
+    public static RHTTPRequest fromRequestBuffer(int requestId, ByteBuffer requestBuffer)
+    {
+        return new RHTTPRequest(requestId, requestBuffer.slice());
     }
 
     public RHTTPRequest(int id, String method, String uri, Map<String, String> headers, byte[] body)
@@ -91,14 +105,14 @@ public class RHTTPRequest
         this.headers = headers;
         this.body = body;
         this.requestBytes = toRequestBytes();
-        this.frameBytes = toFrameBytes(requestBytes);
+        this.requestBuffer = ByteBuffer.wrap(requestBytes);
+        // The frame bytes are lazily initialized
     }
 
-    private RHTTPRequest(int id, byte[] requestBytes)
+    private RHTTPRequest(int id, ByteBuffer requestBuffer)
     {
         this.id = id;
-        this.requestBytes = requestBytes;
-        this.frameBytes = toFrameBytes(requestBytes);
+        this.requestBuffer = requestBuffer;
         // Other fields are lazily initialized
     }
 
@@ -107,7 +121,7 @@ public class RHTTPRequest
         try
         {
             final ByteArrayOutputStream body = new ByteArrayOutputStream();
-            HttpParser parser = new HttpParser(new ByteArrayBuffer(requestBytes), new HttpParser.EventHandler()
+            HttpParser parser = new HttpParser(new ByteArrayBuffer(getRequestBytes()), new HttpParser.EventHandler()
             {
                 @Override
                 public void startRequest(Buffer method, Buffer uri, Buffer httpVersion) throws IOException
@@ -151,12 +165,52 @@ public class RHTTPRequest
 
     public byte[] getRequestBytes()
     {
-        return requestBytes;
+        byte[] result = requestBytes;
+        if (result == null)
+        {
+            result = toBytes(requestBuffer);
+            requestBytes = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return a view of the request bytes, that shares the content but not the position and limit
+     */
+    public ByteBuffer getRequestBuffer()
+    {
+        return requestBuffer.duplicate();
     }
 
     public byte[] getFrameBytes()
     {
-        return frameBytes;
+        byte[] result = frameBytes;
+        if (result == null)
+        {
+            result = RHTTPFrameGenerator.generate(id, requestBuffer);
+            frameBytes = result;
+        }
+        return result;
+    }
+
+    /**
+     * <p>Writes the frame form of this request to the given stream, without materializing the whole frame.</p>
+     *
+     * @param output the stream to write to
+     * @throws IOException if writing to the stream fails
+     */
+    public void writeFrameTo(OutputStream output) throws IOException
+    {
+        RHTTPFrameGenerator.write(output, id, requestBuffer);
+    }
+
+    /**
+     * @return the number of bytes of the frame form of this request
+     */
+    public int getFrameLength()
+    {
+        int length = requestBuffer.remaining();
+        return RHTTPFrameGenerator.headerLength(id, length) + length;
     }
 
     public String getMethod()
@@ -188,6 +242,26 @@ public class RHTTPRequest
     }
 
     private byte[] toRequestBytes()
+    {
+        byte[] head = generateHead(method, uri, headers);
+        byte[] result = new byte[head.length + body.length];
+        System.arraycopy(head, 0, result, 0, head.length);
+        System.arraycopy(body, 0, result, head.length, body.length);
+        return result;
+    }
+
+    /**
+     * <p>Generates the request line and the headers of an external request, up to and including
+     * the empty line that separates them from the body.</p>
+     * <p>This allows to build the request bytes without first materializing the body, for example
+     * when the body is streamed into a {@link #fromRequestBuffer(int, ByteBuffer) request buffer}.</p>
+     *
+     * @param method the request method
+     * @param uri the request URI
+     * @param headers the request headers
+     * @return the bytes of the request line and headers
+     */
+    public static byte[] generateHead(String method, String uri, Map<String, String> headers)
     {
         try
         {
@@ -207,7 +281,6 @@ public class RHTTPRequest
                 bytes.write(CRLF_BYTES);
             }
             bytes.write(CRLF_BYTES);
-            bytes.write(body);
             bytes.close();
             return bytes.toByteArray();
         }
@@ -217,23 +290,13 @@ public class RHTTPRequest
         }
     }
 
-    private byte[] toFrameBytes(byte[] requestBytes)
+    private static byte[] toBytes(ByteBuffer buffer)
     {
-        try
-        {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            bytes.write(String.valueOf(id).getBytes("UTF-8"));
-            bytes.write(' ');
-            bytes.write(String.valueOf(requestBytes.length).getBytes("UTF-8"));
-            bytes.write(CRLF_BYTES);
-            bytes.write(requestBytes);
-            bytes.close();
-            return bytes.toByteArray();
-        }
-        catch (IOException x)
-        {
-            throw new AssertionError(x);
-        }
+        if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0 && buffer.remaining() == buffer.array().length)
+            return buffer.array();
+        byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
     }
 
     @Override
@@ -244,8 +307,8 @@ public class RHTTPRequest
         builder.append(id).append(" ");
         builder.append(method).append(" ");
         builder.append(uri).append(" ");
-        builder.append(requestBytes.length).append("/");
-        builder.append(frameBytes.length);
+        builder.append(requestBuffer.remaining()).append("/");
+        builder.append(getFrameLength());
         return builder.toString();
     }
 
@@ -18,6 +18,8 @@ package org.mortbay.jetty.rhttp.client;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -43,8 +45,9 @@ public class RHTTPResponse
     private static final byte[] CRLF_BYTES = CRLF.getBytes();
 
     private final int id;
-    private final byte[] responseBytes;
-    private final byte[] frameBytes;
+    private final ByteBuffer responseBuffer;
+    private volatile byte[] responseBytes;
+    private volatile byte[] frameBytes;
     private volatile int code;
     private volatile String message;
     private volatile Map<String, String> headers;
@@ -52,26 +55,45 @@ public class RHTTPResponse
 
     public static RHTTPResponse fromFrameBytes(byte[] bytes)
     {
-        int start = 0;
-        // Scan until we find the space
-        int end = start;
-        while (bytes[end] != ' ') ++end;
-        int responseId = Integer.parseInt(new String(bytes, start, end - start));
-        start = end + 1;
-
-        // Scan until end of line
-        while (bytes[end] != '\n') ++end;
-        int length = Integer.parseInt(new String(bytes, start, end - start - 1));
-        start = end + 1;
-
-        byte[] responseBytes = new byte[length];
-        System.arraycopy(bytes, start, responseBytes, 0, length);
-        return fromResponseBytes(responseId, responseBytes);
+        final RHTTPResponse[] result = new RHTTPResponse[1];
+        RHTTPFrameParser parser = new RHTTPFrameParser(new RHTTPFrameParser.Listener()
+        {
+            public void onFrame(int id, ByteBuffer payload)
+            {
+                // We own the bytes, so the payload can be retained without copying
+                if (result[0] == null)
+                    result[0] = fromResponseBuffer(id, payload);
+            }
+        });
+        try
+        {
+            parser.parse(ByteBuffer.wrap(bytes));
+        }
+        catch (IOException x)
+        {
+            throw new IllegalArgumentException(x);
+        }
+        if (result[0] == null || !parser.isIdle())
+            throw new IllegalArgumentException("Truncated frame");
+        return result[0];
     }
 
     public static RHTTPResponse fromResponseBytes(int id, byte[] responseBytes)
     {
-        return new RHTTPResponse(id, responseBytes);
+        return new RHTTPResponse(id, ByteBuffer.wrap(responseBytes));
+    }
+
+    /**
+     * <p>Creates a response from the bytes between the buffer's position and limit.</p>
+     * <p>The buffer is retained (not copied), so its content must not be modified afterwards.</p>
+     *
+     * @param id the response id
+     * @param responseBuffer the response bytes, heap or direct
+     * @return a new response
+     */
+    public static RHTTPResponse fromResponseBuffer(int id, ByteBuffer responseBuffer)
+    {
+        return new RHTTPResponse(id, responseBuffer.slice());
     }
 
     public RHTTPResponse(int id, int code, String message, Map<String, String> headers, byte[] body)
@@ -82,14 +104,14 @@ public class RHTTPResponse
         this.headers = headers;
         this.body = body;
         this.responseBytes = toResponseBytes();
-        this.frameBytes = toFrameBytes(responseBytes);
+        this.responseBuffer = ByteBuffer.wrap(responseBytes);
+        // The frame bytes are lazily initialized
     }
 
-    private RHTTPResponse(int id, byte[] responseBytes)
+    private RHTTPResponse(int id, ByteBuffer responseBuffer)
     {
         this.id = id;
-        this.responseBytes = responseBytes;
-        this.frameBytes = toFrameBytes(responseBytes);
+        this.responseBuffer = responseBuffer;
         // Other fields are lazily initialized
     }
 
@@ -98,7 +120,7 @@ public class RHTTPResponse
         try
         {
             final ByteArrayOutputStream body = new ByteArrayOutputStream();
-            HttpParser parser = new HttpParser(new ByteArrayBuffer(responseBytes), new HttpParser.EventHandler()
+            HttpParser parser = new HttpParser(new ByteArrayBuffer(getResponseBytes()), new HttpParser.EventHandler()
             {
                 @Override
                 public void startRequest(Buffer method, Buffer uri, Buffer httpVersion) throws IOException
@@ -142,12 +164,52 @@ public class RHTTPResponse
 
     public byte[] getResponseBytes()
     {
-        return responseBytes;
+        byte[] result = responseBytes;
+        if (result == null)
+        {
+            result = toBytes(responseBuffer);
+            responseBytes = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return a view of the response bytes, that shares the content but not the position and limit
+     */
+    public ByteBuffer getResponseBuffer()
+    {
+        return responseBuffer.duplicate();
     }
 
     public byte[] getFrameBytes()
     {
-        return frameBytes;
+        byte[] result = frameBytes;
+        if (result == null)
+        {
+            result = RHTTPFrameGenerator.generate(id, responseBuffer);
+            frameBytes = result;
+        }
+        return result;
+    }
+
+    /**
+     * <p>Writes the frame form of this response to the given stream, without materializing the whole frame.</p>
+     *
+     * @param output the stream to write to
+     * @throws IOException if writing to the stream fails
+     */
+    public void writeFrameTo(OutputStream output) throws IOException
+    {
+        RHTTPFrameGenerator.write(output, id, responseBuffer);
+    }
+
+    /**
+     * @return the number of bytes of the frame form of this response
+     */
+    public int getFrameLength()
+    {
+        int length = responseBuffer.remaining();
+        return RHTTPFrameGenerator.headerLength(id, length) + length;
     }
 
     public int getStatusCode()
@@ -208,22 +270,13 @@ public class RHTTPResponse
         }
     }
 
-    private byte[] toFrameBytes(byte[] responseBytes)
+    private static byte[] toBytes(ByteBuffer buffer)
     {
-        try
-        {
-            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-            bytes.write(String.valueOf(id).getBytes("UTF-8"));
-            bytes.write(' ');
-            bytes.write(String.valueOf(responseBytes.length).getBytes("UTF-8"));
-            bytes.write(CRLF_BYTES);
-            bytes.write(responseBytes);
-            return bytes.toByteArray();
-        }
-        catch (IOException x)
-        {
-            throw new AssertionError(x);
-        }
+        if (buffer.hasArray() && buffer.arrayOffset() + buffer.position() == 0 && buffer.remaining() == buffer.array().length)
+            return buffer.array();
+        byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
     }
 
     @Override
@@ -234,8 +287,8 @@ public class RHTTPResponse
         builder.append(id).append(" ");
         builder.append(code).append(" ");
         builder.append(message).append(" ");
-        builder.append(responseBytes.length).append("/");
-        builder.append(frameBytes.length);
+        builder.append(responseBuffer.remaining()).append("/");
+        builder.append(getFrameLength());
         return builder.toString();
     }
 
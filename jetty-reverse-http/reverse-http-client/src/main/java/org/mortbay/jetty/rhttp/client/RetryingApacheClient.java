@@ -17,6 +17,7 @@
 package org.mortbay.jetty.rhttp.client;
 
 import java.io.IOException;
+import java.util.concurrent.Executor;
 
 import org.apache.http.client.HttpClient;
 
@@ -27,7 +28,12 @@ public class RetryingApacheClient extends ApacheClient
 {
     public RetryingApacheClient(HttpClient httpClient, String gatewayURI, String targetId)
     {
-        super(httpClient, gatewayURI, targetId);
+        this(httpClient, gatewayURI, targetId, null);
+    }
+
+    public RetryingApacheClient(HttpClient httpClient, String gatewayURI, String targetId, Executor executor)
+    {
+        super(httpClient, gatewayURI, targetId, executor);
         addClientListener(new RetryClientListener());
     }
 
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class DeliveriesTest extends TestCase
+{
+    /**
+     * Tests that draining a deep backlog of batched deliveries, whose batches
+     * complete on the draining thread, does not grow the stack with each batch.
+     *
+     * @throws Exception in case of test exceptions
+     */
+    public void testDrainingABacklogDoesNotRecurse() throws Exception
+    {
+        final CountDownLatch firstDelivery = new CountDownLatch(1);
+        final CountDownLatch backlog = new CountDownLatch(1);
+        final AtomicInteger delivered = new AtomicInteger();
+        final AtomicInteger minDepth = new AtomicInteger(Integer.MAX_VALUE);
+        final AtomicInteger maxDepth = new AtomicInteger();
+        final AbstractClient client = new TestClient()
+        {
+            @Override
+            protected void asyncDeliver(RHTTPResponse response)
+            {
+                int depth = new Throwable().getStackTrace().length;
+                minDepth.set(Math.min(minDepth.get(), depth));
+                maxDepth.set(Math.max(maxDepth.get(), depth));
+                if (delivered.incrementAndGet() == 1)
+                {
+                    // Hold the only delivery in flight until the backlog is queued
+                    firstDelivery.countDown();
+                    try
+                    {
+                        backlog.await();
+                    }
+                    catch (InterruptedException x)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        client.setBatchDeliveries(true);
+        client.setMaxBatchSize(1);
+
+        Thread deliverer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                deliver(client, 0);
+            }
+        };
+        deliverer.start();
+        assertTrue(firstDelivery.await(5, TimeUnit.SECONDS));
+
+        int responses = 1000;
+        for (int i = 1; i < responses; ++i)
+            deliver(client, i);
+        backlog.countDown();
+        deliverer.join(5000);
+
+        assertEquals(responses, delivered.get());
+        assertTrue("Stack grew by " + (maxDepth.get() - minDepth.get()) + " frames", maxDepth.get() - minDepth.get() < 10);
+    }
+
+    private void deliver(AbstractClient client, int id)
+    {
+        try
+        {
+            client.deliver(new RHTTPResponse(id, 200, "OK", Collections.<String, String>emptyMap(), new byte[0]));
+        }
+        catch (Exception x)
+        {
+            throw new RuntimeException(x);
+        }
+    }
+
+    private static class TestClient extends AbstractClient
+    {
+        private TestClient()
+        {
+            super("test");
+        }
+
+        public String getHost()
+        {
+            return "localhost";
+        }
+
+        public int getPort()
+        {
+            return 0;
+        }
+
+        public String getPath()
+        {
+            return "/";
+        }
+
+        protected void syncHandshake()
+        {
+        }
+
+        protected void asyncConnect()
+        {
+        }
+
+        protected void syncDisconnect()
+        {
+        }
+
+        protected void asyncDeliver(RHTTPResponse response)
+        {
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class FrameTest extends TestCase
+{
+    public void testGeneratedHeader() throws Exception
+    {
+        assertEquals("13 0\r\n", new String(RHTTPFrameGenerator.generateHeader(13, 0), "UTF-8"));
+        assertEquals("-7 1024\r\n", new String(RHTTPFrameGenerator.generateHeader(-7, 1024), "UTF-8"));
+        assertEquals(9, RHTTPFrameGenerator.headerLength(-7, 1024));
+    }
+
+    public void testParseSplitAcrossBuffers() throws Exception
+    {
+        byte[] frames = concat(frame(1, "FIRST"), frame(22, ""), frame(333, "THIRD"));
+        for (int split = 1; split < frames.length; ++split)
+        {
+            Collector collector = new Collector(true);
+            RHTTPFrameParser parser = new RHTTPFrameParser(collector);
+            parser.parse(ByteBuffer.wrap(frames, 0, split));
+            parser.parse(ByteBuffer.wrap(frames, split, frames.length - split));
+            assertTrue(parser.isIdle());
+            assertEquals(Arrays.asList(1, 22, 333), collector.ids);
+            assertEquals(Arrays.asList("FIRST", "", "THIRD"), collector.payloads);
+        }
+    }
+
+    public void testParseDirectBuffer() throws Exception
+    {
+        byte[] frame = frame(5, "DIRECT");
+        ByteBuffer buffer = ByteBuffer.allocateDirect(frame.length);
+        buffer.put(frame).flip();
+        Collector collector = new Collector(false);
+        RHTTPFrameParser parser = new RHTTPFrameParser(collector);
+        parser.parse(buffer);
+        assertEquals(Arrays.asList(5), collector.ids);
+        assertEquals(Arrays.asList("DIRECT"), collector.payloads);
+    }
+
+    public void testParseStream() throws Exception
+    {
+        byte[] frames = concat(frame(1, "ONE"), frame(2, "TWO"));
+        Collector collector = new Collector(false);
+        RHTTPFrameParser parser = new RHTTPFrameParser(collector);
+        parser.parse(new ByteArrayInputStream(frames));
+        assertEquals(Arrays.asList(1, 2), collector.ids);
+        assertEquals(Arrays.asList("ONE", "TWO"), collector.payloads);
+    }
+
+    public void testParseTruncatedStream() throws Exception
+    {
+        byte[] frame = frame(1, "TRUNCATED");
+        RHTTPFrameParser parser = new RHTTPFrameParser(new Collector(false));
+        try
+        {
+            parser.parse(new ByteArrayInputStream(frame, 0, frame.length - 1));
+            fail();
+        }
+        catch (EOFException x)
+        {
+            // Expected
+        }
+    }
+
+    public void testParseInvalidHeader() throws Exception
+    {
+        RHTTPFrameParser parser = new RHTTPFrameParser(new Collector(false));
+        try
+        {
+            parser.parse(ByteBuffer.wrap("1 X\r\n".getBytes("UTF-8")));
+            fail();
+        }
+        catch (IOException x)
+        {
+            // Expected
+        }
+    }
+
+    public void testParseIdsAcrossWrapAround() throws Exception
+    {
+        byte[] frames = concat(frame(Integer.MAX_VALUE, "MAX"), frame(Integer.MIN_VALUE, "MIN"), frame(Integer.MIN_VALUE + 1, "NEXT"));
+        Collector collector = new Collector(false);
+        RHTTPFrameParser parser = new RHTTPFrameParser(collector);
+        parser.parse(ByteBuffer.wrap(frames));
+        assertEquals(Arrays.asList(Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 1), collector.ids);
+        assertEquals(Arrays.asList("MAX", "MIN", "NEXT"), collector.payloads);
+
+        for (String header : Arrays.asList("2147483648 0\r\n", "-2147483649 0\r\n", "1 2147483648\r\n"))
+        {
+            try
+            {
+                new RHTTPFrameParser(collector).parse(ByteBuffer.wrap(header.getBytes("UTF-8")));
+                fail(header);
+            }
+            catch (IOException x)
+            {
+                // Expected
+            }
+        }
+    }
+
+    public void testParseOversizedFrame() throws Exception
+    {
+        Collector collector = new Collector(false);
+        RHTTPFrameParser parser = new RHTTPFrameParser(collector, 3);
+        parser.parse(new ByteArrayInputStream(frame(1, "ONE")));
+        assertEquals(Arrays.asList("ONE"), collector.payloads);
+        try
+        {
+            // Rejected from the header alone, before the payload arrives
+            parser.parse(new ByteArrayInputStream("2 2000000000\r\n".getBytes("UTF-8")));
+            fail();
+        }
+        catch (IOException x)
+        {
+            // Expected
+        }
+    }
+
+    public void testWriteFrameTo() throws Exception
+    {
+        RHTTPResponse response = new RHTTPResponse(7, 200, "OK", new HashMap<String, String>(), "BODY".getBytes("UTF-8"));
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        response.writeFrameTo(output);
+        assertTrue(Arrays.equals(response.getFrameBytes(), output.toByteArray()));
+        assertEquals(output.size(), response.getFrameLength());
+    }
+
+    private byte[] frame(int id, String payload) throws Exception
+    {
+        return RHTTPFrameGenerator.generate(id, ByteBuffer.wrap(payload.getBytes("UTF-8")));
+    }
+
+    private byte[] concat(byte[]... arrays)
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] array : arrays)
+            output.write(array, 0, array.length);
+        return output.toByteArray();
+    }
+
+    private static class Collector implements RHTTPFrameParser.Listener
+    {
+        private final List<Integer> ids = new ArrayList<Integer>();
+        private final List<String> payloads = new ArrayList<String>();
+        private final boolean expectHeap;
+
+        private Collector(boolean expectHeap)
+        {
+            this.expectHeap = expectHeap;
+        }
+
+        public void onFrame(int id, ByteBuffer payload)
+        {
+            if (expectHeap)
+                assertTrue(payload.hasArray());
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            ids.add(id);
+            try
+            {
+                payloads.add(new String(bytes, "UTF-8"));
+            }
+            catch (IOException x)
+            {
+                throw new AssertionError(x);
+            }
+        }
+    }
+}
@@ -16,6 +16,10 @@
 
 package org.mortbay.jetty.rhttp.client;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.eclipse.jetty.client.Address;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.util.log.Log;
@@ -45,4 +49,44 @@ public class JettyClientTest extends ClientTest
     {
         httpClient.stop();
     }
+
+    public void testDeliverCompletesOnce() throws Exception
+    {
+        final AtomicInteger completions = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        JettyClient client = new JettyClient(new HttpClient(), new Address("localhost", 8080), "", "test")
+        {
+            @Override
+            protected void deliverComplete()
+            {
+                completions.incrementAndGet();
+            }
+        };
+        client.addClientListener(new ClientListener.Adapter()
+        {
+            @Override
+            public void deliverException(RHTTPResponse response)
+            {
+                failures.incrementAndGet();
+            }
+        });
+
+        RHTTPResponse response = new RHTTPResponse(1, 200, "OK", new HashMap<String, String>(), new byte[0]);
+        JettyClient.DeliverExchange exchange = client.new DeliverExchange(Arrays.asList(response), true)
+        {
+            @Override
+            public int getResponseStatus()
+            {
+                return 200;
+            }
+        };
+        // The response completes, then the exchange expires
+        exchange.onResponseComplete();
+        exchange.onExpire();
+        exchange.onException(new Exception());
+
+        assertEquals(1, completions.get());
+        // The response was delivered: the later failures are not notified
+        assertEquals(0, failures.get());
+    }
 }
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.protocol.HttpContext;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.StdErrLog;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class PooledApacheClientTest extends ClientTest
+{
+    {
+        ((StdErrLog)Log.getLog()).setHideStacks(!Log.getLog().isDebugEnabled());
+    }
+
+    private DefaultHttpClient httpClient;
+    private BoundedExecutor executor;
+
+    protected RHTTPClient createClient(int port, String targetId) throws Exception
+    {
+        httpClient = (DefaultHttpClient)ApacheClient.newHttpClient("localhost", port, 4);
+        httpClient.setHttpRequestRetryHandler(new NoRetryHandler());
+        executor = new BoundedExecutor(4, 16);
+        return new ApacheClient(httpClient, "", targetId, executor);
+    }
+
+    protected void destroyClient(RHTTPClient client) throws Exception
+    {
+        httpClient.getConnectionManager().shutdown();
+        executor.shutdownNow();
+    }
+
+    public void testBoundedExecutorBlocksWhenFull() throws Exception
+    {
+        final BoundedExecutor executor = new BoundedExecutor(1, 1);
+        try
+        {
+            final CountDownLatch blocker = new CountDownLatch(1);
+            final AtomicInteger runs = new AtomicInteger();
+            Runnable task = new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        blocker.await();
+                        runs.incrementAndGet();
+                    }
+                    catch (InterruptedException x)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            // One task running, one queued
+            executor.execute(task);
+            executor.execute(task);
+
+            final CountDownLatch submitted = new CountDownLatch(1);
+            final Runnable blocked = task;
+            Thread submitter = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    executor.execute(blocked);
+                    submitted.countDown();
+                }
+            };
+            submitter.start();
+
+            // The third submission must wait for room in the queue
+            assertFalse(submitted.await(500, TimeUnit.MILLISECONDS));
+            assertEquals(1, executor.getPoolSize());
+
+            blocker.countDown();
+            assertTrue(submitted.await(5, TimeUnit.SECONDS));
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+            assertEquals(3, runs.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testBoundedExecutorDefersTasksSubmittedByItsThreadsWhenFull() throws Exception
+    {
+        final BoundedExecutor executor = new BoundedExecutor(1, 1);
+        try
+        {
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicInteger depth = new AtomicInteger();
+            final AtomicInteger maxDepth = new AtomicInteger();
+            final AtomicInteger runs = new AtomicInteger();
+            // Each task resubmits itself, like a long poll that reconnects
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    maxDepth.set(Math.max(maxDepth.get(), depth.incrementAndGet()));
+                    try
+                    {
+                        if (runs.incrementAndGet() == 1)
+                        {
+                            // Fill the queue, so that the resubmission overflows
+                            executor.execute(new Runnable()
+                            {
+                                public void run()
+                                {
+                                }
+                            });
+                        }
+                        if (runs.get() < 100)
+                            executor.execute(this);
+                        else
+                            done.countDown();
+                    }
+                    finally
+                    {
+                        depth.decrementAndGet();
+                    }
+                }
+            });
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(1, maxDepth.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testBoundedExecutorBoundsDeferredTasks() throws Exception
+    {
+        final BoundedExecutor executor = new BoundedExecutor(1, 1);
+        try
+        {
+            final CountDownLatch done = new CountDownLatch(1);
+            final List<String> events = new CopyOnWriteArrayList<String>();
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    // Fill the queue, so that the next submissions overflow
+                    executor.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            done.countDown();
+                        }
+                    });
+                    for (int i = 0; i < 3; ++i)
+                    {
+                        final int task = i;
+                        executor.execute(new Runnable()
+                        {
+                            public void run()
+                            {
+                                events.add("task" + task);
+                            }
+                        });
+                    }
+                    events.add("returned");
+                }
+            });
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            // Only one task is deferred, the others run on the submitting thread
+            assertEquals(Arrays.asList("task1", "task2", "returned", "task0"), events);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testBoundedExecutorRunsLongPollsOutsideThePool() throws Exception
+    {
+        final BoundedExecutor executor = new BoundedExecutor(2, 4);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        try
+        {
+            final CountDownLatch polls = new CountDownLatch(3);
+            // More long polls than threads, like more clients than threads
+            for (int i = 0; i < 3; ++i)
+            {
+                executor.executeLongPoll(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            polls.countDown();
+                            blocker.await();
+                        }
+                        catch (InterruptedException x)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            // Every long poll is outstanding at the same time
+            assertTrue(polls.await(5, TimeUnit.SECONDS));
+            assertEquals(3, executor.getLongPolls());
+
+            // The threads of the pool are still free for deliveries
+            final CountDownLatch deliveries = new CountDownLatch(2);
+            for (int i = 0; i < 2; ++i)
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        deliveries.countDown();
+                    }
+                });
+            }
+            assertTrue(deliveries.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            blocker.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    public void testBoundedExecutorReusesLongPollThreads() throws Exception
+    {
+        final BoundedExecutor executor = new BoundedExecutor(1, 1);
+        try
+        {
+            final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+            final CountDownLatch polls = new CountDownLatch(10);
+            // Each long poll resubmits the next one before returning, like a reconnecting client
+            executor.executeLongPoll(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        // Wait for the gateway to return
+                        Thread.sleep(20);
+                        threads.add(Thread.currentThread());
+                        polls.countDown();
+                        if (polls.getCount() > 0)
+                            executor.executeLongPoll(this);
+                    }
+                    catch (InterruptedException x)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            assertTrue(polls.await(5, TimeUnit.SECONDS));
+            // The poll that resubmits is still running, so at most two threads alternate
+            assertTrue(executor.getLongPollThreads() <= 2);
+            assertTrue(new HashSet<Thread>(threads).size() <= 2);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    public void testRejectedBatchDoesNotLeakADeliveryInFlight() throws Exception
+    {
+        BoundedExecutor executor = new BoundedExecutor(1, 1);
+        executor.shutdown();
+        DefaultHttpClient httpClient = (DefaultHttpClient)ApacheClient.newHttpClient("localhost", 8080, 1);
+        try
+        {
+            final AtomicInteger batches = new AtomicInteger();
+            ApacheClient client = new ApacheClient(httpClient, "", "test", executor)
+            {
+                @Override
+                protected void asyncDeliver(List<RHTTPResponse> responses)
+                {
+                    batches.incrementAndGet();
+                    super.asyncDeliver(responses);
+                }
+            };
+            client.setBatchDeliveries(true);
+            client.setMaxDeliveriesInFlight(1);
+
+            for (int i = 0; i < 3; ++i)
+                client.deliver(new RHTTPResponse(i, 200, "OK", Collections.<String, String>emptyMap(), new byte[0]));
+
+            // Each rejected batch releases its slot, so every delivery is attempted
+            assertEquals(3, batches.get());
+        }
+        finally
+        {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    private class NoRetryHandler implements HttpRequestRetryHandler
+    {
+        public boolean retryRequest(IOException x, int failedAttempts, HttpContext httpContext)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,1022 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.mortbay.jetty.rhttp.client.RHTTPFrameGenerator;
+import org.mortbay.jetty.rhttp.client.RHTTPFrameParser;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+
+/**
+ * <p>Implementation of {@link Gateway} that spans multiple gateway nodes.</p>
+ * <p>Gateway clients are placed on nodes by {@link ConsistentHash consistent hashing} of their
+ * targetId, and must connect to the node returned by {@link #getNodeFor(String)}: the handshake
+ * of a gateway client that connects to another node fails with status 409 (Conflict), and the id
+ * of the node that owns the targetId as content, so that the client can connect to that node.<br />
+ * External requests may arrive to any node: when the gateway client is not connected to the node
+ * that received the external request, the request is forwarded to the node that owns the targetId,
+ * which enqueues it to the gateway client and sends back the response.</p>
+ * <p>Nodes communicate via persistent TCP links, one for each pair of nodes, over which requests and
+ * responses are multiplexed using the same frames used between the gateway and the gateway clients.
+ * The links are accepted by the {@link #getLinkServer() link server}, which must be started and stopped
+ * with the gateway server, for example:</p>
+ * <pre>
+ * GatewayServer server = new GatewayServer()
+ * {
+ *     protected Gateway createGateway()
+ *     {
+ *         ClusteredGateway gateway = new ClusteredGateway("node1");
+ *         gateway.setScheduler(getScheduler());
+ *         gateway.setLinkHost("10.0.0.1");
+ *         gateway.setLinkSecret(secret);
+ *         addBean(gateway.getLinkServer());
+ *         return gateway;
+ *     }
+ * };
+ * </pre>
+ * <p>The link server listens to the loopback interface unless a {@link #getLinkHost() link host}
+ * is configured. Nodes prove to each other that they know the {@link #getLinkSecret() link secret}
+ * before any frame is exchanged, so that only the nodes of the cluster can forward requests.</p>
+ * <p>Forwarded requests are expired by the {@link #getScheduler() scheduler}, if set.
+ * Frames read from a link are bounded by the {@link #getMaxRequestSize() max request size}.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class ClusteredGateway extends StandardGateway
+{
+    private static final byte REQUEST = 'Q';
+    private static final byte RESPONSE = 'R';
+    private static final byte FAILURE = 'F';
+    private static final String UTF8 = "UTF-8";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int NONCE_SIZE = 16;
+    // Allowance for the head of forwarded requests, whose content is bounded by the max request size
+    private static final int MAX_HEAD_LENGTH = 64 * 1024;
+
+    private final Logger logger = Log.getLogger(getClass().toString());
+    private final SecureRandom random = new SecureRandom();
+    private final ConsistentHash ring = new ConsistentHash();
+    private final ConcurrentMap<String, InetSocketAddress> nodes = new ConcurrentHashMap<String, InetSocketAddress>();
+    private final ConcurrentMap<String, Future<Link>> links = new ConcurrentHashMap<String, Future<Link>>();
+    private final ConcurrentMap<Link, Boolean> openLinks = new ConcurrentHashMap<Link, Boolean>();
+    private final LinkServer linkServer = new LinkServer();
+    private final String nodeId;
+    private volatile String linkHost;
+    private volatile int linkPort;
+    private volatile byte[] linkSecret;
+    private volatile int connectTimeout = 5000;
+    private volatile int maxQueuedFrames = 1024;
+
+    /**
+     * @param nodeId the id of this node, as used in {@link #addNode(String, String, int)} by all nodes
+     */
+    public ClusteredGateway(String nodeId)
+    {
+        this.nodeId = nodeId;
+    }
+
+    public String getNodeId()
+    {
+        return nodeId;
+    }
+
+    /**
+     * @return the host the link server listens to, or null to listen to the loopback interface only
+     */
+    public String getLinkHost()
+    {
+        return linkHost;
+    }
+
+    public void setLinkHost(String linkHost)
+    {
+        this.linkHost = linkHost;
+    }
+
+    /**
+     * @return the port the link server listens to, or 0 for an ephemeral port
+     * @see #getLocalLinkPort()
+     */
+    public int getLinkPort()
+    {
+        return linkPort;
+    }
+
+    public void setLinkPort(int linkPort)
+    {
+        this.linkPort = linkPort;
+    }
+
+    /**
+     * @return the port the link server actually listens to, or -1 if it is not started
+     */
+    public int getLocalLinkPort()
+    {
+        return linkServer.getLocalPort();
+    }
+
+    /**
+     * @return the secret shared by all nodes, or null if links are not authenticated
+     */
+    public String getLinkSecret()
+    {
+        byte[] secret = linkSecret;
+        if (secret == null)
+            return null;
+        try
+        {
+            return new String(secret, UTF8);
+        }
+        catch (IOException x)
+        {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    public void setLinkSecret(String linkSecret)
+    {
+        try
+        {
+            this.linkSecret = linkSecret == null || linkSecret.length() == 0 ? null : linkSecret.getBytes(UTF8);
+        }
+        catch (IOException x)
+        {
+            throw new IllegalArgumentException(x);
+        }
+    }
+
+    /**
+     * @return the max time, in milliseconds, to connect and authenticate a link to another node
+     */
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @return the max number of frames queued to a link before further requests and responses
+     * to the other node fail
+     */
+    public int getMaxQueuedFrames()
+    {
+        return maxQueuedFrames;
+    }
+
+    public void setMaxQueuedFrames(int maxQueuedFrames)
+    {
+        this.maxQueuedFrames = maxQueuedFrames;
+    }
+
+    /**
+     * @return the component that accepts links from other nodes, to be started and stopped with the gateway server
+     */
+    public LifeCycle getLinkServer()
+    {
+        return linkServer;
+    }
+
+    /**
+     * <p>Adds a node to the cluster; this node must be added too, so that all nodes agree on the placement of targetIds.</p>
+     *
+     * @param nodeId the id of the node
+     * @param host the host of the node's link server
+     * @param port the port of the node's link server
+     */
+    public void addNode(String nodeId, String host, int port)
+    {
+        nodes.put(nodeId, new InetSocketAddress(host, port));
+        ring.addNode(nodeId);
+    }
+
+    public void removeNode(String nodeId)
+    {
+        ring.removeNode(nodeId);
+        nodes.remove(nodeId);
+        Future<Link> future = links.remove(nodeId);
+        Link link = future == null ? null : linkOf(future);
+        if (link != null)
+            link.close();
+    }
+
+    /**
+     * @param targetId the targetId of a gateway client
+     * @return the id of the node the gateway client with the given targetId must connect to
+     */
+    public String getNodeFor(String targetId)
+    {
+        return ring.getNode(targetId);
+    }
+
+    /**
+     * <p>Refuses gateway clients whose targetId is owned by another node, since external requests
+     * for them would be forwarded to that node.</p>
+     *
+     * @throws WrongNodeException if the targetId is owned by another node
+     */
+    @Override
+    public ClientDelegate addClientDelegate(String targetId, ClientDelegate client)
+    {
+        String node = getNodeFor(targetId);
+        if (node != null && !nodeId.equals(node))
+            throw new WrongNodeException(targetId, node, nodeId);
+        return super.addClientDelegate(targetId, client);
+    }
+
+    @Override
+    public ClientDelegate lookupClientDelegate(String targetId)
+    {
+        ClientDelegate client = getClientDelegate(targetId);
+        if (client != null)
+            return client;
+        String node = getNodeFor(targetId);
+        if (node == null || nodeId.equals(node))
+            return null;
+        return new RemoteClientDelegate(targetId, node);
+    }
+
+    /**
+     * <p>Returns the link to the given node, connecting it if there is none.</p>
+     * <p>No lock is held while connecting: the first thread that needs the link connects it,
+     * while the threads that need it at the same time wait for the same future.</p>
+     */
+    private Link getLink(final String node) throws IOException
+    {
+        Future<Link> future = links.get(node);
+        if (future == null)
+        {
+            FutureTask<Link> task = new FutureTask<Link>(new Callable<Link>()
+            {
+                public Link call() throws Exception
+                {
+                    return connect(node);
+                }
+            });
+            future = links.putIfAbsent(node, task);
+            if (future == null)
+            {
+                future = task;
+                task.run();
+            }
+        }
+
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException x)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while linking to node " + node);
+        }
+        catch (ExecutionException x)
+        {
+            links.remove(node, future);
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            IOException failure = new IOException("Could not link to node " + node);
+            failure.initCause(cause);
+            throw failure;
+        }
+    }
+
+    private Link connect(String node) throws IOException
+    {
+        InetSocketAddress address = nodes.get(node);
+        if (address == null)
+            throw new IOException("Unknown node " + node);
+        Socket socket = new Socket();
+        try
+        {
+            socket.setTcpNoDelay(true);
+            socket.connect(address, getConnectTimeout());
+            Link link = new Link(socket);
+            link.handshake(node);
+            link.start();
+            logger.debug("Node {} linked to node {}", nodeId, node);
+            return link;
+        }
+        catch (IOException x)
+        {
+            socket.close();
+            throw x;
+        }
+    }
+
+    /**
+     * <p>Registers a link accepted from another node, so that it is used in both directions.</p>
+     * <p>When both nodes connected to each other at the same time, both keep the link connected
+     * by the node with the lower id; the other link is only used for the exchanges already
+     * in progress on it.</p>
+     */
+    private void onLinkAccepted(String node, Link link)
+    {
+        FutureTask<Link> accepted = new FutureTask<Link>(new LinkResult(link));
+        accepted.run();
+        Future<Link> existing = links.putIfAbsent(node, accepted);
+        if (existing != null && nodeId.compareTo(node) > 0)
+            links.replace(node, existing, accepted);
+    }
+
+    private Link linkOf(Future<Link> future)
+    {
+        if (!future.isDone())
+            return null;
+        try
+        {
+            return future.get();
+        }
+        catch (Exception x)
+        {
+            return null;
+        }
+    }
+
+    private byte[] mac(String label, String connector, String acceptor, byte[] connectorNonce, byte[] acceptorNonce) throws IOException
+    {
+        byte[] secret = linkSecret;
+        if (secret == null)
+            return new byte[0];
+        try
+        {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+            mac.update(label.getBytes(UTF8));
+            mac.update(connector.getBytes(UTF8));
+            mac.update((byte)0);
+            mac.update(acceptor.getBytes(UTF8));
+            mac.update((byte)0);
+            mac.update(connectorNonce);
+            mac.update(acceptorNonce);
+            return mac.doFinal();
+        }
+        catch (GeneralSecurityException x)
+        {
+            IOException failure = new IOException("Could not authenticate link");
+            failure.initCause(x);
+            throw failure;
+        }
+    }
+
+    private byte[] nonce()
+    {
+        byte[] nonce = new byte[NONCE_SIZE];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    private void onFrame(Link link, int id, ByteBuffer payload)
+    {
+        try
+        {
+            byte type = payload.get();
+            switch (type)
+            {
+                case REQUEST:
+                    onRequest(link, id, payload);
+                    break;
+                case RESPONSE:
+                    onResponse(id, RHTTPResponse.fromResponseBuffer(id, payload));
+                    break;
+                case FAILURE:
+                    onResponse(id, new RHTTPResponse(id, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Service Unavailable", new HashMap<String, String>(), new byte[0]));
+                    break;
+                default:
+                    throw new IOException("Invalid frame type " + type);
+            }
+        }
+        catch (Exception x)
+        {
+            logger.warn("Node " + nodeId + " received invalid frame " + id + " from " + link, x);
+            link.close();
+        }
+    }
+
+    private void onRequest(Link link, int originId, ByteBuffer payload) throws IOException
+    {
+        int length = ((payload.get() & 0xFF) << 8) | (payload.get() & 0xFF);
+        byte[] targetIdBytes = new byte[length];
+        payload.get(targetIdBytes);
+        String targetId = new String(targetIdBytes, UTF8);
+
+        ClientDelegate client = getClientDelegate(targetId);
+        if (client == null)
+        {
+            logger.debug("Node {} received request {} for missing client {}", new Object[]{nodeId, originId, targetId});
+            link.send(originId, FAILURE, null, null);
+            return;
+        }
+
+        // Request ids are unique per node, so the forwarded request gets a new id
+        int requestId = nextRequestId();
+        RHTTPRequest request = RHTTPRequest.fromRequestBuffer(requestId, payload);
+        ForwardedRequest forwarded = new ForwardedRequest(link, originId, request);
+        addExternalRequest(requestId, forwarded);
+        forwarded.schedule();
+        if (!client.enqueue(request))
+        {
+            if (removeExternalRequest(requestId) != null)
+            {
+                forwarded.cancel();
+                link.send(originId, FAILURE, null, null);
+            }
+        }
+    }
+
+    private void onResponse(int requestId, RHTTPResponse response)
+    {
+        ExternalRequest externalRequest = removeExternalRequest(requestId);
+        if (externalRequest == null)
+        {
+            // Expired concurrently
+            logger.debug("Node {} received response for missing request {}", nodeId, requestId);
+            return;
+        }
+        try
+        {
+            externalRequest.respond(response);
+        }
+        catch (IOException x)
+        {
+            logger.debug("Node " + nodeId + " could not respond to request " + externalRequest, x);
+        }
+    }
+
+    /**
+     * <p>Enqueues requests by forwarding them to the node the gateway client is connected to.</p>
+     * <p>Remote client delegates are only returned by {@link #lookupClientDelegate(String)} to
+     * forward external requests; they are never added to the gateway, and gateway clients cannot
+     * poll them, since they must connect to the node that owns their targetId.</p>
+     */
+    private class RemoteClientDelegate implements ClientDelegate
+    {
+        private final String targetId;
+        private final String node;
+
+        private RemoteClientDelegate(String targetId, String node)
+        {
+            this.targetId = targetId;
+            this.node = node;
+        }
+
+        public String getTargetId()
+        {
+            return targetId;
+        }
+
+        public boolean enqueue(RHTTPRequest request)
+        {
+            try
+            {
+                Link link = getLink(node);
+                byte[] targetIdBytes = targetId.getBytes(UTF8);
+                byte[] prefix = new byte[2 + targetIdBytes.length];
+                prefix[0] = (byte)(targetIdBytes.length >>> 8);
+                prefix[1] = (byte)targetIdBytes.length;
+                System.arraycopy(targetIdBytes, 0, prefix, 2, targetIdBytes.length);
+                return link.send(request.getId(), REQUEST, prefix, request.getRequestBuffer());
+            }
+            catch (IOException x)
+            {
+                logger.debug("Node " + nodeId + " could not link to node " + node, x);
+                return false;
+            }
+        }
+
+        public List<RHTTPRequest> process(HttpServletRequest httpRequest) throws IOException
+        {
+            throw new IOException("Client with targetId " + targetId + " must connect to node " + node + ", not to node " + nodeId);
+        }
+
+        public void close()
+        {
+        }
+
+        public boolean isClosed()
+        {
+            return false;
+        }
+
+        @Override
+        public String toString()
+        {
+            return targetId + "@" + node;
+        }
+    }
+
+    /**
+     * <p>A request forwarded by another node, whose response is sent back to that node.</p>
+     */
+    private class ForwardedRequest implements ExternalRequest, Runnable
+    {
+        private final Link link;
+        private final int originId;
+        private final RHTTPRequest request;
+        private volatile Scheduler.Task expiration;
+
+        private ForwardedRequest(Link link, int originId, RHTTPRequest request)
+        {
+            this.link = link;
+            this.originId = originId;
+            this.request = request;
+        }
+
+        private void schedule()
+        {
+            Scheduler scheduler = getScheduler();
+            if (scheduler != null)
+                expiration = scheduler.schedule(this, getExternalTimeout());
+        }
+
+        private void cancel()
+        {
+            Scheduler.Task task = expiration;
+            if (task != null)
+                task.cancel();
+        }
+
+        public void run()
+        {
+            // The origin node expires the external request on its own
+            removeExternalRequest(request.getId());
+        }
+
+        public boolean suspend()
+        {
+            return true;
+        }
+
+        public void respond(RHTTPResponse response) throws IOException
+        {
+            cancel();
+            if (!link.send(originId, RESPONSE, null, response.getResponseBuffer()))
+                throw new IOException("Could not send response to " + link);
+        }
+
+        public void resumed() throws IOException
+        {
+        }
+
+        public RHTTPRequest getRequest()
+        {
+            return request;
+        }
+
+        @Override
+        public String toString()
+        {
+            return request + " from " + link;
+        }
+    }
+
+    private static class LinkResult implements Callable<Link>
+    {
+        private final Link link;
+
+        private LinkResult(Link link)
+        {
+            this.link = link;
+        }
+
+        public Link call()
+        {
+            return link;
+        }
+    }
+
+    /**
+     * <p>A frame queued to a link.</p>
+     */
+    private static class Frame
+    {
+        private final int id;
+        private final byte type;
+        private final byte[] prefix;
+        private final ByteBuffer payload;
+
+        private Frame(int id, byte type, byte[] prefix, ByteBuffer payload)
+        {
+            this.id = id;
+            this.type = type;
+            this.prefix = prefix;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * <p>A persistent TCP connection to another node, that multiplexes frames of many requests.</p>
+     * <p>Frames are queued and written by a dedicated thread, so that a slow node does not block
+     * the threads that forward requests or send responses to it.</p>
+     */
+    private class Link
+    {
+        private static final int CHUNK_SIZE = 8192;
+
+        private final Frame closeFrame = new Frame(0, (byte)0, null, null);
+        private final BlockingQueue<Frame> frames = new ArrayBlockingQueue<Frame>(Math.max(1, getMaxQueuedFrames()));
+        private final Socket socket;
+        private final InputStream input;
+        private final OutputStream output;
+        private volatile String node;
+        private volatile boolean closed;
+
+        private Link(Socket socket) throws IOException
+        {
+            this.socket = socket;
+            this.input = new BufferedInputStream(socket.getInputStream(), CHUNK_SIZE);
+            this.output = new BufferedOutputStream(socket.getOutputStream(), CHUNK_SIZE);
+            openLinks.put(this, Boolean.TRUE);
+        }
+
+        /**
+         * <p>Authenticates this link as the connecting side.</p>
+         *
+         * @param node the node this link connected to
+         */
+        private void handshake(String node) throws IOException
+        {
+            socket.setSoTimeout(getConnectTimeout());
+            DataOutputStream out = new DataOutputStream(output);
+            DataInputStream in = new DataInputStream(input);
+            byte[] connectorNonce = nonce();
+            out.writeUTF(nodeId);
+            out.write(connectorNonce);
+            out.flush();
+
+            String acceptor = in.readUTF();
+            byte[] acceptorNonce = new byte[NONCE_SIZE];
+            in.readFully(acceptorNonce);
+            byte[] acceptorMac = readMac(in);
+            if (!node.equals(acceptor) || !MessageDigest.isEqual(acceptorMac, mac("accept", nodeId, node, connectorNonce, acceptorNonce)))
+                throw new IOException("Node " + nodeId + " could not authenticate node " + node);
+
+            writeMac(out, mac("connect", nodeId, node, connectorNonce, acceptorNonce));
+            out.flush();
+            socket.setSoTimeout(0);
+            this.node = node;
+        }
+
+        /**
+         * <p>Authenticates this link as the accepting side.</p>
+         *
+         * @return the node that connected this link
+         */
+        private String accept() throws IOException
+        {
+            socket.setSoTimeout(getConnectTimeout());
+            DataOutputStream out = new DataOutputStream(output);
+            DataInputStream in = new DataInputStream(input);
+            String connector = in.readUTF();
+            byte[] connectorNonce = new byte[NONCE_SIZE];
+            in.readFully(connectorNonce);
+
+            byte[] acceptorNonce = nonce();
+            out.writeUTF(nodeId);
+            out.write(acceptorNonce);
+            writeMac(out, mac("accept", connector, nodeId, connectorNonce, acceptorNonce));
+            out.flush();
+
+            byte[] connectorMac = readMac(in);
+            if (!MessageDigest.isEqual(connectorMac, mac("connect", connector, nodeId, connectorNonce, acceptorNonce)))
+                throw new IOException("Node " + nodeId + " could not authenticate node " + connector + " at " + socket.getRemoteSocketAddress());
+            if (!nodes.containsKey(connector))
+                throw new IOException("Node " + nodeId + " does not know node " + connector);
+            socket.setSoTimeout(0);
+            this.node = connector;
+            return connector;
+        }
+
+        private void writeMac(DataOutputStream out, byte[] mac) throws IOException
+        {
+            out.writeByte(mac.length);
+            out.write(mac);
+        }
+
+        private byte[] readMac(DataInputStream in) throws IOException
+        {
+            byte[] mac = new byte[in.readUnsignedByte()];
+            in.readFully(mac);
+            return mac;
+        }
+
+        private void start()
+        {
+            Thread reader = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    read();
+                }
+            }, "rhttp-link-" + nodeId + "-" + node);
+            reader.setDaemon(true);
+            reader.start();
+            Thread writer = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    write();
+                }
+            }, "rhttp-link-writer-" + nodeId + "-" + node);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * @return whether the frame was queued
+         */
+        private boolean send(int id, byte type, byte[] prefix, ByteBuffer payload)
+        {
+            if (closed)
+                return false;
+            if (frames.offer(new Frame(id, type, prefix, payload)))
+                return true;
+            logger.debug("Node {} could not queue frame {} to {}", new Object[]{nodeId, id, this});
+            return false;
+        }
+
+        private void write()
+        {
+            try
+            {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                while (true)
+                {
+                    Frame frame = frames.take();
+                    if (frame == closeFrame)
+                        break;
+                    write(frame, chunk);
+                    // Coalesce the frames queued meanwhile in as few writes as possible
+                    if (frames.isEmpty())
+                        output.flush();
+                }
+            }
+            catch (InterruptedException x)
+            {
+                logger.debug(x);
+            }
+            catch (IOException x)
+            {
+                logger.debug("Node " + nodeId + " could not write to " + this, x);
+            }
+            finally
+            {
+                close();
+            }
+        }
+
+        private void write(Frame frame, byte[] chunk) throws IOException
+        {
+            int prefixLength = frame.prefix == null ? 0 : frame.prefix.length;
+            int payloadLength = frame.payload == null ? 0 : frame.payload.remaining();
+            output.write(RHTTPFrameGenerator.generateHeader(frame.id, 1 + prefixLength + payloadLength));
+            output.write(frame.type);
+            if (frame.prefix != null)
+                output.write(frame.prefix);
+            if (frame.payload != null)
+            {
+                if (frame.payload.hasArray())
+                {
+                    output.write(frame.payload.array(), frame.payload.arrayOffset() + frame.payload.position(), payloadLength);
+                }
+                else
+                {
+                    ByteBuffer source = frame.payload.duplicate();
+                    while (source.hasRemaining())
+                    {
+                        int size = Math.min(chunk.length, source.remaining());
+                        source.get(chunk, 0, size);
+                        output.write(chunk, 0, size);
+                    }
+                }
+            }
+        }
+
+        private void read()
+        {
+            // Payloads are read into buffers of the length in the frame
+            // header, which must be bounded before the parser allocates them
+            int maxRequestSize = getMaxRequestSize();
+            int maxPayloadLength = maxRequestSize < 0 ? Integer.MAX_VALUE : (int)Math.min((long)maxRequestSize + MAX_HEAD_LENGTH, Integer.MAX_VALUE);
+            RHTTPFrameParser parser = new RHTTPFrameParser(new RHTTPFrameParser.Listener()
+            {
+                public void onFrame(int id, ByteBuffer payload)
+                {
+                    ClusteredGateway.this.onFrame(Link.this, id, payload);
+                }
+            }, maxPayloadLength);
+            try
+            {
+                parser.parse(input);
+            }
+            catch (IOException x)
+            {
+                logger.debug("Node " + nodeId + " could not read from " + this, x);
+            }
+            finally
+            {
+                close();
+            }
+        }
+
+        private void close()
+        {
+            if (closed)
+                return;
+            closed = true;
+            frames.offer(closeFrame);
+            openLinks.remove(this);
+            String node = this.node;
+            if (node != null)
+            {
+                Future<Link> future = links.get(node);
+                if (future != null && linkOf(future) == this)
+                    links.remove(node, future);
+            }
+            try
+            {
+                socket.close();
+            }
+            catch (IOException x)
+            {
+                logger.debug(x);
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            String node = this.node;
+            return "Link[" + nodeId + "<->" + (node == null ? socket.getRemoteSocketAddress() : node) + "]";
+        }
+    }
+
+    /**
+     * <p>Accepts the links from other nodes.</p>
+     */
+    private class LinkServer extends AbstractLifeCycle implements Runnable
+    {
+        private volatile ServerSocket serverSocket;
+
+        private int getLocalPort()
+        {
+            ServerSocket server = serverSocket;
+            return server == null ? -1 : server.getLocalPort();
+        }
+
+        @Override
+        protected void doStart() throws Exception
+        {
+            ServerSocket server = new ServerSocket();
+            server.setReuseAddress(true);
+            String host = getLinkHost();
+            // Other nodes must be configured explicitly: by default only local nodes can link
+            InetAddress address = host == null ? InetAddress.getByName(null) : InetAddress.getByName(host);
+            server.bind(new InetSocketAddress(address, getLinkPort()));
+            if (linkSecret == null && !address.isLoopbackAddress())
+                logger.warn("Node {} accepts unauthenticated links on {}: configure a link secret", nodeId, address);
+            serverSocket = server;
+            Thread thread = new Thread(this, "rhttp-link-server-" + nodeId);
+            thread.setDaemon(true);
+            thread.start();
+            super.doStart();
+            logger.debug("Node {} accepting links on port {}", nodeId, server.getLocalPort());
+        }
+
+        @Override
+        protected void doStop() throws Exception
+        {
+            super.doStop();
+            ServerSocket server = serverSocket;
+            serverSocket = null;
+            if (server != null)
+                server.close();
+            for (Link link : openLinks.keySet())
+                link.close();
+        }
+
+        public void run()
+        {
+            ServerSocket server = serverSocket;
+            while (server != null && !server.isClosed())
+            {
+                try
+                {
+                    Socket socket = server.accept();
+                    socket.setTcpNoDelay(true);
+                    final Link link = new Link(socket);
+                    // Authenticate in a separate thread, so that a slow node does not block the others
+                    Thread thread = new Thread(new Runnable()
+                    {
+                        public void run()
+                        {
+                            accept(link);
+                        }
+                    }, "rhttp-link-accept-" + nodeId);
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                catch (IOException x)
+                {
+                    if (!server.isClosed())
+                        logger.warn("Node " + nodeId + " could not accept link", x);
+                }
+            }
+        }
+
+        private void accept(Link link)
+        {
+            try
+            {
+                String node = link.accept();
+                link.start();
+                onLinkAccepted(node, link);
+                logger.debug("Node {} accepted link from node {}", nodeId, node);
+            }
+            catch (IOException x)
+            {
+                logger.warn("Node {} rejected {}: {}", new Object[]{nodeId, link, x.getMessage()});
+                link.close();
+            }
+        }
+    }
+
+    /**
+     * <p>Thrown when a gateway client connects to a node that does not own its targetId.</p>
+     */
+    public static class WrongNodeException extends IllegalStateException
+    {
+        private static final long serialVersionUID = 6094216520863512047L;
+
+        private final String ownerNodeId;
+
+        private WrongNodeException(String targetId, String ownerNodeId, String nodeId)
+        {
+            super("Client with targetId " + targetId + " must connect to node " + ownerNodeId + ", not to node " + nodeId);
+            this.ownerNodeId = ownerNodeId;
+        }
+
+        /**
+         * @return the id of the node the gateway client must connect to
+         */
+        public String getOwnerNodeId()
+        {
+            return ownerNodeId;
+        }
+    }
+}
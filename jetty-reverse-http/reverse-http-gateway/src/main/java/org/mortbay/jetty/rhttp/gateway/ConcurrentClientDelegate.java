@@ -0,0 +1,243 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.continuation.ContinuationSupport;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+
+/**
+ * <p>Lock-free implementation of {@link ClientDelegate}, for targets that receive many concurrent
+ * external requests.</p>
+ * <p>Requests are {@link #enqueue(RHTTPRequest) enqueued} onto one of several shards, each being a
+ * multi-producer/single-consumer linked stack; producers only contend with other producers that
+ * hash to the same shard, with a single CAS.<br />
+ * {@link #process(HttpServletRequest)} detaches each shard with a single atomic swap, and builds
+ * the result list directly from the detached nodes, restoring the enqueue order within each shard.</p>
+ * <p>The suspended continuation is held in an atomic reference, so that exactly one of the concurrent
+ * enqueuers (or the closer) wins the CAS that nulls it, and resumes it.</p>
+ *
+ * @see StandardClientDelegate
+ * @version $Revision$ $Date$
+ */
+public class ConcurrentClientDelegate implements ClientDelegate
+{
+    private final Logger logger = Log.getLogger(getClass().toString());
+    private final AtomicReference<Continuation> continuation = new AtomicReference<Continuation>();
+    private final AtomicReferenceArray<Node> shards;
+    private final int mask;
+    private final String targetId;
+    private volatile boolean firstFlush = true;
+    private volatile long timeout;
+    private volatile boolean closed;
+
+    public ConcurrentClientDelegate(String targetId)
+    {
+        this(targetId, 1);
+    }
+
+    /**
+     * @param targetId the targetId of this client delegate
+     * @param shards the number of queue shards, rounded up to a power of two
+     */
+    public ConcurrentClientDelegate(String targetId, int shards)
+    {
+        if (shards < 1)
+            throw new IllegalArgumentException("Invalid shards " + shards);
+        int size = 1;
+        while (size < shards)
+            size <<= 1;
+        this.shards = new AtomicReferenceArray<Node>(size);
+        this.mask = size - 1;
+        this.targetId = targetId;
+    }
+
+    public String getTargetId()
+    {
+        return targetId;
+    }
+
+    public long getTimeout()
+    {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return the number of queue shards
+     */
+    public int getShards()
+    {
+        return shards.length();
+    }
+
+    public boolean enqueue(RHTTPRequest request)
+    {
+        if (isClosed())
+            return false;
+
+        int shard = (int)Thread.currentThread().getId() & mask;
+        Node node = new Node(request);
+        while (true)
+        {
+            Node head = shards.get(shard);
+            node.next = head;
+            if (shards.compareAndSet(shard, head, node))
+                break;
+        }
+
+        resume();
+
+        return true;
+    }
+
+    private void resume()
+    {
+        // Continuation may be null in several cases:
+        // 1. there always is something to deliver so we never suspend
+        // 2. concurrent calls to enqueue() and close(): only one wins the CAS
+        // 3. concurrent close() with a long poll that expired
+        // 4. concurrent close() with a long poll that resumed
+        Continuation suspended = continuation.get();
+        if (suspended != null && continuation.compareAndSet(suspended, null))
+            suspended.resume();
+    }
+
+    public List<RHTTPRequest> process(HttpServletRequest httpRequest) throws IOException
+    {
+        // See StandardClientDelegate.process() for the cases in which we respond
+        List<RHTTPRequest> result = Collections.emptyList();
+        if (firstFlush)
+        {
+            firstFlush = false;
+            logger.debug("Connect request (first) from device {}, delivering requests {}", targetId, result);
+            return result;
+        }
+
+        List<RHTTPRequest> requests = drain();
+        if (requests != null)
+        {
+            // We may have expired with requests already queued, so discard the stale continuation
+            continuation.set(null);
+            logger.debug("Connect request (resumed) from device {}, delivering requests {}", targetId, requests);
+            return requests;
+        }
+
+        Continuation expired = continuation.get();
+        if (expired != null && continuation.compareAndSet(expired, null))
+        {
+            logger.debug("Connect request (expired) from device {}, delivering requests {}", targetId, result);
+            return result;
+        }
+
+        if (isClosed())
+        {
+            logger.debug("Connect request (closed) from device {}, delivering requests {}", targetId, result);
+            return result;
+        }
+
+        // Here we need to suspend
+        Continuation suspended = ContinuationSupport.getContinuation(httpRequest);
+        suspended.setTimeout(getTimeout());
+        suspended.suspend();
+        continuation.set(suspended);
+        logger.debug("Connect request (suspended) from device {}", targetId);
+
+        // Without a lock, an enqueue() or a close() may have happened after we checked
+        // but before we published the continuation: check again and resume if needed
+        if (!isEmpty() || isClosed())
+            resume();
+
+        return null;
+    }
+
+    private boolean isEmpty()
+    {
+        for (int i = 0; i < shards.length(); ++i)
+        {
+            if (shards.get(i) != null)
+                return false;
+        }
+        return true;
+    }
+
+    private List<RHTTPRequest> drain()
+    {
+        List<RHTTPRequest> result = null;
+        for (int i = 0; i < shards.length(); ++i)
+        {
+            if (shards.get(i) == null)
+                continue;
+            Node head = shards.getAndSet(i, null);
+            if (head == null)
+                continue;
+
+            int size = 0;
+            for (Node node = head; node != null; node = node.next)
+                ++size;
+
+            if (result == null)
+                result = new ArrayList<RHTTPRequest>(size);
+
+            // The stack holds the requests in reverse order
+            int offset = result.size();
+            for (int j = 0; j < size; ++j)
+                result.add(null);
+            int index = offset + size;
+            for (Node node = head; node != null; node = node.next)
+                result.set(--index, node.request);
+        }
+        return result;
+    }
+
+    public void close()
+    {
+        closed = true;
+        resume();
+    }
+
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    private static class Node
+    {
+        private final RHTTPRequest request;
+        private Node next;
+
+        private Node(RHTTPRequest request)
+        {
+            this.request = request;
+        }
+    }
+}
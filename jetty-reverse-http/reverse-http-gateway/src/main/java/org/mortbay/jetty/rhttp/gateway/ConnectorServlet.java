@@ -16,14 +16,13 @@
 
 package org.mortbay.jetty.rhttp.gateway;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -33,6 +32,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
+import org.mortbay.jetty.rhttp.client.RHTTPFrameParser;
 import org.mortbay.jetty.rhttp.client.RHTTPRequest;
 import org.mortbay.jetty.rhttp.client.RHTTPResponse;
 
@@ -44,14 +44,28 @@ public class ConnectorServlet extends HttpServlet
 {
     private final Logger logger = Log.getLogger(getClass().toString());
     private final TargetIdRetriever targetIdRetriever = new StandardTargetIdRetriever();
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-    private final ConcurrentMap<String, Future<?>> expirations = new ConcurrentHashMap<String, Future<?>>();
+    private final ConcurrentMap<String, ClientExpirationTask> expirations = new ConcurrentHashMap<String, ClientExpirationTask>();
     private final Gateway gateway;
+    private final Scheduler scheduler;
+    private final boolean ownScheduler;
     private long clientTimeout=15000;
+    private int maxDeliverSize=16 * 1024 * 1024;
 
     public ConnectorServlet(Gateway gateway)
+    {
+        this(gateway, null);
+    }
+
+    /**
+     * @param gateway the gateway
+     * @param scheduler the scheduler used to expire gateway clients, or null to use
+     * a private {@link HashedWheelScheduler} that is started and stopped with this servlet
+     */
+    public ConnectorServlet(Gateway gateway, Scheduler scheduler)
     {
         this.gateway = gateway;
+        this.ownScheduler = scheduler == null;
+        this.scheduler = ownScheduler ? new HashedWheelScheduler() : scheduler;
     }
 
     @Override
@@ -60,6 +74,52 @@ public class ConnectorServlet extends HttpServlet
         String t = getInitParameter("clientTimeout");
         if (t!=null && !"".equals(t))
             clientTimeout=Long.parseLong(t);
+        String m = getInitParameter("maxDeliverSize");
+        if (m!=null && !"".equals(m))
+            maxDeliverSize=Integer.parseInt(m);
+
+        if (ownScheduler)
+        {
+            try
+            {
+                ((HashedWheelScheduler)scheduler).start();
+            }
+            catch (Exception x)
+            {
+                throw new ServletException(x);
+            }
+        }
+    }
+
+    /**
+     * @return the max number of content bytes of a deliver request, or -1 for no limit;
+     * larger requests, and frames that declare a larger payload, are rejected
+     */
+    public int getMaxDeliverSize()
+    {
+        return maxDeliverSize;
+    }
+
+    public void setMaxDeliverSize(int maxDeliverSize)
+    {
+        this.maxDeliverSize = maxDeliverSize;
+    }
+
+    @Override
+    public void destroy()
+    {
+        if (ownScheduler)
+        {
+            try
+            {
+                ((HashedWheelScheduler)scheduler).stop();
+            }
+            catch (Exception x)
+            {
+                logger.debug(x);
+            }
+        }
+        super.destroy();
     }
 
     @Override
@@ -68,19 +128,17 @@ public class ConnectorServlet extends HttpServlet
         String targetId = targetIdRetriever.retrieveTargetId(request);
 
         String uri = request.getRequestURI();
-        String path = uri.substring(request.getServletPath().length());
-        String[] segments = path.split("/");
-        if (segments.length < 3)
+        long action = RequestTokenizer.segment(uri, request.getServletPath().length(), 2);
+        if (action == RequestTokenizer.NONE)
             throw new ServletException("Invalid request to " + getClass().getSimpleName() + ": " + uri);
 
-        String action = segments[2];
-        if ("handshake".equals(action))
+        if (RequestTokenizer.matches(uri, action, "handshake"))
             serviceHandshake(targetId, request, response);
-        else if ("connect".equals(action))
+        else if (RequestTokenizer.matches(uri, action, "connect"))
             serviceConnect(targetId, request, response);
-        else if ("deliver".equals(action))
+        else if (RequestTokenizer.matches(uri, action, "deliver"))
             serviceDeliver(targetId, request, response);
-        else if ("disconnect".equals(action))
+        else if (RequestTokenizer.matches(uri, action, "disconnect"))
             serviceDisconnect(targetId, request, response);
         else
             throw new ServletException("Invalid request to " + getClass().getSimpleName() + ": " + uri);
@@ -93,7 +151,20 @@ public class ConnectorServlet extends HttpServlet
             throw new IOException("Client with targetId " + targetId + " is already connected");
 
         client = gateway.newClientDelegate(targetId);
-        ClientDelegate existing = gateway.addClientDelegate(targetId, client);
+        ClientDelegate existing;
+        try
+        {
+            existing = gateway.addClientDelegate(targetId, client);
+        }
+        catch (ClusteredGateway.WrongNodeException x)
+        {
+            // Tell the client which node it must connect to
+            logger.debug("Handshake from device " + targetId + ", wrong node", x);
+            httpResponse.setStatus(HttpServletResponse.SC_CONFLICT);
+            httpResponse.setContentType("text/plain; charset=UTF-8");
+            httpResponse.getWriter().print(x.getOwnerNodeId());
+            return;
+        }
         if (existing != null)
             throw new IOException("Client with targetId " + targetId + " is already connected");
 
@@ -110,14 +181,17 @@ public class ConnectorServlet extends HttpServlet
             if (!client.isClosed())
                 schedule(client);
 
+            // Frame lengths are known without generating the frames, so we
+            // set the Content-Length header to avoid a chunked response
+            int contentLength = 0;
+            for (RHTTPRequest request : requests)
+                contentLength += request.getFrameLength();
+            httpResponse.setContentLength(contentLength);
+
+            // Write the frames straight to the stream, without materializing them
             ServletOutputStream output = httpResponse.getOutputStream();
             for (RHTTPRequest request : requests)
-                output.write(request.getFrameBytes());
-            // I could count the framed bytes of all requests and set a Content-Length header,
-            // but the implementation of ServletOutputStream takes care of everything:
-            // if the request was HTTP/1.1, then flushing result in a chunked response, but the
-            // client know how to handle it; if the request was HTTP/1.0, then no chunking.
-            // To avoid chunking in HTTP/1.1 I must set the Content-Length header.
+                request.writeFrameTo(output);
             output.flush();
             logger.debug("Delivered to device {} requests {} ", client.getTargetId(), requests);
         }
@@ -125,16 +199,32 @@ public class ConnectorServlet extends HttpServlet
 
     private void schedule(ClientDelegate client)
     {
-        Future<?> task = scheduler.schedule(new ClientExpirationTask(client), clientTimeout, TimeUnit.MILLISECONDS);
-        Future<?> existing = expirations.put(client.getTargetId(), task);
-        assert existing == null;
+        // Reuse the expiration task of the client, to avoid allocations at every long poll
+        String targetId = client.getTargetId();
+        ClientExpirationTask task = expirations.get(targetId);
+        if (task == null || task.client != client)
+        {
+            // The task of a previous client with the same targetId must not
+            // fire, or it would expire this client
+            ClientExpirationTask existing = expirations.put(targetId, task = new ClientExpirationTask(client));
+            if (existing != null)
+                existing.cancel();
+        }
+        task.schedule();
     }
 
     private void unschedule(String targetId)
     {
-        Future<?> task = expirations.remove(targetId);
+        ClientExpirationTask task = expirations.get(targetId);
+        if (task != null)
+            task.cancel();
+    }
+
+    private void unscheduleAndRemove(String targetId)
+    {
+        ClientExpirationTask task = expirations.remove(targetId);
         if (task != null)
-            task.cancel(false);
+            task.cancel();
     }
 
     private void serviceConnect(String targetId, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
@@ -152,22 +242,33 @@ public class ConnectorServlet extends HttpServlet
         flush(client, httpRequest, httpResponse);
 
         if (client.isClosed())
+        {
+            unscheduleAndRemove(targetId);
             gateway.removeClientDelegate(targetId);
+        }
     }
 
-    private void expireConnect(ClientDelegate client, long time)
+    private void expireConnect(ClientExpirationTask task)
     {
+        ClientDelegate client = task.client;
         String targetId = client.getTargetId();
-        logger.info("Client with targetId {} missing, last seen {} ms ago, closing it", targetId, System.currentTimeMillis() - time);
+        logger.info("Client with targetId {} missing, last seen {} ms ago, closing it", targetId, System.currentTimeMillis() - task.time);
         client.close();
         // If the client expired, means that it did not connect,
         // so there no request to resume, and we cleanup here
-        // (while normally this cleanup is done in serviceConnect())
-        unschedule(targetId);
-        gateway.removeClientDelegate(targetId);
+        // (while normally this cleanup is done in serviceConnect()).
+        // A task that fires after it has been replaced belongs to a
+        // client that has already been replaced too: the cleanup
+        // would remove the new client's task and delegate
+        if (expirations.remove(targetId, task))
+        {
+            task.cancel();
+            if (gateway.getClientDelegate(targetId) == client)
+                gateway.removeClientDelegate(targetId);
+        }
     }
 
-    private void serviceDeliver(String targetId, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException
+    private void serviceDeliver(final String targetId, HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException
     {
         if (gateway.getClientDelegate(targetId) == null)
         {
@@ -176,10 +277,61 @@ public class ConnectorServlet extends HttpServlet
             return;
         }
 
-        byte[] body = Utils.read(httpRequest.getInputStream());
+        int contentLength = httpRequest.getContentLength();
+        if (maxDeliverSize >= 0 && contentLength > maxDeliverSize)
+        {
+            httpResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
 
-        RHTTPResponse response = RHTTPResponse.fromFrameBytes(body);
+        // Read the frames straight from the stream: each response
+        // payload is read directly into a buffer of its exact length,
+        // so the length in the frame header must be bounded before
+        // the parser allocates it
+        int maxPayloadLength = maxDeliverSize < 0 ? Integer.MAX_VALUE : maxDeliverSize;
+        if (contentLength >= 0)
+            maxPayloadLength = Math.min(maxPayloadLength, contentLength);
+        RHTTPFrameParser parser = new RHTTPFrameParser(new RHTTPFrameParser.Listener()
+        {
+            public void onFrame(int id, ByteBuffer payload)
+            {
+                // Respond as soon as each frame is parsed, so that a batch never holds more
+                // than one response, and a batch that turns out to be invalid still responds
+                // to the external requests of its valid frames.
+                // Failing to respond to one external request must not prevent responding to the others
+                RHTTPResponse response = RHTTPResponse.fromResponseBuffer(id, payload);
+                try
+                {
+                    deliver(targetId, response);
+                }
+                catch (IOException x)
+                {
+                    logger.debug("Deliver request from device " + targetId + ", could not respond " + response, x);
+                }
+            }
+        }, maxPayloadLength);
+        InputStream input = httpRequest.getInputStream();
+        // Without a Content-Length the size of a batch is only known as it is read
+        if (contentLength < 0 && maxDeliverSize >= 0)
+            input = new BoundedInputStream(input, maxDeliverSize);
+        try
+        {
+            parser.parse(input);
+        }
+        catch (Utils.ContentTooLargeException x)
+        {
+            logger.debug("Deliver request from device " + targetId + ", too large", x);
+            httpResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        }
+        catch (IOException x)
+        {
+            logger.debug("Deliver request from device " + targetId + ", invalid frames", x);
+            httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST);
+        }
+    }
 
+    private void deliver(String targetId, RHTTPResponse response) throws IOException
+    {
         ExternalRequest externalRequest = gateway.removeExternalRequest(response.getId());
         if (externalRequest != null)
         {
@@ -206,17 +358,75 @@ public class ConnectorServlet extends HttpServlet
 
     private class ClientExpirationTask implements Runnable
     {
-        private final long time = System.currentTimeMillis();
         private final ClientDelegate client;
+        private volatile Scheduler.Task task;
+        private volatile long time;
 
         public ClientExpirationTask(ClientDelegate client)
         {
             this.client = client;
         }
 
+        private void schedule()
+        {
+            time = System.currentTimeMillis();
+            Scheduler.Task existing = task;
+            if (existing == null)
+                task = scheduler.schedule(this, clientTimeout);
+            else
+                existing.reschedule(clientTimeout);
+        }
+
+        private void cancel()
+        {
+            Scheduler.Task existing = task;
+            if (existing != null)
+                existing.cancel();
+        }
+
         public void run()
         {
-            expireConnect(client, time);
+            expireConnect(this);
+        }
+    }
+
+    /**
+     * <p>Fails with {@link Utils.ContentTooLargeException} when more than the given number of bytes are read.</p>
+     */
+    private static class BoundedInputStream extends FilterInputStream
+    {
+        private final int maxBytes;
+        private long bytes;
+
+        private BoundedInputStream(InputStream input, int maxBytes)
+        {
+            super(input);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int read = super.read();
+            if (read >= 0)
+                count(1);
+            return read;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException
+        {
+            int read = super.read(bytes, offset, length);
+            if (read > 0)
+                count(read);
+            return read;
+        }
+
+        private void count(int read) throws IOException
+        {
+            bytes += read;
+            if (bytes > maxBytes)
+                throw new Utils.ContentTooLargeException(bytes, maxBytes);
         }
     }
 }
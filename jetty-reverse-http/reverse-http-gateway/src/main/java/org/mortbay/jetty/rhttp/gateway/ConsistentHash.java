@@ -0,0 +1,161 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * <p>A consistent hash ring that maps keys to nodes.</p>
+ * <p>Each node is placed on the ring at a number of {@link #getReplicas() virtual points}, and a key
+ * is mapped to the node of the first point that follows the key's hash on the ring, so that adding or
+ * removing a node only remaps the keys of that node.</p>
+ * <p>The ring is copied on write, so lookups are lock-free and do not allocate.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class ConsistentHash
+{
+    private final int replicas;
+    private final Set<String> nodes = new LinkedHashSet<String>();
+    private volatile Ring ring = new Ring(new int[0], new String[0]);
+
+    public ConsistentHash()
+    {
+        this(128);
+    }
+
+    /**
+     * @param replicas the number of points of each node on the ring
+     */
+    public ConsistentHash(int replicas)
+    {
+        if (replicas <= 0)
+            throw new IllegalArgumentException("Invalid replicas " + replicas);
+        this.replicas = replicas;
+    }
+
+    public int getReplicas()
+    {
+        return replicas;
+    }
+
+    public synchronized void addNode(String node)
+    {
+        if (nodes.add(node))
+            rebuild();
+    }
+
+    public synchronized void removeNode(String node)
+    {
+        if (nodes.remove(node))
+            rebuild();
+    }
+
+    public synchronized Set<String> getNodes()
+    {
+        return new LinkedHashSet<String>(nodes);
+    }
+
+    /**
+     * @param key the key to map
+     * @return the node the given key maps to, or null if there are no nodes
+     */
+    public String getNode(String key)
+    {
+        Ring ring = this.ring;
+        if (ring.nodes.length == 0)
+            return null;
+        int index = Arrays.binarySearch(ring.hashes, hash(key));
+        if (index < 0)
+            index = -index - 1;
+        if (index == ring.hashes.length)
+            index = 0;
+        return ring.nodes[index];
+    }
+
+    private void rebuild()
+    {
+        long[] points = new long[nodes.size() * replicas];
+        String[] owners = nodes.toArray(new String[nodes.size()]);
+        int count = 0;
+        for (int n = 0; n < owners.length; ++n)
+        {
+            for (int r = 0; r < replicas; ++r)
+            {
+                // Sort by hash, keeping the node index in the low bits
+                long hash = hash(owners[n] + "#" + r);
+                points[count++] = (hash << 32) | n;
+            }
+        }
+        Arrays.sort(points);
+
+        int[] hashes = new int[count];
+        String[] ringNodes = new String[count];
+        int size = 0;
+        for (int i = 0; i < count; ++i)
+        {
+            int hash = (int)(points[i] >> 32);
+            // On collisions the first node wins
+            if (size > 0 && hashes[size - 1] == hash)
+                continue;
+            hashes[size] = hash;
+            ringNodes[size] = owners[(int)points[i]];
+            ++size;
+        }
+        int[] ringHashes = new int[size];
+        System.arraycopy(hashes, 0, ringHashes, 0, size);
+        String[] ringOwners = new String[size];
+        System.arraycopy(ringNodes, 0, ringOwners, 0, size);
+        ring = new Ring(ringHashes, ringOwners);
+    }
+
+    /**
+     * <p>FNV-1a hash of the key's chars, with a final avalanche so that similar keys spread on the ring.</p>
+     *
+     * @param key the key to hash
+     * @return the hash of the key
+     */
+    static int hash(String key)
+    {
+        int hash = 0x811C9DC5;
+        for (int i = 0; i < key.length(); ++i)
+        {
+            hash ^= key.charAt(i);
+            hash *= 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static class Ring
+    {
+        private final int[] hashes;
+        private final String[] nodes;
+
+        private Ring(int[] hashes, String[] nodes)
+        {
+            this.hashes = hashes;
+            this.nodes = nodes;
+        }
+    }
+}
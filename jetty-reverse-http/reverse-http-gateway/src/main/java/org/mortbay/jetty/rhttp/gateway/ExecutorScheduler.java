@@ -0,0 +1,80 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+/**
+ * <p>Implementation of {@link Scheduler} backed by a single threaded {@link ScheduledExecutorService}.</p>
+ * <p>Scheduling and cancelling are O(log(n)) operations on the executor's delay queue.</p>
+ *
+ * @see HashedWheelScheduler
+ * @version $Revision$ $Date$
+ */
+public class ExecutorScheduler extends AbstractLifeCycle implements Scheduler
+{
+    private volatile ScheduledExecutorService executor;
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        executor = Executors.newSingleThreadScheduledExecutor();
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        super.doStop();
+        executor.shutdownNow();
+    }
+
+    public Task schedule(Runnable task, long delay)
+    {
+        ExecutorTask result = new ExecutorTask(task);
+        result.reschedule(delay);
+        return result;
+    }
+
+    private class ExecutorTask implements Task
+    {
+        private final Runnable task;
+        private volatile Future<?> future;
+
+        private ExecutorTask(Runnable task)
+        {
+            this.task = task;
+        }
+
+        public boolean cancel()
+        {
+            Future<?> existing = future;
+            return existing != null && existing.cancel(false);
+        }
+
+        public void reschedule(long delay)
+        {
+            cancel();
+            future = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -31,6 +31,12 @@ import org.mortbay.jetty.rhttp.client.RHTTPResponse;
  */
 public interface ExternalRequest
 {
+    /**
+     * The name of the request attribute that holds the <tt>ExternalRequest</tt>
+     * when it is redispatched, see {@link #resumed()}.
+     */
+    public static final String ATTRIBUTE = ExternalRequest.class.getName();
+
     /**
      * <p>Suspends this <tt>ExternalRequest</tt> waiting for a response from the gateway client.</p>
      * @return true if the <tt>ExternalRequest</tt> has been suspended, false if the
@@ -45,6 +51,14 @@ public interface ExternalRequest
      */
     public void respond(RHTTPResponse response) throws IOException;
 
+    /**
+     * <p>Called when the original external request is redispatched after having been resumed
+     * by {@link #respond(RHTTPResponse)} or by its expiration, to write the response on the
+     * thread that serves the original external request.</p>
+     * @throws IOException if responding to the original external request fails
+     */
+    public void resumed() throws IOException;
+
     /**
      * @return the request to be sent to the gateway client
      */
@@ -57,16 +57,34 @@ public class ExternalServlet extends HttpServlet
     @Override
     protected void service(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws ServletException, IOException
     {
+        ExternalRequest resumed = (ExternalRequest)httpRequest.getAttribute(ExternalRequest.ATTRIBUTE);
+        if (resumed != null)
+        {
+            // Redispatched to write the response, see StandardExternalRequest
+            resumed.resumed();
+            return;
+        }
+
         logger.debug("External http request: {}", httpRequest.getRequestURL());
 
         String targetId = targetIdRetriever.retrieveTargetId(httpRequest);
         if (targetId == null)
             throw new ServletException("Invalid request to " + getClass().getSimpleName() + ": " + httpRequest.getRequestURI());
 
-        ClientDelegate client = gateway.getClientDelegate(targetId);
+        ClientDelegate client = gateway.lookupClientDelegate(targetId);
         if (client == null) throw new ServletException("Client with targetId " + targetId + " is not connected");
 
-        ExternalRequest externalRequest = gateway.newExternalRequest(httpRequest, httpResponse);
+        ExternalRequest externalRequest;
+        try
+        {
+            externalRequest = gateway.newExternalRequest(httpRequest, httpResponse);
+        }
+        catch (Utils.ContentTooLargeException x)
+        {
+            logger.debug("Rejected external http request {}: {}", httpRequest.getRequestURL(), x.getMessage());
+            httpResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
         RHTTPRequest request = externalRequest.getRequest();
         ExternalRequest existing = gateway.addExternalRequest(request.getId(), externalRequest);
         assert existing == null;
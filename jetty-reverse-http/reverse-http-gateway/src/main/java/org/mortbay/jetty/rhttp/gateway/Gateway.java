@@ -43,6 +43,18 @@ public interface Gateway
      */
     public ClientDelegate getClientDelegate(String targetId);
 
+    /**
+     * <p>Returns the {@link ClientDelegate} to which external requests for the given targetId
+     * are enqueued.<br />
+     * This is the ClientDelegate returned by {@link #getClientDelegate(String)}, or, for gateways
+     * that span multiple nodes, a ClientDelegate that forwards the requests to the node the
+     * gateway client is connected to.</p>
+     *
+     * @param targetId the targetId of the external requests
+     * @return the ClientDelegate for the given targetId, or null if there is no such ClientDelegate
+     */
+    public ClientDelegate lookupClientDelegate(String targetId);
+
     /**
      * <p>Creates and configures a new {@link ClientDelegate} with the given targetId.</p>
      * @param targetId the targetId of the ClientDelegate to create
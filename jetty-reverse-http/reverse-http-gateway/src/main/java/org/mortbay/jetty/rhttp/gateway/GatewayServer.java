@@ -93,6 +93,7 @@ public class GatewayServer extends Server
     public final static String DFT_EXT_PATH="/gw";
     public final static String DFT_CONNECT_PATH="/__rhttp";
     private final Logger logger = Log.getLogger(getClass().toString());
+    private final Scheduler scheduler;
     private final Gateway gateway;
     private final ServletHolder externalServletHolder;
     private final ServletHolder connectorServletHolder;
@@ -109,6 +110,10 @@ public class GatewayServer extends Server
         setHandler(handlers);
         context = new ServletContextHandler(handlers, contextPath, ServletContextHandler.SESSIONS);
         
+        // Setup the scheduler, started and stopped with the server
+        scheduler = createScheduler();
+        addBean(scheduler);
+
         // Setup the gateway
         gateway = createGateway();
         
@@ -119,13 +124,22 @@ public class GatewayServer extends Server
         logger.debug("External servlet mapped to {}/*", externalServletPath);
 
         // Setup gateway servlet
-        ConnectorServlet gatewayServlet = new ConnectorServlet(gateway);
+        ConnectorServlet gatewayServlet = new ConnectorServlet(gateway, scheduler);
         connectorServletHolder = new ServletHolder(gatewayServlet);
         connectorServletHolder.setInitParameter("clientTimeout", "15000");
         context.addServlet(connectorServletHolder, gatewayServletPath + "/*");
         logger.debug("Gateway servlet mapped to {}/*", gatewayServletPath);
     }
 
+    /**
+     * Creates and configures the {@link Scheduler} that expires gateway clients and external requests.
+     * @return the newly created and configured Scheduler object.
+     */
+    protected Scheduler createScheduler()
+    {
+        return new HashedWheelScheduler();
+    }
+
     /**
      * Creates and configures a {@link Gateway} object.
      * @return the newly created and configured Gateway object.
@@ -133,8 +147,14 @@ public class GatewayServer extends Server
     protected Gateway createGateway()
     {
         StandardGateway gateway = new StandardGateway();
+        gateway.setScheduler(getScheduler());
         return gateway;
     }
+
+    public Scheduler getScheduler()
+    {
+        return scheduler;
+    }
     
     public ServletContextHandler getContext()
     {
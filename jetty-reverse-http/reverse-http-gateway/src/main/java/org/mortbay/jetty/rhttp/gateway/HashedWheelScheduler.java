@@ -0,0 +1,368 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
+
+/**
+ * <p>Implementation of {@link Scheduler} based on a hashed timing wheel.</p>
+ * <p>Time is divided in ticks of {@link #getTickDuration() configurable duration}, and tasks are
+ * hashed by their expiration tick into one of the {@link #getWheelSize() wheel buckets}.
+ * Each bucket is a doubly linked list guarded by its own lock, so that scheduling and cancelling
+ * a task are O(1) operations that only contend with other operations on the same bucket.<br />
+ * A single thread advances the wheel by one bucket every tick and runs the tasks that expired.</p>
+ * <p>Tasks expire no earlier than their delay, and no later than their delay plus one tick;
+ * delays longer than one wheel revolution are supported.</p>
+ * <p>Cancelled task handles are unlinked immediately and can be
+ * {@link Scheduler.Task#reschedule(long) rescheduled} without allocating new handles.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class HashedWheelScheduler extends AbstractLifeCycle implements Scheduler
+{
+    private final Logger logger = Log.getLogger(getClass().toString());
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final long tickDuration;
+    private final Bucket[] buckets;
+    private final int mask;
+    private volatile long tick;
+    private volatile Thread thread;
+
+    public HashedWheelScheduler()
+    {
+        this(100, 512);
+    }
+
+    /**
+     * @param tickDuration the duration of a tick in milliseconds
+     * @param wheelSize the number of buckets of the wheel, rounded up to a power of two
+     */
+    public HashedWheelScheduler(long tickDuration, int wheelSize)
+    {
+        if (tickDuration <= 0)
+            throw new IllegalArgumentException("Invalid tick duration " + tickDuration);
+        if (wheelSize <= 0)
+            throw new IllegalArgumentException("Invalid wheel size " + wheelSize);
+        int length = 1;
+        while (length < wheelSize)
+            length <<= 1;
+        this.tickDuration = tickDuration;
+        this.buckets = new Bucket[length];
+        for (int i = 0; i < length; ++i)
+            buckets[i] = new Bucket();
+        this.mask = length - 1;
+    }
+
+    /**
+     * @return the duration of a tick in milliseconds
+     */
+    public long getTickDuration()
+    {
+        return tickDuration;
+    }
+
+    /**
+     * @return the number of buckets of the wheel
+     */
+    public int getWheelSize()
+    {
+        return buckets.length;
+    }
+
+    /**
+     * @return the number of tasks currently scheduled
+     */
+    public int getSize()
+    {
+        return size.get();
+    }
+
+    /**
+     * @return the number of tasks in the most occupied bucket; the value is approximate,
+     * as buckets are not locked while computing it
+     */
+    public int getMaxBucketSize()
+    {
+        int result = 0;
+        for (Bucket bucket : buckets)
+            result = Math.max(result, bucket.size);
+        return result;
+    }
+
+    /**
+     * @return the number of buckets that hold at least one task; the value is approximate,
+     * as buckets are not locked while computing it
+     */
+    public int getOccupiedBuckets()
+    {
+        int result = 0;
+        for (Bucket bucket : buckets)
+        {
+            if (bucket.size > 0)
+                ++result;
+        }
+        return result;
+    }
+
+    /**
+     * @return the total number of tasks scheduled, including rescheduled ones
+     */
+    public long getScheduledCount()
+    {
+        return scheduled.get();
+    }
+
+    /**
+     * @return the total number of tasks cancelled before they expired
+     */
+    public long getCancelledCount()
+    {
+        return cancelled.get();
+    }
+
+    /**
+     * @return the total number of tasks that expired and ran
+     */
+    public long getExpiredCount()
+    {
+        return expired.get();
+    }
+
+    @Override
+    protected void doStart() throws Exception
+    {
+        super.doStart();
+        Thread ticker = new Thread(new Ticker(), "rhttp-scheduler-" + hashCode());
+        ticker.setDaemon(true);
+        thread = ticker;
+        ticker.start();
+    }
+
+    @Override
+    protected void doStop() throws Exception
+    {
+        Thread ticker = thread;
+        thread = null;
+        if (ticker != null)
+        {
+            ticker.interrupt();
+            ticker.join(tickDuration * 10);
+        }
+        super.doStop();
+    }
+
+    public Task schedule(Runnable task, long delay)
+    {
+        Entry entry = new Entry(task);
+        entry.reschedule(delay);
+        return entry;
+    }
+
+    private void add(Entry entry, long delay)
+    {
+        // Round up, so that tasks never expire earlier than their delay
+        long ticks = Math.max(0, delay) / tickDuration + 1;
+        while (true)
+        {
+            long current = tick;
+            long deadline = current + ticks;
+            Bucket bucket = buckets[(int)(deadline & mask)];
+            synchronized (bucket)
+            {
+                // The ticker updates the tick before locking the bucket it is going to process, so
+                // if the tick did not change we are sure that the bucket will be processed later
+                if (current == tick)
+                {
+                    if (entry.bucket != null)
+                        throw new IllegalStateException("Task already scheduled");
+                    entry.deadline = deadline;
+                    bucket.link(entry);
+                    break;
+                }
+            }
+        }
+        size.incrementAndGet();
+        scheduled.incrementAndGet();
+    }
+
+    private boolean remove(Entry entry)
+    {
+        while (true)
+        {
+            Bucket bucket = entry.bucket;
+            if (bucket == null)
+                return false;
+            synchronized (bucket)
+            {
+                // The bucket field only changes while holding the bucket lock
+                if (entry.bucket == bucket)
+                {
+                    bucket.unlink(entry);
+                    break;
+                }
+            }
+        }
+        size.decrementAndGet();
+        cancelled.incrementAndGet();
+        return true;
+    }
+
+    private void expire(long current)
+    {
+        Entry expired = null;
+        Bucket bucket = buckets[(int)(current & mask)];
+        synchronized (bucket)
+        {
+            Entry entry = bucket.head;
+            while (entry != null)
+            {
+                Entry next = entry.next;
+                if (entry.deadline <= current)
+                {
+                    bucket.unlink(entry);
+                    entry.expired = expired;
+                    expired = entry;
+                }
+                entry = next;
+            }
+        }
+
+        // Run the tasks outside the lock, so that they can reschedule themselves
+        while (expired != null)
+        {
+            // Use a dedicated link, as the task may be rescheduled concurrently
+            Entry entry = expired;
+            expired = entry.expired;
+            entry.expired = null;
+            size.decrementAndGet();
+            this.expired.incrementAndGet();
+            try
+            {
+                entry.task.run();
+            }
+            catch (Throwable x)
+            {
+                logger.warn("Task " + entry.task + " threw", x);
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return getClass().getSimpleName() + "[" + getSize() + " tasks in " + getOccupiedBuckets() + "/" + getWheelSize() + " buckets, max " + getMaxBucketSize() + "]";
+    }
+
+    private class Ticker implements Runnable
+    {
+        public void run()
+        {
+            long start = System.nanoTime();
+            long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+            while (thread == Thread.currentThread())
+            {
+                long next = tick + 1;
+                long sleep = start + next * tickNanos - System.nanoTime();
+                if (sleep > 0)
+                {
+                    try
+                    {
+                        TimeUnit.NANOSECONDS.sleep(sleep);
+                    }
+                    catch (InterruptedException x)
+                    {
+                        continue;
+                    }
+                }
+                tick = next;
+                expire(next);
+            }
+        }
+    }
+
+    private static class Bucket
+    {
+        private Entry head;
+        private volatile int size;
+
+        private void link(Entry entry)
+        {
+            entry.bucket = this;
+            entry.prev = null;
+            entry.next = head;
+            if (head != null)
+                head.prev = entry;
+            head = entry;
+            ++size;
+        }
+
+        private void unlink(Entry entry)
+        {
+            if (entry.prev != null)
+                entry.prev.next = entry.next;
+            else
+                head = entry.next;
+            if (entry.next != null)
+                entry.next.prev = entry.prev;
+            entry.prev = null;
+            entry.next = null;
+            entry.bucket = null;
+            --size;
+        }
+    }
+
+    private class Entry implements Task
+    {
+        private final Runnable task;
+        private volatile Bucket bucket;
+        private long deadline;
+        private Entry prev;
+        private Entry next;
+        private Entry expired;
+
+        private Entry(Runnable task)
+        {
+            this.task = task;
+        }
+
+        public boolean cancel()
+        {
+            return remove(this);
+        }
+
+        public void reschedule(long delay)
+        {
+            remove(this);
+            add(this, delay);
+        }
+
+        @Override
+        public String toString()
+        {
+            return task + "@" + deadline;
+        }
+    }
+}
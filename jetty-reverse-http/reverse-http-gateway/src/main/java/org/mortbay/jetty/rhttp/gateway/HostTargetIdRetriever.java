@@ -23,6 +23,7 @@ import javax.servlet.http.HttpServletRequest;
  */
 public class HostTargetIdRetriever implements TargetIdRetriever
 {
+    private final TargetIdCache cache = new TargetIdCache();
     private final String suffix;
 
     public HostTargetIdRetriever(String suffix)
@@ -33,20 +34,9 @@ public class HostTargetIdRetriever implements TargetIdRetriever
     public String retrieveTargetId(HttpServletRequest httpRequest)
     {
         String host = httpRequest.getHeader("Host");
-        if (host != null)
-        {
-            // Strip the port
-            int colon = host.indexOf(':');
-            if (colon > 0)
-            {
-                host = host.substring(0, colon);
-            }
-
-            if (suffix != null && host.endsWith(suffix))
-            {
-                return host.substring(0, host.length() - suffix.length());
-            }
-        }
-        return host;
+        if (host == null)
+            return null;
+        // Strip the port and the suffix
+        return cache.get(host, RequestTokenizer.host(host, suffix));
     }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+/**
+ * <p>Allocation-free tokenizer for request paths and <tt>Host</tt> headers.</p>
+ * <p>Tokens are returned as ranges of the source string, packed in a <tt>long</tt> that
+ * can be unpacked with {@link #start(long)} and {@link #end(long)}, or {@link #NONE}
+ * if the token does not exist; tokens can be compared with {@link #matches(String, long, String)}
+ * and turned into strings via a {@link TargetIdCache} without creating garbage.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class RequestTokenizer
+{
+    /**
+     * The value returned when a token does not exist
+     */
+    public static final long NONE = -1L;
+
+    private RequestTokenizer()
+    {
+    }
+
+    /**
+     * <p>Returns the range of the segment with the given index, where segments are the portions
+     * of the path, starting at the given offset, separated by '/'.</p>
+     * <p>Segments are numbered like the elements of <code>path.substring(offset).split("/")</code>:
+     * a path starting with '/' has an empty segment at index 0, trailing empty segments
+     * do not exist, and an empty path has a single empty segment.</p>
+     *
+     * @param path the path to tokenize
+     * @param offset the offset in the path where tokenization starts
+     * @param index the index of the segment
+     * @return the range of the segment, or {@link #NONE}
+     */
+    public static long segment(String path, int offset, int index)
+    {
+        int length = path.length();
+        if (offset > length)
+            return NONE;
+
+        int start = offset;
+        for (int i = 0; i < index; ++i)
+        {
+            int slash = path.indexOf('/', start);
+            if (slash < 0)
+                return NONE;
+            start = slash + 1;
+        }
+        int end = path.indexOf('/', start);
+        if (end < 0)
+            end = length;
+
+        if (start == end)
+        {
+            // Like split(), an empty path has a single empty segment
+            if (offset == length)
+                return range(start, end);
+            // Otherwise an empty segment exists only if it is followed by a non empty one
+            for (int i = end; i < length; ++i)
+            {
+                if (path.charAt(i) != '/')
+                    return range(start, end);
+            }
+            return NONE;
+        }
+        return range(start, end);
+    }
+
+    /**
+     * <p>Returns the range of the host name in the given <tt>Host</tt> header value,
+     * without the port and without the given suffix, if present.</p>
+     *
+     * @param host the <tt>Host</tt> header value
+     * @param suffix the suffix to strip, or null
+     * @return the range of the host name
+     */
+    public static long host(String host, String suffix)
+    {
+        int end = host.indexOf(':');
+        if (end <= 0)
+            end = host.length();
+        if (suffix != null && end >= suffix.length() && host.regionMatches(end - suffix.length(), suffix, 0, suffix.length()))
+            end -= suffix.length();
+        return range(0, end);
+    }
+
+    /**
+     * @param source the tokenized string
+     * @param range the range of the token
+     * @param value the value to compare
+     * @return whether the token is equal to the given value
+     */
+    public static boolean matches(String source, long range, String value)
+    {
+        if (range == NONE)
+            return false;
+        int start = start(range);
+        int length = end(range) - start;
+        return length == value.length() && source.regionMatches(start, value, 0, length);
+    }
+
+    /**
+     * @param range the range of a token
+     * @return the start index, inclusive, of the token
+     */
+    public static int start(long range)
+    {
+        return (int)(range >>> 32);
+    }
+
+    /**
+     * @param range the range of a token
+     * @return the end index, exclusive, of the token
+     */
+    public static int end(long range)
+    {
+        return (int)range;
+    }
+
+    private static long range(int start, int end)
+    {
+        return ((long)start << 32) | (end & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+/**
+ * <p><tt>Scheduler</tt> runs tasks after a delay, and is used by the gateway server to expire
+ * gateway clients that do not reconnect and external requests that are not responded.</p>
+ * <p>Scheduled tasks are expected to be short, since implementations may run them on the
+ * same thread that keeps track of the time.</p>
+ *
+ * @see HashedWheelScheduler
+ * @see ExecutorScheduler
+ * @version $Revision$ $Date$
+ */
+public interface Scheduler
+{
+    /**
+     * <p>Schedules the given task to run after the given delay.</p>
+     *
+     * @param task the task to run
+     * @param delay the delay in milliseconds
+     * @return a handle to cancel or reschedule the task
+     */
+    public Task schedule(Runnable task, long delay);
+
+    /**
+     * <p>A handle to a scheduled task.</p>
+     * <p>A handle may be reused to schedule again the same task, once it has been cancelled
+     * or once it ran, which avoids to allocate a new handle for tasks that are scheduled
+     * over and over. A handle must not be rescheduled concurrently by multiple threads.</p>
+     */
+    public interface Task
+    {
+        /**
+         * <p>Cancels this task.</p>
+         *
+         * @return true if the task was cancelled before it ran, false if it already ran
+         * or it was already cancelled
+         */
+        public boolean cancel();
+
+        /**
+         * <p>Cancels this task if it is scheduled, and schedules it again after the given delay.</p>
+         *
+         * @param delay the delay in milliseconds
+         */
+        public void reschedule(long delay);
+    }
+}
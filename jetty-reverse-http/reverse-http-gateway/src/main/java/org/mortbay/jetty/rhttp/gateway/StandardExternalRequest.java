@@ -32,7 +32,14 @@ import org.mortbay.jetty.rhttp.client.RHTTPRequest;
 import org.mortbay.jetty.rhttp.client.RHTTPResponse;
 
 /**
- * Default implementation of {@link ExternalRequest}.
+ * <p>Default implementation of {@link ExternalRequest}.</p>
+ * <p>When {@link #isDispatchResponses() dispatching responses}, {@link #respond(RHTTPResponse)} only
+ * records the response and resumes the suspended external request; the response is written by
+ * {@link #resumed()} on the thread that redispatches the external request, so that the thread that
+ * delivered the response from the gateway client is never blocked by a slow external client.<br />
+ * Otherwise the response is written directly by the thread that delivered it.<br />
+ * In both cases an expired request is resumed, and its 504 response is written by {@link #resumed()},
+ * so that the thread of the {@link Scheduler} never writes to external clients.</p>
  *
  * @version $Revision$ $Date$
  */
@@ -45,7 +52,13 @@ public class StandardExternalRequest implements ExternalRequest
     private final Gateway gateway;
     private final Object lock = new Object();
     private volatile long timeout;
+    private volatile Scheduler scheduler;
+    private volatile boolean dispatchResponses;
+    private volatile int responseBufferSize;
     private Continuation continuation;
+    private Scheduler.Task expiration;
+    private RHTTPResponse response;
+    private boolean expired;
     private boolean responded;
 
     public StandardExternalRequest(RHTTPRequest request, HttpServletRequest httpRequest, HttpServletResponse httpResponse, Gateway gateway)
@@ -66,48 +79,185 @@ public class StandardExternalRequest implements ExternalRequest
         this.timeout = timeout;
     }
 
+    public Scheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    /**
+     * @param scheduler the scheduler used to expire this request, or null to rely
+     * on the continuation timeout
+     */
+    public void setScheduler(Scheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return whether responses are written by the thread that redispatches the external request
+     * rather than by the thread that delivers them
+     */
+    public boolean isDispatchResponses()
+    {
+        return dispatchResponses;
+    }
+
+    public void setDispatchResponses(boolean dispatchResponses)
+    {
+        this.dispatchResponses = dispatchResponses;
+    }
+
+    /**
+     * @return the size of the buffer used to write the response, or 0 for the container default
+     */
+    public int getResponseBufferSize()
+    {
+        return responseBufferSize;
+    }
+
+    public void setResponseBufferSize(int responseBufferSize)
+    {
+        this.responseBufferSize = responseBufferSize;
+    }
+
     public boolean suspend()
     {
+        RHTTPResponse response;
         synchronized (lock)
         {
+            // The response may have arrived before we had the chance to suspend
+            response = this.response;
+            if (response != null)
+            {
+                this.response = null;
+                responded = true;
+            }
+
             // We suspend only if we have no responded yet
             if (!responded)
             {
                 assert continuation == null;
                 continuation = ContinuationSupport.getContinuation(httpRequest);
-                continuation.setTimeout(getTimeout());
-                continuation.addContinuationListener(new TimeoutListener());
-                continuation.suspend(httpResponse);
+                Scheduler scheduler = getScheduler();
+                if (scheduler == null)
+                {
+                    continuation.setTimeout(getTimeout());
+                    continuation.addContinuationListener(new TimeoutListener());
+                }
+                else
+                {
+                    // A zero timeout disables the continuation timeout, we expire via the scheduler
+                    continuation.setTimeout(0);
+                    expiration = scheduler.schedule(new TimeoutTask(), getTimeout());
+                }
+                if (isDispatchResponses())
+                {
+                    httpRequest.setAttribute(ATTRIBUTE, this);
+                    continuation.suspend();
+                }
+                else
+                {
+                    continuation.suspend(httpResponse);
+                }
                 logger.debug("Request {} suspended", getRequest());
+                return true;
             }
-            else
+        }
+
+        logger.debug("Request {} already responded", getRequest());
+        if (response != null)
+        {
+            // We are on the thread that serves the external request, so we can write here
+            try
             {
-                logger.debug("Request {} already responded", getRequest());
+                writeResponse(response);
+            }
+            catch (IOException x)
+            {
+                logger.debug("Request " + getRequest() + " could not be responded", x);
             }
-            return !responded;
         }
+        return false;
     }
 
     public void respond(RHTTPResponse response) throws IOException
     {
-        responseCompleted(response);
+        if (isDispatchResponses())
+            responseDispatched(response);
+        else
+            responseCompleted(response);
     }
 
-    private void responseCompleted(RHTTPResponse response) throws IOException
+    private void responseDispatched(RHTTPResponse response)
     {
         synchronized (lock)
         {
             // Could be that we complete exactly when the response is being expired
-            if (!responded)
+            if (responded || expired || this.response != null)
+                return;
+
+            this.response = response;
+
+            if (expiration != null)
             {
-                httpResponse.setStatus(response.getStatusCode());
+                expiration.cancel();
+                expiration = null;
+            }
+
+            // It may happen that the continuation is null,
+            // because the response arrived before we had the chance to suspend
+            if (continuation != null)
+                continuation.resume();
+
+            logger.debug("Request {} resumed with response {}", request, response);
+        }
+    }
+
+    public void resumed() throws IOException
+    {
+        RHTTPResponse response;
+        boolean expired;
+        synchronized (lock)
+        {
+            if (responded)
+                return;
 
-                for (Map.Entry<String, String> header : response.getHeaders().entrySet())
-                    httpResponse.setHeader(header.getKey(), header.getValue());
+            response = this.response;
+            expired = this.expired;
+            if (response == null && !expired)
+            {
+                // Redispatched because of the continuation timeout, while the response is being
+                // delivered (see expire()): wait for the response to resume us again
+                continuation.suspend();
+                return;
+            }
 
-                ServletOutputStream output = httpResponse.getOutputStream();
-                output.write(response.getBody());
-                output.flush();
+            // Mark as responded, so we know we don't have to suspend
+            this.response = null;
+            continuation = null;
+            responded = true;
+        }
+
+        // Write outside the lock, we are on the thread that serves the external request
+        if (response != null)
+        {
+            writeResponse(response);
+        }
+        else
+        {
+            httpResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Gateway Time-out");
+            logger.debug("Request {} expired", getRequest());
+        }
+    }
+
+    private void responseCompleted(RHTTPResponse response) throws IOException
+    {
+        synchronized (lock)
+        {
+            // Could be that we complete exactly when the response is being expired
+            if (!responded && !expired)
+            {
+                writeResponse(response);
 
                 // It may happen that the continuation is null,
                 // because the response arrived before we had the chance to suspend
@@ -117,35 +267,57 @@ public class StandardExternalRequest implements ExternalRequest
                     continuation = null;
                 }
 
+                if (expiration != null)
+                {
+                    expiration.cancel();
+                    expiration = null;
+                }
+
                 // Mark as responded, so we know we don't have to suspend
                 // or respond with an expired response
                 responded = true;
-
-                if (logger.isDebugEnabled())
-                {
-                    String eol = System.getProperty("line.separator");
-                    logger.debug("Request {} responded {}{}{}{}{}", new Object[]{request, response, eol, request.toLongString(), eol, response.toLongString()});
-                }
             }
         }
     }
 
-    private void responseExpired() throws IOException
+    private void writeResponse(RHTTPResponse response) throws IOException
     {
-        synchronized (lock)
-        {
-            // Could be that we expired exactly when the response is being completed
-            if (!responded)
-            {
-                httpResponse.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT, "Gateway Time-out");
+        httpResponse.setStatus(response.getStatusCode());
 
-                continuation.complete();
-                continuation = null;
+        for (Map.Entry<String, String> header : response.getHeaders().entrySet())
+            httpResponse.setHeader(header.getKey(), header.getValue());
 
-                // Mark as responded, so we know we don't have to respond with a completed response
-                responded = true;
+        int bufferSize = getResponseBufferSize();
+        if (bufferSize > 0)
+            httpResponse.setBufferSize(bufferSize);
+
+        ServletOutputStream output = httpResponse.getOutputStream();
+        output.write(response.getBody());
+        output.flush();
 
-                logger.debug("Request {} expired", getRequest());
+        if (logger.isDebugEnabled())
+        {
+            String eol = System.getProperty("line.separator");
+            logger.debug("Request {} responded {}{}{}{}{}", new Object[]{request, response, eol, request.toLongString(), eol, response.toLongString()});
+        }
+    }
+
+    private void responseExpired()
+    {
+        synchronized (lock)
+        {
+            // Could be that we expired exactly when the response is being delivered or completed
+            if (responded || expired || response != null)
+                return;
+
+            expired = true;
+            expiration = null;
+            // The 504 is written by resumed(), on the thread that redispatches the external
+            // request, so that a slow external client does not block the scheduler thread
+            if (continuation != null)
+            {
+                httpRequest.setAttribute(ATTRIBUTE, this);
+                continuation.resume();
             }
         }
     }
@@ -169,18 +341,31 @@ public class StandardExternalRequest implements ExternalRequest
 
         public void onTimeout(Continuation continuation)
         {
-            ExternalRequest externalRequest = gateway.removeExternalRequest(getRequest().getId());
-            // The gateway request can be null for a race with delivery
-            if (externalRequest != null)
+            expire();
+        }
+    }
+
+    private class TimeoutTask implements Runnable
+    {
+        public void run()
+        {
+            expire();
+        }
+    }
+
+    private void expire()
+    {
+        ExternalRequest externalRequest = gateway.removeExternalRequest(getRequest().getId());
+        // The gateway request can be null for a race with delivery
+        if (externalRequest != null)
+        {
+            try
             {
-                try
-                {
-                    responseExpired();
-                }
-                catch (Exception x)
-                {
-                    logger.warn("Request " + getRequest() + " expired but failed", x);
-                }
+                responseExpired();
+            }
+            catch (Exception x)
+            {
+                logger.warn("Request " + getRequest() + " expired but failed", x);
             }
         }
     }
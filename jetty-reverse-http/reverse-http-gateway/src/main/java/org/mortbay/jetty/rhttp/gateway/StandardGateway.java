@@ -16,7 +16,9 @@
 
 package org.mortbay.jetty.rhttp.gateway;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
@@ -44,6 +46,14 @@ public class StandardGateway implements Gateway
     private final AtomicInteger requestIds = new AtomicInteger();
     private volatile long gatewayTimeout=20000;
     private volatile long externalTimeout=60000;
+    private volatile boolean concurrentClientDelegates;
+    private volatile int clientDelegateShards=1;
+    private volatile Scheduler scheduler;
+    private volatile int maxRequestBufferSize=64 * 1024;
+    private volatile int maxRequestSize=16 * 1024 * 1024;
+    private volatile File tempDirectory;
+    private volatile boolean dispatchResponses=true;
+    private volatile int responseBufferSize;
 
     public long getGatewayTimeout()
     {
@@ -65,13 +75,138 @@ public class StandardGateway implements Gateway
         this.externalTimeout = externalTimeout;
     }
 
+    /**
+     * @return whether {@link #newClientDelegate(String)} creates lock-free {@link ConcurrentClientDelegate}s
+     * rather than {@link StandardClientDelegate}s
+     */
+    public boolean isConcurrentClientDelegates()
+    {
+        return concurrentClientDelegates;
+    }
+
+    public void setConcurrentClientDelegates(boolean concurrentClientDelegates)
+    {
+        this.concurrentClientDelegates = concurrentClientDelegates;
+    }
+
+    /**
+     * @return the number of queue shards of the {@link ConcurrentClientDelegate}s
+     * @see #isConcurrentClientDelegates()
+     */
+    public int getClientDelegateShards()
+    {
+        return clientDelegateShards;
+    }
+
+    public void setClientDelegateShards(int clientDelegateShards)
+    {
+        this.clientDelegateShards = clientDelegateShards;
+    }
+
+    public Scheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    /**
+     * @param scheduler the scheduler used to expire external requests, or null
+     * to rely on continuation timeouts
+     */
+    public void setScheduler(Scheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return the max number of bytes of an external request that are buffered on the heap;
+     * larger requests are spilled to a temporary file and loaded off-heap
+     * @see #getMaxRequestSize()
+     */
+    public int getMaxRequestBufferSize()
+    {
+        return maxRequestBufferSize;
+    }
+
+    public void setMaxRequestBufferSize(int maxRequestBufferSize)
+    {
+        this.maxRequestBufferSize = maxRequestBufferSize;
+    }
+
+    /**
+     * @return the max number of content bytes of an external request, or -1 for no limit;
+     * larger requests are rejected
+     */
+    public int getMaxRequestSize()
+    {
+        return maxRequestSize;
+    }
+
+    public void setMaxRequestSize(int maxRequestSize)
+    {
+        this.maxRequestSize = maxRequestSize;
+    }
+
+    /**
+     * @return the directory where large external requests are spilled, or null for the default temporary directory
+     * @see #getMaxRequestBufferSize()
+     */
+    public File getTempDirectory()
+    {
+        return tempDirectory;
+    }
+
+    public void setTempDirectory(File tempDirectory)
+    {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /**
+     * @return whether responses to external requests are written by the threads that serve the
+     * external requests, rather than by the threads that deliver them from the gateway clients
+     * @see StandardExternalRequest#isDispatchResponses()
+     */
+    public boolean isDispatchResponses()
+    {
+        return dispatchResponses;
+    }
+
+    public void setDispatchResponses(boolean dispatchResponses)
+    {
+        this.dispatchResponses = dispatchResponses;
+    }
+
+    /**
+     * @return the size of the buffer used to write each response to an external request,
+     * or 0 for the container default
+     */
+    public int getResponseBufferSize()
+    {
+        return responseBufferSize;
+    }
+
+    public void setResponseBufferSize(int responseBufferSize)
+    {
+        this.responseBufferSize = responseBufferSize;
+    }
+
     public ClientDelegate getClientDelegate(String targetId)
     {
         return clients.get(targetId);
     }
 
+    public ClientDelegate lookupClientDelegate(String targetId)
+    {
+        return getClientDelegate(targetId);
+    }
+
     public ClientDelegate newClientDelegate(String targetId)
     {
+        if (isConcurrentClientDelegates())
+        {
+            ConcurrentClientDelegate client = new ConcurrentClientDelegate(targetId, getClientDelegateShards());
+            client.setTimeout(getGatewayTimeout());
+            return client;
+        }
         StandardClientDelegate client = new StandardClientDelegate(targetId);
         client.setTimeout(getGatewayTimeout());
         return client;
@@ -89,13 +224,24 @@ public class StandardGateway implements Gateway
 
     public ExternalRequest newExternalRequest(HttpServletRequest httpRequest, HttpServletResponse httpResponse) throws IOException
     {
-        int requestId = requestIds.incrementAndGet();
+        int requestId = nextRequestId();
         RHTTPRequest request = convertHttpRequest(requestId, httpRequest);
         StandardExternalRequest gatewayRequest = new StandardExternalRequest(request, httpRequest, httpResponse, this);
         gatewayRequest.setTimeout(getExternalTimeout());
+        gatewayRequest.setScheduler(getScheduler());
+        gatewayRequest.setDispatchResponses(isDispatchResponses());
+        gatewayRequest.setResponseBufferSize(getResponseBufferSize());
         return gatewayRequest;
     }
 
+    /**
+     * @return a new id, unique in this gateway, for an {@link ExternalRequest}
+     */
+    protected int nextRequestId()
+    {
+        return requestIds.incrementAndGet();
+    }
+
     protected RHTTPRequest convertHttpRequest(int requestId, HttpServletRequest httpRequest) throws IOException
     {
         Map<String, String> headers = new HashMap<String, String>();
@@ -107,8 +253,10 @@ public class StandardGateway implements Gateway
             headers.put(name, value);
         }
 
-        byte[] body = Utils.read(httpRequest.getInputStream());
-        return new RHTTPRequest(requestId, httpRequest.getMethod(), httpRequest.getRequestURI(), headers, body);
+        // Read the body directly after the request head, to avoid copying it again
+        byte[] head = RHTTPRequest.generateHead(httpRequest.getMethod(), httpRequest.getRequestURI(), headers);
+        ByteBuffer requestBuffer = Utils.read(head, httpRequest.getInputStream(), httpRequest.getContentLength(), getMaxRequestBufferSize(), getMaxRequestSize(), getTempDirectory());
+        return RHTTPRequest.fromRequestBuffer(requestId, requestBuffer);
     }
 
     public ExternalRequest addExternalRequest(int requestId, ExternalRequest externalRequest)
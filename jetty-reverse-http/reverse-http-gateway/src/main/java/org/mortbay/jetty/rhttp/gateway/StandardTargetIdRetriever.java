@@ -27,12 +27,12 @@ import javax.servlet.http.HttpServletRequest;
  */
 public class StandardTargetIdRetriever implements TargetIdRetriever
 {
+    private final TargetIdCache cache = new TargetIdCache();
+
     public String retrieveTargetId(HttpServletRequest httpRequest)
     {
         String uri = httpRequest.getRequestURI();
-        String path = uri.substring(httpRequest.getServletPath().length());
-        String[] segments = path.split("/");
-        if (segments.length < 2) return null;
-        return segments[1];
+        long segment = RequestTokenizer.segment(uri, httpRequest.getServletPath().length(), 1);
+        return cache.get(uri, segment);
     }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+/**
+ * <p>A small cache that maps portions of request strings to canonical target id strings,
+ * so that retrieving the target id of a request does not create a new string every time.</p>
+ * <p>The cache is direct mapped: each range hashes to a single slot, and a miss replaces the
+ * slot content. Slots are read and written without locking; this is safe because strings
+ * are immutable, and at worst causes a miss.</p>
+ *
+ * @see RequestTokenizer
+ * @version $Revision$ $Date$
+ */
+public class TargetIdCache
+{
+    private final String[] entries;
+    private final int mask;
+
+    public TargetIdCache()
+    {
+        this(1024);
+    }
+
+    /**
+     * @param size the number of slots, rounded up to a power of two
+     */
+    public TargetIdCache(int size)
+    {
+        int length = 1;
+        while (length < size)
+            length <<= 1;
+        this.entries = new String[length];
+        this.mask = length - 1;
+    }
+
+    /**
+     * @param source the source string
+     * @param range the range of the target id in the source string, as returned by {@link RequestTokenizer}
+     * @return the canonical target id, or null if the range is {@link RequestTokenizer#NONE}
+     */
+    public String get(String source, long range)
+    {
+        if (range == RequestTokenizer.NONE)
+            return null;
+        return get(source, RequestTokenizer.start(range), RequestTokenizer.end(range));
+    }
+
+    /**
+     * @param source the source string
+     * @param start the start index of the target id, inclusive
+     * @param end the end index of the target id, exclusive
+     * @return the canonical target id
+     */
+    public String get(String source, int start, int end)
+    {
+        int hash = 0;
+        for (int i = start; i < end; ++i)
+            hash = 31 * hash + source.charAt(i);
+        hash ^= (hash >>> 16);
+        int index = hash & mask;
+
+        int length = end - start;
+        String cached = entries[index];
+        if (cached != null && cached.length() == length && source.regionMatches(start, cached, 0, length))
+            return cached;
+
+        String result = start == 0 && end == source.length() ? source : source.substring(start, end);
+        entries[index] = result;
+        return result;
+    }
+}
@@ -16,23 +16,151 @@
 
 package org.mortbay.jetty.rhttp.gateway;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.log.Logger;
 
 /**
  * @version $Revision$ $Date$
  */
 class Utils
 {
-    static byte[] read(InputStream input) throws IOException
+    private static final Logger logger = Log.getLogger(Utils.class.getName());
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * <p>Reads the given prefix followed by the content of the given stream into a buffer.</p>
+     * <p>If the content fits in <code>maxBufferSize</code> bytes it is read into a heap buffer,
+     * sized exactly when the content length is known; otherwise the content is spilled to a
+     * temporary file in the given directory, to learn its size, and then loaded into a direct
+     * buffer of that size, so that it does not occupy the heap. The temporary file is closed
+     * and deleted before this method returns, so that nothing is left on disk afterwards.</p>
+     *
+     * @param prefix the bytes that precede the content
+     * @param input the stream to read the content from
+     * @param contentLength the content length, or -1 if unknown
+     * @param maxBufferSize the max number of bytes read into a heap buffer
+     * @param maxContentSize the max number of content bytes, or -1 for no limit
+     * @param directory the directory of the temporary files, or null for the default temporary directory
+     * @return a buffer with the prefix and the content between position and limit
+     * @throws ContentTooLargeException if the content is larger than <code>maxContentSize</code>
+     * @throws IOException if the content cannot be read
+     */
+    static ByteBuffer read(byte[] prefix, InputStream input, int contentLength, int maxBufferSize, int maxContentSize, File directory) throws IOException
+    {
+        // Never more than an int can index, as the content ends up in a single buffer
+        long maxLength = maxContentSize < 0 ? Integer.MAX_VALUE : Math.min((long)prefix.length + maxContentSize, Integer.MAX_VALUE);
+        if (contentLength > maxContentSize && maxContentSize >= 0)
+            throw new ContentTooLargeException(contentLength, maxContentSize);
+
+        if (contentLength >= 0 && (long)prefix.length + contentLength <= maxBufferSize)
+        {
+            byte[] bytes = new byte[prefix.length + contentLength];
+            System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+            int offset = prefix.length;
+            while (offset < bytes.length)
+            {
+                int read = input.read(bytes, offset, bytes.length - offset);
+                if (read < 0)
+                    throw new EOFException("Expected " + contentLength + " bytes, read " + (offset - prefix.length));
+                offset += read;
+            }
+            return ByteBuffer.wrap(bytes);
+        }
+
+        byte[] bytes = new byte[Math.max(prefix.length, Math.min(prefix.length + CHUNK_SIZE, maxBufferSize))];
+        System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+        int length = prefix.length;
+        while (true)
+        {
+            if (length == bytes.length)
+            {
+                if (length >= maxBufferSize)
+                    return spill(bytes, length, prefix.length, input, maxLength, maxContentSize, directory);
+                byte[] newBytes = new byte[(int)Math.min((long)length * 2, maxBufferSize)];
+                System.arraycopy(bytes, 0, newBytes, 0, length);
+                bytes = newBytes;
+            }
+            int read = input.read(bytes, length, bytes.length - length);
+            if (read < 0)
+                return ByteBuffer.wrap(bytes, 0, length);
+            length += read;
+            if (length > maxLength)
+                throw new ContentTooLargeException(length - prefix.length, maxContentSize);
+        }
+    }
+
+    private static ByteBuffer spill(byte[] bytes, int length, int prefixLength, InputStream input, long maxLength, int maxContentSize, File directory) throws IOException
+    {
+        File file = File.createTempFile("rhttp-", ".tmp", directory);
+        try
+        {
+            long size = length;
+            FileOutputStream output = new FileOutputStream(file);
+            try
+            {
+                output.write(bytes, 0, length);
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int read;
+                while ((read = input.read(chunk)) >= 0)
+                {
+                    size += read;
+                    if (size > maxLength)
+                        throw new ContentTooLargeException(size - prefixLength, maxContentSize);
+                    output.write(chunk, 0, read);
+                }
+            }
+            finally
+            {
+                output.close();
+            }
+
+            // Loaded rather than mapped: a mapping would hold the file, and
+            // its disk space, until the buffer is garbage collected, and on
+            // some platforms it prevents the file from being deleted at all
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int)size);
+            FileInputStream stored = new FileInputStream(file);
+            try
+            {
+                FileChannel channel = stored.getChannel();
+                while (buffer.hasRemaining())
+                {
+                    if (channel.read(buffer) < 0)
+                        throw new EOFException("Expected " + size + " bytes in " + file + ", read " + buffer.position());
+                }
+            }
+            finally
+            {
+                stored.close();
+            }
+            buffer.flip();
+            return buffer;
+        }
+        finally
+        {
+            if (!file.delete())
+                logger.warn("Could not delete temporary file {}", file);
+        }
+    }
+
+    /**
+     * <p>Thrown when the content of a request is larger than allowed.</p>
+     */
+    static class ContentTooLargeException extends IOException
     {
-        ByteArrayOutputStream body = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        int read;
-        while ((read = input.read(buffer)) >= 0)
-            body.write(buffer, 0, read);
-        body.close();
-        return body.toByteArray();
+        private static final long serialVersionUID = -3524185924183862164L;
+
+        ContentTooLargeException(long contentLength, int maxContentSize)
+        {
+            super("Content of " + contentLength + " bytes or more exceeds the max of " + maxContentSize + " bytes");
+        }
     }
 }
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class BatchDeliverTest extends TestCase
+{
+    /**
+     * Tests that responses delivered in batches, many per HTTP request,
+     * are all dispatched to the right external requests.
+     *
+     * @throws Exception in case of test exceptions
+     */
+    public void testBatchDeliver() throws Exception
+    {
+        GatewayServer server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.setTargetIdRetriever(new GatewayEchoServer.EchoTargetIdRetriever());
+        server.start();
+        try
+        {
+            Address address = new Address("localhost", connector.getLocalPort());
+
+            HttpClient httpClient = new HttpClient();
+            httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+            httpClient.start();
+            try
+            {
+                final AtomicInteger batches = new AtomicInteger();
+                final AtomicInteger batchedResponses = new AtomicInteger();
+                final JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "echo")
+                {
+                    @Override
+                    protected void asyncDeliver(List<RHTTPResponse> responses)
+                    {
+                        batches.incrementAndGet();
+                        batchedResponses.addAndGet(responses.size());
+                        super.asyncDeliver(responses);
+                    }
+                };
+                client.setBatchDeliveries(true);
+                client.setMaxBatchSize(8);
+                client.addListener(new RHTTPListener()
+                {
+                    public void onRequest(RHTTPRequest request) throws Exception
+                    {
+                        client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getBody()));
+                    }
+                });
+                client.connect();
+                try
+                {
+                    int count = 50;
+                    List<ContentExchange> exchanges = new ArrayList<ContentExchange>();
+                    for (int i = 0; i < count; ++i)
+                    {
+                        ContentExchange exchange = new ContentExchange(true);
+                        exchange.setMethod(HttpMethods.POST);
+                        exchange.setAddress(address);
+                        exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/" + i);
+                        exchange.setRequestContent(new ByteArrayBuffer(("body" + i).getBytes("UTF-8")));
+                        httpClient.send(exchange);
+                        exchanges.add(exchange);
+                    }
+
+                    for (int i = 0; i < count; ++i)
+                    {
+                        ContentExchange exchange = exchanges.get(i);
+                        assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                        assertEquals(HttpServletResponse.SC_OK, exchange.getResponseStatus());
+                        assertEquals("body" + i, exchange.getResponseContent());
+                    }
+
+                    assertEquals(count, batchedResponses.get());
+                    assertTrue(batches.get() <= count);
+                }
+                finally
+                {
+                    client.disconnect();
+                }
+            }
+            finally
+            {
+                httpClient.stop();
+            }
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+    /**
+     * Tests that deliver requests, and frames, that are larger than the
+     * connector servlet allows are rejected before they are buffered.
+     *
+     * @throws Exception in case of test exceptions
+     */
+    public void testOversizedDeliverIsRejected() throws Exception
+    {
+        GatewayServer server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.setTargetIdRetriever(new GatewayEchoServer.EchoTargetIdRetriever());
+        server.getConnectorServlet().setInitParameter("maxDeliverSize", "1024");
+        server.start();
+        try
+        {
+            Address address = new Address("localhost", connector.getLocalPort());
+
+            HttpClient httpClient = new HttpClient();
+            httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+            httpClient.start();
+            try
+            {
+                String gatewayPath = server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH;
+                JettyClient client = new JettyClient(httpClient, address, gatewayPath, "echo");
+                client.connect();
+                try
+                {
+                    // A body larger than the max
+                    ContentExchange exchange = deliver(address, gatewayPath, new byte[2048]);
+                    httpClient.send(exchange);
+                    assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                    assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, exchange.getResponseStatus());
+
+                    // Valid frames larger than the max in total, without Content-Length
+                    StringBuilder frames = new StringBuilder();
+                    for (int i = 0; i < 10; ++i)
+                    {
+                        frames.append(i).append(" 200\r\n");
+                        for (int j = 0; j < 200; ++j)
+                            frames.append('X');
+                    }
+                    exchange = deliver(address, gatewayPath, null);
+                    exchange.setRequestContentSource(new ByteArrayInputStream(frames.toString().getBytes("UTF-8")));
+                    httpClient.send(exchange);
+                    assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                    assertEquals(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, exchange.getResponseStatus());
+
+                    // A small body with a frame that declares a huge payload
+                    exchange = deliver(address, gatewayPath, "1 2000000000\r\nX".getBytes("UTF-8"));
+                    httpClient.send(exchange);
+                    assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                    assertEquals(HttpServletResponse.SC_BAD_REQUEST, exchange.getResponseStatus());
+                }
+                finally
+                {
+                    client.disconnect();
+                }
+            }
+            finally
+            {
+                httpClient.stop();
+            }
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+    /**
+     * Tests that the responses of a deliver request are dispatched even
+     * if the frames that follow them are invalid.
+     *
+     * @throws Exception in case of test exceptions
+     */
+    public void testValidFramesBeforeInvalidOnesAreDispatched() throws Exception
+    {
+        GatewayServer server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.setTargetIdRetriever(new GatewayEchoServer.EchoTargetIdRetriever());
+        server.start();
+        try
+        {
+            Address address = new Address("localhost", connector.getLocalPort());
+
+            HttpClient httpClient = new HttpClient();
+            httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+            httpClient.start();
+            try
+            {
+                String gatewayPath = server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH;
+                final BlockingQueue<RHTTPRequest> requests = new LinkedBlockingQueue<RHTTPRequest>();
+                JettyClient client = new JettyClient(httpClient, address, gatewayPath, "echo");
+                client.addListener(new RHTTPListener()
+                {
+                    public void onRequest(RHTTPRequest request) throws Exception
+                    {
+                        requests.offer(request);
+                    }
+                });
+                client.connect();
+                try
+                {
+                    ContentExchange external = new ContentExchange(true);
+                    external.setMethod(HttpMethods.POST);
+                    external.setAddress(address);
+                    external.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/0");
+                    external.setRequestContent(new ByteArrayBuffer("body".getBytes("UTF-8")));
+                    httpClient.send(external);
+
+                    RHTTPRequest request = requests.poll(5, TimeUnit.SECONDS);
+                    assertNotNull(request);
+
+                    // A valid frame followed by garbage
+                    byte[] frame = new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getBody()).getFrameBytes();
+                    byte[] garbage = "garbage".getBytes("UTF-8");
+                    byte[] body = new byte[frame.length + garbage.length];
+                    System.arraycopy(frame, 0, body, 0, frame.length);
+                    System.arraycopy(garbage, 0, body, frame.length, garbage.length);
+                    ContentExchange exchange = deliver(address, gatewayPath, body);
+                    httpClient.send(exchange);
+                    assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                    assertEquals(HttpServletResponse.SC_BAD_REQUEST, exchange.getResponseStatus());
+
+                    assertEquals(HttpExchange.STATUS_COMPLETED, external.waitForDone());
+                    assertEquals(HttpServletResponse.SC_OK, external.getResponseStatus());
+                    assertEquals("body", external.getResponseContent());
+                }
+                finally
+                {
+                    client.disconnect();
+                }
+            }
+            finally
+            {
+                httpClient.stop();
+            }
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+    private ContentExchange deliver(Address address, String gatewayPath, byte[] body)
+    {
+        ContentExchange exchange = new ContentExchange(true);
+        exchange.setMethod(HttpMethods.POST);
+        exchange.setAddress(address);
+        exchange.setURI(gatewayPath + "/echo/deliver");
+        if (body != null)
+            exchange.setRequestContent(new ByteArrayBuffer(body));
+        return exchange;
+    }
+}
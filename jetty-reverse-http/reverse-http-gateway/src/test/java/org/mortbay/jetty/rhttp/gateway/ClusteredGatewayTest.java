@@ -0,0 +1,305 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class ClusteredGatewayTest extends TestCase
+{
+    private final List<GatewayServer> servers = new ArrayList<GatewayServer>();
+    private final List<SelectChannelConnector> connectors = new ArrayList<SelectChannelConnector>();
+    private HttpClient httpClient;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        httpClient = new HttpClient();
+        httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        httpClient.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        httpClient.stop();
+        for (GatewayServer server : servers)
+            server.stop();
+    }
+
+    public void testConsistentHash()
+    {
+        ConsistentHash ring = new ConsistentHash();
+        assertNull(ring.getNode("target"));
+        ring.addNode("node1");
+        ring.addNode("node2");
+        ring.addNode("node3");
+
+        Map<String, String> placements = new HashMap<String, String>();
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        int keys = 3000;
+        for (int i = 0; i < keys; ++i)
+        {
+            String node = ring.getNode("target" + i);
+            placements.put("target" + i, node);
+            Integer count = counts.get(node);
+            counts.put(node, count == null ? 1 : count + 1);
+        }
+        // Keys are spread over all nodes
+        assertEquals(3, counts.size());
+        for (Integer count : counts.values())
+            assertTrue(count > keys / 6);
+
+        // Removing a node only moves the keys of that node
+        ring.removeNode("node2");
+        for (Map.Entry<String, String> entry : placements.entrySet())
+        {
+            if (!"node2".equals(entry.getValue()))
+                assertEquals(entry.getValue(), ring.getNode(entry.getKey()));
+        }
+    }
+
+    public void testExternalRequestsForwardedToOwnerNode() throws Exception
+    {
+        int nodes = 3;
+        for (int i = 0; i < nodes; ++i)
+            startNode("node" + i, "secret");
+        linkNodes();
+
+        // Connect some clients, each to the node that owns its targetId
+        List<JettyClient> clients = new ArrayList<JettyClient>();
+        try
+        {
+            for (int i = 0; i < 6; ++i)
+            {
+                String targetId = "device" + i;
+                int owner = indexOf(((ClusteredGateway)servers.get(0).getGateway()).getNodeFor(targetId));
+                Address address = new Address("localhost", connectors.get(owner).getLocalPort());
+                final JettyClient client = new JettyClient(httpClient, address, GatewayServer.DFT_CONNECT_PATH, targetId);
+                client.addListener(new RHTTPListener()
+                {
+                    public void onRequest(RHTTPRequest request) throws Exception
+                    {
+                        String body = client.getTargetId() + ":" + new String(request.getBody(), "UTF-8");
+                        client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), body.getBytes("UTF-8")));
+                    }
+                });
+                client.connect();
+                clients.add(client);
+            }
+
+            // Send external requests for every client to every node
+            for (JettyClient client : clients)
+            {
+                for (int i = 0; i < nodes; ++i)
+                {
+                    ContentExchange exchange = new ContentExchange(true);
+                    exchange.setMethod(HttpMethods.POST);
+                    exchange.setAddress(new Address("localhost", connectors.get(i).getLocalPort()));
+                    exchange.setURI(GatewayServer.DFT_EXT_PATH + "/" + client.getTargetId() + "/path");
+                    exchange.setRequestContent(new ByteArrayBuffer(("body" + i).getBytes("UTF-8")));
+                    httpClient.send(exchange);
+                    assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                    assertEquals(HttpServletResponse.SC_OK, exchange.getResponseStatus());
+                    assertEquals(client.getTargetId() + ":body" + i, exchange.getResponseContent());
+                }
+            }
+
+            // A targetId owned by another node, but not connected
+            String targetId = null;
+            for (int i = 0; targetId == null; ++i)
+            {
+                String candidate = "missing" + i;
+                if (!"node0".equals(((ClusteredGateway)servers.get(0).getGateway()).getNodeFor(candidate)))
+                    targetId = candidate;
+            }
+            ContentExchange exchange = new ContentExchange(true);
+            exchange.setMethod(HttpMethods.GET);
+            exchange.setAddress(new Address("localhost", connectors.get(0).getLocalPort()));
+            exchange.setURI(GatewayServer.DFT_EXT_PATH + "/" + targetId + "/path");
+            httpClient.send(exchange);
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+            assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, exchange.getResponseStatus());
+        }
+        finally
+        {
+            for (JettyClient client : clients)
+                client.disconnect();
+        }
+    }
+
+    public void testClientMustConnectToOwnerNode() throws Exception
+    {
+        startNode("node0", "secret");
+        startNode("node1", "secret");
+        linkNodes();
+
+        ClusteredGateway gateway = (ClusteredGateway)servers.get(0).getGateway();
+        String targetId = targetIdOwnedBy("node1");
+        try
+        {
+            gateway.addClientDelegate(targetId, gateway.newClientDelegate(targetId));
+            fail();
+        }
+        catch (ClusteredGateway.WrongNodeException x)
+        {
+            assertEquals("node1", x.getOwnerNodeId());
+        }
+        assertNull(gateway.getClientDelegate(targetId));
+
+        // The handshake tells the client which node owns its targetId
+        ContentExchange handshake = new ContentExchange(true);
+        handshake.setMethod(HttpMethods.POST);
+        handshake.setAddress(new Address("localhost", connectors.get(0).getLocalPort()));
+        handshake.setRequestURI(GatewayServer.DFT_CONNECT_PATH + "/" + targetId + "/handshake");
+        httpClient.send(handshake);
+        assertEquals(HttpExchange.STATUS_COMPLETED, handshake.waitForDone());
+        assertEquals(HttpServletResponse.SC_CONFLICT, handshake.getResponseStatus());
+        assertEquals("node1", handshake.getResponseContent());
+        assertNull(gateway.getClientDelegate(targetId));
+
+        try
+        {
+            gateway.lookupClientDelegate(targetId).process(null);
+            fail();
+        }
+        catch (IOException x)
+        {
+            // Expected
+        }
+    }
+
+    public void testLinkWithWrongSecretIsRejected() throws Exception
+    {
+        startNode("node0", "secret");
+        startNode("node1", "other");
+        linkNodes();
+
+        String targetId = targetIdOwnedBy("node1");
+        Address address = new Address("localhost", connectors.get(1).getLocalPort());
+        final JettyClient client = new JettyClient(httpClient, address, GatewayServer.DFT_CONNECT_PATH, targetId);
+        client.addListener(new RHTTPListener()
+        {
+            public void onRequest(RHTTPRequest request) throws Exception
+            {
+                client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getBody()));
+            }
+        });
+        client.connect();
+        try
+        {
+            // Delivered when sent to the owner node
+            ContentExchange exchange = new ContentExchange(true);
+            exchange.setMethod(HttpMethods.GET);
+            exchange.setAddress(new Address("localhost", connectors.get(1).getLocalPort()));
+            exchange.setURI(GatewayServer.DFT_EXT_PATH + "/" + targetId + "/path");
+            httpClient.send(exchange);
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+            assertEquals(HttpServletResponse.SC_OK, exchange.getResponseStatus());
+
+            // Not forwarded by a node that does not share the secret
+            exchange = new ContentExchange(true);
+            exchange.setMethod(HttpMethods.GET);
+            exchange.setAddress(new Address("localhost", connectors.get(0).getLocalPort()));
+            exchange.setURI(GatewayServer.DFT_EXT_PATH + "/" + targetId + "/path");
+            httpClient.send(exchange);
+            assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+            assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, exchange.getResponseStatus());
+        }
+        finally
+        {
+            client.disconnect();
+        }
+    }
+
+    private String targetIdOwnedBy(String nodeId)
+    {
+        ClusteredGateway gateway = (ClusteredGateway)servers.get(0).getGateway();
+        for (int i = 0; ; ++i)
+        {
+            String candidate = "device" + i;
+            if (nodeId.equals(gateway.getNodeFor(candidate)))
+                return candidate;
+        }
+    }
+
+    private void linkNodes()
+    {
+        for (GatewayServer server : servers)
+        {
+            ClusteredGateway gateway = (ClusteredGateway)server.getGateway();
+            for (GatewayServer other : servers)
+            {
+                ClusteredGateway otherGateway = (ClusteredGateway)other.getGateway();
+                gateway.addNode(otherGateway.getNodeId(), "localhost", otherGateway.getLocalLinkPort());
+            }
+        }
+    }
+
+    private int indexOf(String nodeId)
+    {
+        for (int i = 0; i < servers.size(); ++i)
+        {
+            if (((ClusteredGateway)servers.get(i).getGateway()).getNodeId().equals(nodeId))
+                return i;
+        }
+        throw new AssertionError(nodeId);
+    }
+
+    private void startNode(final String nodeId, final String secret) throws Exception
+    {
+        GatewayServer server = new GatewayServer()
+        {
+            @Override
+            protected Gateway createGateway()
+            {
+                ClusteredGateway gateway = new ClusteredGateway(nodeId);
+                gateway.setScheduler(getScheduler());
+                gateway.setLinkSecret(secret);
+                addBean(gateway.getLinkServer());
+                return gateway;
+            }
+        };
+        SelectChannelConnector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.start();
+        servers.add(server);
+        connectors.add(connector);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class ConcurrentClientDelegateTest extends TestCase
+{
+    public void testConcurrentEnqueueDrainsAllInOrder() throws Exception
+    {
+        final ConcurrentClientDelegate client = new ConcurrentClientDelegate("test", 4);
+        assertEquals(4, client.getShards());
+
+        // First process returns immediately
+        assertTrue(client.process(null).isEmpty());
+
+        final int threads = 8;
+        final int count = 1000;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int t = 0; t < threads; ++t)
+        {
+            final int thread = t;
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < count; ++i)
+                        client.enqueue(new RHTTPRequest(thread * count + i, "GET", "/", new HashMap<String, String>(), new byte[0]));
+                    latch.countDown();
+                }
+            }.start();
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        // Requests enqueued are available without suspending
+        List<RHTTPRequest> requests = client.process(null);
+        assertNotNull(requests);
+        assertEquals(threads * count, requests.size());
+
+        // Requests enqueued by the same thread keep their order
+        Map<Integer, Integer> lastByThread = new HashMap<Integer, Integer>();
+        Set<Integer> ids = new HashSet<Integer>();
+        for (RHTTPRequest request : requests)
+        {
+            int thread = request.getId() / count;
+            Integer last = lastByThread.put(thread, request.getId());
+            if (last != null)
+                assertTrue(last < request.getId());
+            ids.add(request.getId());
+        }
+        assertEquals(threads * count, ids.size());
+    }
+
+    public void testClosedDelegateDoesNotEnqueue() throws Exception
+    {
+        ConcurrentClientDelegate client = new ConcurrentClientDelegate("test");
+        assertTrue(client.process(null).isEmpty());
+
+        client.close();
+        assertTrue(client.isClosed());
+        assertFalse(client.enqueue(new RHTTPRequest(1, "GET", "/", new HashMap<String, String>(), new byte[0])));
+
+        // A closed delegate returns an empty response rather than suspending
+        List<RHTTPRequest> requests = client.process(null);
+        assertNotNull(requests);
+        assertTrue(requests.isEmpty());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class DispatchResponsesTest extends TestCase
+{
+    public void testDispatchResponses() throws Exception
+    {
+        testEcho(true);
+    }
+
+    public void testRespondOnDeliverThread() throws Exception
+    {
+        testEcho(false);
+    }
+
+    /**
+     * Tests that responses are written to external requests intact,
+     * whether they are dispatched or not, and with a small response buffer.
+     *
+     * @param dispatchResponses whether responses are written by the external request thread
+     * @throws Exception in case of test exceptions
+     */
+    private void testEcho(boolean dispatchResponses) throws Exception
+    {
+        GatewayServer server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.setTargetIdRetriever(new GatewayEchoServer.EchoTargetIdRetriever());
+        StandardGateway gateway = (StandardGateway)server.getGateway();
+        gateway.setDispatchResponses(dispatchResponses);
+        gateway.setResponseBufferSize(1024);
+        server.start();
+        try
+        {
+            Address address = new Address("localhost", connector.getLocalPort());
+
+            HttpClient httpClient = new HttpClient();
+            httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+            httpClient.start();
+            try
+            {
+                final JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "echo");
+                client.addListener(new RHTTPListener()
+                {
+                    public void onRequest(RHTTPRequest request) throws Exception
+                    {
+                        client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getBody()));
+                    }
+                });
+                client.connect();
+                try
+                {
+                    StringBuilder builder = new StringBuilder();
+                    while (builder.length() < 100 * 1024)
+                        builder.append(builder.length()).append(',');
+                    String[] bodies = new String[]{"small", builder.toString()};
+                    for (String body : bodies)
+                    {
+                        ContentExchange exchange = new ContentExchange(true);
+                        exchange.setMethod(HttpMethods.POST);
+                        exchange.setAddress(address);
+                        exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/");
+                        exchange.setRequestContent(new ByteArrayBuffer(body.getBytes("UTF-8")));
+                        httpClient.send(exchange);
+                        assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                        assertEquals(HttpServletResponse.SC_OK, exchange.getResponseStatus());
+                        assertEquals(body, exchange.getResponseContent());
+                    }
+                }
+                finally
+                {
+                    client.disconnect();
+                }
+            }
+            finally
+            {
+                httpClient.stop();
+            }
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+}
@@ -176,6 +176,11 @@ public class ExternalRequestNotSuspendedTest extends TestCase
             respondLatch.countDown();
         }
 
+        public void resumed() throws IOException
+        {
+            delegate.resumed();
+        }
+
         public RHTTPRequest getRequest()
         {
             return delegate.getRequest();
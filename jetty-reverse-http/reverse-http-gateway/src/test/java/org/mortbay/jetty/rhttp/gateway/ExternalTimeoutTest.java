@@ -46,12 +46,23 @@ import org.mortbay.jetty.rhttp.gateway.StandardGateway;
 public class ExternalTimeoutTest extends TestCase
 {
     public void testExternalTimeout() throws Exception
+    {
+        testExternalTimeout(true);
+    }
+
+    public void testExternalTimeoutWithoutDispatchingResponses() throws Exception
+    {
+        testExternalTimeout(false);
+    }
+
+    private void testExternalTimeout(boolean dispatchResponses) throws Exception
     {
         GatewayServer server = new GatewayServer();
         SelectChannelConnector connector = new SelectChannelConnector();
         server.addConnector(connector);
         final long externalTimeout = 5000L;
         ((StandardGateway)server.getGateway()).setExternalTimeout(externalTimeout);
+        ((StandardGateway)server.getGateway()).setDispatchResponses(dispatchResponses);
         server.start();
         try
         {
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class HashedWheelSchedulerTest extends TestCase
+{
+    private HashedWheelScheduler scheduler;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        // A small wheel, so that delays span several revolutions
+        scheduler = new HashedWheelScheduler(10, 8);
+        scheduler.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        scheduler.stop();
+    }
+
+    public void testTaskExpiresNotBeforeDelay() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long delay = 200;
+        final long start = System.nanoTime();
+        final AtomicInteger elapsed = new AtomicInteger();
+        scheduler.schedule(new Runnable()
+        {
+            public void run()
+            {
+                elapsed.set((int)TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                latch.countDown();
+            }
+        }, delay);
+        assertEquals(1, scheduler.getSize());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(elapsed.get() >= delay);
+        assertEquals(0, scheduler.getSize());
+        assertEquals(1, scheduler.getExpiredCount());
+    }
+
+    public void testCancelledTaskDoesNotRun() throws Exception
+    {
+        final AtomicInteger runs = new AtomicInteger();
+        Scheduler.Task task = scheduler.schedule(new Runnable()
+        {
+            public void run()
+            {
+                runs.incrementAndGet();
+            }
+        }, 50);
+        assertTrue(task.cancel());
+        assertFalse(task.cancel());
+        assertEquals(0, scheduler.getSize());
+
+        Thread.sleep(200);
+        assertEquals(0, runs.get());
+        assertEquals(1, scheduler.getCancelledCount());
+    }
+
+    public void testRescheduleReusesTask() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(2);
+        Scheduler.Task task = scheduler.schedule(new Runnable()
+        {
+            public void run()
+            {
+                latch.countDown();
+            }
+        }, 20);
+
+        // Reschedule before it expires: only the rescheduled run happens
+        task.reschedule(50);
+        assertEquals(1, scheduler.getSize());
+        Thread.sleep(200);
+        assertEquals(1, latch.getCount());
+
+        // Reschedule after it ran
+        task.reschedule(20);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    public void testManyTasks() throws Exception
+    {
+        int count = 10000;
+        final CountDownLatch latch = new CountDownLatch(count);
+        Runnable task = new Runnable()
+        {
+            public void run()
+            {
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < count; ++i)
+            scheduler.schedule(task, i % 300);
+        assertTrue(scheduler.getMaxBucketSize() > 0);
+        assertTrue(scheduler.getOccupiedBuckets() <= scheduler.getWheelSize());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(count, scheduler.getExpiredCount());
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.eclipse.jetty.client.Address;
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.http.HttpMethods;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.mortbay.jetty.rhttp.client.JettyClient;
+import org.mortbay.jetty.rhttp.client.RHTTPListener;
+import org.mortbay.jetty.rhttp.client.RHTTPRequest;
+import org.mortbay.jetty.rhttp.client.RHTTPResponse;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class LargeRequestBodyTest extends TestCase
+{
+    public void testReadBufferedAndSpilled() throws Exception
+    {
+        byte[] prefix = "prefix".getBytes("UTF-8");
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; ++i)
+            content[i] = (byte)i;
+
+        // Known length, fits in memory: exactly sized heap buffer
+        ByteBuffer buffer = Utils.read(prefix, new ByteArrayInputStream(content), content.length, 20000, -1, null);
+        assertTrue(buffer.hasArray());
+        assertEquals(prefix.length + content.length, buffer.array().length);
+        assertContent(prefix, content, buffer);
+
+        // Unknown length, fits in memory
+        buffer = Utils.read(prefix, new ByteArrayInputStream(content), -1, 20000, -1, null);
+        assertTrue(buffer.hasArray());
+        assertContent(prefix, content, buffer);
+
+        // Unknown length, too large: spilled to a temporary file, which is loaded off-heap
+        buffer = Utils.read(prefix, new ByteArrayInputStream(content), -1, 1000, -1, null);
+        assertFalse(buffer.hasArray());
+        assertTrue(buffer.isDirect());
+        assertContent(prefix, content, buffer);
+
+        // Known length, too large
+        buffer = Utils.read(prefix, new ByteArrayInputStream(content), content.length, 1000, -1, null);
+        assertFalse(buffer.hasArray());
+        assertContent(prefix, content, buffer);
+    }
+
+    public void testReadDeletesTemporaryFiles() throws Exception
+    {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "rhttp-" + System.nanoTime());
+        assertTrue(directory.mkdir());
+        try
+        {
+            byte[] content = new byte[10000];
+            ByteBuffer buffer = Utils.read(new byte[0], new ByteArrayInputStream(content), -1, 1000, -1, directory);
+            assertEquals(content.length, buffer.remaining());
+            assertEquals(0, directory.list().length);
+
+            try
+            {
+                Utils.read(new byte[0], new ByteArrayInputStream(content), -1, 1000, 5000, directory);
+                fail();
+            }
+            catch (Utils.ContentTooLargeException x)
+            {
+                // Expected
+            }
+            assertEquals(0, directory.list().length);
+        }
+        finally
+        {
+            File[] files = directory.listFiles();
+            for (int i = 0; files != null && i < files.length; ++i)
+                files[i].delete();
+            directory.delete();
+        }
+    }
+
+    public void testReadRejectsTooLargeContent() throws Exception
+    {
+        byte[] prefix = "prefix".getBytes("UTF-8");
+        byte[] content = new byte[10000];
+
+        // Known length, rejected before reading
+        try
+        {
+            Utils.read(prefix, new ByteArrayInputStream(content), content.length, 20000, 5000, null);
+            fail();
+        }
+        catch (Utils.ContentTooLargeException x)
+        {
+            // Expected
+        }
+
+        // Unknown length, rejected while buffering
+        try
+        {
+            Utils.read(prefix, new ByteArrayInputStream(content), -1, 20000, 5000, null);
+            fail();
+        }
+        catch (Utils.ContentTooLargeException x)
+        {
+            // Expected
+        }
+
+        // Exactly the max is allowed
+        ByteBuffer buffer = Utils.read(prefix, new ByteArrayInputStream(content), -1, 1000, content.length, null);
+        assertEquals(prefix.length + content.length, buffer.remaining());
+    }
+
+    private void assertContent(byte[] prefix, byte[] content, ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        assertEquals(prefix.length + content.length, bytes.length);
+        assertEquals(ByteBuffer.wrap(prefix), ByteBuffer.wrap(bytes, 0, prefix.length));
+        assertEquals(ByteBuffer.wrap(content), ByteBuffer.wrap(bytes, prefix.length, content.length));
+    }
+
+    /**
+     * Tests that external requests larger than the max request buffer size
+     * are forwarded to the client intact.
+     *
+     * @throws Exception in case of test exceptions
+     */
+    public void testLargeRequestBody() throws Exception
+    {
+        GatewayServer server = new GatewayServer();
+        Connector connector = new SelectChannelConnector();
+        server.addConnector(connector);
+        server.setTargetIdRetriever(new GatewayEchoServer.EchoTargetIdRetriever());
+        ((StandardGateway)server.getGateway()).setMaxRequestBufferSize(1024);
+        server.start();
+        try
+        {
+            Address address = new Address("localhost", connector.getLocalPort());
+
+            HttpClient httpClient = new HttpClient();
+            httpClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+            httpClient.start();
+            try
+            {
+                final JettyClient client = new JettyClient(httpClient, address, server.getContext().getContextPath() + GatewayServer.DFT_CONNECT_PATH, "echo");
+                client.addListener(new RHTTPListener()
+                {
+                    public void onRequest(RHTTPRequest request) throws Exception
+                    {
+                        client.deliver(new RHTTPResponse(request.getId(), 200, "OK", new HashMap<String, String>(), request.getBody()));
+                    }
+                });
+                client.connect();
+                try
+                {
+                    StringBuilder builder = new StringBuilder();
+                    while (builder.length() < 100 * 1024)
+                        builder.append(builder.length()).append(',');
+                    String[] bodies = new String[]{"small", builder.toString()};
+                    for (String body : bodies)
+                    {
+                        ContentExchange exchange = new ContentExchange(true);
+                        exchange.setMethod(HttpMethods.POST);
+                        exchange.setAddress(address);
+                        exchange.setURI(server.getContext().getContextPath() + GatewayServer.DFT_EXT_PATH + "/");
+                        exchange.setRequestContent(new ByteArrayBuffer(body.getBytes("UTF-8")));
+                        httpClient.send(exchange);
+                        assertEquals(HttpExchange.STATUS_COMPLETED, exchange.waitForDone());
+                        assertEquals(HttpServletResponse.SC_OK, exchange.getResponseStatus());
+                        assertEquals(body, exchange.getResponseContent());
+                    }
+                }
+                finally
+                {
+                    client.disconnect();
+                }
+            }
+            finally
+            {
+                httpClient.stop();
+            }
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+}
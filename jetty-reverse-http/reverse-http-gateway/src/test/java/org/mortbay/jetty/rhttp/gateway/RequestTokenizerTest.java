@@ -0,0 +1,81 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.gateway;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class RequestTokenizerTest extends TestCase
+{
+    public void testSegmentsLikeSplit()
+    {
+        String[] paths = new String[]{"", "/", "//", "/a", "/a/", "/a/b", "/a//b", "//b", "a/b", "/abc/connect/", "/a/b/c//"};
+        for (String path : paths)
+        {
+            String[] segments = path.split("/");
+            for (int i = 0; i < 5; ++i)
+            {
+                long range = RequestTokenizer.segment(path, 0, i);
+                if (i < segments.length)
+                {
+                    assertTrue(path + "@" + i, range != RequestTokenizer.NONE);
+                    assertEquals(path + "@" + i, segments[i], path.substring(RequestTokenizer.start(range), RequestTokenizer.end(range)));
+                    assertTrue(RequestTokenizer.matches(path, range, segments[i]));
+                }
+                else
+                {
+                    assertEquals(path + "@" + i, RequestTokenizer.NONE, range);
+                }
+            }
+        }
+    }
+
+    public void testSegmentWithOffset()
+    {
+        String uri = "/__rhttp/target/connect";
+        long range = RequestTokenizer.segment(uri, "/__rhttp".length(), 2);
+        assertTrue(RequestTokenizer.matches(uri, range, "connect"));
+        assertFalse(RequestTokenizer.matches(uri, range, "connec"));
+        assertFalse(RequestTokenizer.matches(uri, range, "deliver"));
+        assertEquals(RequestTokenizer.NONE, RequestTokenizer.segment(uri, uri.length() + 1, 0));
+    }
+
+    public void testHost()
+    {
+        String host = "test.rhttp.example.com:8080";
+        long range = RequestTokenizer.host(host, ".rhttp.example.com");
+        assertTrue(RequestTokenizer.matches(host, range, "test"));
+        range = RequestTokenizer.host(host, ".other.com");
+        assertTrue(RequestTokenizer.matches(host, range, "test.rhttp.example.com"));
+        range = RequestTokenizer.host("test", null);
+        assertTrue(RequestTokenizer.matches("test", range, "test"));
+    }
+
+    public void testTargetIdCacheReturnsCanonicalStrings()
+    {
+        TargetIdCache cache = new TargetIdCache(16);
+        String uri1 = "/gw/target/path";
+        String uri2 = new String("/gw/target/other");
+        String targetId1 = cache.get(uri1, RequestTokenizer.segment(uri1, 3, 1));
+        String targetId2 = cache.get(uri2, RequestTokenizer.segment(uri2, 3, 1));
+        assertEquals("target", targetId1);
+        assertSame(targetId1, targetId2);
+        assertNull(cache.get(uri1, RequestTokenizer.NONE));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.loadtest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A lock-free, fixed memory histogram of non negative values, typically latencies in nanoseconds.</p>
+ * <p>Buckets are log-linear: values are grouped by their power of two, and each power of two
+ * is divided into {@link #SUB_BUCKETS} linear sub-buckets, so that the relative error of the
+ * reported values is less than 1/{@link #SUB_BUCKETS}, whatever the magnitude of the values.</p>
+ *
+ * @version $Revision$ $Date$
+ */
+public class LatencyHistogram
+{
+    /**
+     * The number of linear sub-buckets of each power of two
+     */
+    public static final int SUB_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 6;
+    // Values below 2 * SUB_BUCKETS are recorded exactly
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    private static final int MAX_SHIFT = 63 - SUB_BUCKET_BITS - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LINEAR + MAX_SHIFT * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value the value to record, negative values are recorded as zero
+     */
+    public void record(long value)
+    {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+
+        long oldMin = min.get();
+        while (value < oldMin && !min.compareAndSet(oldMin, value))
+            oldMin = min.get();
+        long oldMax = max.get();
+        while (value > oldMax && !max.compareAndSet(oldMax, value))
+            oldMax = max.get();
+    }
+
+    /**
+     * <p>Resets this histogram; values recorded concurrently may be lost.</p>
+     */
+    public void reset()
+    {
+        for (int i = 0; i < counts.length(); ++i)
+            counts.set(i, 0);
+        count.set(0);
+        total.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(0);
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return the min recorded value, or 0 if no values have been recorded
+     */
+    public long getMin()
+    {
+        return getCount() == 0 ? 0 : min.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * @return the average of the recorded values, or 0 if no values have been recorded
+     */
+    public long getAverage()
+    {
+        long count = getCount();
+        return count == 0 ? 0 : total.get() / count;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the value below which the given percentile of the recorded values fall,
+     * within the precision of the histogram, or 0 if no values have been recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+        long rank = (long)Math.ceil(Math.min(100D, Math.max(0D, percentile)) * count / 100D);
+        if (rank < 1)
+            rank = 1;
+        long cumulative = 0;
+        for (int i = 0; i < counts.length(); ++i)
+        {
+            cumulative += counts.get(i);
+            if (cumulative >= rank)
+                return Math.min(highestValueOf(i), getMax());
+        }
+        return getMax();
+    }
+
+    static int indexOf(long value)
+    {
+        if (value < LINEAR)
+            return (int)value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int top = (int)(value >>> shift);
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    static long highestValueOf(int index)
+    {
+        if (index < LINEAR)
+            return index;
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long top = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return (top << shift) + (1L << shift) - 1;
+    }
+}
@@ -17,16 +17,18 @@
 package org.mortbay.jetty.rhttp.loadtest;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
+import java.util.Properties;
 import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -42,6 +44,12 @@ import org.mortbay.jetty.rhttp.client.RHTTPRequest;
 import org.mortbay.jetty.rhttp.client.RHTTPResponse;
 
 /**
+ * <p>Load generator for the gateway server.</p>
+ * <p>Usage: <code>Loader [nodeName [scenarioFile]]</code>.<br />
+ * Without a scenario file, the parameters of the load are asked interactively on the console;
+ * with a scenario file, the load is run non-interactively as described by the {@link Scenario}
+ * and the results are written in machine-readable form, see {@link #writeResults(OutputStream, Scenario, long, boolean)}.</p>
+ *
  * @version $Revision$ $Date$
  */
 public class Loader
@@ -51,11 +59,10 @@ public class Loader
     private final AtomicLong end = new AtomicLong();
     private final AtomicLong responses = new AtomicLong();
     private final AtomicLong failures = new AtomicLong();
-    private final AtomicLong minLatency = new AtomicLong();
-    private final AtomicLong maxLatency = new AtomicLong();
-    private final AtomicLong totLatency = new AtomicLong();
-    private final ConcurrentMap<Long, AtomicLong> latencies = new ConcurrentHashMap<Long, AtomicLong>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final Random random = new Random();
     private final String nodeName;
+    private HttpClient httpClient;
 
     public static void main(String[] args) throws Exception
     {
@@ -64,7 +71,10 @@ public class Loader
             nodeName = args[0];
 
         Loader loader = new Loader(nodeName);
-        loader.run();
+        if (args.length > 1)
+            loader.run(Scenario.load(args[1]));
+        else
+            loader.run();
     }
 
     public Loader(String nodeName)
@@ -72,9 +82,9 @@ public class Loader
         this.nodeName = nodeName;
     }
 
-    private void run() throws Exception
+    private void start() throws Exception
     {
-        HttpClient httpClient = new HttpClient();
+        httpClient = new HttpClient();
         httpClient.setMaxConnectionsPerAddress(40000);
         QueuedThreadPool threadPool = new QueuedThreadPool();
         threadPool.setMaxThreads(500);
@@ -82,202 +92,227 @@ public class Loader
         httpClient.setThreadPool(threadPool);
         httpClient.setIdleTimeout(5000);
         httpClient.start();
+    }
 
-        Random random = new Random();
+    private void stop() throws Exception
+    {
+        for (RHTTPClient client : clients)
+            client.disconnect();
+        clients.clear();
+        httpClient.stop();
+    }
+
+    /**
+     * <p>Runs the given scenario and writes the results.</p>
+     *
+     * @param scenario the scenario to run
+     * @throws Exception if the scenario cannot be run
+     */
+    public void run(Scenario scenario) throws Exception
+    {
+        start();
+        try
+        {
+            System.err.println("Waiting for clients to be ready...");
+            updateClients(scenario);
+            System.err.println("Clients ready");
+
+            reset();
+            long expected = sendRequests(scenario);
+            boolean complete = waitForResponses(expected);
+            printReport(expected);
+
+            String output = scenario.getOutput();
+            if (output == null)
+            {
+                writeResults(System.out, scenario, expected, complete);
+            }
+            else
+            {
+                OutputStream stream = new FileOutputStream(output);
+                try
+                {
+                    writeResults(stream, scenario, expected, complete);
+                }
+                finally
+                {
+                    stream.close();
+                }
+            }
+        }
+        finally
+        {
+            stop();
+        }
+    }
+
+    private void run() throws Exception
+    {
+        start();
 
         BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+        Scenario scenario = new Scenario();
 
-        System.err.print("server [localhost]: ");
-        String value = console.readLine().trim();
-        if (value.length() == 0)
-            value = "localhost";
-        String host = value;
-
-        System.err.print("port [8080]: ");
-        value = console.readLine().trim();
-        if (value.length() == 0)
-            value = "8080";
-        int port = Integer.parseInt(value);
-
-        System.err.print("context []: ");
-        value = console.readLine().trim();
-        if (value.length() == 0)
-            value = "";
-        String context = value;
-
-        System.err.print("external path [/]: ");
-        value = console.readLine().trim();
-        if (value.length() == 0)
-            value = "/";
-        String externalPath = value;
-
-        System.err.print("gateway path [/__gateway]: ");
-        value = console.readLine().trim();
-        if (value.length() == 0)
-            value = "/__gateway";
-        String gatewayPath = value;
-
-        int clients = 100;
-        int batchCount = 1000;
-        int batchSize = 5;
-        long batchPause = 5;
-        int requestSize = 50;
+        scenario.host = ask(console, "server", scenario.host);
+        scenario.port = Integer.parseInt(ask(console, "port", String.valueOf(scenario.port)));
+        scenario.context = ask(console, "context", scenario.context);
+        scenario.externalPath = ask(console, "external path", scenario.externalPath);
+        scenario.gatewayPath = ask(console, "gateway path", scenario.gatewayPath);
 
         while (true)
         {
             System.err.println("-----");
 
-            System.err.print("clients [" + clients + "]: ");
-            value = console.readLine();
+            System.err.print("clients [" + scenario.clients + "]: ");
+            String value = console.readLine();
             if (value == null)
                 break;
             value = value.trim();
-            if (value.length() == 0)
-                value = "" + clients;
-            clients = Integer.parseInt(value);
-
-            System.err.println("Waiting for clients to be ready...");
-
-            Address gatewayAddress = new Address(host, port);
-            String gatewayURI = context + gatewayPath;
-
-            // Create or remove the necessary clients
-            int currentClients = this.clients.size();
-            if (currentClients < clients)
+            try
             {
-                for (int i = 0; i < clients - currentClients; ++i)
-                {
-                    final RHTTPClient client = new JettyClient(httpClient, gatewayAddress, gatewayURI, nodeName + (currentClients + i));
-                    client.addListener(new EchoListener(client));
-                    client.connect();
-                    this.clients.add(client);
-
-                    // Give some time to the server to accept connections and
-                    // reply to handshakes and connects
-                    if (i % 10 == 0)
-                    {
-                        Thread.sleep(100);
-                    }
-                }
+                int count = value.length() > 0 ? Integer.parseInt(value) : scenario.clients;
+                if (count < 0)
+                    throw new IllegalArgumentException("clients must not be negative: " + count);
+                scenario.clients = count;
             }
-            else if (currentClients > clients)
+            catch (IllegalArgumentException x)
             {
-                for (int i = 0; i < currentClients - clients; ++i)
-                {
-                    RHTTPClient client = this.clients.remove(currentClients - i - 1);
-                    client.disconnect();
-                }
+                System.err.println("Invalid value: " + x.getMessage());
+                continue;
             }
 
+            System.err.println("Waiting for clients to be ready...");
+            updateClients(scenario);
             System.err.println("Clients ready");
 
-            currentClients = this.clients.size();
-            if (currentClients > 0)
+            if (clients.size() > 0)
             {
-                System.err.print("batch count [" + batchCount + "]: ");
-                value = console.readLine().trim();
-                if (value.length() == 0)
-                    value = "" + batchCount;
-                batchCount = Integer.parseInt(value);
-
-                System.err.print("batch size [" + batchSize + "]: ");
-                value = console.readLine().trim();
-                if (value.length() == 0)
-                    value = "" + batchSize;
-                batchSize = Integer.parseInt(value);
-
-                System.err.print("batch pause [" + batchPause + "]: ");
-                value = console.readLine().trim();
-                if (value.length() == 0)
-                    value = "" + batchPause;
-                batchPause = Long.parseLong(value);
-
-                System.err.print("request size [" + requestSize + "]: ");
-                value = console.readLine().trim();
-                if (value.length() == 0)
-                    value = "" + requestSize;
-                requestSize = Integer.parseInt(value);
-                String requestBody = "";
-                for (int i = 0; i < requestSize; i++)
-                    requestBody += "x";
-
-                String externalURL = "http://" + host + ":" + port + context + externalPath;
-                if (!externalURL.endsWith("/"))
-                    externalURL += "/";
-
-                reset();
-
-                long start = System.nanoTime();
-                long expected = 0;
-                for (int i = 0; i < batchCount; ++i)
+                try
                 {
-                    for (int j = 0; j < batchSize; ++j)
-                    {
-                        int clientIndex = random.nextInt(this.clients.size());
-                        RHTTPClient client = this.clients.get(clientIndex);
-                        String targetId = client.getTargetId();
-                        String url = externalURL + targetId;
-
-                        ExternalExchange exchange = new ExternalExchange();
-                        exchange.setMethod("GET");
-                        exchange.setURL(url);
-                        exchange.setRequestContent(new ByteArrayBuffer(requestBody, "UTF-8"));
-                        exchange.send(httpClient);
-                        ++expected;
-                    }
-
-                    if (batchPause > 0)
-                        Thread.sleep(batchPause);
+                    scenario.batchCount = Integer.parseInt(ask(console, "batch count", String.valueOf(scenario.batchCount)));
+                    scenario.batchSize = Integer.parseInt(ask(console, "batch size", String.valueOf(scenario.batchSize)));
+                    scenario.batchPause = Long.parseLong(ask(console, "batch pause", String.valueOf(scenario.batchPause)));
+                    scenario.requestSize = Integer.parseInt(ask(console, "request size", String.valueOf(scenario.requestSize)));
+                    scenario.validateBatches();
                 }
-                long end = System.nanoTime();
-                long elapsedNanos = end - start;
-                if (elapsedNanos > 0)
+                catch (IllegalArgumentException x)
                 {
-                    System.err.print("Messages - Elapsed | Rate = ");
-                    System.err.print(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
-                    System.err.print(" ms | ");
-                    System.err.print(expected * 1000 * 1000 * 1000 / elapsedNanos);
-                    System.err.println(" requests/s ");
+                    System.err.println("Invalid value: " + x.getMessage());
+                    continue;
                 }
 
+                reset();
+                long expected = sendRequests(scenario);
                 waitForResponses(expected);
                 printReport(expected);
             }
         }
     }
 
-    private void reset()
+    private String ask(BufferedReader console, String name, String defaultValue) throws IOException
     {
-        start.set(0L);
-        end.set(0L);
-        responses.set(0L);
-        failures.set(0L);
-        minLatency.set(Long.MAX_VALUE);
-        maxLatency.set(0L);
-        totLatency.set(0L);
+        System.err.print(name + " [" + defaultValue + "]: ");
+        String value = console.readLine().trim();
+        return value.length() == 0 ? defaultValue : value;
     }
 
-    private void updateLatencies(long start, long end)
+    private void updateClients(Scenario scenario) throws Exception
     {
-        long latency = end - start;
+        Address gatewayAddress = new Address(scenario.host, scenario.port);
+        String gatewayURI = scenario.context + scenario.gatewayPath;
+
+        // Create or remove the necessary clients
+        int currentClients = this.clients.size();
+        int clients = scenario.clients;
+        if (currentClients < clients)
+        {
+            int newClients = clients - currentClients;
+            long pause = scenario.rampUp / newClients;
+            for (int i = 0; i < newClients; ++i)
+            {
+                final RHTTPClient client = new JettyClient(httpClient, gatewayAddress, gatewayURI, nodeName + (currentClients + i));
+                client.addListener(new EchoListener(client));
+                client.connect();
+                this.clients.add(client);
+
+                if (pause > 0)
+                {
+                    Thread.sleep(pause);
+                }
+                else if (i % 10 == 0)
+                {
+                    // Give some time to the server to accept connections and
+                    // reply to handshakes and connects
+                    Thread.sleep(100);
+                }
+            }
+        }
+        else if (currentClients > clients)
+        {
+            for (int i = 0; i < currentClients - clients; ++i)
+            {
+                RHTTPClient client = this.clients.remove(currentClients - i - 1);
+                client.disconnect();
+            }
+        }
+    }
 
-        // Update the latencies using a non-blocking algorithm
-        long oldMinLatency = minLatency.get();
-        while (latency < oldMinLatency)
+    /**
+     * @return the number of requests sent
+     */
+    private long sendRequests(Scenario scenario) throws Exception
+    {
+        StringBuilder requestBody = new StringBuilder(scenario.requestSize);
+        for (int i = 0; i < scenario.requestSize; i++)
+            requestBody.append('x');
+
+        String externalURL = "http://" + scenario.host + ":" + scenario.port + scenario.context + scenario.externalPath;
+        if (!externalURL.endsWith("/"))
+            externalURL += "/";
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(scenario.duration);
+        long expected = 0;
+        for (int i = 0; scenario.duration > 0 ? System.nanoTime() < deadline : i < scenario.batchCount; ++i)
         {
-            if (minLatency.compareAndSet(oldMinLatency, latency)) break;
-            oldMinLatency = minLatency.get();
+            for (int j = 0; j < scenario.batchSize; ++j)
+            {
+                int clientIndex = random.nextInt(this.clients.size());
+                RHTTPClient client = this.clients.get(clientIndex);
+                String targetId = client.getTargetId();
+                String url = externalURL + targetId;
+
+                ExternalExchange exchange = new ExternalExchange();
+                exchange.setMethod("GET");
+                exchange.setURL(url);
+                exchange.setRequestContent(new ByteArrayBuffer(requestBody.toString(), "UTF-8"));
+                exchange.send(httpClient);
+                ++expected;
+            }
+
+            if (scenario.batchPause > 0)
+                Thread.sleep(scenario.batchPause);
         }
-        long oldMaxLatency = maxLatency.get();
-        while (latency > oldMaxLatency)
+        long end = System.nanoTime();
+        long elapsedNanos = end - start;
+        if (elapsedNanos > 0)
         {
-            if (maxLatency.compareAndSet(oldMaxLatency, latency)) break;
-            oldMaxLatency = maxLatency.get();
+            System.err.print("Messages - Elapsed | Rate = ");
+            System.err.print(TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+            System.err.print(" ms | ");
+            System.err.print(expected * 1000 * 1000 * 1000 / elapsedNanos);
+            System.err.println(" requests/s ");
         }
-        totLatency.addAndGet(latency);
+        return expected;
+    }
 
-        latencies.putIfAbsent(latency, new AtomicLong(0L));
-        latencies.get(latency).incrementAndGet();
+    private void reset()
+    {
+        start.set(0L);
+        end.set(0L);
+        responses.set(0L);
+        failures.set(0L);
+        latencies.reset();
     }
 
     private boolean waitForResponses(long expected) throws InterruptedException
@@ -334,42 +369,51 @@ public class Loader
             System.err.println(" responses/s ");
         }
 
-        if (latencies.size() > 1)
-        {
-            long maxLatencyBucketFrequency = 0L;
-            long[] latencyBucketFrequencies = new long[20];
-            long latencyRange = maxLatency.get() - minLatency.get();
-            for (Iterator<Map.Entry<Long, AtomicLong>> entries = latencies.entrySet().iterator(); entries.hasNext();)
-            {
-                Map.Entry<Long, AtomicLong> entry = entries.next();
-                long latency = entry.getKey();
-                Long bucketIndex = (latency - minLatency.get()) * latencyBucketFrequencies.length / latencyRange;
-                int index = bucketIndex.intValue() == latencyBucketFrequencies.length ? latencyBucketFrequencies.length - 1 : bucketIndex.intValue();
-                long value = entry.getValue().get();
-                latencyBucketFrequencies[index] += value;
-                if (latencyBucketFrequencies[index] > maxLatencyBucketFrequency) maxLatencyBucketFrequency = latencyBucketFrequencies[index];
-                entries.remove();
-            }
-
-            System.err.println("Messages - Latency Distribution Curve (X axis: Frequency, Y axis: Latency):");
-            for (int i = 0; i < latencyBucketFrequencies.length; i++)
-            {
-                long latencyBucketFrequency = latencyBucketFrequencies[i];
-                int value = Math.round(latencyBucketFrequency * (float) latencyBucketFrequencies.length / maxLatencyBucketFrequency);
-                if (value == latencyBucketFrequencies.length) value = value - 1;
-                for (int j = 0; j < value; ++j) System.err.print(" ");
-                System.err.print("@");
-                for (int j = value + 1; j < latencyBucketFrequencies.length; ++j) System.err.print(" ");
-                System.err.print("  _  ");
-                System.err.print(TimeUnit.NANOSECONDS.toMillis((latencyRange * (i + 1) / latencyBucketFrequencies.length) + minLatency.get()));
-                System.err.println(" ms (" + latencyBucketFrequency + ")");
-            }
-        }
-
         System.err.print("Messages - Latency Min/Ave/Max = ");
-        System.err.print(TimeUnit.NANOSECONDS.toMillis(minLatency.get()) + "/");
-        System.err.print(responseCount == 0 ? "-/" : TimeUnit.NANOSECONDS.toMillis(totLatency.get() / responseCount) + "/");
-        System.err.println(TimeUnit.NANOSECONDS.toMillis(maxLatency.get()) + " ms");
+        System.err.print(TimeUnit.NANOSECONDS.toMillis(latencies.getMin()) + "/");
+        System.err.print(latencies.getCount() == 0 ? "-/" : TimeUnit.NANOSECONDS.toMillis(latencies.getAverage()) + "/");
+        System.err.println(TimeUnit.NANOSECONDS.toMillis(latencies.getMax()) + " ms");
+
+        System.err.print("Messages - Latency p50/p99/p99.9/Max = ");
+        System.err.print(TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(50)) + "/");
+        System.err.print(TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(99)) + "/");
+        System.err.print(TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(99.9)) + "/");
+        System.err.println(TimeUnit.NANOSECONDS.toMicros(latencies.getMax()) + " us");
+    }
+
+    /**
+     * <p>Writes the results of the last run as <code>key=value</code> lines, in a stable order,
+     * so that results of different runs can be compared by scripts.</p>
+     * <p>Times are in microseconds and rates in responses per second.</p>
+     *
+     * @param stream the stream to write to
+     * @param scenario the scenario that was run
+     * @param expectedCount the number of requests sent
+     * @param complete whether all the responses arrived before giving up waiting for them
+     */
+    public void writeResults(OutputStream stream, Scenario scenario, long expectedCount, boolean complete)
+    {
+        PrintStream output = new PrintStream(stream);
+        output.println("scenario.clients=" + scenario.clients);
+        output.println("scenario.batchSize=" + scenario.batchSize);
+        output.println("scenario.batchPause=" + scenario.batchPause);
+        output.println("scenario.requestSize=" + scenario.requestSize);
+        output.println("scenario.duration=" + scenario.duration);
+        output.println("requests=" + expectedCount);
+        output.println("responses=" + responses.get());
+        output.println("failures=" + failures.get());
+        output.println("complete=" + complete);
+        long elapsedNanos = end.get() - start.get();
+        output.println("elapsed=" + TimeUnit.NANOSECONDS.toMicros(elapsedNanos));
+        long responseCount = responses.get() + failures.get();
+        output.println("rate=" + (elapsedNanos > 0 ? responseCount * 1000 * 1000 * 1000 / elapsedNanos : 0));
+        output.println("latency.min=" + TimeUnit.NANOSECONDS.toMicros(latencies.getMin()));
+        output.println("latency.avg=" + TimeUnit.NANOSECONDS.toMicros(latencies.getAverage()));
+        output.println("latency.p50=" + TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(50)));
+        output.println("latency.p99=" + TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(99)));
+        output.println("latency.p999=" + TimeUnit.NANOSECONDS.toMicros(latencies.getValueAtPercentile(99.9)));
+        output.println("latency.max=" + TimeUnit.NANOSECONDS.toMicros(latencies.getMax()));
+        output.flush();
     }
 
     private class ExternalExchange extends ContentExchange
@@ -399,7 +443,7 @@ public class Loader
             if (start.get() == 0L)
                 start.set(arrivalTime);
             end.set(arrivalTime);
-            updateLatencies(sendTime, arrivalTime);
+            latencies.record(arrivalTime - sendTime);
         }
 
         @Override
@@ -424,4 +468,102 @@ public class Loader
             client.deliver(response);
         }
     }
+
+    /**
+     * <p>The parameters of a load run, loaded from a properties file with these keys:</p>
+     * <ul>
+     * <li><tt>host</tt>, <tt>port</tt>, <tt>context</tt>, <tt>externalPath</tt>, <tt>gatewayPath</tt>: the gateway server</li>
+     * <li><tt>clients</tt>: the number of gateway clients</li>
+     * <li><tt>rampUp</tt>: the time in milliseconds over which the clients are connected</li>
+     * <li><tt>batchSize</tt>: the number of requests sent in a batch</li>
+     * <li><tt>batchPause</tt>: the pause in milliseconds between batches</li>
+     * <li><tt>batchCount</tt>: the number of batches, if <tt>duration</tt> is not set</li>
+     * <li><tt>duration</tt>: the time in milliseconds during which batches are sent</li>
+     * <li><tt>requestSize</tt>: the size of the request body</li>
+     * <li><tt>output</tt>: the file the results are written to, by default the standard output</li>
+     * </ul>
+     */
+    public static class Scenario
+    {
+        private String host = "localhost";
+        private int port = 8080;
+        private String context = "";
+        private String externalPath = "/";
+        private String gatewayPath = "/__gateway";
+        private int clients = 100;
+        private long rampUp;
+        private int batchCount = 1000;
+        private int batchSize = 5;
+        private long batchPause = 5;
+        private long duration;
+        private int requestSize = 50;
+        private String output;
+
+        public static Scenario load(String file) throws IOException
+        {
+            Properties properties = new Properties();
+            InputStream input = new FileInputStream(file);
+            try
+            {
+                properties.load(input);
+            }
+            finally
+            {
+                input.close();
+            }
+
+            Scenario scenario = new Scenario();
+            scenario.host = properties.getProperty("host", scenario.host);
+            scenario.port = Integer.parseInt(properties.getProperty("port", String.valueOf(scenario.port)));
+            scenario.context = properties.getProperty("context", scenario.context);
+            scenario.externalPath = properties.getProperty("externalPath", scenario.externalPath);
+            scenario.gatewayPath = properties.getProperty("gatewayPath", scenario.gatewayPath);
+            scenario.clients = Integer.parseInt(properties.getProperty("clients", String.valueOf(scenario.clients)));
+            scenario.rampUp = Long.parseLong(properties.getProperty("rampUp", String.valueOf(scenario.rampUp)));
+            scenario.batchCount = Integer.parseInt(properties.getProperty("batchCount", String.valueOf(scenario.batchCount)));
+            scenario.batchSize = Integer.parseInt(properties.getProperty("batchSize", String.valueOf(scenario.batchSize)));
+            scenario.batchPause = Long.parseLong(properties.getProperty("batchPause", String.valueOf(scenario.batchPause)));
+            scenario.duration = Long.parseLong(properties.getProperty("duration", String.valueOf(scenario.duration)));
+            scenario.requestSize = Integer.parseInt(properties.getProperty("requestSize", String.valueOf(scenario.requestSize)));
+            scenario.output = properties.getProperty("output");
+            scenario.validate();
+            return scenario;
+        }
+
+        /**
+         * @throws IllegalArgumentException if a parameter of this scenario is out of range
+         */
+        void validate()
+        {
+            if (port <= 0 || port > 65535)
+                throw new IllegalArgumentException("port must be between 1 and 65535: " + port);
+            if (clients <= 0)
+                throw new IllegalArgumentException("clients must be positive: " + clients);
+            if (rampUp < 0)
+                throw new IllegalArgumentException("rampUp must not be negative: " + rampUp);
+            if (duration < 0)
+                throw new IllegalArgumentException("duration must not be negative: " + duration);
+            validateBatches();
+        }
+
+        /**
+         * @throws IllegalArgumentException if a batch parameter of this scenario is out of range
+         */
+        void validateBatches()
+        {
+            if (batchCount < 0)
+                throw new IllegalArgumentException("batchCount must not be negative: " + batchCount);
+            if (batchSize <= 0)
+                throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+            if (batchPause < 0)
+                throw new IllegalArgumentException("batchPause must not be negative: " + batchPause);
+            if (requestSize < 0)
+                throw new IllegalArgumentException("requestSize must not be negative: " + requestSize);
+        }
+
+        public String getOutput()
+        {
+            return output;
+        }
+    }
 }
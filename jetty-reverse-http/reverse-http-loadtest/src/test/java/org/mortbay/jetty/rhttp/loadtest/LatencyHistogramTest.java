@@ -0,0 +1,136 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.loadtest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class LatencyHistogramTest extends TestCase
+{
+    public void testEmpty()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getAverage());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    public void testSmallValuesAreExact()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; ++i)
+            histogram.record(i);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50, histogram.getAverage());
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(50, histogram.getValueAtPercentile(50));
+        assertEquals(99, histogram.getValueAtPercentile(99));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+    }
+
+    public void testRelativeError()
+    {
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1)
+        {
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestValueOf(index);
+            assertTrue(value + " > " + highest, highest >= value);
+            assertTrue(value + " -> " + highest, highest - value <= value / LatencyHistogram.SUB_BUCKETS);
+            // The previous bucket ends before the value
+            if (index > 0)
+                assertTrue(LatencyHistogram.highestValueOf(index - 1) < value);
+        }
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    public void testPercentilesOfLargeValues()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; ++i)
+            histogram.record(i * 1000000L);
+
+        long p50 = histogram.getValueAtPercentile(50);
+        assertTrue(String.valueOf(p50), p50 >= 500000000L && p50 <= 500000000L + 500000000L / LatencyHistogram.SUB_BUCKETS);
+        long p999 = histogram.getValueAtPercentile(99.9);
+        assertTrue(String.valueOf(p999), p999 >= 999000000L && p999 <= 1000000000L);
+        // Never reported above the max
+        assertEquals(1000000000L, histogram.getValueAtPercentile(100));
+    }
+
+    public void testNegativeValuesAreRecordedAsZero()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getValueAtPercentile(100));
+    }
+
+    public void testReset()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+
+        histogram.record(20);
+        assertEquals(20, histogram.getMin());
+        assertEquals(20, histogram.getValueAtPercentile(50));
+    }
+
+    public void testConcurrentRecords() throws Exception
+    {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int threads = 4;
+        final int values = 10000;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int i = 0; i < threads; ++i)
+        {
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 1; j <= values; ++j)
+                        histogram.record(j);
+                    latch.countDown();
+                }
+            }.start();
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        assertEquals(threads * values, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(values, histogram.getMax());
+        assertEquals((values + 1) / 2, histogram.getAverage());
+    }
+}
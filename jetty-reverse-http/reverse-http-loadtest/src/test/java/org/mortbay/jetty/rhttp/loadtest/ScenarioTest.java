@@ -0,0 +1,104 @@
+/*
+ * Copyright 2009-2009 Webtide LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.mortbay.jetty.rhttp.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * @version $Revision$ $Date$
+ */
+public class ScenarioTest extends TestCase
+{
+    public void testLoad() throws Exception
+    {
+        Loader.Scenario scenario = load("clients=10\nbatchSize=2\noutput=results.properties\n");
+        assertEquals("results.properties", scenario.getOutput());
+    }
+
+    public void testZeroClientsIsRejected() throws Exception
+    {
+        assertInvalid("clients=0\n");
+    }
+
+    public void testZeroBatchSizeIsRejected() throws Exception
+    {
+        assertInvalid("batchSize=0\n");
+    }
+
+    public void testNegativeValuesAreRejected() throws Exception
+    {
+        assertInvalid("rampUp=-1\n");
+        assertInvalid("batchCount=-1\n");
+        assertInvalid("batchPause=-1\n");
+        assertInvalid("duration=-1\n");
+        assertInvalid("requestSize=-1\n");
+    }
+
+    public void testResultsReportWhetherAllResponsesArrived() throws Exception
+    {
+        Loader.Scenario scenario = load("");
+        Loader loader = new Loader("");
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        loader.writeResults(output, scenario, 10, true);
+        assertTrue(output.toString("UTF-8").contains("complete=true"));
+
+        output.reset();
+        loader.writeResults(output, scenario, 10, false);
+        assertTrue(output.toString("UTF-8").contains("complete=false"));
+    }
+
+    private void assertInvalid(String properties) throws IOException
+    {
+        try
+        {
+            load(properties);
+            fail("Expected IllegalArgumentException for " + properties.trim());
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
+    private Loader.Scenario load(String properties) throws IOException
+    {
+        File file = File.createTempFile("scenario", ".properties");
+        try
+        {
+            OutputStream output = new FileOutputStream(file);
+            try
+            {
+                output.write(properties.getBytes("UTF-8"));
+            }
+            finally
+            {
+                output.close();
+            }
+            return Loader.Scenario.load(file.getAbsolutePath());
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}